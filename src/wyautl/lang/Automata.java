@@ -25,13 +25,14 @@
 
 package wyautl.lang;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.BitSet;
 import java.util.Comparator;
+import java.util.HashMap;
 
 import wyautl.lang.Automaton.State;
-import wyautl.util.BinaryMatrix;
 
 /**
  * <p>
@@ -228,28 +229,23 @@ public final class Automata {
 	 */
 	public final static Automaton minimise(Automaton automaton) {		
 		// First, determine equivalence classes
-		BinaryMatrix equivs = new BinaryMatrix(automaton.size(),automaton.size(),true);
-		determineEquivalenceClasses(equivs,automaton);
+		int[] classes = determineEquivalenceClasses(automaton);
 		
 		// TODO: optimise the case when all equivalence classes have unit size.
 		
-		// Second, determine representative nodes for each equivalence class.
+		// Second, number each equivalence class according to its first
+		// member. Thus, states retain their relative order.
 		int oldSize = automaton.size();
-		int[] mapping = new int[oldSize];		
+		int[] mapping = new int[oldSize];
+		int[] numbering = new int[oldSize];
+		Arrays.fill(numbering, -1);
 		int newSize = 0;		
 		for(int i=0;i!=oldSize;++i) {
-			int classRep = i;			
-			for(int j=0;j<i;++j) {
-				if(equivs.get(i,j)) {
-					classRep = j;					
-					break;					
-				}
-			}	
-			if(i == classRep) {
-				mapping[i] = newSize++;
-			} else {
-				mapping[i] = mapping[classRep];
+			int c = classes[i];
+			if(numbering[c] < 0) {
+				numbering[c] = newSize++;
 			}
+			mapping[i] = numbering[c];
 		}
 			
 		// Finally, reconstruct minimised automaton
@@ -266,116 +262,204 @@ public final class Automata {
 		return new Automaton(newStates);
 	}
 		
-	private final static void determineEquivalenceClasses(BinaryMatrix equivs,
-			Automaton automaton) {
-		boolean changed = true;
-		int size = automaton.size();
-		
-		while (changed) {
-			changed = false;
-			for (int i = 0; i < size; ++i) {
-				for (int j = i + 1; j < size; ++j) {					
-					if(equivs.get(i,j)) {
-						// no need to explore nodes which are already known to
-						// be not equivalent.
-						boolean b = equivalent(i, j, equivs, automaton);						
-						equivs.set(i, j, b);
-						equivs.set(j, i, b);
-						changed |= !b;
+	/**
+	 * <p>
+	 * Determine the equivalence classes of an automaton, using partition
+	 * refinement. Initially, all states are placed into a single block. Then,
+	 * each block on the worklist is split according to the signature of its
+	 * members, which consists of their kind, supplementary data and the
+	 * blocks of their children (for non-deterministic states, the set of
+	 * blocks). When a block is split, the largest part keeps the original
+	 * block, whilst the other parts are moved into new blocks. Only those
+	 * blocks containing a predecessor of a moved state can be affected by the
+	 * split, and these are placed onto the worklist. Since a state can only
+	 * be moved into a block at most half the size of its current block, each
+	 * state is moved O(log n) times.
+	 * </p>
+	 * 
+	 * @param automaton
+	 *            --- automaton being minimised
+	 * @return --- mapping from states to their equivalence class
+	 */
+	private final static int[] determineEquivalenceClasses(Automaton automaton) {
+		State[] states = automaton.states;
+		int size = states.length;
+		int[] classes = new int[size];		
+		if(size == 0) {
+			return classes;
+		}
+		int[][] predecessors = predecessors(automaton);
+		
+		ArrayList<int[]> blocks = new ArrayList<int[]>();
+		int[] all = new int[size];
+		for(int i=0;i!=size;++i) {
+			all[i] = i;
+		}
+		blocks.add(all);
+		
+		ArrayDeque<Integer> worklist = new ArrayDeque<Integer>();
+		BitSet queued = new BitSet(size);
+		worklist.add(0);
+		queued.set(0);
+		
+		HashMap<Signature,Integer> signatures = new HashMap<Signature,Integer>();
+		while(!worklist.isEmpty()) {
+			int block = worklist.remove();
+			queued.clear(block);
+			int[] members = blocks.get(block);
+			if(members.length == 1) {
+				continue;
+			}
+			
+			// First, group members by their signature.
+			signatures.clear();
+			int[] groups = new int[members.length];			
+			for(int k=0;k!=members.length;++k) {
+				Signature signature = new Signature(states[members[k]], classes);
+				Integer group = signatures.get(signature);
+				if(group == null) {
+					group = signatures.size();
+					signatures.put(signature, group);
+				}
+				groups[k] = group;
+			}
+			int ngroups = signatures.size();
+			if(ngroups == 1) {
+				continue;
+			}
+			
+			// Second, split the block with the largest group keeping it.
+			int[] counts = new int[ngroups];
+			int largest = 0;
+			for(int group : groups) {
+				if(++counts[group] > counts[largest]) {
+					largest = group;
+				}
+			}
+			int[] ids = new int[ngroups];
+			int[][] parts = new int[ngroups][];
+			for(int g=0;g!=ngroups;++g) {
+				parts[g] = new int[counts[g]];
+				if(g == largest) {
+					ids[g] = block;
+					blocks.set(block, parts[g]);
+				} else {
+					ids[g] = blocks.size();
+					blocks.add(parts[g]);
+				}
+				counts[g] = 0;
+			}
+			for(int k=0;k!=members.length;++k) {
+				int group = groups[k];
+				int member = members[k];
+				parts[group][counts[group]++] = member;
+				classes[member] = ids[group];
+			}
+			
+			// Third, requeue any blocks which may be affected.
+			for(int g=0;g!=ngroups;++g) {
+				if(g == largest) {
+					continue;
+				}
+				for(int member : parts[g]) {
+					for(int predecessor : predecessors[member]) {
+						int c = classes[predecessor];
+						if(!queued.get(c)) {
+							queued.set(c);
+							worklist.add(c);
+						}
 					}
 				}
 			}
 		}
+		
+		return classes;
 	}
 	
-	/*
-	 * Check whether two states are equivalent under the rules set out for
-	 * minimisation above.
-	 */
-	private final static boolean equivalent(int i, int j, BinaryMatrix equivs, Automaton automaton) {
-		State s1 = automaton.states[i];
-		State s2 = automaton.states[j];
-		
-		// first, check supplementary data
-		Object s1data = s1.data;
-		Object s2data = s2.data;
-		if(s1data == null) {
-			 if(s2data != null) {
-				 return false;
-			 }
-		} else {
-			// following catches case where s2data == null as well
-			if(!s1data.equals(s2data)) {
-				return false;
+	/**
+	 * Determine the predecessors of every state in an automaton. That is, the
+	 * states which have a given state as a child.
+	 */
+	private final static int[][] predecessors(Automaton automaton) {
+		State[] states = automaton.states;
+		int size = states.length;
+		int[] counts = new int[size];
+		for(State state : states) {
+			for(int child : state.children) {
+				counts[child]++;
+			}
+		}
+		int[][] predecessors = new int[size][];
+		for(int i=0;i!=size;++i) {
+			predecessors[i] = new int[counts[i]];
+			counts[i] = 0;
+		}
+		for(int i=0;i!=size;++i) {
+			for(int child : states[i].children) {
+				predecessors[child][counts[child]++] = i;
 			}
 		}
+		return predecessors;
+	}
+	
+	/**
+	 * The signature of a state determines which states it may be equivalent
+	 * to under the rules set out for minimisation above. That is, two states
+	 * may be equivalent only if they have the same kind and supplementary
+	 * data, and their children belong to the same equivalence classes.
+	 */
+	private static final class Signature {
+		private final State state;
+		private final int[] children;
+		private final int hashCode;
 		
-		// second, check node kind and children, etc.
-		if(s1.kind == s2.kind && s1.deterministic == s2.deterministic) {			
-			boolean deterministic = s1.deterministic;
-			if(deterministic) {
-				int[] s1children = s1.children;
-				int[] s2children = s2.children;
-				
-				if(s1children.length != s2children.length) {
-					return false;
-				}
-				
-				int length = s1children.length;
-				
-				for(int k=0;k!=length;++k) {
-					int s1child = s1children[k];
-					int s2child = s2children[k];
-					if(!equivs.get(s1child,s2child)) {
-						return false;
-					}
-				}
-				
-				return true;
-			} else {
-				// non-deterministic (i.e. more expensive) case
-				int[] s1children = s1.children;
-				int[] s2children = s2.children;				
-				int s1length = s1children.length;
-				int s2length = s2children.length;
-				
-				// First, check every node in s1 has equivalent in s2
-				for(int k=0;k!=s1length;++k) {
-					int s1child = s1children[k];
-					boolean matched = false;
-					for(int l=0;l!=s2length;++l) {
-						int s2child = s2children[l];
-						if(equivs.get(s1child,s2child)) {
-							matched = true;
-							break;
-						}
-					}
-					if(!matched) {
-						return false;
+		public Signature(State state, int[] classes) {
+			int[] ochildren = state.children;
+			int[] nchildren = new int[ochildren.length];
+			for(int i=0;i!=ochildren.length;++i) {
+				nchildren[i] = classes[ochildren[i]];
+			}
+			if(!state.deterministic && nchildren.length > 1) {
+				// non-deterministic states are compared by the set of classes
+				Arrays.sort(nchildren);
+				int j = 1;
+				for(int i=1;i!=nchildren.length;++i) {
+					if(nchildren[i] != nchildren[j-1]) {
+						nchildren[j++] = nchildren[i];
 					}
 				}
-
-				// Second, check every node in s2 has equivalent in s1
-				for(int k=0;k!=s2length;++k) {
-					int s2child = s2children[k];
-					boolean matched = false;
-					for(int l=0;l!=s1length;++l) {
-						int s1child = s1children[l];
-						if(equivs.get(s1child,s2child)) {
-							matched = true;
-							break;
-						}
-					}
-					if(!matched) {
-						return false;
-					}
+				nchildren = Arrays.copyOf(nchildren, j);
+			}
+			int hashCode = Arrays.hashCode(nchildren) + state.kind;
+			if(state.data != null) {
+				hashCode = hashCode + state.data.hashCode();
+			}
+			this.state = state;
+			this.children = nchildren;
+			this.hashCode = hashCode;
+		}
+		
+		public boolean equals(Object o) {
+			if(o instanceof Signature) {
+				Signature s = (Signature) o;
+				State s1 = state;
+				State s2 = s.state;
+				if (s1.kind != s2.kind || s1.deterministic != s2.deterministic
+						|| !Arrays.equals(children, s.children)) {
+					return false;
+				} else if(s1.data == null) {
+					return s2.data == null;
+				} else {
+					// following catches case where s2.data == null as well
+					return s1.data.equals(s2.data);
 				}
-				
-				return true;
 			}
+			return false;
 		}
 		
-		return false;
+		public int hashCode() {
+			return hashCode;
+		}
 	}
 
 	/**
@@ -390,12 +474,23 @@ public final class Automata {
 	 * </p>
 	 * 
 	 * <p>
-	 * The canonical form is computed using a straightforward (brute-force)
-	 * back-tracking search. This means it is potentially quite expensive,
-	 * although in most cases it probably runs in polynomial time. The number of
-	 * non-deterministic states in the automaton directly affects how hard the
-	 * computation is. In particular, if there are no non-deterministic states,
-	 * the algorithm runs in guaranteed polynomial time.
+	 * The canonical form is computed using <i>colour refinement</i>. Initially,
+	 * each state is coloured according to its kind, determinism, number of
+	 * children and supplementary data. Then, each state is repeatedly
+	 * recoloured according to its own colour and those of its children, until
+	 * no more colours are distinguished. Since colours are assigned by
+	 * sorting, rather than by the positions of states, they do not depend on
+	 * how the automaton is laid out. The states are then allocated in order
+	 * from the root, with the children of each non-deterministic state being
+	 * allocated in order of their colour. For automata which have been
+	 * minimised, every state ends up with a distinct colour and this runs in
+	 * polynomial time. Otherwise, there may be states which have the same
+	 * colour but are not interchangeable. In this case, each state in turn is
+	 * given a colour of its own and the search continues, with the least
+	 * result being chosen. Leaves of this search which give the same automaton
+	 * reveal symmetries of the automaton, and these are used to avoid
+	 * exploring equivalent choices more than once. Even so, the number of
+	 * such ties directly affects how hard the computation is.
 	 * </p>
 	 * 
 	 * <p>
@@ -413,13 +508,10 @@ public final class Automata {
 	 */
 	public static void canonicalise(Automaton automaton,
 			Comparator<State> dataComparator) {
-		int size = automaton.size();				
-		ArrayList<Morphism> candidates = new ArrayList<Morphism>();		
-		candidates.add(new Morphism(size));		
-		for(int i=0;i!=size;++i) {
-			extend(i,candidates,automaton,dataComparator);			
-		}		
-		inplaceReorder(automaton,candidates.get(0).n2i);					
+		int[] colours = colour(automaton, dataComparator);
+		colours = refine(colours, automaton);
+		int[] n2i = search(colours, automaton, dataComparator);
+		inplaceReorder(automaton, n2i);
 	}
 
 	/*
@@ -446,85 +538,471 @@ public final class Automata {
 	}
 
 	/**
-	 * <p>
-	 * This algorithm extends all of the current morphisms by a single place.
-	 * What this means, is that all of children of the state under consideration
-	 * will be placed after this. In the case of non-deterministic states, this
-	 * may give rise to a number of equivalent extensions to consider.
-	 * <p>
+	 * Determine the initial colour of each state. States have the same colour
+	 * if they have the same kind, determinism, number of children and
+	 * supplementary data. Colours are numbered consecutively from zero in the
+	 * order of the states they represent.
 	 * 
-	 * @param index
-	 *            --- index in morphism to extend. A state must already have
-	 *            been placed at its index, but some or all of its children will
-	 *            not be placed yet.
-	 * @param free
-	 *            --- the first free available index in the morphism (note free
-	 *            > index).
-	 * @param candidates
-	 *            --- this is the list of candidate morphisms currently being
-	 *            explored. An invariant of this algorithm is that all
-	 *            candidates are equivalent under the <code>lessThan()</code>
-	 *            relation.
 	 * @param automaton
 	 *            --- the automaton being canonicalised
 	 * @param dataComparator
-	 *            --- comparator for supplementary data. May be null if no state
-	 *            has supplementary data. The comparator is guaranteed to be
-	 *            called on states of matching kind and determinism.
+	 *            --- comparator for supplementary data.
+	 * @return
+	 */
+	private static int[] colour(Automaton automaton,
+			final Comparator<State> dataComparator) {
+		final State[] states = automaton.states;
+		Integer[] order = new Integer[states.length];
+		for (int i = 0; i != order.length; ++i) {
+			order[i] = i;
+		}
+		Comparator<Integer> comparator = new Comparator<Integer>() {
+			public int compare(Integer i1, Integer i2) {
+				return compareStates(states[i1], states[i2], dataComparator);
+			}
+		};
+		Arrays.sort(order, comparator);
+		int[] colours = new int[states.length];
+		int colour = 0;
+		for (int i = 0; i != order.length; ++i) {
+			if (i > 0 && comparator.compare(order[i - 1], order[i]) != 0) {
+				colour = colour + 1;
+			}
+			colours[order[i]] = colour;
+		}
+		return colours;
+	}
+
+	/**
+	 * Compare two states, ignoring their children. States of lower kind come
+	 * first, followed by deterministic states, those with fewer children and,
+	 * finally, those with no (or lower) supplementary data.
+	 */
+	private static int compareStates(State s1, State s2,
+			Comparator<State> dataComparator) {
+		if (s1.kind != s2.kind) {
+			return s1.kind < s2.kind ? -1 : 1;
+		} else if (s1.deterministic != s2.deterministic) {
+			return s1.deterministic ? -1 : 1;
+		} else if (s1.children.length != s2.children.length) {
+			return s1.children.length < s2.children.length ? -1 : 1;
+		} else if (s1.data == null) {
+			return s2.data == null ? 0 : -1;
+		} else if (s2.data == null) {
+			return 1;
+		} else {
+			return dataComparator.compare(s1, s2);
+		}
+	}
+
+	/**
+	 * Refine a colouring of an automaton until it is stable. On each pass,
+	 * every state is recoloured according to its current colour and those of
+	 * its children (which, for a non-deterministic state, are considered in
+	 * order of colour). This only ever splits colours and, hence, at most
+	 * <code>n</code> passes are required for an automaton with
+	 * <code>n</code> states.
 	 * 
+	 * @param colours
+	 *            --- the current colouring of the automaton
+	 * @param automaton
+	 *            --- the automaton being canonicalised
+	 * @return
 	 */
-	private static void extend(int index, ArrayList<Morphism> candidates,
-			Automaton automaton, Comparator<State> dataComparator) {
+	private static int[] refine(int[] colours, Automaton automaton) {
+		State[] states = automaton.states;
+		int size = states.length;
+		int ncolours = count(colours);
+		while (true) {
+			final int[][] signatures = new int[size][];
+			for (int i = 0; i != size; ++i) {
+				State state = states[i];
+				int[] children = state.children;
+				int[] signature = new int[children.length + 1];
+				signature[0] = colours[i];
+				for (int j = 0; j != children.length; ++j) {
+					signature[j + 1] = colours[children[j]];
+				}
+				if (!state.deterministic) {
+					Arrays.sort(signature, 1, signature.length);
+				}
+				signatures[i] = signature;
+			}
+			int[] ncolours_ = rank(signatures);
+			int n = count(ncolours_);
+			if (n == ncolours) {
+				return colours;
+			}
+			colours = ncolours_;
+			ncolours = n;
+		}
+	}
 
-		// Please note, this algorithm is really not very efficient. There is
-		// quite a lot more pruning that could be done!
-		
-		int size = candidates.size();
-		for(int i=0;i!=size;++i) {
-			Morphism candidate = candidates.get(i);			
-			extend(index,candidate,candidates,automaton);
+	/**
+	 * Search for the canonical ordering of an automaton, given a stable
+	 * colouring. If every state has a distinct colour, then the ordering is
+	 * determined immediately. Otherwise, each state of the first shared
+	 * colour is given its own colour in turn, and the least resulting
+	 * automaton is chosen.
+	 * 
+	 * @param colours
+	 *            --- a stable colouring of the automaton
+	 * @param automaton
+	 *            --- the automaton being canonicalised
+	 * @param dataComparator
+	 *            --- comparator for supplementary data.
+	 * @return --- mapping from states to their canonical positions.
+	 */
+	private static int[] search(int[] colours, Automaton automaton,
+			Comparator<State> dataComparator) {
+		Search search = new Search(automaton, dataComparator);
+		search.search(colours, new int[colours.length], 0);
+		return search.best;
+	}
+
+	/**
+	 * <p>
+	 * A search for the canonical ordering of an automaton. The search tree is
+	 * explored depth first, where each node gives one state of the first
+	 * shared colour a colour of its own, and each leaf gives a candidate
+	 * ordering.
+	 * </p>
+	 * 
+	 * <p>
+	 * When the automaton is symmetric, many leaves give the same automaton.
+	 * Whenever a leaf gives the same automaton as the first or best leaf so
+	 * far, the two orderings differ by an automorphism of the automaton. This
+	 * is recorded, and the search returns to the node where the two leaves
+	 * diverged, since the rest of that subtree is the image of one already
+	 * explored. Furthermore, a node does not try a state which lies in the
+	 * same orbit as one it has already tried, under those automorphisms found
+	 * which fix the states chosen on the way to it. For example, a
+	 * non-deterministic state with <code>k</code> identical children now
+	 * requires <code>O(k^2)</code> leaves, rather than <code>k!</code>.
+	 * </p>
+	 */
+	private static final class Search {
+		private final Automaton automaton;
+		private final Comparator<State> dataComparator;
+		private final ArrayList<int[]> automorphisms = new ArrayList<int[]>();
+		private int[] first;
+		private int[] firstPath;
+		private Automaton firstAutomaton;
+		private int[] best;
+		private int[] bestPath;
+		private Automaton bestAutomaton;
+
+		public Search(Automaton automaton, Comparator<State> dataComparator) {
+			this.automaton = automaton;
+			this.dataComparator = dataComparator;
+		}
+
+		/**
+		 * Explore the subtree below a given node.
+		 * 
+		 * @param colours
+		 *            --- a stable colouring for this node
+		 * @param path
+		 *            --- the states given their own colour on the way to this
+		 *            node.
+		 * @param depth
+		 *            --- the depth of this node, and hence the length of
+		 *            path.
+		 * @return --- the depth of the node which should move on to its next
+		 *         state, or <code>Integer.MAX_VALUE</code> if the search
+		 *         continues as normal.
+		 */
+		public int search(int[] colours, int[] path, int depth) {
+			int size = colours.length;
+			// find the first colour shared by more than one state
+			int[] counts = new int[size];
+			for (int c : colours) {
+				counts[c]++;
+			}
+			int tie = 0;
+			while (tie < size && counts[tie] < 2) {
+				tie = tie + 1;
+			}
+			if (tie == size) {
+				return leaf(allocate(colours, automaton), path, depth);
+			}
+			ArrayList<Integer> tried = new ArrayList<Integer>();
+			int[] orbits = null;
+			int known = -1;
+			for (int i = 0; i != size; ++i) {
+				if (colours[i] != tie) {
+					continue;
+				}
+				if (known != automorphisms.size()) {
+					known = automorphisms.size();
+					orbits = orbits(path, depth);
+				}
+				if (inOrbit(i, tried, orbits)) {
+					continue;
+				}
+				tried.add(i);
+				// give state i a colour of its own, which comes before the
+				// other states of the same colour.
+				int[] ncolours = new int[size];
+				for (int j = 0; j != size; ++j) {
+					ncolours[j] = colours[j] * 2;
+					if (colours[j] == tie && j != i) {
+						ncolours[j] = ncolours[j] + 1;
+					}
+				}
+				ncolours = refine(rank(ncolours), automaton);
+				path[depth] = i;
+				int resume = search(ncolours, path, depth + 1);
+				if (resume < depth) {
+					return resume;
+				}
+			}
+			return Integer.MAX_VALUE;
+		}
+
+		/**
+		 * Consider the ordering given by a leaf of the search tree.
+		 */
+		private int leaf(int[] n2i, int[] path, int depth) {
+			Automaton candidate = reorder(new Automaton(automaton), n2i);
+			if (first == null) {
+				first = best = n2i;
+				firstPath = bestPath = Arrays.copyOf(path, depth);
+				firstAutomaton = bestAutomaton = candidate;
+				return Integer.MAX_VALUE;
+			} else if (compare(candidate, firstAutomaton, dataComparator) == 0) {
+				return automorphism(first, firstPath, n2i, path, depth);
+			}
+			int c = compare(candidate, bestAutomaton, dataComparator);
+			if (c < 0) {
+				best = n2i;
+				bestPath = Arrays.copyOf(path, depth);
+				bestAutomaton = candidate;
+			} else if (c == 0) {
+				return automorphism(best, bestPath, n2i, path, depth);
+			}
+			return Integer.MAX_VALUE;
+		}
+
+		/**
+		 * Record the automorphism between two leaves which give the same
+		 * automaton, and determine the node where their paths diverged. The
+		 * subtree of that node containing the second leaf is the image of
+		 * the one containing the first and, hence, need not be explored any
+		 * further.
+		 */
+		private int automorphism(int[] n2i1, int[] path1, int[] n2i2,
+				int[] path2, int depth) {
+			int size = n2i1.length;
+			int[] i2n2 = new int[size];
+			for (int i = 0; i != size; ++i) {
+				i2n2[n2i2[i]] = i;
+			}
+			int[] automorphism = new int[size];
+			for (int i = 0; i != size; ++i) {
+				automorphism[i] = i2n2[n2i1[i]];
+			}
+			automorphisms.add(automorphism);
+			int length = Math.min(path1.length, depth);
+			for (int i = 0; i != length; ++i) {
+				if (path1[i] != path2[i]) {
+					// sanity check that the automorphism maps one subtree
+					// onto the other
+					return automorphism[path1[i]] == path2[i] ? i
+							: Integer.MAX_VALUE;
+				} else if (automorphism[path1[i]] != path2[i]) {
+					return Integer.MAX_VALUE;
+				}
+			}
+			return Integer.MAX_VALUE;
+		}
+
+		/**
+		 * Determine the orbits of states under those automorphisms found so
+		 * far which fix the states on a given path. Each state is mapped to a
+		 * representative of its orbit.
+		 */
+		private int[] orbits(int[] path, int depth) {
+			int size = path.length;
+			int[] orbits = new int[size];
+			for (int i = 0; i != size; ++i) {
+				orbits[i] = i;
+			}
+			outer: for (int[] automorphism : automorphisms) {
+				for (int i = 0; i != depth; ++i) {
+					if (automorphism[path[i]] != path[i]) {
+						continue outer;
+					}
+				}
+				for (int i = 0; i != size; ++i) {
+					int r1 = find(orbits, i);
+					int r2 = find(orbits, automorphism[i]);
+					if (r1 != r2) {
+						orbits[Math.max(r1, r2)] = Math.min(r1, r2);
+					}
+				}
+			}
+			return orbits;
+		}
+
+		private static boolean inOrbit(int state, ArrayList<Integer> tried,
+				int[] orbits) {
+			int r = find(orbits, state);
+			for (int t : tried) {
+				if (find(orbits, t) == r) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private static int find(int[] orbits, int state) {
+			while (orbits[state] != state) {
+				orbits[state] = orbits[orbits[state]];
+				state = orbits[state];
+			}
+			return state;
 		}
-		
-		prune(candidates, automaton, dataComparator);
 	}
 
-	private static void extend(int index, Morphism candidate,
-			ArrayList<Morphism> candidates, Automaton automaton) {
+	/**
+	 * Allocate each state a position, given a colouring in which every state
+	 * has a distinct colour. Starting from the root, each state allocates its
+	 * unallocated children in turn. The children of non-deterministic states
+	 * are allocated in order of their colour.
+	 * 
+	 * @param colours
+	 *            --- a colouring of the automaton
+	 * @param automaton
+	 *            --- the automaton being canonicalised
+	 * @return --- mapping from states to their canonical positions.
+	 */
+	private static int[] allocate(int[] colours, Automaton automaton) {
 		State[] states = automaton.states;
-		State s = states[candidate.i2n[index]];
-		int[] children = s.children;
-		if(s.deterministic) {
-			// easy case
-			for(int child : children) {
-				if(!candidate.isAllocated(child)) {
-					candidate.allocate(child);
+		int size = states.length;
+		int[] n2i = new int[size];
+		int[] i2n = new int[size];
+		Arrays.fill(n2i, -1);
+		n2i[0] = 0;
+		int free = 1;
+		for (int index = 0; index < free; ++index) {
+			State state = states[i2n[index]];
+			int[] children = state.children;
+			if (!state.deterministic) {
+				// since colours are distinct, sorting by them is total
+				long[] tmp = new long[children.length];
+				for (int j = 0; j != children.length; ++j) {
+					int child = children[j];
+					tmp[j] = ((long) colours[child] << 32) | child;
+				}
+				Arrays.sort(tmp);
+				children = new int[tmp.length];
+				for (int j = 0; j != tmp.length; ++j) {
+					children[j] = (int) tmp[j];
 				}
 			}
-		} else {
-			// harder case
-			
-			// This loop is why the algorithm has exponential running time.			
-			ArrayList<int[]> permutations = permutations(children);
-			for(int i=0;i!=permutations.size();++i) {
-				Morphism ncandidate;
-				if((i+1) == permutations.size()) {
-					// last one, so overwrite original
-					ncandidate = candidate;
-				} else {
-					ncandidate = new Morphism(candidate);
-					candidates.add(ncandidate);
-				}				
-				int[] permutation = permutations.get(i);				
-				for(int child : permutation) {
-					// GAH --- the following line is horrendously stupid. It's
-					// guaranteed to generate idendical candidates in the case
-					// of a child which is already allocated.
-					if(!ncandidate.isAllocated(child)) {
-						ncandidate.allocate(child);
+			for (int child : children) {
+				if (n2i[child] < 0) {
+					i2n[free] = child;
+					n2i[child] = free++;
+				}
+			}
+		}
+		// finally, any unreachable states are placed in order of colour
+		if (free != size) {
+			int[] inverse = new int[size];
+			for (int i = 0; i != size; ++i) {
+				inverse[colours[i]] = i;
+			}
+			for (int c = 0; c != size; ++c) {
+				int state = inverse[c];
+				if (n2i[state] < 0) {
+					n2i[state] = free++;
+				}
+			}
+		}
+		return n2i;
+	}
+
+	/**
+	 * Compare two automata state by state. This is used to choose between
+	 * candidate canonical forms.
+	 */
+	private static int compare(Automaton a1, Automaton a2,
+			Comparator<State> dataComparator) {
+		State[] states1 = a1.states;
+		State[] states2 = a2.states;
+		for (int i = 0; i != states1.length; ++i) {
+			State s1 = states1[i];
+			State s2 = states2[i];
+			int c = compareStates(s1, s2, dataComparator);
+			if (c != 0) {
+				return c;
+			}
+			int[] children1 = s1.children;
+			int[] children2 = s2.children;
+			for (int j = 0; j != children1.length; ++j) {
+				if (children1[j] != children2[j]) {
+					return children1[j] < children2[j] ? -1 : 1;
+				}
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Assign each of a number of signatures a rank, such that equal
+	 * signatures have equal rank and ranks are numbered consecutively from
+	 * zero in lexicographic order of signatures.
+	 */
+	private static int[] rank(final int[][] signatures) {
+		Integer[] order = new Integer[signatures.length];
+		for (int i = 0; i != order.length; ++i) {
+			order[i] = i;
+		}
+		Comparator<Integer> comparator = new Comparator<Integer>() {
+			public int compare(Integer i1, Integer i2) {
+				int[] s1 = signatures[i1];
+				int[] s2 = signatures[i2];
+				int length = Math.min(s1.length, s2.length);
+				for (int i = 0; i != length; ++i) {
+					if (s1[i] != s2[i]) {
+						return s1[i] < s2[i] ? -1 : 1;
 					}
 				}
-			}			
-		}		
+				return s1.length - s2.length;
+			}
+		};
+		Arrays.sort(order, comparator);
+		int[] ranks = new int[signatures.length];
+		int rank = 0;
+		for (int i = 0; i != order.length; ++i) {
+			if (i > 0 && comparator.compare(order[i - 1], order[i]) != 0) {
+				rank = rank + 1;
+			}
+			ranks[order[i]] = rank;
+		}
+		return ranks;
+	}
+
+	private static int[] rank(int[] colours) {
+		int[][] signatures = new int[colours.length][];
+		for (int i = 0; i != colours.length; ++i) {
+			signatures[i] = new int[] { colours[i] };
+		}
+		return rank(signatures);
+	}
+
+	/**
+	 * Count the number of distinct colours in a colouring whose colours are
+	 * numbered consecutively from zero.
+	 */
+	private static int count(int[] colours) {
+		int max = -1;
+		for (int c : colours) {
+			max = Math.max(max, c);
+		}
+		return max + 1;
 	}
 	
 	/**
@@ -574,42 +1052,6 @@ public final class Automata {
 		}
 	}
 	
-	/**
-	 * The purpose of this method is to prune the candidate list. In otherwords,
-	 * to remove any candidates which are above some other candidate. 
-	 * 
-	 * @param size
-	 * @param candidates
-	 * @param automaton
-	 */
-	private static void prune(ArrayList<Morphism> candidates, Automaton automaton, Comparator<State> dataComparator) {
-		// this is really inefficient!
-		// at a minimum, we could avoid recomputing lessThan twice for each candidate.		
-		Morphism least = candidates.get(0); 
-		for(Morphism candidate : candidates) {			
-			if(lessThan(candidate,least,automaton, dataComparator)) {
-				least = candidate;
-			}
-		}
-		
-		int diff = 0;
-		for(int i=0;i!=candidates.size();++i) {
-			Morphism candidate = candidates.get(i);
-			if(lessThan(least,candidate,automaton, dataComparator)) {
-				diff = diff + 1;
-			} else {
-				candidates.set(i-diff,candidate);
-			}
-		}
-		
-		// now actually remove those bypassed.
-		int last = candidates.size();
-		while(diff > 0) {
-			candidates.remove(--last);
-			diff = diff - 1;
-		}
-	}
-	
 	/**
 	 * This function determines whether one morphism of a given automaton is
 	 * <i>lexiographically</i> less than another. Starting from the root, we
@@ -758,21 +1200,132 @@ public final class Automata {
 	 * possibly more).
 	 * </p>
 	 * 
+	 * <p>
+	 * The relation is computed using a worklist. Initially, every pair of
+	 * states is on the worklist. Then, whenever the status of a pair changes,
+	 * only those pairs which may depend upon it are put back onto the
+	 * worklist (see <code>Relation.update()</code>).
+	 * </p>
+	 * 
 	 * @param relation
 	 *            --- the relation to be computed. automaton.
 	 */	
 	public static final void computeFixpoint(Relation relation) {
-		Automaton from = relation.from();
-		Automaton to = relation.to();
-		int fromDomain = from.size();
-		int toDomain = to.size();
-
-		boolean changed = true;
-		while (changed) {			
-			changed = false;
-			for (int i = 0; i != fromDomain; i++) {
-				for (int j = 0; j != toDomain; j++) {
-					changed |= relation.update(i, j);
+		int fromDomain = relation.from().size();
+		int toDomain = relation.to().size();
+		BitSet pairs = new BitSet(fromDomain * toDomain);
+		pairs.set(0, fromDomain * toDomain);
+		computeFixpoint(relation, pairs);
+	}
+	
+	/**
+	 * <p>
+	 * Determine whether a given state in the <code>from</code> automaton is
+	 * related to a given state in the <code>to</code> automaton. This computes
+	 * the relation only for those pairs of states which the given pair may
+	 * (transitively) depend upon, rather than for every pair of states. This
+	 * is usually much cheaper when only the root states are of interest.
+	 * </p>
+	 * 
+	 * @param relation
+	 *            --- the relation to be computed.
+	 * @param fromIndex
+	 *            --- An index into automaton <code>from</code>.
+	 * @param toIndex
+	 *            --- An index into automaton <code>to</code>.
+	 * @return --- true if the two states are related.
+	 */
+	public static final boolean computeFixpoint(Relation relation,
+			int fromIndex, int toIndex) {
+		State[] fromStates = relation.from().states;
+		State[] toStates = relation.to().states;
+		int toDomain = toStates.length;
+		
+		// First, determine which pairs are reachable from the given pair.
+		BitSet pairs = new BitSet(fromStates.length * toDomain);
+		int[] stack = new int[16];
+		int top = 0;
+		pairs.set(fromIndex * toDomain + toIndex);
+		stack[top++] = fromIndex * toDomain + toIndex;
+		while (top > 0) {
+			int pair = stack[--top];
+			int i = pair / toDomain;
+			int j = pair % toDomain;
+			int[] fromChildren = fromStates[i].children;
+			int[] toChildren = toStates[j].children;
+			for (int k = -1; k != fromChildren.length; ++k) {
+				int fromChild = k < 0 ? i : fromChildren[k];
+				for (int l = -1; l != toChildren.length; ++l) {
+					int toChild = l < 0 ? j : toChildren[l];
+					int child = fromChild * toDomain + toChild;
+					if (!pairs.get(child)) {
+						pairs.set(child);
+						if (top == stack.length) {
+							stack = Arrays.copyOf(stack, top * 2);
+						}
+						stack[top++] = child;
+					}
+				}
+			}
+		}
+		
+		// Second, compute the relation over those pairs alone.
+		computeFixpoint(relation, pairs);
+		return relation.isRelated(fromIndex, toIndex);
+	}
+	
+	/**
+	 * Compute the relation over a given set of pairs, which must include every
+	 * pair that any of them depend upon. Each pair is identified by
+	 * <code>from * toDomain + to</code>.
+	 * 
+	 * @param relation
+	 *            --- the relation to be computed.
+	 * @param pairs
+	 *            --- the set of pairs to be computed.
+	 */
+	private static void computeFixpoint(Relation relation, BitSet pairs) {
+		int[][] fromPredecessors = predecessors(relation.from());
+		int[][] toPredecessors = predecessors(relation.to());
+		int toDomain = toPredecessors.length;
+		
+		// The worklist is a circular buffer, which is large enough since no
+		// pair is on the worklist more than once at any given moment. It is
+		// initially filled in reverse order since children typically follow
+		// their parents; thus, a change rarely requeues a pair which has
+		// already been considered.
+		BitSet queued = (BitSet) pairs.clone();
+		int[] worklist = new int[pairs.cardinality()];
+		int head = 0;
+		int count = 0;
+		for (int pair = pairs.length() - 1; pair >= 0; pair = pairs
+				.previousSetBit(pair - 1)) {
+			worklist[count++] = pair;
+		}
+		
+		while (count > 0) {
+			int pair = worklist[head];
+			head = (head + 1) % worklist.length;
+			count = count - 1;
+			queued.clear(pair);
+			int i = pair / toDomain;
+			int j = pair % toDomain;
+			if (!relation.update(i, j)) {
+				continue;
+			}
+			// status changed, so requeue any pairs which may depend on it
+			int[] fromPreds = fromPredecessors[i];
+			int[] toPreds = toPredecessors[j];
+			for (int k = -1; k != fromPreds.length; ++k) {
+				int fromPred = k < 0 ? i : fromPreds[k];
+				for (int l = -1; l != toPreds.length; ++l) {
+					int toPred = l < 0 ? j : toPreds[l];
+					int dependent = fromPred * toDomain + toPred;
+					if (pairs.get(dependent) && !queued.get(dependent)) {
+						queued.set(dependent);
+						worklist[(head + count) % worklist.length] = dependent;
+						count = count + 1;
+					}
 				}
 			}
 		}
@@ -126,42 +126,29 @@ public final class Automaton {
 	}
 	
 	public String toString() {
-		String r = "";
+		StringBuilder r = new StringBuilder();
 		for(int i=0;i!=states.length;++i) {
 			if(i != 0) {
-				r = r + ", ";
+				r.append(", ");
 			}
 			Automaton.State state = states[i];
-			int kind = state.kind;
-			r = r + "#";
-			r = r + i;
-			r = r + "(";						
-			r = r + kind;
-			
+			r.append('#').append(i).append('(').append(state.kind);
 			if(state.data != null) {
-				r = r + "," + state.data;
-			}
-			r = r + ")";
-			if(state.deterministic) {
-				r = r + "[";
-			} else {
-				r = r + "{";
+				r.append(',').append(state.data);
 			}
+			r.append(')');
+			r.append(state.deterministic ? '[' : '{');
 			boolean firstTime=true;
 			for(int c : state.children) {
 				if(!firstTime) {
-					r = r + ",";
+					r.append(',');
 				}
 				firstTime=false;
-				r = r + c;
-			}
-			if(state.deterministic) {
-				r = r + "]";
-			} else {
-				r = r + "}";
+				r.append(c);
 			}
+			r.append(state.deterministic ? ']' : '}');
 		}		
-		return r;
+		return r.toString();
 	}
 
 	/**
@@ -0,0 +1,462 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//    * Redistributions of source code must retain the above copyright
+//      notice, this list of conditions and the following disclaimer.
+//    * Redistributions in binary form must reproduce the above copyright
+//      notice, this list of conditions and the following disclaimer in the
+//      documentation and/or other materials provided with the distribution.
+//    * Neither the name of the <organization> nor the
+//      names of its contributors may be used to endorse or promote products
+//      derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL DAVID J. PEARCE BE LIABLE FOR ANY
+// DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+// ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+package wyautl.lang;
+
+import java.util.Arrays;
+
+/**
+ * <p>
+ * An immutable automaton whose states are packed into flat arrays, rather than
+ * being represented as individual <code>State</code> objects. The kinds of
+ * states are held in one array, whilst the children of all states are held
+ * consecutively in another, with a third array giving the offset of each
+ * state's children. Supplementary data is held in a side table, which is
+ * omitted altogether when no state has any.
+ * </p>
+ * 
+ * <p>
+ * This representation is intended for automata which are long-lived, such as
+ * those underlying types. Such automata are never modified and are frequently
+ * hashed and compared, but are only occasionally traversed in full. Packed
+ * automata are constructed either from an existing <code>Automaton</code>, or
+ * incrementally using a <code>Builder</code>. They can be converted back into
+ * an <code>Automaton</code> when necessary, for example to apply the
+ * algorithms in <code>Automata</code>.
+ * </p>
+ * 
+ * <p>
+ * <b>NOTE:</b> the hash code of a packed automaton is identical to that of the
+ * <code>Automaton</code> it represents, and is computed once on construction.
+ * </p>
+ */
+public final class PackedAutomaton {
+	private final int[] kinds;
+	private final boolean[] deterministic;
+	private final int[] offsets;
+	private final int[] children;
+	private final Object[] data;
+	private final int hashCode;
+	
+	public PackedAutomaton(Automaton automaton) {
+		Automaton.State[] states = automaton.states;
+		int size = states.length;
+		int nchildren = 0;
+		boolean hasData = false;
+		for (Automaton.State state : states) {
+			nchildren += state.children.length;
+			hasData |= state.data != null;
+		}
+		this.kinds = new int[size];
+		this.deterministic = new boolean[size];
+		this.offsets = new int[size + 1];
+		this.children = new int[nchildren];
+		this.data = hasData ? new Object[size] : null;
+		int offset = 0;
+		for (int i = 0; i != size; ++i) {
+			Automaton.State state = states[i];
+			kinds[i] = state.kind;
+			deterministic[i] = state.deterministic;
+			offsets[i] = offset;
+			System.arraycopy(state.children, 0, children, offset,
+					state.children.length);
+			offset += state.children.length;
+			if (hasData) {
+				data[i] = state.data;
+			}
+		}
+		offsets[size] = offset;
+		this.hashCode = hash();
+	}
+	
+	private PackedAutomaton(int[] kinds, boolean[] deterministic,
+			int[] offsets, int[] children, Object[] data) {
+		this.kinds = kinds;
+		this.deterministic = deterministic;
+		this.offsets = offsets;
+		this.children = children;
+		this.data = data;
+		this.hashCode = hash();
+	}
+	
+	/**
+	 * Get the number of states in this automaton.
+	 */
+	public int size() {
+		return kinds.length;
+	}
+	
+	/**
+	 * Get the kind of a given state.
+	 */
+	public int kind(int index) {
+		return kinds[index];
+	}
+	
+	/**
+	 * Determine whether a given state is deterministic or not.
+	 */
+	public boolean isDeterministic(int index) {
+		return deterministic[index];
+	}
+	
+	/**
+	 * Get the number of children of a given state.
+	 */
+	public int arity(int index) {
+		return offsets[index + 1] - offsets[index];
+	}
+	
+	/**
+	 * Get the <code>k</code>th child of a given state.
+	 */
+	public int child(int index, int k) {
+		return children[offsets[index] + k];
+	}
+	
+	/**
+	 * Get the supplementary data of a given state, which may be null.
+	 */
+	public Object data(int index) {
+		return data == null ? null : data[index];
+	}
+	
+	/**
+	 * Unpack a given state into a fresh <code>State</code> object.
+	 */
+	public Automaton.State state(int index) {
+		int[] nchildren = Arrays.copyOfRange(children, offsets[index],
+				offsets[index + 1]);
+		return new Automaton.State(kinds[index], data(index),
+				deterministic[index], nchildren);
+	}
+	
+	/**
+	 * Unpack this automaton into a fresh <code>Automaton</code>, which may be
+	 * freely modified.
+	 */
+	public Automaton toAutomaton() {
+		Automaton.State[] states = new Automaton.State[kinds.length];
+		for (int i = 0; i != states.length; ++i) {
+			states[i] = state(i);
+		}
+		return new Automaton(states);
+	}
+	
+	/**
+	 * Extract the automaton rooted at a given state. This produces exactly the
+	 * same automaton as <code>Automata.extract()</code>, without unpacking
+	 * this one first.
+	 * 
+	 * @param root
+	 *            --- the state to become the root of the extracted automaton.
+	 * @return
+	 */
+	public PackedAutomaton extract(int root) {
+		// First, perform a depth-first search from the root.
+		int size = kinds.length;
+		int[] rmap = new int[size];
+		Arrays.fill(rmap, -1);
+		int[] extracted = new int[size];
+		int count = extract(root, rmap, extracted, 0);
+		if (count == size && root == 0) {
+			boolean identity = true;
+			for (int i = 0; i != size && identity; ++i) {
+				identity = rmap[i] == i;
+			}
+			if (identity && isRemapped()) {
+				return this;
+			}
+		}
+		// Second, apply the remapping.
+		Builder builder = new Builder(count);
+		for (int i = 0; i != count; ++i) {
+			int index = extracted[i];
+			builder.add(kinds[index], deterministic[index], data(index),
+					children, offsets[index], offsets[index + 1], rmap, true);
+		}
+		return builder.build();
+	}
+	
+	private int extract(int index, int[] rmap, int[] extracted, int count) {
+		if (rmap[index] >= 0) {
+			return count; // already visited
+		}
+		rmap[index] = count;
+		extracted[count++] = index;
+		for (int i = offsets[index]; i != offsets[index + 1]; ++i) {
+			count = extract(children[i], rmap, extracted, count);
+		}
+		return count;
+	}
+	
+	/**
+	 * Check whether the children of every non-deterministic state are sorted
+	 * without duplicates, as they would be after remapping.
+	 */
+	private boolean isRemapped() {
+		for (int i = 0; i != kinds.length; ++i) {
+			if (!deterministic[i]) {
+				for (int j = offsets[i] + 1; j < offsets[i + 1]; ++j) {
+					if (children[j - 1] >= children[j]) {
+						return false;
+					}
+				}
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Compute the hash code of this automaton, which must match
+	 * <code>Automaton.hashCode()</code>.
+	 */
+	private int hash() {
+		int r = 0;
+		for (int i = 0; i != kinds.length; ++i) {
+			int h = 1;
+			for (int j = offsets[i]; j != offsets[i + 1]; ++j) {
+				h = 31 * h + children[j];
+			}
+			r = r + h + kinds[i];
+			Object d = data(i);
+			if (d != null) {
+				r = r + d.hashCode();
+			}
+		}
+		return r;
+	}
+	
+	public int hashCode() {
+		return hashCode;
+	}
+	
+	public boolean equals(Object o) {
+		if (o == this) {
+			return true;
+		} else if (o instanceof PackedAutomaton) {
+			PackedAutomaton a = (PackedAutomaton) o;
+			if (hashCode != a.hashCode || !Arrays.equals(kinds, a.kinds)
+					|| !Arrays.equals(deterministic, a.deterministic)
+					|| !Arrays.equals(offsets, a.offsets)
+					|| !Arrays.equals(children, a.children)) {
+				return false;
+			}
+			// As for Automaton.State, we only need to check data is equal
+			// where this automaton has data.
+			for (int i = 0; data != null && i != kinds.length; ++i) {
+				Object d = data[i];
+				if (d != null && !d.equals(a.data(i))) {
+					return false;
+				}
+			}
+			return true;
+		}
+		return false;
+	}
+	
+	public String toString() {
+		StringBuilder r = new StringBuilder();
+		for (int i = 0; i != kinds.length; ++i) {
+			if (i != 0) {
+				r.append(", ");
+			}
+			r.append('#').append(i).append('(').append(kinds[i]);
+			Object d = data(i);
+			if (d != null) {
+				r.append(',').append(d);
+			}
+			r.append(')');
+			r.append(deterministic[i] ? '[' : '{');
+			for (int j = offsets[i]; j != offsets[i + 1]; ++j) {
+				if (j != offsets[i]) {
+					r.append(',');
+				}
+				r.append(children[j]);
+			}
+			r.append(deterministic[i] ? ']' : '}');
+		}
+		return r.toString();
+	}
+	
+	/**
+	 * A builder constructs a packed automaton by appending states onto the
+	 * end. The children of a state may refer to states which have not yet
+	 * been added, provided they are added before the automaton is built.
+	 */
+	public static final class Builder {
+		private int[] kinds;
+		private boolean[] deterministic;
+		private Object[] data;
+		private int[] offsets;
+		private int[] children;
+		private int size;
+		
+		public Builder() {
+			this(4);
+		}
+		
+		public Builder(int capacity) {
+			capacity = Math.max(capacity, 1);
+			this.kinds = new int[capacity];
+			this.deterministic = new boolean[capacity];
+			this.offsets = new int[capacity + 1];
+			this.children = new int[capacity];
+		}
+		
+		/**
+		 * Get the number of states added so far.
+		 */
+		public int size() {
+			return size;
+		}
+		
+		/**
+		 * Append a new state onto the end of the automaton being built.
+		 * 
+		 * @param kind
+		 *            --- State kind (must be positive integer).
+		 * @param deterministic
+		 *            --- Indicates whether node should be treated as
+		 *            deterministic or not.
+		 * @param data
+		 *            --- Supplementary data store with state, which may be
+		 *            null.
+		 * @param children
+		 *            --- Array of child indices.
+		 * @return --- the index of the new state.
+		 */
+		public int add(int kind, boolean deterministic, Object data,
+				int... children) {
+			return add(kind, deterministic, data, children, 0,
+					children.length, null, false);
+		}
+		
+		/**
+		 * Append every state of a given automaton onto the end of the
+		 * automaton being built, shifting their children accordingly.
+		 * 
+		 * @param automaton
+		 *            --- the automaton to append.
+		 * @return --- the index of the appended automaton's root.
+		 */
+		public int append(PackedAutomaton automaton) {
+			int start = size;
+			int length = automaton.size();
+			int[] rmap = new int[length];
+			for (int i = 0; i != length; ++i) {
+				rmap[i] = start + i;
+			}
+			for (int i = 0; i != length; ++i) {
+				add(automaton.kinds[i], automaton.deterministic[i],
+						automaton.data(i), automaton.children,
+						automaton.offsets[i], automaton.offsets[i + 1], rmap, false);
+			}
+			return start;
+		}
+		
+		/**
+		 * Construct the packed automaton. The builder should not be used
+		 * afterwards.
+		 */
+		public PackedAutomaton build() {
+			int nchildren = offsets[size];
+			for (int i = 0; i != size; ++i) {
+				for (int j = offsets[i]; j != offsets[i + 1]; ++j) {
+					int child = children[j];
+					if (child < 0 || child >= size) {
+						throw new IllegalArgumentException("invalid child: "
+								+ child);
+					}
+				}
+			}
+			return new PackedAutomaton(Arrays.copyOf(kinds, size),
+					Arrays.copyOf(deterministic, size), Arrays.copyOf(
+							offsets, size + 1), Arrays.copyOf(children,
+							nchildren), data == null ? null : Arrays.copyOf(
+							data, size));
+		}
+		
+		/**
+		 * Append a new state whose children are given by a range of an array,
+		 * remapped through <code>rmap</code> (unless this is null). If
+		 * requested, the children of a non-deterministic state are sorted and
+		 * duplicates removed, as for <code>Automata.remap()</code>.
+		 */
+		private int add(int kind, boolean deterministic, Object data,
+				int[] children, int start, int end, int[] rmap, boolean sort) {
+			if (size == kinds.length) {
+				int capacity = size * 2;
+				this.kinds = Arrays.copyOf(kinds, capacity);
+				this.deterministic = Arrays.copyOf(this.deterministic,
+						capacity);
+				this.offsets = Arrays.copyOf(offsets, capacity + 1);
+				if (this.data != null) {
+					this.data = Arrays.copyOf(this.data, capacity);
+				}
+			}
+			int offset = offsets[size];
+			int length = end - start;
+			if (offset + length > this.children.length) {
+				this.children = Arrays.copyOf(this.children,
+						Math.max(this.children.length * 2, offset + length));
+			}
+			for (int i = start; i != end; ++i) {
+				int child = children[i];
+				this.children[offset + i - start] = rmap == null ? child
+						: rmap[child];
+			}
+			if (sort && !deterministic && length > 1) {
+				length = sort(this.children, offset, offset + length);
+			}
+			if (data != null && this.data == null) {
+				this.data = new Object[kinds.length];
+			}
+			kinds[size] = kind;
+			this.deterministic[size] = deterministic;
+			if (this.data != null) {
+				this.data[size] = data;
+			}
+			offsets[size + 1] = offset + length;
+			return size++;
+		}
+		
+		/**
+		 * Sort a range of an array and remove duplicates, returning the new
+		 * length of the range.
+		 */
+		private static int sort(int[] array, int start, int end) {
+			Arrays.sort(array, start, end);
+			int j = start + 1;
+			for (int i = start + 1; i != end; ++i) {
+				if (array[i] != array[j - 1]) {
+					array[j++] = array[i];
+				}
+			}
+			return j - start;
+		}
+	}
+}
@@ -77,6 +77,13 @@ public interface Relation {
 	 * <code>from</code> automaton, and a node in the <code>to</code> automaton.
 	 * </p>
 	 * 
+	 * <p>
+	 * <b>NOTE:</b> the new status may depend only upon the status of pairs made
+	 * from <code>from</code> (or one of its children) and <code>to</code> (or
+	 * one of its children). This allows <code>Automata.computeFixpoint()</code>
+	 * to reconsider only those pairs affected when a status changes.
+	 * </p>
+	 * 
 	 * @param from
 	 *            --- An index into automaton <code>from</code>.
 	 * @param to
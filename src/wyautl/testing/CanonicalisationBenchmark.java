@@ -0,0 +1,154 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//    * Redistributions of source code must retain the above copyright
+//      notice, this list of conditions and the following disclaimer.
+//    * Redistributions in binary form must reproduce the above copyright
+//      notice, this list of conditions and the following disclaimer in the
+//      documentation and/or other materials provided with the distribution.
+//    * Neither the name of the <organization> nor the
+//      names of its contributors may be used to endorse or promote products
+//      derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL DAVID J. PEARCE BE LIABLE FOR ANY
+// DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+// ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package wyautl.testing;
+
+import java.io.IOException;
+import java.util.*;
+
+import wyautl.lang.*;
+import wyil.lang.Type;
+
+/**
+ * <p>
+ * A simple benchmark for the canonicalisation of automata with wide
+ * non-deterministic states. This generates every small automaton using the
+ * <code>Generator</code>, and then builds unions of increasing width from
+ * them. Each union is minimised, and then randomly shuffled and
+ * canonicalised a number of times. Every shuffled copy should give the same
+ * canonical form, and this is checked as well. Next, unions of identical
+ * leaves are canonicalised without being minimised first. These are
+ * entirely symmetric and so exercise the search. Finally, unions of record
+ * types of increasing width are constructed, since these are normalised (and
+ * hence canonicalised) as they are built.
+ * </p>
+ * 
+ * <p>
+ * <b>NOTE:</b> the smallest widths include the time taken for the JVM to warm
+ * up.
+ * </p>
+ */
+public class CanonicalisationBenchmark {
+	public static void main(String[] args) throws IOException {
+		int maxWidth = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+		int maxRecords = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+		int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+		
+		List<Automaton> automata = TestAutomata.generate(TestAutomata
+				.mixed(null));
+		System.out.println("Generated " + automata.size() + " automata.");
+		
+		for (int width = 2; width <= maxWidth; width *= 2) {
+			Random random = new Random(width);
+			Automaton union = TestAutomata.union(automata, width, random);
+			union = Automata.minimise(Automata.extract(union, 0));
+			Automaton canonical = null;
+			boolean consistent = true;
+			long total = 0;
+			for (int i = 0; i != rounds; ++i) {
+				Automaton copy = shuffle(union, random);
+				long start = System.nanoTime();
+				Automata.canonicalise(copy, null);
+				total += System.nanoTime() - start;
+				if (canonical == null) {
+					canonical = copy;
+				} else if (!canonical.equals(copy)) {
+					consistent = false;
+				}
+			}
+			System.out.println("Union of " + width + " automata ("
+					+ union.size() + " states): " + (total / rounds / 1000)
+					+ "us" + (consistent ? "" : " (INCONSISTENT)"));
+		}
+		
+		for (int width = 2; width <= maxWidth; width *= 2) {
+			Automaton union = leaves(width);
+			long start = System.nanoTime();
+			for (int i = 0; i != rounds; ++i) {
+				Automata.canonicalise(new Automaton(union), null);
+			}
+			long time = (System.nanoTime() - start) / rounds;
+			System.out.println("Union of " + width + " identical leaves: "
+					+ (time / 1000) + "us");
+		}
+		
+		for (int width = 2; width <= maxRecords; width *= 2) {
+			long start = System.nanoTime();
+			for (int i = 0; i != rounds; ++i) {
+				records(width, i);
+			}
+			long time = (System.nanoTime() - start) / rounds;
+			System.out.println("Union of " + width + " records: "
+					+ (time / 1000) + "us");
+		}
+	}
+	
+	/**
+	 * Construct a union of identical leaves.
+	 */
+	private static Automaton leaves(int width) {
+		Automaton.State[] states = new Automaton.State[width + 1];
+		int[] children = new int[width];
+		for (int i = 0; i != width; ++i) {
+			children[i] = i + 1;
+			states[i + 1] = new Automaton.State(0);
+		}
+		states[0] = new Automaton.State(TestAutomata.UNION, false, children);
+		return new Automaton(states);
+	}
+	
+	/**
+	 * Randomly reorder the states of an automaton, except for the root.
+	 */
+	private static Automaton shuffle(Automaton automaton, Random random) {
+		int size = automaton.size();
+		int[] rmap = new int[size];
+		for (int i = 0; i != size; ++i) {
+			rmap[i] = i;
+		}
+		for (int i = size - 1; i > 1; --i) {
+			int j = 1 + random.nextInt(i);
+			int tmp = rmap[i];
+			rmap[i] = rmap[j];
+			rmap[j] = tmp;
+		}
+		return Automata.reorder(new Automaton(automaton), rmap);
+	}
+	
+	/**
+	 * Construct a union of distinct record types, which differ only in the
+	 * name of their tag field.
+	 */
+	private static Type records(int width, int round) {
+		Type[] bounds = new Type[width];
+		for (int i = 0; i != width; ++i) {
+			HashMap<String, Type> fields = new HashMap<String, Type>();
+			fields.put("tag" + round + "$" + i, Type.T_INT);
+			fields.put("data", Type.List(Type.T_INT, false));
+			bounds[i] = Type.Record(false, fields);
+		}
+		return Type.Union(bounds);
+	}
+}
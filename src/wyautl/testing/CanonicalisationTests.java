@@ -0,0 +1,301 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//    * Redistributions of source code must retain the above copyright
+//      notice, this list of conditions and the following disclaimer.
+//    * Redistributions in binary form must reproduce the above copyright
+//      notice, this list of conditions and the following disclaimer in the
+//      documentation and/or other materials provided with the distribution.
+//    * Neither the name of the <organization> nor the
+//      names of its contributors may be used to endorse or promote products
+//      derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL DAVID J. PEARCE BE LIABLE FOR ANY
+// DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+// ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+package wyautl.testing;
+
+import java.io.IOException;
+import java.util.*;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import wyautl.lang.*;
+import wyautl.lang.Automaton.State;
+import wyautl.util.Generator;
+
+/**
+ * Differential tests for <code>Automata.canonicalise()</code>. Every automaton
+ * produced by the <code>Generator</code> for a number of configurations is
+ * minimised and canonicalised, and the result compared against that of the
+ * original search, which is kept here as a reference implementation. Since
+ * the two choose different orderings, their canonical forms cannot be
+ * compared directly. Instead, two automata must have the same canonical form
+ * under one exactly when they do under the other. Every automaton is also
+ * canonicalised after randomly reordering its states.
+ */
+public class CanonicalisationTests {
+	private static final Comparator<State> LABELS = new Comparator<State>() {
+		public int compare(State s1, State s2) {
+			return ((String) s1.data).compareTo((String) s2.data);
+		}
+	};
+	
+	@Test public void test_Deterministic() throws IOException {
+		checkCanonicalise(TestAutomata.config(
+				new Generator.Kind(true,0,0,null),
+				new Generator.Kind(true,1,2,null)));
+	}
+	
+	@Test public void test_NonDeterministic() throws IOException {
+		checkCanonicalise(TestAutomata.config(
+				new Generator.Kind(true,0,0,null),
+				new Generator.Kind(false,1,3,null)));
+	}
+	
+	@Test public void test_Mixed() throws IOException {
+		checkCanonicalise(TestAutomata.mixed(null));
+	}
+	
+	@Test public void test_Data() throws IOException {
+		checkCanonicalise(TestAutomata.config(
+				new Generator.Kind(true,0,0,TestAutomata.LABELS),
+				new Generator.Kind(false,1,2,null),
+				new Generator.Kind(true,1,1,TestAutomata.LABELS)));
+	}
+	
+	private static void checkCanonicalise(Generator.Config config)
+			throws IOException {
+		HashMap<Automaton, Automaton> expectedToActual = new HashMap<Automaton, Automaton>();
+		HashMap<Automaton, Automaton> actualToExpected = new HashMap<Automaton, Automaton>();
+		Random random = new Random(0);
+		for (Automaton automaton : TestAutomata.generate(config)) {
+			automaton = Automata.minimise(Automata.extract(automaton, 0));
+			checkCanonicalise(automaton, expectedToActual, actualToExpected);
+			checkCanonicalise(shuffle(automaton, random), expectedToActual,
+					actualToExpected);
+		}
+	}
+	
+	private static void checkCanonicalise(Automaton automaton,
+			Map<Automaton, Automaton> expectedToActual,
+			Map<Automaton, Automaton> actualToExpected) {
+		Automaton expected = new Automaton(automaton);
+		canonicalise(expected, LABELS);
+		Automaton actual = new Automaton(automaton);
+		Automata.canonicalise(actual, LABELS);
+		Automaton previous = expectedToActual.put(expected, actual);
+		if (previous != null && !previous.equals(actual)) {
+			fail("canonicalising " + automaton + " gave " + actual
+					+ ", expected " + previous);
+		}
+		previous = actualToExpected.put(actual, expected);
+		if (previous != null && !previous.equals(expected)) {
+			fail("canonicalising " + automaton + " gave " + actual
+					+ ", which is also the canonical form of " + previous);
+		}
+	}
+	
+	/**
+	 * Randomly reorder the states of an automaton, except for the root.
+	 */
+	private static Automaton shuffle(Automaton automaton, Random random) {
+		int size = automaton.size();
+		int[] rmap = new int[size];
+		for (int i = 0; i != size; ++i) {
+			rmap[i] = i;
+		}
+		for (int i = size - 1; i > 1; --i) {
+			int j = 1 + random.nextInt(i);
+			int tmp = rmap[i];
+			rmap[i] = rmap[j];
+			rmap[j] = tmp;
+		}
+		return Automata.reorder(automaton, rmap);
+	}
+	
+	// =========================================================================
+	// Reference Implementation
+	// =========================================================================
+	
+	/**
+	 * Canonicalise an automaton by extending every candidate ordering one
+	 * state at a time, trying every permutation of the children of a
+	 * non-deterministic state, and discarding all but the least candidates
+	 * after each step.
+	 */
+	private static void canonicalise(Automaton automaton,
+			Comparator<State> dataComparator) {
+		int size = automaton.size();
+		ArrayList<Morphism> candidates = new ArrayList<Morphism>();
+		candidates.add(new Morphism(size));
+		for (int i = 0; i != size; ++i) {
+			int n = candidates.size();
+			for (int j = 0; j != n; ++j) {
+				extend(i, candidates.get(j), candidates, automaton);
+			}
+			prune(candidates, automaton, dataComparator);
+		}
+		Automata.inplaceReorder(automaton, candidates.get(0).n2i);
+	}
+	
+	private static void extend(int index, Morphism candidate,
+			ArrayList<Morphism> candidates, Automaton automaton) {
+		State s = automaton.states[candidate.i2n[index]];
+		if (s.deterministic) {
+			for (int child : s.children) {
+				if (!candidate.isAllocated(child)) {
+					candidate.allocate(child);
+				}
+			}
+		} else {
+			ArrayList<int[]> permutations = Automata.permutations(s.children);
+			for (int i = 0; i != permutations.size(); ++i) {
+				Morphism ncandidate;
+				if ((i + 1) == permutations.size()) {
+					// last one, so overwrite original
+					ncandidate = candidate;
+				} else {
+					ncandidate = new Morphism(candidate);
+					candidates.add(ncandidate);
+				}
+				for (int child : permutations.get(i)) {
+					if (!ncandidate.isAllocated(child)) {
+						ncandidate.allocate(child);
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Remove every candidate which is above the least candidate.
+	 */
+	private static void prune(ArrayList<Morphism> candidates,
+			Automaton automaton, Comparator<State> dataComparator) {
+		Morphism least = candidates.get(0);
+		for (Morphism candidate : candidates) {
+			if (lessThan(candidate, least, automaton, dataComparator)) {
+				least = candidate;
+			}
+		}
+		Iterator<Morphism> iter = candidates.iterator();
+		while (iter.hasNext()) {
+			if (lessThan(least, iter.next(), automaton, dataComparator)) {
+				iter.remove();
+			}
+		}
+	}
+	
+	/**
+	 * Determine whether one candidate ordering is lexicographically less than
+	 * another, considering only those states allocated in both.
+	 */
+	private static boolean lessThan(Morphism morph1, Morphism morph2,
+			Automaton automaton, Comparator<State> dataComparator) {
+		State[] states = automaton.states;
+		int size = Math.min(morph1.free, morph2.free);
+		for (int i = 0; i != size; ++i) {
+			State s1 = states[morph1.i2n[i]];
+			State s2 = states[morph2.i2n[i]];
+			if (s1.kind != s2.kind) {
+				return s1.kind < s2.kind;
+			} else if (s1.deterministic != s2.deterministic) {
+				return s1.deterministic;
+			} else if (s1.children.length != s2.children.length) {
+				return s1.children.length < s2.children.length;
+			}
+			int length = s1.children.length;
+			if (s1.deterministic) {
+				for (int j = 0; j != length; ++j) {
+					int s1child = morph1.n2i[s1.children[j]];
+					int s2child = morph2.n2i[s2.children[j]];
+					if (s1child != s2child) {
+						return s1child < s2child;
+					}
+				}
+			} else {
+				BitSet s1Visited = new BitSet(automaton.size());
+				BitSet s2Visited = new BitSet(automaton.size());
+				for (int j = 0; j != length; ++j) {
+					int s1child = morph1.n2i[s1.children[j]];
+					int s2child = morph2.n2i[s2.children[j]];
+					if (s1child != Integer.MAX_VALUE) {
+						s1Visited.set(s1child);
+					}
+					if (s2child != Integer.MAX_VALUE) {
+						s2Visited.set(s2child);
+					}
+				}
+				int s1cardinality = s1Visited.cardinality();
+				int s2cardinality = s2Visited.cardinality();
+				if (s1cardinality != s2cardinality) {
+					// greater cardinality means more allocated children.
+					return s1cardinality > s2cardinality;
+				}
+				int s1i = s1Visited.nextSetBit(0);
+				int s2i = s2Visited.nextSetBit(0);
+				while (s1i == s2i && s1i >= 0) {
+					s1i = s1Visited.nextSetBit(s1i + 1);
+					s2i = s2Visited.nextSetBit(s2i + 1);
+				}
+				if (s1i != s2i) {
+					return s1i < s2i;
+				}
+			}
+			if (s1.data != null) {
+				if (s2.data == null) {
+					return false;
+				}
+				int c = dataComparator.compare(s1, s2);
+				if (c != 0) {
+					return c < 0;
+				}
+			} else if (s2.data != null) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	private static final class Morphism {
+		final int[] i2n; // indices to nodes
+		final int[] n2i; // nodes to indices
+		int free;        // first available index
+		
+		public Morphism(int size) {
+			i2n = new int[size];
+			n2i = new int[size];
+			Arrays.fill(i2n, Integer.MAX_VALUE);
+			Arrays.fill(n2i, Integer.MAX_VALUE);
+			allocate(0);
+		}
+		
+		public Morphism(Morphism morph) {
+			i2n = Arrays.copyOf(morph.i2n, morph.i2n.length);
+			n2i = Arrays.copyOf(morph.n2i, morph.n2i.length);
+			free = morph.free;
+		}
+		
+		public boolean isAllocated(int node) {
+			return n2i[node] != Integer.MAX_VALUE;
+		}
+		
+		public void allocate(int node) {
+			i2n[free] = node;
+			n2i[node] = free++;
+		}
+	}
+}
@@ -0,0 +1,112 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//    * Redistributions of source code must retain the above copyright
+//      notice, this list of conditions and the following disclaimer.
+//    * Redistributions in binary form must reproduce the above copyright
+//      notice, this list of conditions and the following disclaimer in the
+//      documentation and/or other materials provided with the distribution.
+//    * Neither the name of the <organization> nor the
+//      names of its contributors may be used to endorse or promote products
+//      derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL DAVID J. PEARCE BE LIABLE FOR ANY
+// DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+// ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+package wyautl.testing;
+
+import java.io.IOException;
+import java.util.*;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import wyautl.lang.*;
+
+/**
+ * Differential tests for <code>Automata.computeFixpoint()</code>. Subsumption
+ * is computed between randomly chosen pairs of automata produced by the
+ * <code>Generator</code>, and the result compared against that of a
+ * straightforward reference implementation which repeatedly updates every
+ * pair of states until nothing changes.
+ */
+public class FixpointTests {
+	private static final int COUNT = 5000;
+	
+	private static List<Automaton> automata;
+	
+	@BeforeClass public static void generate() throws IOException {
+		automata = TestAutomata.generate(TestAutomata.mixed(null));
+	}
+	
+	@Test public void test_AllPairs() {
+		Random random = new Random(0);
+		for (int n = 0; n != COUNT; ++n) {
+			Automaton from = choose(random);
+			Automaton to = choose(random);
+			Relation expected = computeFixpoint(new DefaultSubsumption(from, to));
+			Relation actual = new DefaultSubsumption(from, to);
+			Automata.computeFixpoint(actual);
+			for (int i = 0; i != from.size(); ++i) {
+				for (int j = 0; j != to.size(); ++j) {
+					assertEquals(from + " :> " + to + " at (" + i + "," + j
+							+ ")", expected.isRelated(i, j),
+							actual.isRelated(i, j));
+				}
+			}
+		}
+	}
+	
+	@Test public void test_Root() {
+		Random random = new Random(1);
+		for (int n = 0; n != COUNT; ++n) {
+			Automaton from = choose(random);
+			Automaton to = choose(random);
+			Relation expected = computeFixpoint(new DefaultSubsumption(from, to));
+			Relation actual = new DefaultSubsumption(from, to);
+			assertEquals(from + " :> " + to, expected.isRelated(0, 0),
+					Automata.computeFixpoint(actual, 0, 0));
+		}
+	}
+	
+	/**
+	 * Choose an automaton at random, which is sometimes a union of several
+	 * others.
+	 */
+	private static Automaton choose(Random random) {
+		if (random.nextBoolean()) {
+			return automata.get(random.nextInt(automata.size()));
+		}
+		return TestAutomata.union(automata, 2 + random.nextInt(3), random);
+	}
+	
+	/**
+	 * Compute a relation by repeatedly updating every pair of states until no
+	 * more changes occur.
+	 */
+	private static Relation computeFixpoint(Relation relation) {
+		int fromDomain = relation.from().size();
+		int toDomain = relation.to().size();
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (int i = 0; i != fromDomain; i++) {
+				for (int j = 0; j != toDomain; j++) {
+					changed |= relation.update(i, j);
+				}
+			}
+		}
+		return relation;
+	}
+}
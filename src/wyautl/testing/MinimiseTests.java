@@ -0,0 +1,201 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//    * Redistributions of source code must retain the above copyright
+//      notice, this list of conditions and the following disclaimer.
+//    * Redistributions in binary form must reproduce the above copyright
+//      notice, this list of conditions and the following disclaimer in the
+//      documentation and/or other materials provided with the distribution.
+//    * Neither the name of the <organization> nor the
+//      names of its contributors may be used to endorse or promote products
+//      derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL DAVID J. PEARCE BE LIABLE FOR ANY
+// DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+// ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+package wyautl.testing;
+
+import java.io.IOException;
+import java.util.*;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import wyautl.lang.*;
+import wyautl.lang.Automaton.State;
+import wyautl.util.BinaryMatrix;
+import wyautl.util.Generator;
+
+/**
+ * Differential tests for <code>Automata.minimise()</code>. Every automaton
+ * produced by the <code>Generator</code> for a number of configurations is
+ * minimised, and the result compared against that of a straightforward
+ * reference implementation which repeatedly checks every pair of states until
+ * no more are found to differ.
+ */
+public class MinimiseTests {
+	@Test public void test_Deterministic() throws IOException {
+		checkMinimise(TestAutomata.config(
+				new Generator.Kind(true,0,0,null),
+				new Generator.Kind(true,1,2,null)));
+	}
+	
+	@Test public void test_NonDeterministic() throws IOException {
+		checkMinimise(TestAutomata.config(
+				new Generator.Kind(true,0,0,null),
+				new Generator.Kind(false,1,3,null)));
+	}
+	
+	@Test public void test_Mixed() throws IOException {
+		checkMinimise(TestAutomata.mixed(null));
+	}
+	
+	@Test public void test_Data() throws IOException {
+		checkMinimise(TestAutomata.config(
+				new Generator.Kind(true,0,0,TestAutomata.LABELS),
+				new Generator.Kind(false,1,2,null),
+				new Generator.Kind(true,1,1,TestAutomata.LABELS)));
+	}
+	
+	@Test public void test_Unions() throws IOException {
+		List<Automaton> automata = TestAutomata.generate(TestAutomata
+				.mixed(null));
+		Random random = new Random(0);
+		for (int i = 0; i != 1000; ++i) {
+			checkMinimise(TestAutomata.union(automata,
+					2 + random.nextInt(15), random));
+		}
+	}
+	
+	private static void checkMinimise(Generator.Config config)
+			throws IOException {
+		for (Automaton automaton : TestAutomata.generate(config)) {
+			checkMinimise(automaton);
+		}
+	}
+	
+	private static void checkMinimise(Automaton automaton) {
+		Automaton expected = minimise(automaton);
+		Automaton actual = Automata.minimise(automaton);
+		if (!expected.equals(actual)) {
+			fail("minimising " + automaton + " gave " + actual
+					+ ", expected " + expected);
+		}
+	}
+	
+	// =========================================================================
+	// Reference Implementation
+	// =========================================================================
+	
+	/**
+	 * Minimise an automaton by first determining, for every pair of states,
+	 * whether they are equivalent and then choosing the first state of each
+	 * equivalence class as its representative.
+	 */
+	private static Automaton minimise(Automaton automaton) {
+		int size = automaton.size();
+		BinaryMatrix equivs = new BinaryMatrix(size, size, true);
+		determineEquivalenceClasses(equivs, automaton);
+		
+		int[] mapping = new int[size];
+		int newSize = 0;
+		for (int i = 0; i != size; ++i) {
+			int classRep = i;
+			for (int j = 0; j < i; ++j) {
+				if (equivs.get(i, j)) {
+					classRep = j;
+					break;
+				}
+			}
+			if (i == classRep) {
+				mapping[i] = newSize++;
+			} else {
+				mapping[i] = mapping[classRep];
+			}
+		}
+		
+		State[] oldStates = automaton.states;
+		State[] newStates = new State[newSize];
+		for (int i = 0; i != size; ++i) {
+			int classRep = mapping[i];
+			if (newStates[classRep] == null) {
+				newStates[classRep] = Automata.remap(oldStates[i], mapping);
+			}
+		}
+		return new Automaton(newStates);
+	}
+	
+	private static void determineEquivalenceClasses(BinaryMatrix equivs,
+			Automaton automaton) {
+		boolean changed = true;
+		int size = automaton.size();
+		while (changed) {
+			changed = false;
+			for (int i = 0; i < size; ++i) {
+				for (int j = i + 1; j < size; ++j) {
+					if (equivs.get(i, j)) {
+						boolean b = equivalent(i, j, equivs, automaton);
+						equivs.set(i, j, b);
+						equivs.set(j, i, b);
+						changed |= !b;
+					}
+				}
+			}
+		}
+	}
+	
+	private static boolean equivalent(int i, int j, BinaryMatrix equivs,
+			Automaton automaton) {
+		State s1 = automaton.states[i];
+		State s2 = automaton.states[j];
+		if (s1.data == null ? s2.data != null : !s1.data.equals(s2.data)) {
+			return false;
+		} else if (s1.kind != s2.kind || s1.deterministic != s2.deterministic) {
+			return false;
+		} else if (s1.deterministic) {
+			if (s1.children.length != s2.children.length) {
+				return false;
+			}
+			for (int k = 0; k != s1.children.length; ++k) {
+				if (!equivs.get(s1.children[k], s2.children[k])) {
+					return false;
+				}
+			}
+			return true;
+		} else {
+			return matches(s1.children, s2.children, equivs)
+					&& matches(s2.children, s1.children, equivs);
+		}
+	}
+	
+	/**
+	 * Check every child in the first array has an equivalent in the second.
+	 */
+	private static boolean matches(int[] children1, int[] children2,
+			BinaryMatrix equivs) {
+		for (int c1 : children1) {
+			boolean matched = false;
+			for (int c2 : children2) {
+				if (equivs.get(c1, c2)) {
+					matched = true;
+					break;
+				}
+			}
+			if (!matched) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
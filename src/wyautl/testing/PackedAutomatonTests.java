@@ -0,0 +1,107 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//    * Redistributions of source code must retain the above copyright
+//      notice, this list of conditions and the following disclaimer.
+//    * Redistributions in binary form must reproduce the above copyright
+//      notice, this list of conditions and the following disclaimer in the
+//      documentation and/or other materials provided with the distribution.
+//    * Neither the name of the <organization> nor the
+//      names of its contributors may be used to endorse or promote products
+//      derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL DAVID J. PEARCE BE LIABLE FOR ANY
+// DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+// ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+package wyautl.testing;
+
+import java.io.IOException;
+import java.util.*;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import wyautl.lang.*;
+
+/**
+ * Tests for <code>PackedAutomaton</code>. Every automaton produced by the
+ * <code>Generator</code> is packed, and the operations on the packed form are
+ * compared against their counterparts on the unpacked form.
+ */
+public class PackedAutomatonTests {
+	private static List<Automaton> automata;
+	
+	@BeforeClass public static void generate() throws IOException {
+		automata = TestAutomata.generate(TestAutomata
+				.mixed(TestAutomata.LABELS));
+	}
+	
+	@Test public void test_Pack() {
+		for (Automaton automaton : automata) {
+			PackedAutomaton packed = new PackedAutomaton(automaton);
+			assertEquals(automaton, packed.toAutomaton());
+			assertEquals(automaton.hashCode(), packed.hashCode());
+			assertEquals(automaton.toString(), packed.toString());
+			assertEquals(packed, new PackedAutomaton(packed.toAutomaton()));
+		}
+	}
+	
+	@Test public void test_Extract() {
+		for (Automaton automaton : automata) {
+			PackedAutomaton packed = new PackedAutomaton(automaton);
+			for (int i = 0; i != automaton.size(); ++i) {
+				Automaton expected = Automata.extract(automaton, i);
+				assertEquals(expected, packed.extract(i).toAutomaton());
+				assertEquals(new PackedAutomaton(expected), packed.extract(i));
+			}
+		}
+	}
+	
+	@Test public void test_Append() {
+		Random random = new Random(0);
+		for (int n = 0; n != 1000; ++n) {
+			// NOTE: Automata.append() sorts the children of the tail's
+			// non-deterministic states, so ensure they already are.
+			Automaton head = choose(random);
+			Automaton tail = choose(random);
+			PackedAutomaton.Builder builder = new PackedAutomaton.Builder();
+			builder.append(new PackedAutomaton(head));
+			int root = builder.append(new PackedAutomaton(tail));
+			assertEquals(head.size(), root);
+			assertEquals(Automata.append(head, tail), builder.build()
+					.toAutomaton());
+		}
+	}
+	
+	private static Automaton choose(Random random) {
+		Automaton automaton = automata.get(random.nextInt(automata.size()));
+		return Automata.remap(automaton, identity(automaton.size()));
+	}
+	
+	private static int[] identity(int size) {
+		int[] rmap = new int[size];
+		for (int i = 0; i != size; ++i) {
+			rmap[i] = i;
+		}
+		return rmap;
+	}
+	
+	@Test public void test_NotEquals() {
+		HashSet<PackedAutomaton> packed = new HashSet<PackedAutomaton>();
+		for (Automaton automaton : automata) {
+			packed.add(new PackedAutomaton(automaton));
+		}
+		assertEquals(new HashSet<Automaton>(automata).size(), packed.size());
+	}
+}
@@ -0,0 +1,131 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//    * Redistributions of source code must retain the above copyright
+//      notice, this list of conditions and the following disclaimer.
+//    * Redistributions in binary form must reproduce the above copyright
+//      notice, this list of conditions and the following disclaimer in the
+//      documentation and/or other materials provided with the distribution.
+//    * Neither the name of the <organization> nor the
+//      names of its contributors may be used to endorse or promote products
+//      derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL DAVID J. PEARCE BE LIABLE FOR ANY
+// DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+// ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+package wyautl.testing;
+
+import java.io.IOException;
+import java.util.*;
+
+import wyautl.io.GenericWriter;
+import wyautl.lang.*;
+import wyautl.util.Generator;
+
+/**
+ * Automata shared by the tests and benchmarks in this package. These are
+ * produced by the <code>Generator</code> and, optionally, combined into
+ * unions of randomly chosen automata.
+ */
+public final class TestAutomata {
+	/**
+	 * The kind of the root state of a union constructed by
+	 * <code>union()</code>.
+	 */
+	public static final int UNION = 1;
+	
+	/**
+	 * Supplies the labels "a" and "b" as the data of a state.
+	 */
+	public static final Generator.Data LABELS = new Generator.Data() {
+		public List<Object> generate(Automaton.State state) {
+			ArrayList<Object> labels = new ArrayList<Object>();
+			labels.add("a");
+			labels.add("b");
+			return labels;
+		}
+	};
+	
+	/**
+	 * Construct a configuration for generating every recursive automaton of
+	 * up to three states, using the given kinds of state.
+	 * 
+	 * @param kinds
+	 * @return
+	 */
+	public static Generator.Config config(final Generator.Kind... kinds) {
+		return new Generator.Config() {{
+			KINDS = kinds;
+			RECURSIVE = true;
+			SIZE = 3;
+		}};
+	}
+	
+	/**
+	 * Construct the configuration used by most tests, which mixes leaves
+	 * (with the given data) with non-deterministic and deterministic states
+	 * of one or two children.
+	 * 
+	 * @param leaves
+	 * @return
+	 */
+	public static Generator.Config mixed(Generator.Data leaves) {
+		return config(new Generator.Kind(true,0,0,leaves),
+				new Generator.Kind(false,1,2,null),
+				new Generator.Kind(true,1,2,null));
+	}
+	
+	/**
+	 * Generate every automaton for a given configuration.
+	 * 
+	 * @param config
+	 * @return
+	 * @throws IOException
+	 */
+	public static List<Automaton> generate(Generator.Config config)
+			throws IOException {
+		final ArrayList<Automaton> automata = new ArrayList<Automaton>();
+		Generator.generate(new GenericWriter<Automaton>() {
+			public void write(Automaton automaton) {
+				automata.add(new Automaton(automaton));
+			}
+			public void flush() {}
+			public void close() {}
+		}, config);
+		return automata;
+	}
+	
+	/**
+	 * Construct a union of randomly chosen automata, whose root is a
+	 * non-deterministic state of kind <code>UNION</code>.
+	 * 
+	 * @param automata
+	 * @param width
+	 *            --- the number of automata in the union.
+	 * @param random
+	 * @return
+	 */
+	public static Automaton union(List<Automaton> automata, int width,
+			Random random) {
+		int[] children = new int[width];
+		Automaton union = new Automaton(new Automaton.State(UNION, false));
+		for (int i = 0; i != width; ++i) {
+			children[i] = union.size();
+			union = Automata.append(union,
+					automata.get(random.nextInt(automata.size())));
+		}
+		union.states[0].children = children;
+		return union;
+	}
+}
@@ -94,8 +94,7 @@ public class Tester {
 	
 	public static boolean isSubsumed(Automaton a1, Automaton a2) {
 		DefaultSubsumption relation = new DefaultSubsumption(a1, a2);
-		Automata.computeFixpoint(relation);
-		return relation.isRelated(0, 0);
+		return Automata.computeFixpoint(relation, 0, 0);
 	}
 	
 	/**
@@ -0,0 +1,373 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//    * Redistributions of source code must retain the above copyright
+//      notice, this list of conditions and the following disclaimer.
+//    * Redistributions in binary form must reproduce the above copyright
+//      notice, this list of conditions and the following disclaimer in the
+//      documentation and/or other materials provided with the distribution.
+//    * Neither the name of the <organization> nor the
+//      names of its contributors may be used to endorse or promote products
+//      derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL DAVID J. PEARCE BE LIABLE FOR ANY
+// DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+// ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package wybs.util;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.CRC32;
+
+import wybs.lang.Content;
+import wybs.lang.NameSpace;
+import wybs.lang.Path;
+
+/**
+ * <p>
+ * A persistent record of the dependencies between the entries built by a
+ * project, which allows subsequent builds to be performed incrementally. For
+ * each source entry built, the graph records its modification time and a hash
+ * of its contents; a <i>signature</i> summarising the public interface of the
+ * target built from it; and, the set of entries it depends upon.
+ * </p>
+ * 
+ * <p>
+ * Every build (or round of a build) is given a <i>generation</i> number. The
+ * graph records the generation in which each entry was last built, and the
+ * generation in which its signature last changed. A target is then stale if
+ * its source has changed, or if the signature of something it depends upon
+ * has changed since it was built. In particular, modifying the body of a
+ * function without changing its interface does not cause dependents to be
+ * rebuilt.
+ * </p>
+ * 
+ * <p>
+ * Dependencies which are not built by the project (e.g. modules in a library)
+ * have no signature. Instead, the graph records their modification time when
+ * each dependent is built, and the dependent is stale if this differs. A
+ * dependent is also stale if a dependency has since been removed, or if the
+ * options used to build it differ from the current ones.
+ * </p>
+ */
+public final class BuildGraph {
+	/**
+	 * The conventional name for the file in which a build graph is stored.
+	 */
+	public static final String FILENAME = ".wybuild";
+	
+	private static final int MAGIC = 0x57594247;
+	
+	private static final int VERSION = 2;
+	
+	/**
+	 * The file in which this graph is stored.
+	 */
+	private final File file;
+	
+	/**
+	 * The namespace in which dependencies are resolved.
+	 */
+	private final NameSpace namespace;
+	
+	/**
+	 * The content types through which a dependency may be resolved, in order
+	 * of preference.
+	 */
+	private final Content.Type<?>[] types;
+	
+	/**
+	 * A hash of the options which affect what is built.
+	 */
+	private long options;
+	
+	/**
+	 * The current generation.
+	 */
+	private long generation;
+	
+	private final HashMap<Path.ID, Node> nodes = new HashMap<Path.ID, Node>();
+
+	/**
+	 * Construct a build graph stored in a given file. If the file exists, the
+	 * graph is loaded from it; otherwise, the graph is initially empty. A file
+	 * which cannot be read is treated as though it did not exist, since this
+	 * only means that everything will be rebuilt.
+	 * 
+	 * @param file
+	 *            --- the file in which the graph is stored.
+	 * @param namespace
+	 *            --- the namespace in which dependencies are resolved.
+	 * @param types
+	 *            --- the content types through which a dependency may be
+	 *            resolved, in order of preference. The first is the content
+	 *            type of the sources built by the project.
+	 */
+	public BuildGraph(File file, NameSpace namespace, Content.Type<?>... types) {
+		this.file = file;
+		this.namespace = namespace;
+		this.types = types;
+		if (file.exists()) {
+			try {
+				load();
+			} catch (IOException e) {
+				nodes.clear();
+				generation = 0;
+			}
+		}
+	}
+	
+	/**
+	 * Begin a new generation. This should be called before each round of
+	 * building.
+	 */
+	public synchronized void nextGeneration() {
+		generation = generation + 1;
+	}
+	
+	/**
+	 * Set the options which affect what is built (e.g. those controlling code
+	 * generation). Every entry built with different options is stale.
+	 * 
+	 * @param options
+	 *            --- a description of the options.
+	 */
+	public synchronized void setOptions(String options) {
+		CRC32 crc = new CRC32();
+		try {
+			crc.update(options.getBytes("UTF-8"));
+		} catch (UnsupportedEncodingException e) {
+			// UTF-8 is always supported
+		}
+		this.options = crc.getValue();
+	}
+	
+	/**
+	 * Determine whether or not a given target must be rebuilt from a given
+	 * source.
+	 * 
+	 * @param source
+	 * @param target
+	 * @return
+	 * @throws IOException
+	 */
+	public synchronized boolean isStale(Path.Entry<?> source,
+			Path.Entry<?> target) throws IOException {
+		Node node = nodes.get(source.id());
+		if (node == null || node.options != options
+				|| target.lastModified() == 0) {
+			// never built, built with other options, or target has since been
+			// removed.
+			return true;
+		}
+		long modified = source.lastModified();
+		if (modified != node.modified) {
+			if (hash(source) != node.hash) {
+				return true;
+			}
+			// the source was touched, but not actually changed.
+			node.modified = modified;
+		}
+		for (Map.Entry<Path.ID, Long> e : node.dependencies.entrySet()) {
+			Path.ID dep = e.getKey();
+			Node d = nodes.get(dep);
+			if (d == null) {
+				// not built by the project, so compare modification times
+				// (which also catches the dependency having been removed).
+				if (stamp(dep, types) != e.getValue()) {
+					return true;
+				}
+			} else if (stamp(dep, types[0]) == 0) {
+				// the source of the dependency has since been removed, so it
+				// is no longer built by the project.
+				nodes.remove(dep);
+				return true;
+			} else if (d.changed > node.built) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Record that a given source entry has been built in the current
+	 * generation.
+	 * 
+	 * @param source
+	 *            --- the source entry which was built.
+	 * @param signature
+	 *            --- signature of the public interface of the resulting
+	 *            target.
+	 * @param dependencies
+	 *            --- identifiers of the entries upon which the source depends.
+	 * @throws IOException
+	 */
+	public synchronized void record(Path.Entry<?> source, long signature,
+			Collection<Path.ID> dependencies) throws IOException {
+		Node old = nodes.get(source.id());
+		Node node = new Node(source.lastModified(), hash(source));
+		node.signature = signature;
+		node.options = options;
+		node.built = generation;
+		if (old != null && old.signature == signature) {
+			node.changed = old.changed;
+		} else {
+			node.changed = generation;
+		}
+		for (Path.ID dep : dependencies) {
+			if (!dep.equals(source.id())) {
+				node.dependencies.put(dep, stamp(dep, types));
+			}
+		}
+		nodes.put(source.id(), node);
+	}
+	
+	/**
+	 * Determine those entries recorded as depending upon any of a given set of
+	 * entries.
+	 * 
+	 * @param ids
+	 * @return
+	 */
+	public synchronized Set<Path.ID> dependentsOf(Collection<Path.ID> ids) {
+		HashSet<Path.ID> r = new HashSet<Path.ID>();
+		for (Map.Entry<Path.ID, Node> e : nodes.entrySet()) {
+			for (Path.ID id : ids) {
+				if (e.getValue().dependencies.containsKey(id)) {
+					r.add(e.getKey());
+					break;
+				}
+			}
+		}
+		return r;
+	}
+	
+	/**
+	 * Write this graph to its file.
+	 * 
+	 * @throws IOException
+	 */
+	public synchronized void save() throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(file)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(generation);
+			out.writeInt(nodes.size());
+			for (Map.Entry<Path.ID, Node> e : nodes.entrySet()) {
+				Node node = e.getValue();
+				out.writeUTF(e.getKey().toString());
+				out.writeLong(node.modified);
+				out.writeLong(node.hash);
+				out.writeLong(node.signature);
+				out.writeLong(node.options);
+				out.writeLong(node.built);
+				out.writeLong(node.changed);
+				out.writeInt(node.dependencies.size());
+				for (Map.Entry<Path.ID, Long> dep : node.dependencies.entrySet()) {
+					out.writeUTF(dep.getKey().toString());
+					out.writeLong(dep.getValue());
+				}
+			}
+		} finally {
+			out.close();
+		}
+	}
+	
+	private void load() throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file)));
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				throw new IOException("invalid build graph: " + file);
+			}
+			generation = in.readLong();
+			int count = in.readInt();
+			for (int i = 0; i != count; ++i) {
+				Path.ID id = Trie.fromString(in.readUTF());
+				Node node = new Node(in.readLong(), in.readLong());
+				node.signature = in.readLong();
+				node.options = in.readLong();
+				node.built = in.readLong();
+				node.changed = in.readLong();
+				int ndeps = in.readInt();
+				for (int j = 0; j != ndeps; ++j) {
+					node.dependencies.put(Trie.fromString(in.readUTF()),
+							in.readLong());
+				}
+				nodes.put(id, node);
+			}
+		} finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * Determine the modification time of the entry a given dependency
+	 * currently resolves to through the given content types (in order of
+	 * preference), or zero if it resolves to nothing.
+	 * 
+	 * @param id
+	 * @param types
+	 * @return
+	 * @throws IOException
+	 */
+	private long stamp(Path.ID id, Content.Type<?>... types) throws IOException {
+		try {
+			synchronized (namespace) {
+				for (Content.Type<?> type : types) {
+					Path.Entry<?> e = namespace.get(id, type);
+					if (e != null) {
+						return e.lastModified();
+					}
+				}
+			}
+			return 0;
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException(e);
+		}
+	}
+	
+	private static long hash(Path.Entry<?> entry) throws IOException {
+		CRC32 crc = new CRC32();
+		InputStream in = entry.inputStream();
+		try {
+			byte[] buffer = new byte[4096];
+			int n;
+			while ((n = in.read(buffer)) != -1) {
+				crc.update(buffer, 0, n);
+			}
+		} finally {
+			in.close();
+		}
+		return crc.getValue();
+	}
+	
+	private static final class Node {
+		public long modified;
+		public final long hash;
+		public long signature;
+		public long options;
+		public long built;
+		public long changed;
+		public final HashMap<Path.ID, Long> dependencies = new HashMap<Path.ID, Long>();
+		
+		public Node(long modified, long hash) {
+			this.modified = modified;
+			this.hash = hash;
+		}
+	}
+}
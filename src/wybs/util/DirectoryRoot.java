@@ -174,11 +174,11 @@ public final class DirectoryRoot extends AbstractRoot<DirectoryRoot.Folder> {
 		}
 		
 		public InputStream inputStream() throws IOException {
-			return new FileInputStream(file);
+			return new BufferedInputStream(new FileInputStream(file));
 		}
 		
 		public OutputStream outputStream() throws IOException {
-			return new FileOutputStream(file);
+			return new BufferedOutputStream(new FileOutputStream(file));
 		}
 		
 		public String toString() {
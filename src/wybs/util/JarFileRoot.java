@@ -42,11 +42,34 @@ import wybs.lang.Path;
  */
 public final class JarFileRoot extends AbstractRoot<JarFileRoot.Folder> implements Path.Root {	
 	private final String dir;
+	private final File index;
 	private Path.Item[] jfContents;
 	
 	public JarFileRoot(String dir, Content.Registry contentTypes) throws IOException {
+		this(dir,contentTypes,null);
+	}
+
+	/**
+	 * Construct a jar file root which keeps a persistent index of its
+	 * contents. The index records those entries which have no associated
+	 * content type, so that later refreshes of an unchanged jar file need not
+	 * examine them again. This can make a significant difference for large
+	 * jars, since determining the content type of an entry may require
+	 * reading it.
+	 * 
+	 * @param dir
+	 *            --- location of the jar file.
+	 * @param contentTypes
+	 *            --- registry used to associate content types with entries.
+	 * @param index
+	 *            --- location of the index file, or null if no index should
+	 *            be kept.
+	 * @throws IOException
+	 */
+	public JarFileRoot(String dir, Content.Registry contentTypes, File index) throws IOException {
 		super(contentTypes);
 		this.dir = dir;
+		this.index = index;
 		refresh();
 	}
 	
@@ -63,6 +86,12 @@ public final class JarFileRoot extends AbstractRoot<JarFileRoot.Folder> implemen
 	@Override
 	public void refresh() throws IOException {
 		JarFile jf = new JarFile(dir);
+		File jar = new File(dir);
+		HashSet<String> untyped = readIndex(jar);
+		boolean indexed = untyped != null;
+		if(!indexed) {
+			untyped = new HashSet<String>();
+		}
 		Enumeration<JarEntry> entries = jf.entries();
 		this.jfContents = new Path.Item[jf.size()];
 		int i = 0;
@@ -77,14 +106,85 @@ public final class JarFileRoot extends AbstractRoot<JarFileRoot.Folder> implemen
 				String suffix = lastDot >= 0 ? filename.substring(lastDot + 1) : null;						
 				Trie id = pkg.append(name);
 				Entry pe = new Entry(id, jf, e);
-				contentTypes.associate(pe);
+				if(!indexed) {
+					contentTypes.associate(pe);
+					if(pe.contentType() == null) {
+						untyped.add(filename);
+					}
+				} else if(!untyped.contains(filename)) {
+					contentTypes.associate(pe);
+				}
 				jfContents[i++] = pe;
 			} else {
 				// folder
 				jfContents[i++] = new Folder(pkg);
 			}
 		}		
+		if(!indexed) {
+			writeIndex(jar,untyped);
+		}
 	}
+
+	/**
+	 * Read the index for this jar file. The index is only valid if it was
+	 * written for a jar file of the same size and modification time.
+	 * 
+	 * @param jar
+	 * @return the set of entries with no content type, or null if there is no
+	 *         valid index.
+	 */
+	private HashSet<String> readIndex(File jar) {
+		if(index == null || !index.exists()) {
+			return null;
+		}
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(index)));
+			try {
+				if (in.readInt() != INDEX_MAGIC
+						|| in.readLong() != jar.length()
+						|| in.readLong() != jar.lastModified()) {
+					return null;
+				}
+				int count = in.readInt();
+				HashSet<String> untyped = new HashSet<String>();
+				for(int i=0;i!=count;++i) {
+					untyped.add(in.readUTF());
+				}
+				return untyped;
+			} finally {
+				in.close();
+			}
+		} catch(IOException e) {
+			// treat a damaged index as missing
+			return null;
+		}
+	}
+
+	private void writeIndex(File jar, Set<String> untyped) {
+		if(index == null) {
+			return;
+		}
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(index)));
+			try {
+				out.writeInt(INDEX_MAGIC);
+				out.writeLong(jar.length());
+				out.writeLong(jar.lastModified());
+				out.writeInt(untyped.size());
+				for(String name : untyped) {
+					out.writeUTF(name);
+				}
+			} finally {
+				out.close();
+			}
+		} catch(IOException e) {
+			// the index is only an optimisation, so just ignore this.
+		}
+	}
+
+	private static final int INDEX_MAGIC = 0x57594a49;
 	
 	@Override
 	protected Folder root() {
@@ -45,16 +45,29 @@ import wyil.util.Pair;
  * situations encountered. However, the major limitation is an assumption that
  * every target file corresponds to exactly one source file.
  * </p>
+ * <p>
+ * When given a <code>BuildGraph</code>, this rule builds incrementally. That
+ * is, only targets which are stale according to the graph are rebuilt, along
+ * with any entries depending on them whose dependencies' interfaces changed as
+ * a result. In this case, the builder is expected to record what it builds in
+ * the graph.
+ * </p>
  * 
  * @author David J. Pearce
  * 
  */
 public class StandardBuildRule implements BuildRule {	
 	private final Builder builder;
+	private final BuildGraph graph;
 	private final ArrayList<Item> items;
 
 	public StandardBuildRule(Builder builder) {
+		this(builder,null);
+	}
+	
+	public StandardBuildRule(Builder builder, BuildGraph graph) {
 		this.builder = builder;
+		this.graph = graph;
 		this.items = new ArrayList<Item>();
 	}
 	
@@ -140,13 +153,83 @@ public class StandardBuildRule implements BuildRule {
 		}
 		
 		if(!delta.isEmpty()) {
-			builder.build(delta);
+			if(graph == null) {
+				builder.build(delta);
+			} else {
+				buildIncrementally(delta);
+			}
 			for(Pair<Path.Entry<?>,Path.Entry<?>> p : delta) {
 				targets.remove(p.second());
 			}
 		}
 	}
 	
+	/**
+	 * Build only those (source,target) pairs which are stale, according to the
+	 * build graph. After each round of building, any entries depending on those
+	 * just built are checked and, if they are now stale (i.e. because an
+	 * interface they depend on has changed), they are built in the next round.
+	 * 
+	 * @param delta
+	 * @throws Exception
+	 */
+	private void buildIncrementally(List<Pair<Path.Entry<?>, Path.Entry<?>>> delta)
+			throws Exception {
+		ArrayList<Pair<Path.Entry<?>, Path.Entry<?>>> stale = new ArrayList<Pair<Path.Entry<?>, Path.Entry<?>>>();
+		for (Pair<Path.Entry<?>, Path.Entry<?>> p : delta) {
+			if (graph.isStale(p.first(), p.second())) {
+				stale.add(p);
+			}
+		}
+		
+		HashSet<Path.ID> done = new HashSet<Path.ID>();
+		while (!stale.isEmpty()) {
+			graph.nextGeneration();
+			builder.build(stale);
+			ArrayList<Path.ID> built = new ArrayList<Path.ID>();
+			for (Pair<Path.Entry<?>, Path.Entry<?>> p : stale) {
+				built.add(p.first().id());
+			}
+			done.addAll(built);
+			
+			stale = new ArrayList<Pair<Path.Entry<?>, Path.Entry<?>>>();
+			for (Path.ID id : graph.dependentsOf(built)) {
+				if (!done.contains(id)) {
+					Pair<Path.Entry<?>, Path.Entry<?>> p = match(id);
+					if (p != null && graph.isStale(p.first(), p.second())) {
+						stale.add(p);
+					}
+				}
+			}
+		}
+		
+		graph.save();
+	}
+	
+	/**
+	 * Find the (source,target) pair of this rule for a given entry id, if
+	 * there is one.
+	 * 
+	 * @param id
+	 * @return
+	 * @throws IOException
+	 */
+	@SuppressWarnings("unchecked") // the filters of an item are raw
+	private Pair<Path.Entry<?>, Path.Entry<?>> match(Path.ID id) throws IOException {
+		for (int i = 0; i != items.size(); ++i) {
+			final Item item = items.get(i);
+			Path.Entry<?> se = item.source.get(id, item.from);
+			if (se != null
+					&& item.includes.matches(se.id(), se.contentType())
+					&& (item.excludes == null || !item.excludes.matches(
+							se.id(), se.contentType()))) {
+				Path.Entry<?> te = item.target.create(id, item.to);
+				return new Pair<Path.Entry<?>, Path.Entry<?>>(se, te);
+			}
+		}
+		return null;
+	}
+	
 	private final static class Item {
 		final Path.Root source;
 		final Path.Root target;
@@ -189,7 +189,7 @@ public final class Trie implements Path.ID, Path.Filter {
 		return this == o;
 	}
 	
-	public Trie append(final String component) {
+	public synchronized Trie append(final String component) {
 		int index = binarySearch(children, nchildren, component);
 		if(index >= 0) {
 			return children[index];
@@ -61,7 +61,7 @@ public class GlobalGenerator {
 		this.resolver = resolver;
 	}
 		
-	public Block generate(NameID nid) throws Exception {
+	public synchronized Block generate(NameID nid) throws Exception {
 		Block blk = cache.get(nid);
 		if(blk == EMPTY_BLOCK) {
 			return null;
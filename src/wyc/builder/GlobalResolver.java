@@ -38,7 +38,9 @@ import wyc.lang.WhileyFile;
  */
 public class GlobalResolver extends LocalResolver {
 	/**
-	 * The constant cache contains a cache of expanded constant values.
+	 * The constant cache contains a cache of expanded constant values. This is
+	 * only accessed whilst holding the lock on this resolver, since constants
+	 * may be resolved from several threads at once.
 	 */
 	private final HashMap<NameID, Value> constantCache = new HashMap();
 	
@@ -562,7 +564,7 @@ public class GlobalResolver extends LocalResolver {
 	 * @return
 	 * @throws Exception
 	 */
-	private Value resolveAsConstant(NameID key, HashSet<NameID> visited) throws Exception {				
+	private synchronized Value resolveAsConstant(NameID key, HashSet<NameID> visited) throws Exception {				
 		Value result = constantCache.get(key);
 		if(result != null) {
 			return result;
@@ -27,6 +27,7 @@ package wyc.builder;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import wyil.*;
 import wyil.lang.*;
@@ -76,6 +77,14 @@ import wyc.stages.*;
  * Every stage of the compiler can be configured by setting various options.
  * Stages can also be bypassed (typically for testing) and new ones can be
  * added.
+ * <p>
+ * Source files are processed in parallel where possible. Type propagation and
+ * code generation are performed on each file independently, and files then
+ * move through the pipeline stages independently of each other. The only
+ * exceptions are stages implementing <code>Transform.Global</code>, which
+ * require information from other modules. Such a stage is not started until
+ * every module has completed all of the stages before it.
+ * </p>
  * 
  * @author David J. Pearce
  * 
@@ -90,12 +99,57 @@ public final class WhileyBuilder implements Builder {
 	private final NameSpace namespace;		
 	
 	/**
-	 * The list of stages which must be applied to a Wyil file.
+	 * The pipeline of stages which must be applied to a Wyil file. This is
+	 * instantiated separately for each module, so that stages applied to
+	 * different modules in parallel do not share state.
+	 */
+	private final Pipeline pipeline;
+	
+	/**
+	 * The list of stages which must be applied to a Wyil file. These instances
+	 * are used for global stages, which are applied to one module at a time.
 	 */
 	private final List<Transform> stages;
 	
 	private Logger logger;
 	
+	/**
+	 * The number of threads used for processing modules in parallel. When
+	 * this is one, all modules are processed sequentially on the calling
+	 * thread.
+	 */
+	private int threads = Runtime.getRuntime().availableProcessors();
+	
+	/**
+	 * The memory hook (if any) which is notified when the amount of memory in
+	 * use exceeds the given threshold.
+	 */
+	private MemoryHook memoryHook = null;
+	
+	/**
+	 * The fraction of the maximum heap size above which the memory hook is
+	 * notified.
+	 */
+	private double memoryThreshold = 0.9;
+	
+	/**
+	 * The build graph (if any) in which modules are recorded as they are
+	 * built, for the purposes of incremental compilation.
+	 */
+	private BuildGraph graph = null;
+	
+	/**
+	 * Determines whether the modules built are to use persistent lists, sets
+	 * and dictionaries in the code generated for them.
+	 */
+	private boolean persistentCollections = false;
+	
+	/**
+	 * The pool used for processing modules in parallel during a build. This
+	 * is null when not building, or when building sequentially.
+	 */
+	private ForkJoinPool pool;
+	
 	/**
 	 * A map of the source files currently being compiled.
 	 */
@@ -110,6 +164,7 @@ public final class WhileyBuilder implements Builder {
 	private final HashMap<Trie,ArrayList<Path.ID>> importCache = new HashMap();	
 		
 	public WhileyBuilder(NameSpace namespace, Pipeline pipeline) {
+		this.pipeline = pipeline;
 		this.stages = pipeline.instantiate(this);
 		this.logger = Logger.NULL;
 		this.namespace = namespace;
@@ -123,10 +178,101 @@ public final class WhileyBuilder implements Builder {
 		this.logger = logger;
 	}
 	
+	/**
+	 * Set the number of threads used for processing modules in parallel. A
+	 * value of one means modules are processed sequentially.
+	 * 
+	 * @param threads
+	 */
+	public void setThreads(int threads) {
+		if(threads < 1) {
+			throw new IllegalArgumentException("invalid number of threads: " + threads);
+		}
+		this.threads = threads;
+	}
+	
+	/**
+	 * Set the hook which is notified when the amount of memory in use exceeds
+	 * a given fraction of the maximum heap size. This is checked after each
+	 * stage is applied to a module. Setting the hook to null disables this.
+	 * 
+	 * @param hook
+	 * @param threshold
+	 *            --- fraction of maximum heap size (between 0 and 1).
+	 */
+	public void setMemoryHook(MemoryHook hook, double threshold) {
+		this.memoryHook = hook;
+		this.memoryThreshold = threshold;
+	}
+	
+	/**
+	 * Set the build graph in which built modules are recorded. For each module
+	 * built, this records the modules it depends upon and a signature of its
+	 * public interface. Setting the graph to null disables this.
+	 * 
+	 * @param graph
+	 */
+	public void setBuildGraph(BuildGraph graph) {
+		this.graph = graph;
+	}
+	
+	/**
+	 * Set whether the code generated for the modules built uses persistent
+	 * lists, sets and dictionaries. These make updating a shared collection
+	 * much cheaper, at some cost to other operations.
+	 * 
+	 * @param b
+	 */
+	public void setPersistentCollections(boolean b) {
+		this.persistentCollections = b;
+	}
+	
+	/**
+	 * A memory hook is notified when the builder is under memory pressure. This
+	 * gives the enclosing application a chance to release resources (e.g.
+	 * cached files) before continuing.
+	 */
+	public interface MemoryHook {
+		/**
+		 * Called when the memory in use exceeds the threshold.
+		 * 
+		 * @param used
+		 *            --- bytes of memory currently in use.
+		 * @param max
+		 *            --- maximum number of bytes available.
+		 */
+		public void underPressure(long used, long max);
+		
+		/**
+		 * The GC hook simply requests a garbage collection.
+		 */
+		public static final MemoryHook GC = new MemoryHook() {
+			public void underPressure(long used, long max) {
+				System.gc();
+			}
+		};
+	}
+	
 	public void build(List<Pair<Path.Entry<?>,Path.Entry<?>>> delta) throws Exception {
+		if(threads > 1) {
+			pool = new ForkJoinPool(threads);
+		}
+		try {
+			internalBuild(delta);
+		} finally {
+			if(pool != null) {
+				pool.shutdown();
+				pool = null;
+			}
+		}
+	}
+	
+	private void internalBuild(List<Pair<Path.Entry<?>,Path.Entry<?>>> delta) throws Exception {
 		Runtime runtime = Runtime.getRuntime();
 		long start = System.currentTimeMillis();
 		long memory = runtime.freeMemory();
+		long cacheHits = Type.subtypeCacheHits();
+		long cacheMisses = Type.subtypeCacheMisses();
 
 		// ========================================================================
 		// Parse and register source files
@@ -151,20 +297,22 @@ public final class WhileyBuilder implements Builder {
 		// Flow Type source files
 		// ========================================================================
 		
-		GlobalResolver resolver = new GlobalResolver(this);
+		final GlobalResolver resolver = new GlobalResolver(this);
 		
 		runtime = Runtime.getRuntime();
 		start = System.currentTimeMillis();		
 		memory = runtime.freeMemory();
 		
-		for(Pair<Path.Entry<?>,Path.Entry<?>> p : delta) {
-			Path.Entry<?> f = p.first();
-			if (f.contentType() == WhileyFile.ContentType) {
-				Path.Entry<WhileyFile> sf = (Path.Entry<WhileyFile>) f;			
-				WhileyFile wf = sf.read();								
-				new FlowTyping(resolver).propagate(wf);						
+		ArrayList<WhileyFile> sources = new ArrayList<WhileyFile>();
+		for(Path.Entry<WhileyFile> sf : srcFiles.values()) {
+			sources.add(sf.read());
+		}
+		
+		forEach(sources, new Job<WhileyFile>() {
+			public void run(WhileyFile wf) throws Exception {
+				new FlowTyping(resolver).propagate(wf);
 			}
-		}		
+		});
 		
 		logger.logTimedMessage("Typed " + count + " source file(s).",
 				System.currentTimeMillis() - start, memory - runtime.freeMemory());
@@ -177,20 +325,27 @@ public final class WhileyBuilder implements Builder {
 		start = System.currentTimeMillis();		
 		memory = runtime.freeMemory();	
 
-		GlobalGenerator globalGen = new GlobalGenerator(this,resolver);
-		CodeGeneration generator = new CodeGeneration(this,globalGen,resolver);
+		final GlobalGenerator globalGen = new GlobalGenerator(this,resolver);
+		ArrayList<Pair<Path.Entry<?>,Path.Entry<?>>> targets = new ArrayList<Pair<Path.Entry<?>,Path.Entry<?>>>();
 		for(Pair<Path.Entry<?>,Path.Entry<?>> p : delta) {
 			Path.Entry<?> f = p.first();
 			Path.Entry<?> s = (Path.Entry<?>) p.second();
 			if (f.contentType() == WhileyFile.ContentType && s.contentType() == WyilFile.ContentType) {
-				Path.Entry<WhileyFile> source = (Path.Entry<WhileyFile>) f;
-				Path.Entry<WyilFile> target = (Path.Entry<WyilFile>) s;				
-				WhileyFile wf = source.read();								
-				WyilFile wyil = generator.generate(wf);
-				target.write(wyil);
+				targets.add(p);
 			}
 		}
 		
+		forEach(targets, new Job<Pair<Path.Entry<?>,Path.Entry<?>>>() {
+			public void run(Pair<Path.Entry<?>,Path.Entry<?>> p) throws Exception {
+				Path.Entry<WhileyFile> source = (Path.Entry<WhileyFile>) p.first();
+				Path.Entry<WyilFile> target = (Path.Entry<WyilFile>) p.second();
+				CodeGeneration generator = new CodeGeneration(WhileyBuilder.this,globalGen,resolver);
+				WyilFile wyil = generator.generate(source.read());
+				wyil.setPersistentCollections(persistentCollections);
+				target.write(wyil);
+			}
+		});
+		
 		logger.logTimedMessage("Generated code for " + count + " source file(s).",
 					System.currentTimeMillis() - start, memory - runtime.freeMemory());
 		
@@ -198,20 +353,30 @@ public final class WhileyBuilder implements Builder {
 		// Pipeline Stages
 		// ========================================================================
 				
-		for(Transform stage : stages) {
-			for(Pair<Path.Entry<?>,Path.Entry<?>> p : delta) {
-				Path.Entry<?> f = p.second();
-				if (f.contentType() == WyilFile.ContentType) {			
-					Path.Entry<WyilFile> wf = (Path.Entry<WyilFile>) f;
-					process(wf.read(),stage);
-				}				
-			}
-		}	
+		ArrayList<Path.Entry<WyilFile>> modules = new ArrayList<Path.Entry<WyilFile>>();
+		for(Pair<Path.Entry<?>,Path.Entry<?>> p : delta) {
+			Path.Entry<?> f = p.second();
+			if (f.contentType() == WyilFile.ContentType) {			
+				modules.add((Path.Entry<WyilFile>) f);
+			}				
+		}
+		
+		process(modules);
+		
+		if(graph != null) {
+			record(targets);
+		}
 	
 		// ========================================================================
 		// Done.
 		// ========================================================================
 		
+		cacheHits = Type.subtypeCacheHits() - cacheHits;
+		cacheMisses = Type.subtypeCacheMisses() - cacheMisses;
+		logger.logTimedMessage("Answered " + cacheHits + " of "
+				+ (cacheHits + cacheMisses) + " subtype queries from cache.",
+				0, 0);
+		
 		long endTime = System.currentTimeMillis();
 		logger.logTimedMessage("Compiled " + delta.size() + " file(s)",
 				endTime - start, memory - runtime.freeMemory());
@@ -223,8 +388,10 @@ public final class WhileyBuilder implements Builder {
 	
 	public boolean exists(Path.ID id) {
 		try {
-			return namespace.exists(id, WhileyFile.ContentType)
-					|| namespace.exists(id, WyilFile.ContentType);
+			synchronized(namespace) {
+				return namespace.exists(id, WhileyFile.ContentType)
+						|| namespace.exists(id, WyilFile.ContentType);
+			}
 		} catch(Exception e) {
 			return false;
 		}
@@ -243,9 +410,8 @@ public final class WhileyBuilder implements Builder {
 			// FIXME: check for the right kind of name			
 			return wf.read().hasName(nid.name());
 		} else {			
-			Path.Entry<WyilFile> m = namespace.get(mid,WyilFile.ContentType);
 			// FIXME: check for the right kind of name
-			return m.read().hasName(nid.name());			
+			return getModule(mid).hasName(nid.name());			
 		}
 	}	
 	
@@ -257,6 +423,14 @@ public final class WhileyBuilder implements Builder {
 	 * @return
 	 */
 	public List<Path.ID> imports(Trie key) throws ResolveError {		
+		// NOTE: the namespace is locked, since both the cache and the namespace
+		// may be accessed by several threads during a build.
+		synchronized (namespace) {
+			return internalImports(key);
+		}
+	}
+	
+	private List<Path.ID> internalImports(Trie key) throws ResolveError {		
 		try {
 			ArrayList<Path.ID> matches = importCache.get(key);
 			if (matches != null) {
@@ -324,13 +498,237 @@ public final class WhileyBuilder implements Builder {
 	 * @throws Exception
 	 */
 	public WyilFile getModule(Path.ID mid) throws Exception {
-		return namespace.get(mid, WyilFile.ContentType).read();
+		synchronized (namespace) {
+			return namespace.get(mid, WyilFile.ContentType).read();
+		}
 	}
 	
 	// ======================================================================
 	// Private Implementation
 	// ======================================================================
 
+	/**
+	 * Record the modules just built in the build graph.
+	 * 
+	 * @param built
+	 *            --- (source,target) pairs of modules just built.
+	 * @throws Exception
+	 */
+	private void record(List<Pair<Path.Entry<?>, Path.Entry<?>>> built)
+			throws Exception {
+		for (Pair<Path.Entry<?>, Path.Entry<?>> p : built) {
+			Path.Entry<?> source = p.first();
+			WyilFile target = (WyilFile) p.second().read();
+			graph.record(source, signature(target),
+					dependencies((WhileyFile) source.read()));
+		}
+	}
+	
+	/**
+	 * Determine the modules which a given source file may depend upon. Since
+	 * any name used in the file must be resolved through its imports (either
+	 * explicit or implicit), these are simply the modules matched by them.
+	 * 
+	 * @param wf
+	 * @return
+	 * @throws ResolveError
+	 */
+	private Set<Path.ID> dependencies(WhileyFile wf) throws ResolveError {
+		ArrayList<Trie> filters = new ArrayList<Trie>();
+		filters.add(Trie.fromString("whiley/lang/*"));
+		filters.add(Trie.fromString(wf.module.parent(), "*"));
+		for (WhileyFile.Import imp : wf.declarations(WhileyFile.Import.class)) {
+			if (imp.name == null) {
+				// in this case, any module in the parent package may be
+				// matched (see GlobalResolver.resolveAsName).
+				filters.add(imp.filter.parent().append("*"));
+			}
+			filters.add(imp.filter);
+		}
+		HashSet<Path.ID> deps = new HashSet<Path.ID>();
+		for (Trie filter : filters) {
+			deps.addAll(imports(filter));
+		}
+		return deps;
+	}
+	
+	/**
+	 * Compute a signature of the public interface of a module. That is,
+	 * everything which other modules may depend upon: the names, types and
+	 * constraints of its type definitions; the values of its constants; and,
+	 * the types, preconditions and postconditions of its functions and
+	 * methods. Since the order of declarations is unimportant, the signature
+	 * is simply the sum of the signatures of each. Constraints are included in
+	 * their canonical form, so that an edit which only moves code around
+	 * (e.g. changing whitespace) does not change the signature.
+	 * 
+	 * @param module
+	 * @return
+	 */
+	private static long signature(WyilFile module) {
+		long r = 0;
+		for (WyilFile.TypeDef td : module.types()) {
+			r += signature("type " + td.modifiers() + " " + td.name() + " "
+					+ td.type() + " " + canonical(td.constraint()));
+		}
+		for (WyilFile.ConstDef cd : module.constants()) {
+			r += signature("constant " + cd.modifiers() + " " + cd.name()
+					+ " " + cd.constant());
+		}
+		for (WyilFile.Method m : module.methods()) {
+			String s = "method " + m.modifiers() + " " + m.name() + " "
+					+ m.type();
+			for (WyilFile.Case c : m.cases()) {
+				s += " requires " + canonical(c.precondition()) + " ensures "
+						+ canonical(c.postcondition());
+			}
+			r += signature(s);
+		}
+		return r;
+	}
+	
+	/**
+	 * Determine the canonical form of a block. This omits the attributes of
+	 * each bytecode (e.g. source locations) and renumbers labels in the order
+	 * they are declared, since fresh labels are otherwise drawn from a global
+	 * counter and so differ between builds.
+	 * 
+	 * @param block
+	 *            --- block to be canonicalised, which may be null.
+	 * @return
+	 */
+	private static String canonical(Block block) {
+		if (block == null) {
+			return "null";
+		}
+		HashMap<String, String> labels = new HashMap<String, String>();
+		for (Block.Entry e : block) {
+			if (e.code instanceof Code.Label) {
+				Code.Label l = (Code.Label) e.code;
+				labels.put(l.label, "L" + labels.size());
+			}
+		}
+		StringBuilder r = new StringBuilder("[");
+		for (Block.Entry e : block) {
+			if (r.length() > 1) {
+				r.append(", ");
+			}
+			r.append(e.code.relabel(labels));
+		}
+		return r.append("]").toString();
+	}
+	
+	/**
+	 * A 64-bit (FNV-1a) hash of a string. This is used instead of
+	 * String.hashCode() simply to make collisions less likely.
+	 * 
+	 * @param s
+	 * @return
+	 */
+	private static long signature(String s) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i != s.length(); ++i) {
+			h ^= s.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		return h;
+	}
+	
+	/**
+	 * Apply the pipeline stages to every module. Consecutive stages which are
+	 * not global are applied to each module independently (and in parallel).
+	 * A global stage is applied only once all modules have reached it, and is
+	 * then applied to one module at a time.
+	 * 
+	 * @param modules
+	 * @throws Exception
+	 */
+	private void process(List<Path.Entry<WyilFile>> modules) throws Exception {
+		// First, instantiate a separate pipeline for each module.
+		final HashMap<Path.Entry<WyilFile>,List<Transform>> pipelines = new HashMap<Path.Entry<WyilFile>,List<Transform>>();
+		for(Path.Entry<WyilFile> module : modules) {
+			pipelines.put(module, pipeline.instantiate(this));
+		}
+		
+		// Second, apply each run of local stages, followed by the global
+		// stage (if any) which ends it.
+		int from = 0;		
+		while(from < stages.size()) {
+			int to = from;
+			while(to < stages.size() && !(stages.get(to) instanceof Transform.Global)) {
+				to++;
+			}
+			final int start = from;
+			final int end = to;
+			forEach(modules, new Job<Path.Entry<WyilFile>>() {
+				public void run(Path.Entry<WyilFile> module) throws Exception {
+					List<Transform> local = pipelines.get(module);
+					for(int i=start;i!=end;++i) {
+						process(module.read(),local.get(i));
+					}
+				}
+			});
+			if(to < stages.size()) {
+				Transform stage = stages.get(to);
+				for(Path.Entry<WyilFile> module : modules) {
+					process(module.read(),stage);
+				}
+			}
+			from = to + 1;
+		}
+	}
+	
+	/**
+	 * Represents a unit of work applied to each item of a list, as part of
+	 * <code>forEach</code>.
+	 */
+	private interface Job<T> {
+		public void run(T item) throws Exception;
+	}
+	
+	/**
+	 * Run a job on each item of a given list. When building in parallel, items
+	 * are distributed over the pool and this method returns once all have
+	 * completed. If any job fails, then the exception raised for the earliest
+	 * item in the list is rethrown.
+	 * 
+	 * @param items
+	 * @param job
+	 * @throws Exception
+	 */
+	private <T> void forEach(List<T> items, final Job<T> job) throws Exception {
+		if (pool == null || items.size() < 2) {
+			for (T item : items) {
+				job.run(item);
+			}
+			return;
+		}
+
+		ArrayList<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+		for (final T item : items) {
+			tasks.add(new Callable<Object>() {
+				public Object call() throws Exception {
+					job.run(item);
+					return null;
+				}
+			});
+		}
+
+		for (Future<Object> f : pool.invokeAll(tasks)) {
+			try {
+				f.get();
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof Exception) {
+					throw (Exception) cause;
+				} else if (cause instanceof Error) {
+					throw (Error) cause;
+				}
+				throw e;
+			}
+		}
+	}
+
 	private void process(WyilFile module, Transform stage) throws Exception {
 		Runtime runtime = Runtime.getRuntime();
 		long start = System.currentTimeMillis();		
@@ -341,7 +739,7 @@ public final class WhileyBuilder implements Builder {
 			stage.apply(module);			
 			logger.logTimedMessage("[" + module.filename() + "] applied "
 					+ name, System.currentTimeMillis() - start, memory - runtime.freeMemory());
-			System.gc();
+			checkMemory();
 		} catch (RuntimeException ex) {
 			logger.logTimedMessage("[" + module.filename() + "] failed on "
 					+ name + " (" + ex.getMessage() + ")",
@@ -355,6 +753,21 @@ public final class WhileyBuilder implements Builder {
 		}
 	}
 	
+	/**
+	 * Check whether the amount of memory currently in use exceeds the
+	 * threshold and, if so, notify the memory hook.
+	 */
+	private void checkMemory() {
+		if (memoryHook != null) {
+			Runtime runtime = Runtime.getRuntime();
+			long used = runtime.totalMemory() - runtime.freeMemory();
+			long max = runtime.maxMemory();
+			if (used > max * memoryThreshold) {
+				memoryHook.underPressure(used, max);
+			}
+		}
+	}
+	
 	private static String name(String camelCase) {
 		boolean firstTime = true;
 		String r = "";
@@ -77,6 +77,7 @@ public class Pipeline {
 					add(new Template(DeadCodeElimination.class, Collections.EMPTY_MAP));
 					add(new Template(VerificationCheck.class, Collections.EMPTY_MAP));
 					add(new Template(LiveVariablesAnalysis.class, Collections.EMPTY_MAP));
+					add(new Template(EscapeAnalysis.class, Collections.<String, Object>emptyMap()));
 					// add(new Template(WyilFileWriter.class, Collections.EMPTY_MAP));
 				}
 			});
@@ -96,6 +97,7 @@ public class Pipeline {
 		register(WyilFileWriter.class);
 		register(DeadCodeElimination.class);
 		register(LiveVariablesAnalysis.class);
+		register(EscapeAnalysis.class);
 		register(VerificationCheck.class);
 	}	
 	
@@ -289,6 +291,10 @@ public class Pipeline {
 			this.name = name;			
 			this.options = options;
 		}
+		
+		public String toString() {
+			return op + " " + name + " " + new TreeMap<String, Object>(options);
+		}
 	}
 	
 	public enum POP {
@@ -49,4 +49,15 @@ public interface Transform {
 	 *             --- some kind of failure occurred.
 	 */
 	public void apply(WyilFile module) throws Exception;
+	
+	/**
+	 * A global transform is one which requires information from modules other
+	 * than that being transformed. For example, to inline the precondition of
+	 * a function declared in another module. A global transform is applied to
+	 * a module only after every module being built has passed through all
+	 * preceding stages, and is applied to one module at a time.
+	 */
+	public interface Global extends Transform {
+		
+	}
 }
@@ -58,5 +58,22 @@ public interface Attribute {
 			return "@" + start + ":" + end;
 		}
 	}
+	
+	/**
+	 * Indicates that a value is borrowed from a variable, rather than aliased.
+	 * This may be associated with a <code>load</code> bytecode whose value
+	 * does not escape the expression which reads it, or with a bytecode whose
+	 * operand is such a value. In either case, no reference counting is
+	 * required for the value (see <code>EscapeAnalysis</code>).
+	 */
+	public final static class Borrow implements Attribute {
+		public static final Borrow INSTANCE = new Borrow();
+		
+		private Borrow() {}
+		
+		public String toString() {
+			return "borrow";
+		}
+	}
 		
 }
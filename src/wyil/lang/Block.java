@@ -26,6 +26,7 @@
 package wyil.lang;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import wybs.lang.SyntacticElement;
 import wyil.util.*;
@@ -397,9 +398,9 @@ public final class Block implements Iterable<Block.Entry> {
 		return r + "]";
 	}
 
-	private static int _idx=0;
+	private static final AtomicInteger _idx = new AtomicInteger(0);
 	public static String freshLabel() {
-		return "blklab" + _idx++;
+		return "blklab" + _idx.getAndIncrement();
 	}
 
 	/**
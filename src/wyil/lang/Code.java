@@ -2164,7 +2164,7 @@ public abstract class Code {
 		public boolean equals(Object o) {
 			if(o instanceof NewSet) {
 				NewSet i = (NewSet) o;
-				return type == i.type || (type != null && type.equals(i.type))
+				return (type == i.type || (type != null && type.equals(i.type)))
 						&& nargs == i.nargs;
 			}
 			return false;
@@ -2212,7 +2212,7 @@ public abstract class Code {
 		public boolean equals(Object o) {
 			if(o instanceof NewList) {
 				NewList i = (NewList) o;
-				return type == i.type || (type != null && type.equals(i.type))
+				return (type == i.type || (type != null && type.equals(i.type)))
 						&& nargs == i.nargs;
 			}
 			return false;
@@ -2930,7 +2930,7 @@ public abstract class Code {
 	private static final ArrayList<Code> values = new ArrayList<Code>();
 	private static final HashMap<Code,Integer> cache = new HashMap<Code,Integer>();
 	
-	private static <T extends Code> T get(T type) {
+	private static synchronized <T extends Code> T get(T type) {
 		Integer idx = cache.get(type);
 		if(idx != null) {
 			return (T) values.get(idx);
@@ -19,7 +19,12 @@
 package wyil.lang;
 
 import java.io.IOException;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 import wyautl.io.*;
 import wyautl.lang.*;
@@ -43,8 +48,6 @@ public abstract class Type {
 	// Debug Code
 	// =============================================================
 
-//	private static final HashSet<Type> distinctTypes = new HashSet<Type>();
-//	
 	private static boolean canonicalisation = true;
 //	private static int equalsCount = 0;	
 //	private static int normalisedCount = 0;
@@ -64,9 +67,61 @@ public abstract class Type {
 //	public static void shutdown() {
 //		System.err.println("#TYPE EQUALITY TESTS: " + equalsCount);	
 //		System.err.println("#TYPE NORMALISATIONS: " + normalisedCount + " (" + unminimisedCount + " -> " + minimisedCount +")");
-//		System.err.println("#DISTINCT TYPES: " + distinctTypes.size());
+//		System.err.println("#DISTINCT TYPES: " + interned.size());
 //	}
 	
+	// =============================================================
+	// Interning
+	// =============================================================
+
+	/**
+	 * The table of interned compound types, keyed on their canonical automata.
+	 * Types are held weakly so that those which are no longer referenced can
+	 * be garbage collected; the entries of collected types are then removed
+	 * by purgeInterned(). The table is concurrent, since types are
+	 * constructed by several modules being compiled at once.
+	 */
+	private static final ConcurrentHashMap<PackedAutomaton, InternedType> interned = new ConcurrentHashMap<PackedAutomaton, InternedType>();
+	
+	/**
+	 * The queue on which the references of interned types are placed once
+	 * those types are garbage collected.
+	 */
+	private static final ReferenceQueue<Compound> collected = new ReferenceQueue<Compound>();
+	
+	// =============================================================
+	// Subtype Cache
+	// =============================================================
+
+	/**
+	 * The maximum number of subtype queries retained in the cache. Once this
+	 * is exceeded, an arbitrary quarter of the cached queries are discarded.
+	 */
+	private static final int SUBTYPE_CACHE_SIZE = 65536;
+	
+	private static final byte R_SUBTYPE = 0;
+	private static final byte R_IMPLICIT_COERCION = 1;
+	private static final byte R_EXPLICIT_COERCION = 2;
+	
+	/**
+	 * The cache of subtype queries which have already been answered. Since
+	 * types are interned, the types making up a query can be identified by
+	 * number rather than held by the cache (see cacheKey()). The cache is
+	 * concurrent, since types are checked by several modules being compiled
+	 * at once.
+	 */
+	private static final ConcurrentHashMap<SubtypeQuery, Boolean> subtypeCache = new ConcurrentHashMap<SubtypeQuery, Boolean>(1024);
+	
+	private static final LongAdder subtypeCacheHits = new LongAdder();
+	private static final LongAdder subtypeCacheMisses = new LongAdder();
+	
+	/**
+	 * The number given to the next compound type constructed. Numbers are
+	 * never reused, hence a query in the subtype cache can never be mistaken
+	 * for one about a type which has since been collected.
+	 */
+	private static final AtomicLong nextCompound = new AtomicLong();
+	
 	// =============================================================
 	// Type Constructors
 	// =============================================================
@@ -387,8 +442,7 @@ public abstract class Type {
 		if (type instanceof Leaf) {
 			throw new IllegalArgumentException("cannot close a leaf type");
 		}
-		Compound compound = (Compound) type;
-		Automaton automaton = compound.automaton;
+		Automaton automaton = destruct(type);
 		State[] nodes = automaton.states;
 		int[] rmap = new int[nodes.length];		
 		for (int i = 0; i != nodes.length; ++i) {
@@ -427,9 +481,10 @@ public abstract class Type {
 		if (t instanceof Leaf) {
 			return false;
 		}
-		Compound graph = (Compound) t;
-		for (State n : graph.automaton.states) {
-			if (n.kind == K_NOMINAL && n.data.equals(label)) {
+		PackedAutomaton automaton = ((Compound) t).automaton;
+		for (int i = 0; i != automaton.size(); ++i) {
+			if (automaton.kind(i) == K_NOMINAL
+					&& automaton.data(i).equals(label)) {
 				return true;
 			}
 		}
@@ -450,9 +505,10 @@ public abstract class Type {
 		if (t instanceof Leaf) {
 			return false;
 		}
-		Compound graph = (Compound) t;
-		for (State n : graph.automaton.states) {
-			if (n.kind == K_NOMINAL && labels.contains(n.data)) {
+		PackedAutomaton automaton = ((Compound) t).automaton;
+		for (int i = 0; i != automaton.size(); ++i) {
+			if (automaton.kind(i) == K_NOMINAL
+					&& labels.contains(automaton.data(i))) {
 				return true;
 			}
 		}
@@ -576,10 +632,16 @@ public abstract class Type {
 	 * <code>t2</code> is a subset of that described by <code>t1</code>.
 	 */
 	public static boolean isImplicitCoerciveSubtype(Type t1, Type t2) {				
-		Automaton a1 = destruct(t1);
-		Automaton a2 = destruct(t2);
-		ImplicitCoercionOperator relation = new ImplicitCoercionOperator(a1,a2);				
-		return relation.isSubtype(0, 0); 
+		SubtypeQuery query = new SubtypeQuery(R_IMPLICIT_COERCION, t1, t2);
+		Boolean result = cached(query);
+		if (result == null) {
+			Automaton a1 = destruct(t1);
+			Automaton a2 = destruct(t2);
+			ImplicitCoercionOperator relation = new ImplicitCoercionOperator(a1,a2);				
+			result = relation.isSubtype(0, 0);
+			cache(query, result);
+		}
+		return result;
 	}
 
 	/**
@@ -587,10 +649,16 @@ public abstract class Type {
 	 * subtype</i> of type <code>t1</code>.  
 	 */
 	public static boolean isExplicitCoerciveSubtype(Type t1, Type t2) {				
-		Automaton a1 = destruct(t1);
-		Automaton a2 = destruct(t2);
-		ExplicitCoercionOperator relation = new ExplicitCoercionOperator(a1,a2);				
-		return relation.isSubtype(0, 0); 
+		SubtypeQuery query = new SubtypeQuery(R_EXPLICIT_COERCION, t1, t2);
+		Boolean result = cached(query);
+		if (result == null) {
+			Automaton a1 = destruct(t1);
+			Automaton a2 = destruct(t2);
+			ExplicitCoercionOperator relation = new ExplicitCoercionOperator(a1,a2);				
+			result = relation.isSubtype(0, 0);
+			cache(query, result);
+		}
+		return result;
 	}
 	
 	/**
@@ -600,10 +668,131 @@ public abstract class Type {
 	 * that described by <code>t1</code>.
 	 */
 	public static boolean isSubtype(Type t1, Type t2) {		
-		Automaton a1 = destruct(t1);
-		Automaton a2 = destruct(t2);
-		SubtypeOperator relation = new SubtypeOperator(a1,a2);		
-		return relation.isSubtype(0, 0);		
+		SubtypeQuery query = new SubtypeQuery(R_SUBTYPE, t1, t2);
+		Boolean result = cached(query);
+		if (result == null) {
+			Automaton a1 = destruct(t1);
+			Automaton a2 = destruct(t2);
+			SubtypeOperator relation = new SubtypeOperator(a1,a2);		
+			result = relation.isSubtype(0, 0);
+			cache(query, result);
+		}
+		return result;		
+	}
+	
+	/**
+	 * Return the number of subtype queries (of any kind) which have been
+	 * answered from the cache.
+	 */
+	public static long subtypeCacheHits() {
+		return subtypeCacheHits.sum();
+	}
+	
+	/**
+	 * Return the number of subtype queries (of any kind) which could not be
+	 * answered from the cache, and hence were computed from scratch.
+	 */
+	public static long subtypeCacheMisses() {
+		return subtypeCacheMisses.sum();
+	}
+	
+	/**
+	 * Discard all queries held in the subtype cache. This does not reset the
+	 * hit and miss counts.
+	 */
+	public static void clearSubtypeCache() {
+		subtypeCache.clear();
+	}
+	
+	/**
+	 * Look up the result of a given query in the subtype cache, returning
+	 * null if it has not been answered before. When canonicalisation is
+	 * disabled, type equality is itself determined by subtyping and,
+	 * hence, the cache cannot be used.
+	 */
+	private static Boolean cached(SubtypeQuery query) {
+		if (!canonicalisation) {
+			return null;
+		}
+		Boolean result = subtypeCache.get(query);
+		if (result != null) {
+			subtypeCacheHits.increment();
+		} else {
+			subtypeCacheMisses.increment();
+		}
+		return result;
+	}
+	
+	private static void cache(SubtypeQuery query, boolean result) {
+		if (canonicalisation) {
+			subtypeCache.put(query, result);
+			if (subtypeCache.size() > SUBTYPE_CACHE_SIZE) {
+				evictSubtypeQueries();
+			}
+		}
+	}
+	
+	/**
+	 * Discard queries from the subtype cache until it is three quarters full.
+	 * The queries discarded are those which the cache happens to iterate
+	 * first, which is cheaper than maintaining a recency order on every hit.
+	 */
+	private static void evictSubtypeQueries() {
+		Iterator<SubtypeQuery> iter = subtypeCache.keySet().iterator();
+		while (iter.hasNext() && subtypeCache.size() > (SUBTYPE_CACHE_SIZE / 4) * 3) {
+			iter.next();
+			iter.remove();
+		}
+	}
+	
+	/**
+	 * Determine the object which identifies a given type within the subtype
+	 * cache. This must not be a compound type itself, as the cache would
+	 * otherwise keep every type it has seen alive. Instead, compound types
+	 * are identified by their number and nominal types by their name. The
+	 * remaining leaf types are constants and so can be used directly.
+	 */
+	private static Object cacheKey(Type type) {
+		if (type instanceof Compound) {
+			return ((Compound) type).number;
+		} else if (type instanceof Nominal) {
+			return ((Nominal) type).name();
+		} else {
+			return type;
+		}
+	}
+	
+	/**
+	 * A subtype query asks whether type <code>to</code> is a subtype of type
+	 * <code>from</code> under a given relation (i.e. subtyping, or implicit or
+	 * explicit coercive subtyping). The types are held as their keys in the
+	 * cache, rather than directly.
+	 */
+	private static final class SubtypeQuery {
+		private final byte relation;
+		private final Object from;
+		private final Object to;
+		private final int hashCode;
+		
+		public SubtypeQuery(byte relation, Type from, Type to) {
+			this.relation = relation;
+			this.from = cacheKey(from);
+			this.to = cacheKey(to);
+			this.hashCode = relation + 31 * ((31 * this.from.hashCode()) ^ this.to.hashCode());
+		}
+		
+		public int hashCode() {
+			return hashCode;
+		}
+		
+		public boolean equals(Object o) {
+			if (o instanceof SubtypeQuery) {
+				SubtypeQuery q = (SubtypeQuery) o;
+				return relation == q.relation && from.equals(q.from)
+						&& to.equals(q.to);
+			}
+			return false;
+		}
 	}
 	
 	/**
@@ -627,7 +816,7 @@ public abstract class Type {
 		if(type instanceof Leaf) {
 			return false;
 		} else {
-			Automaton automaton = ((Compound) type).automaton;
+			Automaton automaton = destruct(type);
 			return TypeAlgorithms.isContractive(automaton);
 		}
 	}
@@ -952,10 +1141,12 @@ public abstract class Type {
 	 */
 
 	public static class Compound extends Type {
-		protected Automaton automaton;
+		protected final PackedAutomaton automaton;
+		private final Long number;
 		
-		public Compound(Automaton automaton) {
+		private Compound(PackedAutomaton automaton) {
 			this.automaton = automaton;
+			this.number = nextCompound.getAndIncrement();
 		}
 		
 		public int hashCode() {
@@ -963,11 +1154,15 @@ public abstract class Type {
 		}
 		
 		public boolean equals(Object o) {
-			if (o instanceof Compound) {
+			if (o == this) {
+				return true;
+			} else if (o instanceof Compound) {
 				Compound c = (Compound) o;
 				//equalsCount++;
 				if(canonicalisation) {
-					return automaton.equals(c.automaton);
+					// Compound types are interned by construct(), hence
+					// structurally identical types are the same object.
+					return false;
 				} else {
 					return isSubtype(this, c) && isSubtype(c, this);
 				}				
@@ -976,21 +1171,7 @@ public abstract class Type {
 		}
 		
 		public String toString() {
-			// First, we need to find the headers of the computation. This is
-			// necessary in order to mark the start of a recursive type.			
-			BitSet headers = new BitSet(automaton.size());
-			BitSet visited = new BitSet(automaton.size()); 
-			BitSet onStack = new BitSet(automaton.size());
-			findHeaders(0,visited,onStack,headers,automaton);
-			visited.clear();
-			String[] titles = new String[automaton.size()];
-			int count = 0;
-			for(int i=0;i!=automaton.size();++i) {
-				if(headers.get(i)) {
-					titles[i] = headerTitle(count++);
-				}
-			}			
-			return Type.toString(0,visited,titles,automaton);
+			return Type.toString(automaton.toAutomaton());
 		}
 	}
 	
@@ -1022,22 +1203,19 @@ public abstract class Type {
 	 * 
 	 */
 	public static final class Tuple extends Compound implements EffectiveTuple {
-		private Tuple(Automaton automaton) {
+		private Tuple(PackedAutomaton automaton) {
 			super(automaton);
 		}		
 		public int size() {
-			int[] values = (int[]) automaton.states[0].children;
-			return values.length;
+			return automaton.arity(0);
 		}
 		public Type element(int index) {
-			int[] values = (int[]) automaton.states[0].children;
-			return construct(Automata.extract(automaton,values[index]));			
+			return construct(automaton.extract(automaton.child(0, index)));
 		}
 		public java.util.List<Type> elements() {
-			int[] values = (int[]) automaton.states[0].children;
 			ArrayList<Type> elems = new ArrayList<Type>();
-			for(Integer i : values) {
-				elems.add(construct(Automata.extract(automaton,i)));
+			for(int i=0;i!=automaton.arity(0);++i) {
+				elems.add(construct(automaton.extract(automaton.child(0, i))));
 			}
 			return elems;
 		}		
@@ -1109,15 +1287,14 @@ public abstract class Type {
 	 * 
 	 */
 	public static final class Set extends Compound implements EffectiveSet {
-		private Set(Automaton automaton) {
+		private Set(PackedAutomaton automaton) {
 			super(automaton);
 		}
 		public Type element() {			
-			int elemIdx = automaton.states[0].children[0];
-			return construct(Automata.extract(automaton,elemIdx));			
+			return construct(automaton.extract(automaton.child(0, 0)));			
 		}
 		public boolean nonEmpty() {
-			return (Boolean) automaton.states[0].data;
+			return (Boolean) automaton.data(0);
 		}
 	}
 	
@@ -1149,7 +1326,7 @@ public abstract class Type {
 	 * 
 	 */
 	public static final class List extends Compound implements EffectiveList {
-		private List(Automaton automaton) {
+		private List(PackedAutomaton automaton) {
 			super(automaton);
 		}
 		
@@ -1162,12 +1339,11 @@ public abstract class Type {
 		}
 		
 		public Type element() {			
-			int elemIdx = automaton.states[0].children[0];
-			return construct(Automata.extract(automaton,elemIdx));	
+			return construct(automaton.extract(automaton.child(0, 0)));	
 		}
 		
 		public boolean nonEmpty() {
-			return (Boolean) automaton.states[0].data;
+			return (Boolean) automaton.data(0);
 		}
 		
 		public EffectiveMap update(Type key, Type value) {
@@ -1186,12 +1362,11 @@ public abstract class Type {
 	 * 
 	 */
 	public static final class Reference extends Compound  {
-		private Reference(Automaton automaton) {
+		private Reference(PackedAutomaton automaton) {
 			super(automaton);
 		}
 		public Type element() {
-			int elemIdx = automaton.states[0].children[0];
-			return construct(Automata.extract(automaton,elemIdx));		
+			return construct(automaton.extract(automaton.child(0, 0)));		
 		}		
 	}
 
@@ -1227,16 +1402,14 @@ public abstract class Type {
 	 * 
 	 */
 	public static final class Dictionary extends Compound implements EffectiveDictionary {
-		private Dictionary(Automaton automaton) {
+		private Dictionary(PackedAutomaton automaton) {
 			super(automaton);
 		}
 		public Type key() {
-			int keyIdx = automaton.states[0].children[0];
-			return construct(Automata.extract(automaton,keyIdx));				
+			return construct(automaton.extract(automaton.child(0, 0)));				
 		}
 		public Type value() {
-			int valueIdx = automaton.states[0].children[1];
-			return construct(Automata.extract(automaton,valueIdx));	
+			return construct(automaton.extract(automaton.child(0, 1)));	
 		}
 		public Type element() {
 			return Type.Tuple(key(),value());
@@ -1281,12 +1454,12 @@ public abstract class Type {
 	 * 
 	 */
 	public static final class Record extends Compound implements EffectiveRecord {
-		private Record(Automaton automaton) {
+		private Record(PackedAutomaton automaton) {
 			super(automaton);
 		}
 		
 		public boolean isOpen() {
-			State state = (State) automaton.states[0].data;
+			State state = (State) automaton.data(0);
 			return state.isOpen;
 		}
 
@@ -1298,7 +1471,7 @@ public abstract class Type {
 		 * @return
 		 */
 		public HashSet<String> keys() {
-			State fields = (State) automaton.states[0].data;
+			State fields = (State) automaton.data(0);
 			HashSet<String> r = new HashSet<String>();
 			for(String f : fields) {
 				r.add(f);
@@ -1307,13 +1480,12 @@ public abstract class Type {
 		}
 
 		public Type field(String field) {
-			State fields = (State) automaton.states[0].data;
+			State fields = (State) automaton.data(0);
 			int index = Collections.binarySearch(fields, field);
 			if (index < 0) {
 				return null; // not found
 			} else {
-				int[] children = automaton.states[0].children;
-				return construct(Automata.extract(automaton, children[index]));
+				return construct(automaton.extract(automaton.child(0, index)));
 			}
 		}
 		
@@ -1323,12 +1495,11 @@ public abstract class Type {
 		 * @return
 		 */
 		public HashMap<String, Type> fields() {
-			State fields = (State) automaton.states[0].data;
-			int[] children = automaton.states[0].children;
+			State fields = (State) automaton.data(0);
 			HashMap<String, Type> r = new HashMap<String, Type>();
-			for (int i = 0; i != children.length; ++i) {
+			for (int i = 0; i != automaton.arity(0); ++i) {
 				r.put(fields.get(i),
-						construct(Automata.extract(automaton, children[i])));
+						construct(automaton.extract(automaton.child(0, i))));
 			}
 			return r;
 		}
@@ -1372,7 +1543,7 @@ public abstract class Type {
 	 * 
 	 */
 	public static class Union extends Compound {
-		private Union(Automaton automaton) {
+		private Union(PackedAutomaton automaton) {
 			super(automaton);
 		}
 
@@ -1383,9 +1554,8 @@ public abstract class Type {
 		 */
 		public HashSet<Type> bounds() {			
 			HashSet<Type> r = new HashSet<Type>();
-			int[] fields = (int[]) automaton.states[0].children;
-			for(int i : fields) {
-				Type b = construct(Automata.extract(automaton,i));					
+			for(int i=0;i!=automaton.arity(0);++i) {
+				Type b = construct(automaton.extract(automaton.child(0, i)));
 				r.add(b);					
 			}			
 			return r;
@@ -1394,7 +1564,7 @@ public abstract class Type {
 
 	public static final class UnionOfSets extends Union implements
 	EffectiveSet {
-		private UnionOfSets(Automaton automaton) {
+		private UnionOfSets(PackedAutomaton automaton) {
 			super(automaton);
 		}
 
@@ -1415,7 +1585,7 @@ public abstract class Type {
 	
 	public static final class UnionOfLists extends Union implements
 			EffectiveList {
-		private UnionOfLists(Automaton automaton) {
+		private UnionOfLists(PackedAutomaton automaton) {
 			super(automaton);
 		}
 		
@@ -1461,7 +1631,7 @@ public abstract class Type {
 	
 	public static final class UnionOfMaps extends Union
 	implements EffectiveMap {
-		private UnionOfMaps(Automaton automaton) {
+		private UnionOfMaps(PackedAutomaton automaton) {
 			super(automaton);
 		}
 
@@ -1528,7 +1698,7 @@ public abstract class Type {
 	public static final class UnionOfCollections extends Union
 			implements
 				EffectiveCollection {
-		private UnionOfCollections(Automaton automaton) {
+		private UnionOfCollections(PackedAutomaton automaton) {
 			super(automaton);
 		}
 
@@ -1549,7 +1719,7 @@ public abstract class Type {
 	
 	public static final class UnionOfDictionaries extends Union implements
 	EffectiveDictionary {
-		private UnionOfDictionaries(Automaton automaton) {
+		private UnionOfDictionaries(PackedAutomaton automaton) {
 			super(automaton);
 		}
 
@@ -1605,7 +1775,7 @@ public abstract class Type {
 	
 	public static final class UnionOfTuples extends Union implements
 	EffectiveTuple {
-		private UnionOfTuples(Automaton automaton) {
+		private UnionOfTuples(PackedAutomaton automaton) {
 			super(automaton);
 		}
 
@@ -1656,7 +1826,7 @@ public abstract class Type {
 	
 	public static final class UnionOfRecords extends Union implements
 			EffectiveRecord {
-		private UnionOfRecords(Automaton automaton) {
+		private UnionOfRecords(PackedAutomaton automaton) {
 			super(automaton);
 		}
 		
@@ -1728,18 +1898,17 @@ public abstract class Type {
 	 * 
 	 */
 	public static final class Negation extends Compound {
-		private Negation(Automaton automaton) {
+		private Negation(PackedAutomaton automaton) {
 			super(automaton);
 		}
 		
 		public Type element() {						
-			int[] fields = automaton.states[0].children;
-			return construct(Automata.extract(automaton,fields[0]));			
+			return construct(automaton.extract(automaton.child(0, 0)));			
 		}		
 	}
 	
 	public abstract static class FunctionOrMethodOrMessage extends Compound {
-		FunctionOrMethodOrMessage(Automaton automaton) {
+		FunctionOrMethodOrMessage(PackedAutomaton automaton) {
 			super(automaton);
 		}
 		
@@ -1751,7 +1920,7 @@ public abstract class Type {
 	}
 	
 	public abstract static class FunctionOrMethod extends FunctionOrMethodOrMessage {
-		FunctionOrMethod(Automaton automaton) {
+		FunctionOrMethod(PackedAutomaton automaton) {
 			super(automaton);
 		}
 		
@@ -1761,8 +1930,7 @@ public abstract class Type {
 		 * @return
 		 */
 		public Type ret() {
-			int[] fields = automaton.states[0].children;
-			return construct(Automata.extract(automaton, fields[0]));
+			return construct(automaton.extract(automaton.child(0, 0)));
 		}	
 
 		/**
@@ -1771,8 +1939,7 @@ public abstract class Type {
 		 * @return
 		 */
 		public Type throwsClause() {
-			int[] fields = automaton.states[0].children;
-			return construct(Automata.extract(automaton, fields[1]));
+			return construct(automaton.extract(automaton.child(0, 1)));
 		}
 		
 		/**
@@ -1781,10 +1948,9 @@ public abstract class Type {
 		 * @return
 		 */
 		public ArrayList<Type> params() {
-			int[] fields = automaton.states[0].children;			
 			ArrayList<Type> r = new ArrayList<Type>();
-			for(int i=2;i<fields.length;++i) {
-				r.add(construct(Automata.extract(automaton, fields[i])));
+			for(int i=2;i<automaton.arity(0);++i) {
+				r.add(construct(automaton.extract(automaton.child(0, i))));
 			}
 			return r;
 		}
@@ -1798,19 +1964,19 @@ public abstract class Type {
 	 * 
 	 */
 	public static class Function extends FunctionOrMethod  {
-		Function(Automaton automaton) {
+		Function(PackedAutomaton automaton) {
 			super(automaton);
 		}
 	}
 	
 	public static final class Method extends FunctionOrMethod {
-		Method(Automaton automaton) {
+		Method(PackedAutomaton automaton) {
 			super(automaton);
 		}		
 	}
 	
 	public static final class Message extends FunctionOrMethodOrMessage {
-		Message(Automaton automaton) {
+		Message(PackedAutomaton automaton) {
 			super(automaton);
 		}
 
@@ -1820,10 +1986,7 @@ public abstract class Type {
 		 * @return
 		 */
 		public Type receiver() {
-			Automaton.State root = automaton.states[0];			
-			int[] fields = root.children;
-			return construct(Automata.extract(automaton,
-					fields[0]));
+			return construct(automaton.extract(automaton.child(0, 0)));
 		}
 		
 		/**
@@ -1832,9 +1995,7 @@ public abstract class Type {
 		 * @return
 		 */
 		public Type ret() {
-			Automaton.State root = automaton.states[0];
-			int[] fields = root.children;
-			return construct(Automata.extract(automaton, fields[1]));
+			return construct(automaton.extract(automaton.child(0, 1)));
 		}	
 		
 		/**
@@ -1843,9 +2004,7 @@ public abstract class Type {
 		 * @return
 		 */
 		public Type throwsClause() {
-			Automaton.State root = automaton.states[0];
-			int[] fields = root.children;
-			return construct(Automata.extract(automaton, fields[2]));
+			return construct(automaton.extract(automaton.child(0, 2)));
 		}	
 		
 		/**
@@ -1854,11 +2013,9 @@ public abstract class Type {
 		 * @return
 		 */
 		public ArrayList<Type> params() {
-			Automaton.State root = automaton.states[0];
-			int[] fields = root.children;
 			ArrayList<Type> r = new ArrayList<Type>();
-			for(int i=3;i<fields.length;++i) {
-				r.add(construct(Automata.extract(automaton, fields[i])));
+			for(int i=3;i<automaton.arity(0);++i) {
+				r.add(construct(automaton.extract(automaton.child(0, i))));
 			}
 			return r;
 		}
@@ -2196,7 +2353,42 @@ public abstract class Type {
 	 * @return
 	 */
 	public final static Type construct(Automaton automaton) {
+		return construct(new PackedAutomaton(automaton), automaton);
+	}
+	
+	/**
+	 * Construct a Type from a packed automaton, such as one extracted from an
+	 * existing type. This is not private, since the faces of compound types
+	 * (which extend this class) could not otherwise see it.
+	 * 
+	 * @param packed
+	 * @return
+	 */
+	static Type construct(PackedAutomaton packed) {
+		return construct(packed, null);
+	}
+	
+	/**
+	 * Construct a Type from a packed automaton, and (optionally) the unpacked
+	 * automaton it was made from.
+	 * 
+	 * @param packed
+	 * @param automaton
+	 *            --- the unpacked automaton, or null if there is none.
+	 * @return
+	 */
+	private static Type construct(PackedAutomaton packed, Automaton automaton) {
+		// first, check whether this automaton is already the canonical form of
+		// an existing type; if so, there's no need to normalise it again.
+		Compound existing = lookup(packed);
+		if(existing != null) {
+			return existing;
+		}
+		if(automaton == null) {
+			automaton = packed.toAutomaton();
+		}
 		automaton = normalise(automaton);
+		packed = new PackedAutomaton(automaton);
 		// second, construc the appropriate face
 		State root = automaton.states[0];
 		Type type;
@@ -2236,22 +2428,22 @@ public abstract class Type {
 			type = new Nominal((NameID) root.data);
 			break;
 		case K_TUPLE:
-			type = new Tuple(automaton);
+			type = new Tuple(packed);
 			break;
 		case K_SET:
-			type = new Set(automaton);
+			type = new Set(packed);
 			break;
 		case K_LIST:
-			type = new List(automaton);
+			type = new List(packed);
 			break;
 		case K_REFERENCE:
-			type = new Reference(automaton);
+			type = new Reference(packed);
 			break;
 		case K_DICTIONARY:
-			type = new Dictionary(automaton);
+			type = new Dictionary(packed);
 			break;
 		case K_RECORD:
-			type = new Record(automaton);
+			type = new Record(packed);
 			break;
 		case K_UNION: {
 			boolean allRecords = true;
@@ -2261,7 +2453,7 @@ public abstract class Type {
 			boolean allMaps = true;
 			boolean allCollections = true;
 			boolean allTuples = true;
-			Type.Union union = new Union(automaton);
+			Type.Union union = new Union(packed);
 			for(Type bound : union.bounds()) {
 				boolean isSet = bound instanceof Set;
 				boolean isList = bound instanceof List;
@@ -2276,41 +2468,45 @@ public abstract class Type {
 				allTuples &= bound instanceof Tuple;
 			}
 			if(allSets) {
-				type = new UnionOfSets(automaton);
+				type = new UnionOfSets(packed);
 			} else if(allDictionaries) {
-				type = new UnionOfDictionaries(automaton);
+				type = new UnionOfDictionaries(packed);
 			} else if(allLists) {
-				type = new UnionOfLists(automaton);
+				type = new UnionOfLists(packed);
 			} else if(allMaps) {
-				type = new UnionOfMaps(automaton);
+				type = new UnionOfMaps(packed);
 			} else if(allCollections) {
-				type = new UnionOfCollections(automaton);
+				type = new UnionOfCollections(packed);
 			} else if(allTuples) {
-				type = new UnionOfTuples(automaton);
+				type = new UnionOfTuples(packed);
 			} else if(allRecords) {
-				type = new UnionOfRecords(automaton);
+				type = new UnionOfRecords(packed);
 			} else {
 				type = union;
 			}
 			break;
 		}
 		case K_NEGATION:
-			type = new Negation(automaton);
+			type = new Negation(packed);
 			break;
 		case K_MESSAGE:
-			type = new Message(automaton);
+			type = new Message(packed);
 			break;
 		case K_METHOD:
-			type = new Method(automaton);
+			type = new Method(packed);
 			break;
 		case K_FUNCTION:
-			type = new Function(automaton);
+			type = new Function(packed);
 			break;		
 		default:
 			throw new IllegalArgumentException("invalid node kind: " + root.kind);
 		}
 		
-		//distinctTypes.add(type);
+		if(type instanceof Compound) {
+			// third, intern the type so structurally identical types share
+			// the same instance.
+			type = intern((Compound) type);
+		}
 		
 		return type;
 	}
@@ -2324,19 +2520,7 @@ public abstract class Type {
 	 * @return
 	 */
 	private static Type construct(byte kind, Object data, Type... children) {
-		int[] nchildren = new int[children.length];
-		boolean deterministic = kind != K_UNION;
-		Automaton automaton = new Automaton(new State(kind, data, deterministic, nchildren));
-		int start = 1;
-		int i=0;
-		for(Type element : children) {
-			nchildren[i] = start;
-			Automaton child = destruct(element);
-			automaton = Automata.append(automaton,child);
-			start += child.size();
-			i = i + 1;
-		}		 	
-		return construct(automaton);	
+		return construct(kind, data, Arrays.asList(children));	
 	}
 	
 	/**
@@ -2350,23 +2534,31 @@ public abstract class Type {
 	private static Type construct(byte kind, Object data, Collection<Type> children) {						
 		int[] nchildren = new int[children.size()];
 		boolean deterministic = kind != K_UNION;
-		Automaton automaton = new Automaton(new State(kind, data, deterministic, nchildren));
 		int start = 1;
 		int i=0;
 		for(Type element : children) {
 			nchildren[i] = start;
-			Automaton child = destruct(element);
-			automaton = Automata.append(automaton,child);
-			start += child.size();
+			start += element instanceof Leaf ? 1
+					: ((Compound) element).automaton.size();
 			i = i + 1;
 		}
-		 		
-		return construct(automaton);	
+		PackedAutomaton.Builder builder = new PackedAutomaton.Builder(start);
+		builder.add(kind, deterministic, data, nchildren);
+		for(Type element : children) {
+			if(element instanceof Leaf) {
+				Leaf leaf = (Leaf) element;
+				builder.add(leafKind(leaf), true, leafData(leaf));
+			} else {
+				builder.append(((Compound) element).automaton);
+			}
+		}		 		
+		return construct(builder.build());	
 	}
 	
 	/**
 	 * Destruct is the opposite of construct. It converts a type into an
-	 * automaton.
+	 * automaton. The automaton returned is always a fresh copy, and may be
+	 * freely modified.
 	 * 
 	 * @param t --- type to be converted.
 	 * @return
@@ -2383,7 +2575,7 @@ public abstract class Type {
 			return new Automaton(new State[] { state });
 		} else {
 			// compound type
-			return ((Compound) t).automaton;
+			return ((Compound) t).automaton.toAutomaton();
 		}
 	}
 	
@@ -2470,13 +2662,69 @@ public abstract class Type {
 	public static final byte K_METHOD = 20; 
 	public static final byte K_NOMINAL = 21;
 	
+	/**
+	 * Look up the interned compound type whose canonical automaton is
+	 * identical to that given, or return null if there is none.
+	 */
+	private static Compound lookup(PackedAutomaton automaton) {
+		InternedType ref = interned.get(automaton);
+		return ref == null ? null : ref.get();
+	}
+	
+	/**
+	 * Return the interned instance of a given compound type, which is the type
+	 * itself if no structurally identical type has been constructed before.
+	 */
+	private static Compound intern(Compound type) {
+		purgeInterned();
+		InternedType ref = new InternedType(type, collected);
+		InternedType existing = interned.putIfAbsent(type.automaton, ref);
+		while (existing != null) {
+			Compound t = existing.get();
+			if (t != null) {
+				return t;
+			} else if (interned.replace(type.automaton, existing, ref)) {
+				break;
+			}
+			// the entry was changed by another thread, so try again.
+			existing = interned.putIfAbsent(type.automaton, ref);
+		}
+		return type;
+	}
+	
+	/**
+	 * Remove the entries of interned types which have been garbage collected.
+	 * An entry is only removed if it still holds the collected reference,
+	 * since it may have already been replaced by a new type.
+	 */
+	private static void purgeInterned() {
+		InternedType ref;
+		while ((ref = (InternedType) collected.poll()) != null) {
+			interned.remove(ref.automaton, ref);
+		}
+	}
+	
+	/**
+	 * A weak reference to an interned type, which retains the automaton it
+	 * was interned under so that its entry can be removed once the type is
+	 * collected.
+	 */
+	private static final class InternedType extends WeakReference<Compound> {
+		private final PackedAutomaton automaton;
+		
+		public InternedType(Compound type, ReferenceQueue<Compound> queue) {
+			super(type, queue);
+			this.automaton = type.automaton;
+		}
+	}
+	
 	private static final ArrayList<Automaton> values = new ArrayList<Automaton>();
 	private static final HashMap<Automaton,Integer> cache = new HashMap<Automaton,Integer>();
 
 	/**
 	 * The following method is for implementing the fly-weight pattern.
 	 */
-	private static <T extends Automaton> T get(T type) {
+	private static synchronized <T extends Automaton> T get(T type) {
 		Integer idx = cache.get(type);
 		if(idx != null) {
 			return (T) values.get(idx);
@@ -67,7 +67,8 @@ public final class WyilFile {
 			// FIXME: this shouldn't be using a class file loader :)
 						
 			ClassFile file = new ClassFileBuilder(wyjc.Main.MAJOR_VERSION,
-					wyjc.Main.MINOR_VERSION).build(value);
+					wyjc.Main.MINOR_VERSION, value.persistentCollections)
+					.build(value);
 					
 			// validate generated bytecode
 			new Validation().apply(file);
@@ -99,6 +100,15 @@ public final class WyilFile {
 	private HashMap<String,TypeDef> types;
 	private HashMap<String,ConstDef> constants;
 	
+	/**
+	 * Determines whether the class file generated for this module uses
+	 * persistent lists, sets and dictionaries (see
+	 * <code>ClassFileBuilder</code>). This is not part of the module itself.
+	 * It is recorded by the builder which generated the module, since the
+	 * class file is only generated when the module is written.
+	 */
+	private boolean persistentCollections;
+	
 	// =========================================================================
 	// Constructors
 	// =========================================================================
@@ -192,6 +202,10 @@ public final class WyilFile {
 		return methods.values();
 	}
 	
+	public boolean persistentCollections() {
+		return persistentCollections;
+	}
+	
 	// =========================================================================
 	// Mutators
 	// =========================================================================
@@ -209,6 +223,10 @@ public final class WyilFile {
 		this.constants.put(c.name(), c);
 	}
 	
+	public void setPersistentCollections(boolean b) {
+		this.persistentCollections = b;
+	}
+	
 	public boolean hasName(String name) {		
 		return types.get(name) != null || constants.get(name) != null
 				|| method(name).size() > 0;
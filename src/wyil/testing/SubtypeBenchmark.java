@@ -0,0 +1,82 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//    * Redistributions of source code must retain the above copyright
+//      notice, this list of conditions and the following disclaimer.
+//    * Redistributions in binary form must reproduce the above copyright
+//      notice, this list of conditions and the following disclaimer in the
+//      documentation and/or other materials provided with the distribution.
+//    * Neither the name of the <organization> nor the
+//      names of its contributors may be used to endorse or promote products
+//      derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL DAVID J. PEARCE BE LIABLE FOR ANY
+// DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+// ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+
+package wyil.testing;
+
+import org.junit.runner.JUnitCore;
+import org.junit.runner.Request;
+
+import wyil.lang.Type;
+
+/**
+ * <p>
+ * A simple benchmark which measures the effect of the subtype cache. This
+ * repeatedly runs the subtype test suites, which together make up a corpus of
+ * around sixteen thousand subtype queries. Each round is run twice: first with
+ * a cold cache (i.e. every query must be computed from scratch) and then with a
+ * warm cache (i.e. every query can be answered from the cache).
+ * </p>
+ * 
+ * <p>
+ * <b>NOTE:</b> the first few rounds should be discarded, since they include
+ * the time taken for the JVM to warm up.
+ * </p>
+ */
+public class SubtypeBenchmark {
+	private static final Class<?>[] SUITES = { ListSubtypeTests.class,
+			RecordSubtypeTests.class, RecursiveSubtypeTests.class,
+			TupleSubtypeTests.class };
+	
+	public static void main(String[] args) {
+		int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+		JUnitCore core = new JUnitCore();
+		long totalCold = 0;
+		long totalWarm = 0;
+		for (int i = 0; i != rounds; ++i) {
+			Type.clearSubtypeCache();
+			long cold = run(core);
+			long warm = run(core);
+			System.out.println("Round " + i + ": cold " + cold + "ms, warm "
+					+ warm + "ms");
+			if (i >= rounds / 2) {
+				totalCold += cold;
+				totalWarm += warm;
+			}
+		}
+		int measured = rounds - (rounds / 2);
+		System.out.println("Average (last " + measured + " rounds): cold "
+				+ (totalCold / measured) + "ms, warm "
+				+ (totalWarm / measured) + "ms");
+		System.out.println("Subtype cache: " + Type.subtypeCacheHits()
+				+ " hit(s), " + Type.subtypeCacheMisses() + " miss(es)");
+	}
+	
+	private static long run(JUnitCore core) {
+		long start = System.currentTimeMillis();
+		core.run(Request.classes(SUITES));
+		return System.currentTimeMillis() - start;
+	}
+}
@@ -88,8 +88,8 @@ import wyjc.runtime.BigRational;
  * 
  */
 public final class BackPropagation extends BackwardFlowAnalysis<BackPropagation.Env> {	
-	private static final HashMap<Integer,Block> afterInserts = new HashMap<Integer,Block>();
-	private static final HashMap<Integer,Block.Entry> rewrites = new HashMap<Integer,Block.Entry>();
+	private final HashMap<Integer,Block> afterInserts = new HashMap<Integer,Block>();
+	private final HashMap<Integer,Block.Entry> rewrites = new HashMap<Integer,Block.Entry>();
 	
 	public BackPropagation(Builder builder) {
 		super();
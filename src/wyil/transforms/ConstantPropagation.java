@@ -41,7 +41,7 @@ import wyil.util.dfa.ForwardFlowAnalysis;
 import wyjc.runtime.BigRational;
 
 public class ConstantPropagation extends ForwardFlowAnalysis<ConstantPropagation.Env> {	
-	private static final HashMap<Integer,Rewrite> rewrites = new HashMap<Integer,Rewrite>();
+	private final HashMap<Integer,Rewrite> rewrites = new HashMap<Integer,Rewrite>();
 	
 	public ConstantPropagation(Builder builder) {
 		
@@ -56,7 +56,7 @@ import wyjc.runtime.BigRational;
  * @author David J. Pearce
  * 
  */
-public class ConstraintInline implements Transform {
+public class ConstraintInline implements Transform.Global {
 	private final Builder builder;	
 	private String filename;
 	
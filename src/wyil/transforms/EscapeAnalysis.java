@@ -0,0 +1,272 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//    * Redistributions of source code must retain the above copyright
+//      notice, this list of conditions and the following disclaimer.
+//    * Redistributions in binary form must reproduce the above copyright
+//      notice, this list of conditions and the following disclaimer in the
+//      documentation and/or other materials provided with the distribution.
+//    * Neither the name of the <organization> nor the
+//      names of its contributors may be used to endorse or promote products
+//      derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL DAVID J. PEARCE BE LIABLE FOR ANY
+// DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+// ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package wyil.transforms;
+
+import java.io.IOException;
+import java.util.*;
+
+import wybs.lang.Builder;
+import wyil.*;
+import wyil.lang.*;
+
+/**
+ * <p>
+ * Determines which values loaded from variables do not escape the expression
+ * which reads them, thereby allowing reference counting to be omitted for
+ * them. Every <code>load</code> bytecode creates a new alias of the value held
+ * in a variable and, hence, ordinarily increments its reference count. The
+ * alias is then released when the bytecode which consumes it has finished with
+ * it. However, many aliases exist only briefly so that some part of the value
+ * can be read. For example, in <code>|xs|</code> or <code>xs[i]</code>, the
+ * loaded list is consumed by an operation which neither updates it nor
+ * retains it. Since the variable itself holds a reference throughout, the
+ * reference count cannot reach zero and no in-place update of the value can
+ * occur whilst it is being read. Thus, the alias can be <i>borrowed</i> from
+ * the variable, rather than counted.
+ * </p>
+ * 
+ * <p>
+ * This analysis identifies such <code>load</code> bytecodes and marks them
+ * (along with the bytecodes that consume them) using an
+ * <code>Attribute.Borrow</code>. Those bytecodes which consume a borrowed
+ * operand without updating or retaining it are: <code>lengthof</code>,
+ * <code>indexof</code>, <code>fieldload</code>, <code>tupleload</code>, and
+ * the comparisons performed by <code>ifgoto</code> (except the subset
+ * comparisons). The analysis simulates the operand stack forwards from each
+ * <code>load</code> through a straight-line sequence of side-effect free
+ * bytecodes, until the loaded value is consumed. If any other bytecode is
+ * encountered first, or the variable is moved (i.e. released) beforehand,
+ * then the value is assumed to escape.
+ * </p>
+ * 
+ * <p>
+ * <b>NOTE:</b> this stage must come after the live variables analysis, since
+ * that introduces the <code>move</code> bytecodes which release variables.
+ * </p>
+ */
+public class EscapeAnalysis implements Transform {
+	
+	public EscapeAnalysis(Builder builder) {
+		
+	}
+	
+	public void apply(WyilFile module) throws IOException {
+		for(WyilFile.Method method : module.methods()) {
+			for(WyilFile.Case c : method.cases()) {
+				transform(c.body());
+			}
+		}
+	}
+	
+	private void transform(Block block) {
+		for(int i=0;i!=block.size();++i) {
+			Block.Entry entry = block.get(i);
+			if(entry.code instanceof Code.Load) {
+				Code.Load load = (Code.Load) entry.code;
+				BitSet borrowed = new BitSet();
+				int end = uses(i, block, borrowed);
+				if(end >= 0 && !released(load.slot, i, end, block)) {
+					borrowed.set(i);
+					for (int j = borrowed.nextSetBit(0); j >= 0; j = borrowed
+							.nextSetBit(j + 1)) {
+						borrow(j, block);
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Follow the value pushed onto the stack by the bytecode at a given index
+	 * to the bytecode which consumes it. If this does not update or retain the
+	 * value, then the value does not escape. Likewise, if the value is stored
+	 * into a temporary variable, then it does not escape provided every use of
+	 * that variable does not escape.
+	 * 
+	 * @param index
+	 *            --- index of bytecode pushing the value.
+	 * @param block
+	 *            --- enclosing block.
+	 * @param borrowed
+	 *            --- the bytecodes which must be marked as borrowing the
+	 *            value, if it does not escape.
+	 * @return the index of the last bytecode to use the value, or
+	 *         <code>-1</code> if the value escapes (or this cannot be
+	 *         determined).
+	 */
+	private static int uses(int index, Block block, BitSet borrowed) {
+		// the number of values on the stack above the value
+		int above = 0;
+		for(int i=index+1;i<block.size();++i) {
+			Code code = block.get(i).code;
+			int pops;
+			int pushes = 1;
+			if (code instanceof Code.Load || code instanceof Code.Move
+					|| code instanceof Code.Const) {
+				pops = 0;
+			} else if (code instanceof Code.Convert
+					|| code instanceof Code.Negate
+					|| code instanceof Code.Invert
+					|| code instanceof Code.LengthOf
+					|| code instanceof Code.FieldLoad
+					|| code instanceof Code.TupleLoad) {
+				pops = 1;
+			} else if (code instanceof Code.BinOp
+					|| code instanceof Code.IndexOf) {
+				pops = 2;
+			} else if (code instanceof Code.Store) {
+				pops = 1;
+				pushes = 0;
+			} else if (code instanceof Code.IfGoto
+					|| code instanceof Code.Assert) {
+				if(above < 2) {
+					return borrows(code) ? i : -1;
+				}
+				// value would be on the stack across a branch
+				return -1;
+			} else {
+				return -1;
+			}
+			if(pops > above) {
+				// this bytecode consumes the value
+				if(code instanceof Code.Store) {
+					return temporary(i, ((Code.Store) code).slot, block,
+							borrowed);
+				} else if(!borrows(code)) {
+					return -1;
+				} else if (code instanceof Code.LengthOf
+						|| code instanceof Code.FieldLoad
+						|| code instanceof Code.TupleLoad) {
+					// these would otherwise release their operand
+					borrowed.set(i);
+				}
+				return i;
+			}
+			above = above - pops + pushes;
+		}
+		return -1;
+	}
+	
+	/**
+	 * Check whether a value stored into a variable escapes. This can only be
+	 * determined when the variable is a temporary, assigned only once, whose
+	 * every use is a <code>load</code> or <code>move</code> which does not
+	 * escape. Such temporaries are introduced, for example, by the runtime
+	 * checks of list accesses.
+	 * 
+	 * @param index
+	 *            --- index of store bytecode.
+	 * @param slot
+	 *            --- variable being stored.
+	 * @param block
+	 *            --- enclosing block.
+	 * @param borrowed
+	 *            --- the bytecodes which must be marked as borrowing the
+	 *            value, if it does not escape.
+	 * @return the index of the last bytecode to use the value, or
+	 *         <code>-1</code> if the value escapes (or this cannot be
+	 *         determined).
+	 */
+	private static int temporary(int index, int slot, Block block,
+			BitSet borrowed) {
+		int end = index;
+		HashSet<Integer> slots = new HashSet<Integer>();
+		for(int i=0;i!=block.size();++i) {
+			Code code = block.get(i).code;
+			slots.clear();
+			code.slots(slots);
+			if(i == index || !slots.contains(slot)) {
+				continue;
+			} else if (i < index
+					|| !(code instanceof Code.Load || code instanceof Code.Move)) {
+				return -1;
+			}
+			int last = uses(i, block, borrowed);
+			if(last < 0) {
+				return -1;
+			}
+			borrowed.set(i);
+			end = Math.max(end, last);
+		}
+		return end;
+	}
+	
+	/**
+	 * Check whether a variable may be released or updated between two points
+	 * in a block. For simplicity, this also conservatively assumes any loop
+	 * within this range may do so.
+	 */
+	private static boolean released(int slot, int start, int end, Block block) {
+		HashSet<Integer> slots = new HashSet<Integer>();
+		for(int i=start+1;i<=end;++i) {
+			Code code = block.get(i).code;
+			if (code instanceof Code.Loop || code instanceof Code.LoopEnd) {
+				return true;
+			} else if (code instanceof Code.Move
+					|| code instanceof Code.Store
+					|| code instanceof Code.Update) {
+				slots.clear();
+				code.slots(slots);
+				if(slots.contains(slot)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Check whether a given bytecode consumes its operands without updating or
+	 * retaining them.
+	 * 
+	 * @param code
+	 * @return
+	 */
+	private static boolean borrows(Code code) {
+		if(code instanceof Code.IfGoto) {
+			switch(((Code.IfGoto) code).op) {
+			case SUBSET:
+			case SUBSETEQ:
+				return false;
+			default:
+				return true;
+			}
+		}
+		return code instanceof Code.LengthOf || code instanceof Code.IndexOf
+				|| code instanceof Code.FieldLoad
+				|| code instanceof Code.TupleLoad;
+	}
+	
+	private static void borrow(int index, Block block) {
+		Block.Entry entry = block.get(index);
+		if(entry.attribute(Attribute.Borrow.class) == null) {
+			ArrayList<Attribute> attributes = new ArrayList<Attribute>(
+					entry.attributes());
+			attributes.add(Attribute.Borrow.INSTANCE);
+			block.replace(index, entry.code, attributes);
+		}
+	}
+}
@@ -68,9 +68,9 @@ import wyil.util.dfa.*;
  * 
  */
 public class LiveVariablesAnalysis extends BackwardFlowAnalysis<LiveVariablesAnalysis.Env>{
-	private static final HashMap<Integer,Block.Entry> afterInserts = new HashMap<Integer,Block.Entry>();
-	private static final HashMap<Integer,Block.Entry> rewrites = new HashMap<Integer,Block.Entry>();
-	private static final HashSet<Integer> deadcode = new HashSet<Integer>();
+	private final HashMap<Integer,Block.Entry> afterInserts = new HashMap<Integer,Block.Entry>();
+	private final HashMap<Integer,Block.Entry> rewrites = new HashMap<Integer,Block.Entry>();
+	private final HashSet<Integer> deadcode = new HashSet<Integer>();
 	
 	public LiveVariablesAnalysis(Builder builder) {
 		
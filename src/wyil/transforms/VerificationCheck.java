@@ -69,7 +69,7 @@ import wyone.theory.type.WVoidType;
  * @author David J. Pearce
  * 
  */
-public class VerificationCheck implements Transform {	
+public class VerificationCheck implements Transform.Global {	
 	/**
 	 * limit on number of steps theorem prover is allowed to take.
 	 */
@@ -84,6 +84,20 @@ public class VerificationCheck implements Transform {
 	
 	private String filename;	
 	
+	/**
+	 * The batch of proof obligations generated for the module currently being
+	 * checked. These are discharged in parallel by the theorem prover, and
+	 * then collected once the whole module has been traversed.
+	 */
+	private Solver.Batch batch;
+	
+	/**
+	 * The assertions corresponding to each proof obligation in the batch, in
+	 * submission order. These are used to report errors for obligations which
+	 * could not be discharged.
+	 */
+	private final ArrayList<Block.Entry> obligations = new ArrayList<Block.Entry>();
+	
 	public VerificationCheck(Builder builder) {
 		this.builder = builder;
 	}
@@ -111,12 +125,39 @@ public class VerificationCheck implements Transform {
 	public void apply(WyilFile module) {
 		if(enabled) {
 			this.filename = module.filename();
-			for(WyilFile.TypeDef type : module.types()) {
-				transform(type);
-			}		
-			for(WyilFile.Method method : module.methods()) {
-				transform(method);
-			}		
+			this.batch = new Solver.Batch(timeout, wyone.Main.heuristic,
+					wyone.Main.theories);
+			this.obligations.clear();
+			try {
+				for(WyilFile.TypeDef type : module.types()) {
+					transform(type);
+				}		
+				for(WyilFile.Method method : module.methods()) {
+					transform(method);
+				}
+				discharge();
+			} finally {
+				batch.cancel();
+				batch = null;
+				obligations.clear();
+			}
+		}
+	}
+	
+	/**
+	 * Collect the results of all proof obligations submitted for this module.
+	 * The first obligation (in submission order) which could not be shown to
+	 * hold is reported as an error.
+	 */
+	protected void discharge() {
+		for (int i = 0; i != obligations.size(); ++i) {
+			Proof tp = batch.get(i);
+			// If constraint was satisfiable, then we have an error.
+			if (!(tp instanceof Proof.Unsat)) {
+				Block.Entry entry = obligations.get(i);
+				Code.Assert code = (Code.Assert) entry.code;
+				syntaxError(code.msg, filename, entry);
+			}
 		}
 	}
 	
@@ -502,15 +543,11 @@ public class VerificationCheck implements Transform {
 //			System.out.println("======================================");
 //			System.out.println("CHECKING: " + test.not() + " && " + constraint);
 //			System.out.println("======================================");
-			// Pass constraint through the solver to check for unsatisfiability
-			Proof tp = Solver.checkUnsatisfiable(timeout,
-					WFormulas.and(test.not(), constraint),
-					wyone.Main.heuristic, wyone.Main.theories);
-
-			// If constraint was satisfiable, then we have an error.
-			if (!(tp instanceof Proof.Unsat)) {
-				syntaxError(code.msg, filename, entry);
-			}
+			// Pass constraint through the solver to check for
+			// unsatisfiability. This is done asynchronously, and the result
+			// is examined when the whole module has been traversed.
+			batch.submit(WFormulas.and(test.not(), constraint));
+			obligations.add(entry);
 		}
 		
 		return WFormulas.and(test, constraint);
@@ -40,6 +40,7 @@ import wyil.*;
 import wyil.Pipeline.Template;
 import wyil.lang.WyilFile;
 import wyil.util.*;
+import wyjc.io.ClassFileLoader;
 import static wybs.lang.SyntaxError.*;
 import static wyc.util.OptArg.*;
 
@@ -73,11 +74,12 @@ public class Main {
 				e.associate(WhileyFile.ContentType, null);
 			} else if(e.suffix().equals("class")) {
 				// this could be either a normal JVM class, or a Wyil class. We
-				// need to determine which.
+				// need to determine which. Since there can be a great many
+				// classes on the path, we only check for the WhileyVersion
+				// attribute here; the module itself is read on demand.
 				try { 					
-					WyilFile c = WyilFile.ContentType.read(e, e.inputStream());
-					if(c != null) {
-						e.associate(WyilFile.ContentType,c);
+					if(ClassFileLoader.isWyilFile(e.inputStream())) {
+						e.associate(WyilFile.ContentType,null);
 					}					
 				} catch(Exception ex) {
 					// hmmm, not ideal
@@ -173,6 +175,12 @@ public class Main {
 					new ArrayList<String>()),
 			new OptArg("outputdir", "d", STRING,
 					"Specify where to place generated class files", null),
+			new OptArg("incremental",
+					"Only recompile files which have changed, or which depend on interfaces which have changed"),
+			new OptArg("persistent",
+					"Generate code using persistent lists, sets and dictionaries, which are cheaper to update when shared"),
+			new OptArg("jarindex", "ji", STRING,
+					"Specify where to keep indices of jar files on the whileypath and bootpath", null),
 			new OptArg("X", PIPELINECONFIGURE,
 					"configure existing pipeline stage"),
 			new OptArg("A", PIPELINEAPPEND, "append new pipeline stage"),
@@ -191,6 +199,17 @@ public class Main {
 	 * @param bootpath
 	 */
 	public static void initialiseBootPath(List<Path.Root> bootpath) {
+		initialiseBootPath(bootpath,null);
+	}
+	
+	/**
+	 * As for <code>initialiseBootPath(bootpath)</code>, except that an index
+	 * of the default jar file is kept in the given directory (if not null).
+	 * 
+	 * @param bootpath
+	 * @param indexdir
+	 */
+	public static void initialiseBootPath(List<Path.Root> bootpath, String indexdir) {
 		if(bootpath.isEmpty()) {		
 			//
 			try {
@@ -210,7 +229,8 @@ public class Main {
 						// "."
 						jarfile += "stdlib";
 					}
-					bootpath.add(new JarFileRoot(jarfile,registry));
+					bootpath.add(new JarFileRoot(jarfile, registry, indexFile(
+							indexdir, jarfile)));
 				}				
 			} catch(Exception e) {
 				// just ignore.
@@ -256,12 +276,12 @@ public class Main {
 	 * @return
 	 */
 	private static List<Path.Root> initialiseExternalRoots(List<String> roots,
-			boolean verbose) {
+			String indexdir, boolean verbose) {
 		ArrayList<Path.Root> nitems = new ArrayList<Path.Root>();
 		for (String root : roots) {
 			try {
 				if (root.endsWith(".jar")) {
-					nitems.add(new JarFileRoot(root,registry));
+					nitems.add(new JarFileRoot(root,registry,indexFile(indexdir,root)));
 				} else {
 					nitems.add(new DirectoryRoot(root,binaryFileFilter,registry));
 				}
@@ -276,6 +296,28 @@ public class Main {
 	}
 	
 
+	/**
+	 * Determine the location of the index file for a given jar file, which is
+	 * kept in the given index directory. Index files are named after both the
+	 * jar file and its path, so that distinct jars with the same name do not
+	 * clash.
+	 * 
+	 * @param indexdir
+	 *            --- directory in which to keep indices, or null if indices
+	 *            are not being kept.
+	 * @param jarfile
+	 * @return
+	 */
+	private static File indexFile(String indexdir, String jarfile) {
+		if(indexdir == null) {
+			return null;
+		}
+		File jar = new File(jarfile).getAbsoluteFile();
+		String name = jar.getName() + "-"
+				+ Integer.toHexString(jar.getPath().hashCode()) + ".idx";
+		return new File(indexdir, name);
+	}
+
 	/**
 	 * Print out the available list of options for the given pipeline 
 	 */
@@ -367,6 +409,7 @@ public class Main {
 		// read out option values
 		boolean verbose = values.containsKey("verbose");
 		String outputdir = (String) values.get("outputdir");
+		String indexdir = (String) values.get("jarindex");
 						
 		ArrayList<Pipeline.Modifier> pipelineModifiers = (ArrayList) values.get("pipeline"); 		
 		
@@ -388,12 +431,12 @@ public class Main {
 			roots.addAll(sourceRoots);
 			
 			// initialise the external roots appropriately
-			List<Path.Root> externalRoots = initialiseExternalRoots((ArrayList) values.get("whileypath"),verbose);	
+			List<Path.Root> externalRoots = initialiseExternalRoots((ArrayList) values.get("whileypath"),indexdir,verbose);	
 			roots.addAll(externalRoots);
 			
 			// initialise the boot path appropriately
-			List<Path.Root> bootpath = initialiseExternalRoots((ArrayList) values.get("bootpath"),verbose);
-			initialiseBootPath(bootpath);
+			List<Path.Root> bootpath = initialiseExternalRoots((ArrayList) values.get("bootpath"),indexdir,verbose);
+			initialiseBootPath(bootpath,indexdir);
 			roots.addAll(bootpath);
 			
 			// finally, construct the project	
@@ -411,13 +454,27 @@ public class Main {
 			}
 	
 			WhileyBuilder builder = new WhileyBuilder(project,pipeline);	
+			builder.setPersistentCollections(values.containsKey("persistent"));
 			
 			if(verbose) {			
 				builder.setLogger(new Logger.Default(System.err));
 			}		
 			
+			// if building incrementally, the build graph is kept in the
+			// output directory (or the first source root, if there isn't one).
+			BuildGraph graph = null;
+			if (values.containsKey("incremental")) {
+				File location = target != null ? target.location()
+						: sourceRoots.get(0).location();
+				graph = new BuildGraph(new File(location, BuildGraph.FILENAME),
+						project, WhileyFile.ContentType, WyilFile.ContentType);
+				graph.setOptions("persistent=" + values.containsKey("persistent")
+						+ " pipeline=" + pipelineModifiers);
+				builder.setBuildGraph(graph);
+			}
+			
 			Content.Filter includes = Content.filter(Trie.fromString("**"),WhileyFile.ContentType);
-			StandardBuildRule rule = new StandardBuildRule(builder);
+			StandardBuildRule rule = new StandardBuildRule(builder,graph);
 			for(DirectoryRoot source : sourceRoots) {
 				if(target != null) {
 					rule.add(source, includes, target, WhileyFile.ContentType, WyilFile.ContentType);
@@ -61,9 +61,47 @@ public class ClassFileBuilder {
 	protected String filename;
 	protected JvmType.Clazz owner;
 	
+	/**
+	 * Determines whether the lists, sets and dictionaries constructed by
+	 * generated code use persistent representations. These make updating a
+	 * shared collection much cheaper, at some cost to other operations. This
+	 * is selected by the <code>-persistent</code> option of wyjc (or the
+	 * <code>persistent</code> attribute of its ant task).
+	 */
+	protected boolean persistentCollections;
+	
+	/**
+	 * The loops over lists of integers, in the case being translated, whose
+	 * variable is only used to index lists (see <code>findIndexLoops()</code>).
+	 */
+	private final HashSet<Code.ForAll> indexLoops = new HashSet<Code.ForAll>();
+	
+	/**
+	 * The registers (the variables of index loops, and any temporaries copied
+	 * from them) which are held as unboxed <code>int</code>s within an index
+	 * loop.
+	 */
+	private final HashSet<Integer> indexSlots = new HashSet<Integer>();
+	
+	/**
+	 * The bytecodes (indexof, or a comparison) which consume an unboxed index.
+	 */
+	private final HashSet<Entry> unboxedOperands = new HashSet<Entry>();
+	
+	/**
+	 * The number of index loops enclosing the bytecode being translated.
+	 */
+	private int openIndexLoops;
+	
 	public ClassFileBuilder(int whileyMajorVersion, int whileyMinorVersion) {
+		this(whileyMajorVersion, whileyMinorVersion, false);
+	}
+	
+	public ClassFileBuilder(int whileyMajorVersion, int whileyMinorVersion,
+			boolean persistentCollections) {
 		this.WHILEY_MINOR_VERSION = whileyMinorVersion;
 		this.WHILEY_MAJOR_VERSION = whileyMajorVersion;
+		this.persistentCollections = persistentCollections;
 	}
 
 	public ClassFile build(WyilFile module) {		
@@ -148,7 +186,10 @@ public class ClassFileBuilder {
 				if(!done.contains(e) && e instanceof Coercion) {
 					Coercion c = (Coercion) e;
 					buildCoercion(c.from,c.to,entry.getValue(),nconstants,cf);
-				} 
+				} else if(!done.contains(e) && e instanceof TypeTest) {
+					TypeTest t = (TypeTest) e;
+					buildTypeTest(t.type,entry.getValue(),nconstants,cf);
+				}
 				done.add(e);
 			}
 			constants = nconstants;
@@ -180,7 +221,27 @@ public class ClassFileBuilder {
 				// Now, create code to intialise this field
 				translate(constant,0,bytecodes);
 				bytecodes.add(new Bytecode.PutField(owner, name, type, Bytecode.STATIC));
-			} 
+			} else if(c instanceof InvokeSite) {
+				nvalues++;
+				int index = entry.getValue();
+				
+				// First, create the static final field that will hold this site's cache
+				String name = "site$" + index;
+				ArrayList<Modifier> fmods = new ArrayList<Modifier>();
+				fmods.add(Modifier.ACC_PRIVATE);
+				fmods.add(Modifier.ACC_STATIC);
+				fmods.add(Modifier.ACC_FINAL);
+				ClassFile.Field field = new ClassFile.Field(name, WHILEYINVOKECACHE, fmods);
+				cf.fields().add(field);
+				
+				// Now, create code to intialise this field
+				bytecodes.add(new Bytecode.New(WHILEYINVOKECACHE));
+				bytecodes.add(new Bytecode.Dup(WHILEYINVOKECACHE));
+				JvmType.Function ftype = new JvmType.Function(T_VOID);
+				bytecodes.add(new Bytecode.Invoke(WHILEYINVOKECACHE, "<init>", ftype,
+						Bytecode.SPECIAL));
+				bytecodes.add(new Bytecode.PutField(owner, name, WHILEYINVOKECACHE, Bytecode.STATIC));
+			}
 		}
 		
 		if(nvalues > 0) {
@@ -363,6 +424,7 @@ public class ClassFileBuilder {
 			HashMap<Constant, Integer> constants, ArrayList<Handler> handlers,
 			ArrayList<LineNumberTable.Entry> lineNumbers) {
 		ArrayList<Bytecode> bytecodes = new ArrayList<Bytecode>();
+		findIndexLoops(mcase.body(), mcase.locals().size());
 		translate(mcase.body(), mcase.body().numSlots(), constants, handlers,
 				lineNumbers, bytecodes);
 		return bytecodes;
@@ -417,6 +479,215 @@ public class ClassFileBuilder {
 		// here, we need to resolve the handlers.
 	}
 	
+	/**
+	 * <p>
+	 * Find the loops over lists of integers whose variable is only used to
+	 * index lists. For example, in <code>for i in 0..|xs|: r = r + xs[i]</code>
+	 * the variable <code>i</code> need never be boxed, since the list can be
+	 * indexed with an unboxed value directly. Furthermore, when iterating over
+	 * a range, its elements are then computed without being created at all.
+	 * </p>
+	 * 
+	 * <p>
+	 * An index is usually copied into temporaries, and compared against zero
+	 * and the length of the list, before the list is indexed. Therefore, the
+	 * temporaries stored within the loop are also considered. Every load of
+	 * an unboxed register must be immediately consumed by indexing a list,
+	 * by storing to another unboxed register, or by comparing it against a
+	 * small constant or the length of a collection. Registers for which this
+	 * does not hold are removed until nothing changes.
+	 * </p>
+	 * 
+	 * @param blk
+	 *            --- the body of the case being translated.
+	 * @param numLocals
+	 *            --- the number of named variables, above which registers
+	 *            are temporaries.
+	 */
+	protected void findIndexLoops(Block blk, int numLocals) {
+		indexLoops.clear();
+		indexSlots.clear();
+		unboxedOperands.clear();
+		openIndexLoops = 0;
+		
+		// first, find the candidate loops and the extent of their bodies.
+		HashMap<ForAll, int[]> bodies = new HashMap<ForAll, int[]>();
+		for (int i = 0; i != blk.size(); ++i) {
+			Code code = blk.get(i).code;
+			if (!(code instanceof ForAll)) {
+				continue;
+			}
+			ForAll loop = (ForAll) code;
+			if (!(loop.type instanceof Type.EffectiveList)
+					|| !(loop.type.element() instanceof Type.Int)) {
+				continue;
+			}
+			for (int end = i + 1; end < blk.size(); ++end) {
+				code = blk.get(end).code;
+				if (code instanceof LoopEnd
+						&& ((LoopEnd) code).label.equals(loop.target)) {
+					bodies.put(loop, new int[] { i + 1, end });
+					indexSlots.add(loop.slot);
+					break;
+				} else if (code instanceof Store
+						&& ((Store) code).slot >= numLocals) {
+					indexSlots.add(((Store) code).slot);
+				}
+			}
+		}
+		
+		// second, remove registers which are used in any other way. Since
+		// temporaries are reused, this is done for all loops together.
+		HashSet<Integer> slots = new HashSet<Integer>();
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (Map.Entry<ForAll, int[]> e : bodies.entrySet()) {
+				if (!indexSlots.contains(e.getKey().slot)) {
+					continue;
+				}
+				int end = e.getValue()[1];
+				for (int j = e.getValue()[0]; j != end; ++j) {
+					slots.clear();
+					blk.get(j).code.slots(slots);
+					for (int slot : slots) {
+						if (indexSlots.contains(slot)
+								&& !isIndexUse(blk, j, end, indexSlots)) {
+							indexSlots.remove(slot);
+							changed = true;
+						}
+					}
+				}
+			}
+		}
+		
+		// finally, record the consumers of unboxed indices.
+		for (Map.Entry<ForAll, int[]> e : bodies.entrySet()) {
+			if (!indexSlots.contains(e.getKey().slot)) {
+				continue;
+			}
+			indexLoops.add(e.getKey());
+			int end = e.getValue()[1];
+			for (int j = e.getValue()[0]; j != end; ++j) {
+				Code code = blk.get(j).code;
+				if (isLoad(code) && indexSlots.contains(loadedSlot(code))) {
+					Entry consumer = indexConsumer(blk, j + 1);
+					if (consumer != null) {
+						unboxedOperands.add(consumer);
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Determine whether a register is currently held unboxed.
+	 */
+	private boolean isUnboxed(int slot) {
+		return openIndexLoops > 0 && indexSlots.contains(slot);
+	}
+	
+	/**
+	 * Determine whether the bytecode at a given index within a loop uses an
+	 * unboxed register in a permitted way. That is, it either begins a nested
+	 * index loop, stores a value loaded from an unboxed register, or loads a
+	 * value which is then consumed by indexing a list, by storing to an
+	 * unboxed register, or by a permitted comparison.
+	 */
+	private static boolean isIndexUse(Block blk, int index, int end,
+			HashSet<Integer> unboxed) {
+		Code code = blk.get(index).code;
+		if (code instanceof ForAll) {
+			return unboxed.contains(((ForAll) code).slot);
+		} else if (code instanceof Store) {
+			Code prev = blk.get(index - 1).code;
+			return isLoad(prev) && unboxed.contains(loadedSlot(prev));
+		} else if (isLoad(code) && index + 1 < end) {
+			Code next = blk.get(index + 1).code;
+			if (next instanceof Store) {
+				return unboxed.contains(((Store) next).slot);
+			} else {
+				return indexConsumer(blk, index + 1) != null
+						&& lastIndexOf(blk, index + 1) < end;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Find the bytecode which consumes an unboxed index loaded immediately
+	 * before the given bytecode, provided it indexes a list or compares the
+	 * index against either a small constant or the length of a collection.
+	 * 
+	 * @return the consuming bytecode, or null if there is none.
+	 */
+	private static Entry indexConsumer(Block blk, int index) {
+		int last = lastIndexOf(blk, index);
+		if (last >= blk.size()) {
+			return null;
+		}
+		Entry entry = blk.get(last);
+		if (last == index) {
+			return entry.code instanceof IndexOf
+					&& ((IndexOf) entry.code).type instanceof Type.EffectiveList ? entry
+					: null;
+		}
+		Type type;
+		Code.COp op;
+		if (entry.code instanceof IfGoto) {
+			type = ((IfGoto) entry.code).type;
+			op = ((IfGoto) entry.code).op;
+		} else if (entry.code instanceof Assert) {
+			type = ((Assert) entry.code).type;
+			op = ((Assert) entry.code).op;
+		} else {
+			return null;
+		}
+		switch (op) {
+		case EQ:
+		case NEQ:
+		case LT:
+		case LTEQ:
+		case GT:
+		case GTEQ:
+			return type instanceof Type.Int ? entry : null;
+		default:
+			return null;
+		}
+	}
+	
+	/**
+	 * Determine the index of the bytecode which would consume an unboxed
+	 * index, given the bytecode following the load. This is the bytecode
+	 * itself, unless it begins loading a small constant or the length of a
+	 * collection to compare against.
+	 */
+	private static int lastIndexOf(Block blk, int index) {
+		if (index >= blk.size()) {
+			return index;
+		}
+		Code code = blk.get(index).code;
+		if (code instanceof Const) {
+			Value constant = ((Const) code).constant;
+			if (constant instanceof Value.Integer
+					&& ((Value.Integer) constant).value.bitLength() < 31) {
+				return index + 1;
+			}
+		} else if (isLoad(code) && index + 1 < blk.size()
+				&& blk.get(index + 1).code instanceof LengthOf) {
+			return index + 2;
+		}
+		return index;
+	}
+	
+	private static boolean isLoad(Code code) {
+		return code instanceof Load || code instanceof Move;
+	}
+	
+	private static int loadedSlot(Code code) {
+		return code instanceof Load ? ((Load) code).slot : ((Move) code).slot;
+	}
+	
 	public int translate(Entry entry, int freeSlot,
 			HashMap<Constant, Integer> constants,
 			ArrayList<UnresolvedHandler> handlers, ArrayList<Bytecode> bytecodes) {
@@ -437,7 +708,7 @@ public class ClassFileBuilder {
 			} else if(code instanceof Assert) {
 				 translate((Assert)code,entry,freeSlot,bytecodes);
 			} else if(code instanceof FieldLoad) {
-				 translate((FieldLoad)code,freeSlot,bytecodes);
+				 translate((FieldLoad)code,entry,freeSlot,bytecodes);
 			} else if(code instanceof ForAll) {
 				 freeSlot = translate((ForAll)code,freeSlot,bytecodes);
 			} else if(code instanceof Goto) {
@@ -448,7 +719,7 @@ public class ClassFileBuilder {
 			} else if(code instanceof IfType) {
 				translate((IfType) code, entry, freeSlot, constants, bytecodes);
 			} else if(code instanceof IndirectInvoke) {
-				 translate((IndirectInvoke)code,freeSlot,bytecodes);
+				 translate((IndirectInvoke)code,freeSlot,constants,bytecodes);
 			} else if(code instanceof IndirectSend) {
 				 translate((IndirectSend)code,freeSlot,bytecodes);
 			} else if(code instanceof Invoke) {
@@ -464,9 +735,9 @@ public class ClassFileBuilder {
 			} else if(code instanceof SubList) {
 				 translate((SubList)code,entry,freeSlot,bytecodes);
 			} else if(code instanceof IndexOf) {
-				 translate((IndexOf)code,freeSlot,bytecodes);
+				 translate((IndexOf)code,entry,freeSlot,bytecodes);
 			} else if(code instanceof Load) {
-				 translate((Load)code,freeSlot,bytecodes);
+				 translate((Load)code,entry,freeSlot,bytecodes);
 			} else if(code instanceof Loop) {
 				 translate((Loop)code,freeSlot,bytecodes);
 			} else if(code instanceof Move) {
@@ -492,7 +763,7 @@ public class ClassFileBuilder {
 			} else if(code instanceof Skip) {
 				// do nothing
 			} else if(code instanceof Send) {
-				 translate((Send)code,freeSlot,bytecodes);
+				 translate((Send)code,freeSlot,constants,bytecodes);
 			} else if(code instanceof SetUnion) {
 				 translate((SetUnion)code,entry,freeSlot,bytecodes);
 			} else if(code instanceof SetIntersect) {
@@ -514,7 +785,7 @@ public class ClassFileBuilder {
 			} else if(code instanceof Throw) {
 				 translate((Throw)code,freeSlot,bytecodes);
 			} else if(code instanceof TupleLoad) {
-				 translate((TupleLoad)code,freeSlot,bytecodes);
+				 translate((TupleLoad)code,entry,freeSlot,bytecodes);
 			} else {
 				internalFailure("unknown wyil code encountered (" + code + ")", filename, entry);
 			}
@@ -555,7 +826,8 @@ public class ClassFileBuilder {
 	
 	public void translate(Code.Store c, int freeSlot,			
 			ArrayList<Bytecode> bytecodes) {		
-		JvmType type = convertType(c.type);
+		JvmType type = isUnboxed(c.slot) ? T_INT
+				: convertType(c.type);
 		bytecodes.add(new Bytecode.Store(c.slot, type));				
 	}
 
@@ -718,12 +990,14 @@ public class ClassFileBuilder {
 		bytecodes.add(new Bytecode.Throw());
 	}
 	
-	public void translate(Code.TupleLoad c, int freeSlot,
+	public void translate(Code.TupleLoad c, Entry stmt, int freeSlot,
 			ArrayList<Bytecode> bytecodes) {
 		JvmType.Function ftype = new JvmType.Function(JAVA_LANG_OBJECT,
 				WHILEYTUPLE, T_INT);
+		String name = stmt.attribute(Attribute.Borrow.class) == null ? "get"
+				: "borrowed_get";
 		bytecodes.add(new Bytecode.LoadConst(c.index));		
-		bytecodes.add(new Bytecode.Invoke(WHILEYTUPLE, "get", ftype,
+		bytecodes.add(new Bytecode.Invoke(WHILEYTUPLE, name, ftype,
 				Bytecode.STATIC));		
 		addReadConversion(c.type.elements().get(c.index), bytecodes);
 	}
@@ -817,7 +1091,15 @@ public class ClassFileBuilder {
 			ArrayList<Bytecode> bytecodes) {	
 				
 		JvmType type = convertType(c_type);
-		if(c_type == Type.T_BOOL) {
+		if(unboxedOperands.contains(stmt)) {
+			// the left-hand side is an unboxed index, which is compared
+			// against a boxed integer.
+			JvmType.Function ftype = new JvmType.Function(T_INT, T_INT,
+					BIG_INTEGER);
+			bytecodes.add(new Bytecode.Invoke(WHILEYUTIL, "compareIndex", ftype,
+					Bytecode.STATIC));
+			bytecodes.add(new Bytecode.If(unboxedCompare(cop), target));
+		} else if(c_type == Type.T_BOOL) {
 			// boolean is a special case, since it is not implemented as an
 			// object on the JVM stack. Therefore, we need to use the "if_cmp"
 			// bytecode, rather than calling .equals() and using "if" bytecode.
@@ -1027,7 +1309,22 @@ public class ClassFileBuilder {
 		} else if(test instanceof Type.Strung) {
 			bytecodes.add(new Bytecode.InstanceOf(JAVA_LANG_STRING));			
 			bytecodes.add(new Bytecode.If(Bytecode.If.NE, trueTarget));
-			
+		} else if(test instanceof Type.Byte) {
+			bytecodes.add(new Bytecode.InstanceOf(JAVA_LANG_BYTE));			
+			bytecodes.add(new Bytecode.If(Bytecode.If.NE, trueTarget));
+		} else if(test instanceof Type.Any) {
+			bytecodes.add(new Bytecode.Pop(convertType(src)));
+			bytecodes.add(new Bytecode.Goto(trueTarget));
+		} else if(test instanceof Type.Void) {
+			bytecodes.add(new Bytecode.Pop(convertType(src)));
+		} else if(convertType(src) instanceof JvmType.Reference) {
+			// Call the specialised test method generated for this type (see
+			// buildTypeTest).
+			int id = TypeTest.get(test,constants);
+			JvmType.Function ftype = new JvmType.Function(T_BOOL,JAVA_LANG_OBJECT);
+			bytecodes.add(new Bytecode.Invoke(owner, "typetest$" + id,
+					ftype, Bytecode.STATIC));
+			bytecodes.add(new Bytecode.If(Bytecode.If.NE, trueTarget));
 		} else {
 			// Fall-back to an external (recursive) check			
 			Value constant = Value.V_TYPE(test);
@@ -1043,6 +1340,332 @@ public class ClassFileBuilder {
 		}
 	}	
 
+	/**
+	 * The build type test method constructs a static private method which
+	 * accepts a value, and determines whether or not it is an instance of a
+	 * given type. The test is specialised to the type in question, and exits
+	 * as soon as the outcome is known. Tests of elements and fields are
+	 * translated using <code>translateTypeTest()</code>, and so are either
+	 * performed inline or by calling another such method (which, for a
+	 * recursive type, may be this method itself).
+	 * 
+	 * @param test
+	 *            --- type being tested against.
+	 * @param id
+	 *            --- constant identifier of this test.
+	 */
+	protected void buildTypeTest(Type test, int id,
+			HashMap<Constant, Integer> constants, ClassFile cf) {
+		ArrayList<Bytecode> bytecodes = new ArrayList<Bytecode>();
+		String name = "typetest$" + id;
+		// The key identifies this test in any cache of test results held by the
+		// value itself. Since it's a string constant, it's interned, and can
+		// therefore be compared by identity.
+		String key = owner + "." + name;
+		
+		if(test instanceof Type.List) {
+			Type.List lt = (Type.List) test;
+			buildTypeTest(WHILEYLIST,lt.element(),lt.nonEmpty(),key,constants,bytecodes);
+		} else if(test instanceof Type.Set) {
+			Type.Set st = (Type.Set) test;
+			buildTypeTest(WHILEYSET,st.element(),st.nonEmpty(),key,constants,bytecodes);
+		} else if(test instanceof Type.Dictionary) {
+			buildTypeTest((Type.Dictionary) test,key,constants,bytecodes);
+		} else if(test instanceof Type.Record) {
+			buildTypeTest((Type.Record) test,key,constants,bytecodes);
+		} else if(test instanceof Type.Tuple) {
+			buildTypeTest((Type.Tuple) test,constants,bytecodes);
+		} else if(test instanceof Type.Union) {
+			buildTypeTest((Type.Union) test,constants,bytecodes);
+		} else if(test instanceof Type.Negation) {
+			String falseLabel = freshLabel();
+			bytecodes.add(new Bytecode.Load(0, JAVA_LANG_OBJECT));
+			translateTypeTest(falseLabel, Type.T_ANY,
+					((Type.Negation) test).element(), bytecodes, constants);
+			addReturn(true,bytecodes);
+			bytecodes.add(new Bytecode.Label(falseLabel));
+			addReturn(false,bytecodes);
+		} else {
+			// Fall-back to an external (recursive) check
+			int cid = ValueConst.get(Value.V_TYPE(test),constants);
+			bytecodes.add(new Bytecode.Load(0, JAVA_LANG_OBJECT));
+			bytecodes.add(new Bytecode.GetField(owner, "constant$" + cid,
+					WHILEYTYPE, Bytecode.STATIC));
+			JvmType.Function ftype = new JvmType.Function(T_BOOL,
+					JAVA_LANG_OBJECT, WHILEYTYPE);
+			bytecodes.add(new Bytecode.Invoke(WHILEYUTIL, "instanceOf", ftype,
+					Bytecode.STATIC));
+			bytecodes.add(new Bytecode.Return(T_BOOL));
+		}
+		
+		ArrayList<Modifier> modifiers = new ArrayList<Modifier>();
+		modifiers.add(Modifier.ACC_PRIVATE);
+		modifiers.add(Modifier.ACC_STATIC);
+		modifiers.add(Modifier.ACC_SYNTHETIC);
+		JvmType.Function ftype = new JvmType.Function(T_BOOL,JAVA_LANG_OBJECT);
+		ClassFile.Method method = new ClassFile.Method(name, ftype, modifiers);
+		cf.methods().add(method);
+		wyjvm.attributes.Code code = new wyjvm.attributes.Code(bytecodes,new ArrayList<Handler>(),method);
+		method.attributes().add(code);
+	}
+	
+	protected void buildTypeTest(JvmType.Clazz collection, Type element,
+			boolean nonEmpty, String key, HashMap<Constant, Integer> constants,
+			ArrayList<Bytecode> bytecodes) {
+		int value = 1;
+		int iter = 2;
+		addTypeTestPrologue(collection,value,bytecodes);
+		
+		if(nonEmpty || element == Type.T_VOID) {
+			// the outcome for an empty collection is already determined.
+			String label = freshLabel();
+			bytecodes.add(new Bytecode.Load(value, collection));
+			JvmType.Function ftype = new JvmType.Function(T_BOOL);
+			bytecodes.add(new Bytecode.Invoke(collection, "isEmpty", ftype,
+					Bytecode.VIRTUAL));
+			bytecodes.add(new Bytecode.If(Bytecode.If.EQ, label));
+			addReturn(!nonEmpty,bytecodes);
+			bytecodes.add(new Bytecode.Label(label));
+		}
+		if(element == Type.T_ANY) {
+			addReturn(true,bytecodes);
+			return;
+		} else if(element == Type.T_VOID) {
+			addReturn(false,bytecodes);
+			return;
+		}
+		
+		addKnownInstanceOf(collection,value,key,bytecodes);
+		
+		// The following piece of code implements a java for-each loop which
+		// tests every element of the collection, exiting on the first failure.
+		String loopLabel = freshLabel();
+		String exitLabel = freshLabel();
+		bytecodes.add(new Bytecode.Load(value, collection));
+		JvmType.Function ftype = new JvmType.Function(JAVA_UTIL_ITERATOR);
+		bytecodes.add(new Bytecode.Invoke(JAVA_UTIL_COLLECTION, "iterator",
+				ftype, Bytecode.INTERFACE));
+		bytecodes.add(new Bytecode.Store(iter, JAVA_UTIL_ITERATOR));
+		bytecodes.add(new Bytecode.Label(loopLabel));
+		bytecodes.add(new Bytecode.Load(iter, JAVA_UTIL_ITERATOR));
+		ftype = new JvmType.Function(T_BOOL);
+		bytecodes.add(new Bytecode.Invoke(JAVA_UTIL_ITERATOR, "hasNext",
+				ftype, Bytecode.INTERFACE));
+		bytecodes.add(new Bytecode.If(Bytecode.If.EQ, exitLabel));
+		bytecodes.add(new Bytecode.Load(iter, JAVA_UTIL_ITERATOR));
+		ftype = new JvmType.Function(JAVA_LANG_OBJECT);
+		bytecodes.add(new Bytecode.Invoke(JAVA_UTIL_ITERATOR, "next",
+				ftype, Bytecode.INTERFACE));
+		translateTypeTest(loopLabel, Type.T_ANY, element, bytecodes, constants);
+		addReturn(false,bytecodes);
+		bytecodes.add(new Bytecode.Label(exitLabel));
+		
+		addMarkInstanceOf(collection,value,key,bytecodes);
+		addReturn(true,bytecodes);
+	}
+	
+	protected void buildTypeTest(Type.Dictionary test, String key,
+			HashMap<Constant, Integer> constants, ArrayList<Bytecode> bytecodes) {
+		int value = 1;
+		int iter = 2;
+		addTypeTestPrologue(WHILEYMAP,value,bytecodes);
+		
+		if (test.key() == Type.T_ANY && test.value() == Type.T_ANY) {
+			addReturn(true,bytecodes);
+			return;
+		} else if (test.key() == Type.T_VOID || test.value() == Type.T_VOID) {
+			bytecodes.add(new Bytecode.Load(value, WHILEYMAP));
+			JvmType.Function ftype = new JvmType.Function(T_BOOL);
+			bytecodes.add(new Bytecode.Invoke(WHILEYMAP, "isEmpty", ftype,
+					Bytecode.VIRTUAL));
+			bytecodes.add(new Bytecode.Return(T_BOOL));
+			return;
+		}
+		
+		addKnownInstanceOf(WHILEYMAP,value,key,bytecodes);
+		
+		// The following piece of code implements a java for-each loop over the
+		// keys of the dictionary, testing each key and its value in turn.
+		String loopLabel = freshLabel();
+		String valueLabel = freshLabel();
+		String exitLabel = freshLabel();
+		bytecodes.add(new Bytecode.Load(value, WHILEYMAP));
+		JvmType.Function ftype = new JvmType.Function(JAVA_UTIL_SET);
+		bytecodes.add(new Bytecode.Invoke(WHILEYMAP, "keySet", ftype,
+				Bytecode.VIRTUAL));
+		ftype = new JvmType.Function(JAVA_UTIL_ITERATOR);
+		bytecodes.add(new Bytecode.Invoke(JAVA_UTIL_SET, "iterator", ftype,
+				Bytecode.INTERFACE));
+		bytecodes.add(new Bytecode.Store(iter, JAVA_UTIL_ITERATOR));
+		bytecodes.add(new Bytecode.Label(loopLabel));
+		bytecodes.add(new Bytecode.Load(iter, JAVA_UTIL_ITERATOR));
+		ftype = new JvmType.Function(T_BOOL);
+		bytecodes.add(new Bytecode.Invoke(JAVA_UTIL_ITERATOR, "hasNext",
+				ftype, Bytecode.INTERFACE));
+		bytecodes.add(new Bytecode.If(Bytecode.If.EQ, exitLabel));
+		bytecodes.add(new Bytecode.Load(iter, JAVA_UTIL_ITERATOR));
+		ftype = new JvmType.Function(JAVA_LANG_OBJECT);
+		bytecodes.add(new Bytecode.Invoke(JAVA_UTIL_ITERATOR, "next", ftype,
+				Bytecode.INTERFACE));
+		bytecodes.add(new Bytecode.Dup(JAVA_LANG_OBJECT));
+		bytecodes.add(new Bytecode.Store(iter + 1, JAVA_LANG_OBJECT));
+		translateTypeTest(valueLabel, Type.T_ANY, test.key(), bytecodes, constants);
+		addReturn(false,bytecodes);
+		bytecodes.add(new Bytecode.Label(valueLabel));
+		bytecodes.add(new Bytecode.Load(value, WHILEYMAP));
+		bytecodes.add(new Bytecode.Load(iter + 1, JAVA_LANG_OBJECT));
+		ftype = new JvmType.Function(JAVA_LANG_OBJECT,JAVA_LANG_OBJECT);
+		bytecodes.add(new Bytecode.Invoke(WHILEYMAP, "get", ftype,
+				Bytecode.VIRTUAL));
+		translateTypeTest(loopLabel, Type.T_ANY, test.value(), bytecodes, constants);
+		addReturn(false,bytecodes);
+		bytecodes.add(new Bytecode.Label(exitLabel));
+		
+		addMarkInstanceOf(WHILEYMAP,value,key,bytecodes);
+		addReturn(true,bytecodes);
+	}
+	
+	protected void buildTypeTest(Type.Record test, String key,
+			HashMap<Constant, Integer> constants, ArrayList<Bytecode> bytecodes) {
+		int value = 1;
+		HashMap<String,Type> fields = test.fields();
+		ArrayList<String> names = new ArrayList<String>(fields.keySet());
+		Collections.sort(names);
+		
+		addTypeTestPrologue(WHILEYRECORD,value,bytecodes);
+		if(!test.isOpen()) {
+			addSizeCheck(WHILEYRECORD,value,names.size(),bytecodes);
+		}
+		addKnownInstanceOf(WHILEYRECORD,value,key,bytecodes);
+		
+		for(String name : names) {
+			String hasLabel = freshLabel();
+			String nextLabel = freshLabel();
+			bytecodes.add(new Bytecode.Load(value, WHILEYRECORD));
+			bytecodes.add(new Bytecode.LoadConst(name));
+			JvmType.Function ftype = new JvmType.Function(T_BOOL,JAVA_LANG_OBJECT);
+			bytecodes.add(new Bytecode.Invoke(WHILEYRECORD, "containsKey", ftype,
+					Bytecode.VIRTUAL));
+			bytecodes.add(new Bytecode.If(Bytecode.If.NE, hasLabel));
+			addReturn(false,bytecodes);
+			bytecodes.add(new Bytecode.Label(hasLabel));
+			bytecodes.add(new Bytecode.Load(value, WHILEYRECORD));
+			bytecodes.add(new Bytecode.LoadConst(name));
+			ftype = new JvmType.Function(JAVA_LANG_OBJECT,JAVA_LANG_OBJECT);
+			bytecodes.add(new Bytecode.Invoke(WHILEYRECORD, "get", ftype,
+					Bytecode.VIRTUAL));
+			translateTypeTest(nextLabel, Type.T_ANY, fields.get(name), bytecodes, constants);
+			addReturn(false,bytecodes);
+			bytecodes.add(new Bytecode.Label(nextLabel));
+		}
+		
+		addMarkInstanceOf(WHILEYRECORD,value,key,bytecodes);
+		addReturn(true,bytecodes);
+	}
+	
+	protected void buildTypeTest(Type.Tuple test,
+			HashMap<Constant, Integer> constants, ArrayList<Bytecode> bytecodes) {
+		int value = 1;
+		java.util.List<Type> elements = test.elements();
+		
+		addTypeTestPrologue(WHILEYTUPLE,value,bytecodes);
+		addSizeCheck(WHILEYTUPLE,value,elements.size(),bytecodes);
+		
+		for(int i=0;i!=elements.size();++i) {
+			String nextLabel = freshLabel();
+			bytecodes.add(new Bytecode.Load(value, WHILEYTUPLE));
+			bytecodes.add(new Bytecode.LoadConst(i));
+			JvmType.Function ftype = new JvmType.Function(JAVA_LANG_OBJECT,T_INT);
+			bytecodes.add(new Bytecode.Invoke(WHILEYTUPLE, "get", ftype,
+					Bytecode.VIRTUAL));
+			translateTypeTest(nextLabel, Type.T_ANY, elements.get(i), bytecodes, constants);
+			addReturn(false,bytecodes);
+			bytecodes.add(new Bytecode.Label(nextLabel));
+		}
+		
+		addReturn(true,bytecodes);
+	}
+	
+	protected void buildTypeTest(Type.Union test,
+			HashMap<Constant, Integer> constants, ArrayList<Bytecode> bytecodes) {
+		String trueLabel = freshLabel();
+		// Test the leaf bounds first, since they are the cheapest.
+		ArrayList<Type> bounds = new ArrayList<Type>();
+		for(Type bound : test.bounds()) {
+			if(bound instanceof Type.Leaf) {
+				bounds.add(0,bound);
+			} else {
+				bounds.add(bound);
+			}
+		}
+		for(Type bound : bounds) {
+			bytecodes.add(new Bytecode.Load(0, JAVA_LANG_OBJECT));
+			translateTypeTest(trueLabel, Type.T_ANY, bound, bytecodes, constants);
+		}
+		addReturn(false,bytecodes);
+		bytecodes.add(new Bytecode.Label(trueLabel));
+		addReturn(true,bytecodes);
+	}
+	
+	/**
+	 * Check that the value being tested is an instance of the given runtime
+	 * class, returning false if not, and otherwise store it in the given slot.
+	 */
+	private void addTypeTestPrologue(JvmType.Clazz clazz, int slot,
+			ArrayList<Bytecode> bytecodes) {
+		String label = freshLabel();
+		bytecodes.add(new Bytecode.Load(0, JAVA_LANG_OBJECT));
+		bytecodes.add(new Bytecode.InstanceOf(clazz));
+		bytecodes.add(new Bytecode.If(Bytecode.If.NE, label));
+		addReturn(false,bytecodes);
+		bytecodes.add(new Bytecode.Label(label));
+		bytecodes.add(new Bytecode.Load(0, JAVA_LANG_OBJECT));
+		bytecodes.add(new Bytecode.CheckCast(clazz));
+		bytecodes.add(new Bytecode.Store(slot, clazz));
+	}
+	
+	private void addSizeCheck(JvmType.Clazz clazz, int slot, int size,
+			ArrayList<Bytecode> bytecodes) {
+		String label = freshLabel();
+		bytecodes.add(new Bytecode.Load(slot, clazz));
+		JvmType.Function ftype = new JvmType.Function(T_INT);
+		bytecodes.add(new Bytecode.Invoke(clazz, "size", ftype,
+				Bytecode.VIRTUAL));
+		bytecodes.add(new Bytecode.LoadConst(size));
+		bytecodes.add(new Bytecode.IfCmp(Bytecode.IfCmp.EQ, T_INT, label));
+		addReturn(false,bytecodes);
+		bytecodes.add(new Bytecode.Label(label));
+	}
+	
+	private void addKnownInstanceOf(JvmType.Clazz clazz, int slot,
+			String key, ArrayList<Bytecode> bytecodes) {
+		String label = freshLabel();
+		bytecodes.add(new Bytecode.Load(slot, clazz));
+		bytecodes.add(new Bytecode.LoadConst(key));
+		JvmType.Function ftype = new JvmType.Function(T_BOOL, clazz,
+				JAVA_LANG_OBJECT);
+		bytecodes.add(new Bytecode.Invoke(WHILEYUTIL, "knownInstanceOf",
+				ftype, Bytecode.STATIC));
+		bytecodes.add(new Bytecode.If(Bytecode.If.EQ, label));
+		addReturn(true,bytecodes);
+		bytecodes.add(new Bytecode.Label(label));
+	}
+	
+	private void addMarkInstanceOf(JvmType.Clazz clazz, int slot,
+			String key, ArrayList<Bytecode> bytecodes) {
+		bytecodes.add(new Bytecode.Load(slot, clazz));
+		bytecodes.add(new Bytecode.LoadConst(key));
+		JvmType.Function ftype = new JvmType.Function(T_VOID, clazz,
+				JAVA_LANG_OBJECT);
+		bytecodes.add(new Bytecode.Invoke(WHILEYUTIL, "markInstanceOf",
+				ftype, Bytecode.STATIC));
+	}
+	
+	private void addReturn(boolean result, ArrayList<Bytecode> bytecodes) {
+		bytecodes.add(new Bytecode.LoadConst(result ? 1 : 0));
+		bytecodes.add(new Bytecode.Return(T_BOOL));
+	}
+	
 	public void translate(Code.Loop c, int freeSlot,
 			ArrayList<Bytecode> bytecodes) {
 		bytecodes.add(new Bytecode.Label(c.target + "$head"));
@@ -1052,6 +1675,11 @@ public class ClassFileBuilder {
 			int freeSlot, ArrayList<Bytecode> bytecodes) {
 		bytecodes.add(new Bytecode.Goto(end.label + "$head"));
 		bytecodes.add(new Bytecode.Label(end.label));
+		for (ForAll loop : indexLoops) {
+			if (loop.target.equals(end.label)) {
+				openIndexLoops--;
+			}
+		}
 	}
 	
 	public int translate(Code.ForAll c, int freeSlot,
@@ -1059,9 +1687,12 @@ public class ClassFileBuilder {
 		
 		Type elementType = c.type.element();		
 
+		if(c.type instanceof Type.EffectiveList) {
+			return translateListForAll(c, freeSlot, bytecodes);
+		}
+		
 		JvmType.Function ftype = new JvmType.Function(JAVA_UTIL_ITERATOR,JAVA_LANG_OBJECT);
 		bytecodes.add(new Bytecode.Invoke(WHILEYCOLLECTION, "iterator", ftype, Bytecode.STATIC));
-		ftype = new JvmType.Function(JAVA_UTIL_ITERATOR);
 		bytecodes.add(new Bytecode.Store(freeSlot, JAVA_UTIL_ITERATOR));
 		bytecodes.add(new Bytecode.Label(c.target + "$head"));
 		ftype = new JvmType.Function(T_BOOL);
@@ -1082,6 +1713,63 @@ public class ClassFileBuilder {
 		return freeSlot + 1;
 	}
 	
+	/**
+	 * A loop over a list is translated into a counted loop, whose induction
+	 * variable is an unboxed <code>int</code> held in a local slot. Thus, no
+	 * iterator is allocated and no <code>BigInteger</code> is created to step
+	 * the loop. Elements are read from the list by index which, for a lazy
+	 * range, means they are computed from the counter rather than stored. The
+	 * length of the list is read once, before the loop begins. If the loop
+	 * variable is only used to index lists, then it is also held unboxed.
+	 * 
+	 * @param c
+	 * @param freeSlot
+	 * @param bytecodes
+	 * @return
+	 */
+	protected int translateListForAll(Code.ForAll c, int freeSlot,
+			ArrayList<Bytecode> bytecodes) {
+		int listSlot = freeSlot;
+		int sizeSlot = freeSlot + 1;
+		int indexSlot = freeSlot + 2;
+		
+		bytecodes.add(new Bytecode.Store(listSlot, WHILEYLIST));
+		bytecodes.add(new Bytecode.Load(listSlot, WHILEYLIST));
+		JvmType.Function ftype = new JvmType.Function(T_INT,WHILEYLIST);
+		bytecodes.add(new Bytecode.Invoke(WHILEYLIST, "size", ftype, Bytecode.STATIC));
+		bytecodes.add(new Bytecode.Store(sizeSlot, T_INT));
+		// the counter starts one before the first element, since it is
+		// incremented at the loop head (which is where the loop end jumps to).
+		bytecodes.add(new Bytecode.LoadConst(-1));
+		bytecodes.add(new Bytecode.Store(indexSlot, T_INT));
+		bytecodes.add(new Bytecode.Label(c.target + "$head"));
+		bytecodes.add(new Bytecode.Iinc(indexSlot, 1));
+		bytecodes.add(new Bytecode.Load(indexSlot, T_INT));
+		bytecodes.add(new Bytecode.Load(sizeSlot, T_INT));
+		bytecodes.add(new Bytecode.IfCmp(Bytecode.IfCmp.GE, T_INT, c.target));
+		bytecodes.add(new Bytecode.Load(listSlot, WHILEYLIST));
+		bytecodes.add(new Bytecode.Load(indexSlot, T_INT));
+		if(indexLoops.contains(c)) {
+			openIndexLoops++;
+			ftype = new JvmType.Function(T_INT,WHILEYLIST,T_INT);
+			bytecodes.add(new Bytecode.Invoke(WHILEYLIST, "internal_index",
+					ftype, Bytecode.STATIC));
+			bytecodes.add(new Bytecode.Store(c.slot, T_INT));
+		} else {
+			ftype = new JvmType.Function(JAVA_LANG_OBJECT,WHILEYLIST,T_INT);
+			bytecodes.add(new Bytecode.Invoke(WHILEYLIST, "internal_get", ftype,
+					Bytecode.STATIC));
+			Type elementType = c.type.element();
+			addReadConversion(elementType, bytecodes);
+			bytecodes.add(new Bytecode.Store(c.slot, convertType(elementType)));
+		}
+		
+		// three slots are allocated, to hold the list, its size and the
+		// counter.
+		
+		return freeSlot + 3;
+	}
+	
 	public void translate(Code.Goto c, int freeSlot,
 			ArrayList<Bytecode> bytecodes) {
 		bytecodes.add(new Bytecode.Goto(c.target));
@@ -1148,13 +1836,24 @@ public class ClassFileBuilder {
 		bytecodes.add(new Bytecode.Label(lab));
 	}
 	
-	public void translate(Code.Load c, int freeSlot, ArrayList<Bytecode> bytecodes) {
+	public void translate(Code.Load c, Entry stmt, int freeSlot,
+			ArrayList<Bytecode> bytecodes) {
+		if(isUnboxed(c.slot)) {
+			bytecodes.add(new Bytecode.Load(c.slot, T_INT));
+			return;
+		}
 		bytecodes.add(new Bytecode.Load(c.slot, convertType(c.type)));
-		addIncRefs(c.type,bytecodes);
+		// a borrowed value does not need its reference count incremented,
+		// since it does not outlive the variable it was loaded from.
+		if(stmt.attribute(Attribute.Borrow.class) == null) {
+			addIncRefs(c.type,bytecodes);
+		}
 	}
 	
 	public void translate(Code.Move c, int freeSlot, ArrayList<Bytecode> bytecodes) {
-		bytecodes.add(new Bytecode.Load(c.slot, convertType(c.type)));
+		JvmType type = isUnboxed(c.slot) ? T_INT
+				: convertType(c.type);
+		bytecodes.add(new Bytecode.Load(c.slot, type));
 		// a move does not need to increment the reference count, since the
 		// register is no longer usable after this point.
 		
@@ -1186,8 +1885,10 @@ public class ClassFileBuilder {
 		// FIXME: the following is a bit of a hack which works for now. When I
 		// refactor the collections library then it can be fixed properly.
 		JvmType.Clazz ctype = JAVA_LANG_OBJECT;
-		JvmType.Function ftype = new JvmType.Function(BIG_INTEGER,ctype);						
-		bytecodes.add(new Bytecode.Invoke(WHILEYCOLLECTION, "length",
+		JvmType.Function ftype = new JvmType.Function(BIG_INTEGER,ctype);
+		String name = stmt.attribute(Attribute.Borrow.class) == null ? "length"
+				: "borrowed_length";
+		bytecodes.add(new Bytecode.Invoke(WHILEYCOLLECTION, name,
 				ftype, Bytecode.STATIC));								
 	}
 	
@@ -1199,21 +1900,26 @@ public class ClassFileBuilder {
 				Bytecode.STATIC));
 	}	
 	
-	public void translate(Code.IndexOf c, int freeSlot,
+	public void translate(Code.IndexOf c, Entry stmt, int freeSlot,
 			ArrayList<Bytecode> bytecodes) {
 		
+		// the index may have been loaded from an unboxed loop variable.
+		JvmType index = unboxedOperands.contains(stmt) ? T_INT
+				: JAVA_LANG_OBJECT;
 		JvmType.Function ftype = new JvmType.Function(JAVA_LANG_OBJECT,
-				JAVA_LANG_OBJECT, JAVA_LANG_OBJECT);
+				JAVA_LANG_OBJECT, index);
 		bytecodes.add(new Bytecode.Invoke(WHILEYCOLLECTION, "indexOf", ftype,
 				Bytecode.STATIC));
 		addReadConversion(c.type.value(), bytecodes);
 	}
 	
-	public void translate(Code.FieldLoad c, int freeSlot,
+	public void translate(Code.FieldLoad c, Entry stmt, int freeSlot,
 			ArrayList<Bytecode> bytecodes) {		
 		bytecodes.add(new Bytecode.LoadConst(c.field));
 		JvmType.Function ftype = new JvmType.Function(JAVA_LANG_OBJECT,WHILEYRECORD,JAVA_LANG_STRING);
-		bytecodes.add(new Bytecode.Invoke(WHILEYRECORD,"get",ftype,Bytecode.STATIC));						
+		String name = stmt.attribute(Attribute.Borrow.class) == null ? "get"
+				: "borrowed_get";
+		bytecodes.add(new Bytecode.Invoke(WHILEYRECORD,name,ftype,Bytecode.STATIC));						
 		addReadConversion(c.fieldType(),bytecodes);		
 	}
 
@@ -1223,6 +1929,15 @@ public class ClassFileBuilder {
 		JvmType type = convertType(c.type);
 		JvmType.Function ftype = new JvmType.Function(type,type);
 		
+		if(type == BIG_INTEGER && isArithmetic(c.bop)) {
+			// Integer arithmetic is delegated to the runtime, which uses long
+			// arithmetic for operands which are small enough.
+			ftype = new JvmType.Function(BIG_INTEGER,BIG_INTEGER,BIG_INTEGER);
+			bytecodes.add(new Bytecode.Invoke(WHILEYUTIL, arithmeticName(c.bop),
+					ftype, Bytecode.STATIC));
+			return;
+		}
+		
 		switch(c.bop) {
 		case ADD:			
 			bytecodes.add(new Bytecode.Invoke((JvmType.Clazz)type, "add", ftype,
@@ -1273,6 +1988,51 @@ public class ClassFileBuilder {
 		}		
 	}
 
+	private static int unboxedCompare(Code.COp cop) {
+		switch(cop) {
+		case EQ:
+			return Bytecode.If.EQ;
+		case NEQ:
+			return Bytecode.If.NE;
+		case LT:
+			return Bytecode.If.LT;
+		case LTEQ:
+			return Bytecode.If.LE;
+		case GT:
+			return Bytecode.If.GT;
+		default:
+			return Bytecode.If.GE;
+		}
+	}
+	
+	private static boolean isArithmetic(Code.BOp bop) {
+		switch(bop) {
+		case ADD:
+		case SUB:
+		case MUL:
+		case DIV:
+		case REM:
+			return true;
+		default:
+			return false;
+		}
+	}
+	
+	private static String arithmeticName(Code.BOp bop) {
+		switch(bop) {
+		case ADD:
+			return "add";
+		case SUB:
+			return "subtract";
+		case MUL:
+			return "multiply";
+		case DIV:
+			return "divide";
+		default:
+			return "remainder";
+		}
+	}
+
 	public void translate(Code.SetUnion c, Entry stmt, int freeSlot,
 			ArrayList<Bytecode> bytecodes) {		
 		JvmType.Function ftype;
@@ -1344,9 +2104,15 @@ public class ClassFileBuilder {
 	public void translate(Code.Negate c, int freeSlot,
 			ArrayList<Bytecode> bytecodes) {								
 		JvmType type = convertType(c.type);
-		JvmType.Function ftype = new JvmType.Function(type);
-		bytecodes.add(new Bytecode.Invoke((JvmType.Clazz) type, "negate",
-				ftype, Bytecode.VIRTUAL));		
+		if(type == BIG_INTEGER) {
+			JvmType.Function ftype = new JvmType.Function(BIG_INTEGER,BIG_INTEGER);
+			bytecodes.add(new Bytecode.Invoke(WHILEYUTIL, "negate", ftype,
+					Bytecode.STATIC));
+		} else {
+			JvmType.Function ftype = new JvmType.Function(type);
+			bytecodes.add(new Bytecode.Invoke((JvmType.Clazz) type, "negate",
+					ftype, Bytecode.VIRTUAL));
+		}
 	}
 	
 	public void translate(Code.New c, int freeSlot,
@@ -1398,14 +2164,9 @@ public class ClassFileBuilder {
 	}
 	
 	protected void translate(Code.NewList c, int freeSlot, ArrayList<Bytecode> bytecodes) {
-		bytecodes.add(new Bytecode.New(WHILEYLIST));		
-		bytecodes.add(new Bytecode.Dup(WHILEYLIST));
-		bytecodes.add(new Bytecode.LoadConst(c.nargs));
-		JvmType.Function ftype = new JvmType.Function(T_VOID,T_INT);
-		bytecodes.add(new Bytecode.Invoke(WHILEYLIST, "<init>", ftype,
-				Bytecode.SPECIAL));
+		addNewList(c.type.element(), c.nargs, bytecodes);
 		
-		ftype = new JvmType.Function(WHILEYLIST, WHILEYLIST, JAVA_LANG_OBJECT);		
+		JvmType.Function ftype = new JvmType.Function(WHILEYLIST, WHILEYLIST, JAVA_LANG_OBJECT);		
 		for(int i=0;i!=c.nargs;++i) {			
 			bytecodes.add(new Bytecode.Swap());			
 			addWriteConversion(c.type.element(),bytecodes);			
@@ -1516,11 +2277,12 @@ public class ClassFileBuilder {
 	}
 	
 	public void translate(Code.IndirectInvoke c, int freeSlot,
-			ArrayList<Bytecode> bytecodes) {				
+			HashMap<Constant, Integer> constants, ArrayList<Bytecode> bytecodes) {				
 		
 		// The main issue here, is that we have all of the parameters on the
 		// stack. What we need to do is to put them into an array, so they can
-		// then be passed into Method.invoke()
+		// then be passed into the InvokeCache for this site, which dispatches
+		// through a cached method handle.
 		//
 		// To make this work, what we'll do is use a temporary register to hold
 		// the array as we build it up.
@@ -1543,18 +2305,21 @@ public class ClassFileBuilder {
 			bytecodes.add(new Bytecode.ArrayStore(arrT));			
 		}
 
-		bytecodes.add(new Bytecode.LoadConst(null));
+		int id = InvokeSite.get(constants);
+		bytecodes.add(new Bytecode.GetField(owner, "site$" + id,
+				WHILEYINVOKECACHE, Bytecode.STATIC));
+		bytecodes.add(new Bytecode.Swap());
 		bytecodes.add(new Bytecode.Load(freeSlot,arrT));
-		JvmType.Clazz owner = new JvmType.Clazz("java.lang.reflect","Method");		
-		JvmType.Function type = new JvmType.Function(JAVA_LANG_OBJECT,JAVA_LANG_OBJECT,arrT);		
+		JvmType.Function type = new JvmType.Function(JAVA_LANG_OBJECT,
+				JAVA_LANG_REFLECT_METHOD, arrT);
 		
-		bytecodes.add(new Bytecode.Invoke(owner, "invoke", type,
+		bytecodes.add(new Bytecode.Invoke(WHILEYINVOKECACHE, "invoke", type,
 				Bytecode.VIRTUAL));						
 		addReadConversion(ft.ret(),bytecodes);	
 	}
 
 	public void translate(Code.Send c, int freeSlot,
-			ArrayList<Bytecode> bytecodes) {
+			HashMap<Constant, Integer> constants, ArrayList<Bytecode> bytecodes) {
 		
 		// The main issue here, is that we have all of the parameters + receiver
 		// on the stack. What we need to do is to put them into an array, so
@@ -1582,16 +2347,14 @@ public class ClassFileBuilder {
 			bytecodes.add(new Bytecode.ArrayStore(arrT));			
 		}
 		
-		// finally, setup the stack for the send
-		JvmType.Function ftype = new JvmType.Function(JAVA_LANG_REFLECT_METHOD,
-				JAVA_LANG_STRING, JAVA_LANG_STRING);
-		
-		bytecodes.add(new Bytecode.LoadConst(c.name.module().toString().replace('/','.')));		
-		bytecodes
-				.add(new Bytecode.LoadConst(nameMangle(c.name.name(), c.type)));
-		bytecodes.add(new Bytecode.Invoke(WHILEYUTIL, "functionRef", ftype,
-				Bytecode.STATIC));
+		// finally, setup the stack for the send. The message is resolved once
+		// when the class is initialised, and held in a constant thereafter.
+		Value.FunctionOrMethodOrMessage ref = Value.V_FUN(c.name, c.type);
+		int id = ValueConst.get(ref, constants);
+		bytecodes.add(new Bytecode.GetField(owner, "constant$" + id,
+				JAVA_LANG_REFLECT_METHOD, Bytecode.STATIC));
 		bytecodes.add(new Bytecode.Load(freeSlot, arrT));
+		JvmType.Function ftype;
 							
 		if (c.synchronous && c.retval) {			
 			ftype = new JvmType.Function(JAVA_LANG_OBJECT,
@@ -1746,7 +2509,7 @@ public class ClassFileBuilder {
 			bytecodes.add(new Bytecode.LoadConst(num.intValue()));				
 			bytecodes.add(new Bytecode.Conversion(T_INT,T_LONG));
 			JvmType.Function ftype = new JvmType.Function(BIG_INTEGER,T_LONG);
-			bytecodes.add(new Bytecode.Invoke(BIG_INTEGER, "valueOf", ftype,
+			bytecodes.add(new Bytecode.Invoke(WHILEYUTIL, "valueOf", ftype,
 					Bytecode.STATIC));
 		} else if(num.bitLength() < 64) {			
 			bytecodes.add(new Bytecode.LoadConst(num.longValue()));				
@@ -1868,13 +2631,9 @@ public class ClassFileBuilder {
 	
 	protected void translate(Value.Set lv, int freeSlot,
 			ArrayList<Bytecode> bytecodes) {	
-		bytecodes.add(new Bytecode.New(WHILEYSET));		
-		bytecodes.add(new Bytecode.Dup(WHILEYSET));
-		JvmType.Function ftype = new JvmType.Function(T_VOID);
-		bytecodes.add(new Bytecode.Invoke(WHILEYSET, "<init>", ftype,
-				Bytecode.SPECIAL));
+		construct(WHILEYSET, freeSlot, bytecodes);
 		
-		ftype = new JvmType.Function(T_BOOL, JAVA_LANG_OBJECT);		
+		JvmType.Function ftype = new JvmType.Function(T_BOOL, JAVA_LANG_OBJECT);		
 		for (Value e : lv.values) {
 			bytecodes.add(new Bytecode.Dup(WHILEYSET));
 			translate(e, freeSlot, bytecodes);
@@ -1887,14 +2646,9 @@ public class ClassFileBuilder {
 
 	protected void translate(Value.List lv, int freeSlot,
 			ArrayList<Bytecode> bytecodes) {		
-		bytecodes.add(new Bytecode.New(WHILEYLIST));		
-		bytecodes.add(new Bytecode.Dup(WHILEYLIST));
-		bytecodes.add(new Bytecode.LoadConst(lv.values.size()));
-		JvmType.Function ftype = new JvmType.Function(T_VOID,T_INT);
-		bytecodes.add(new Bytecode.Invoke(WHILEYLIST, "<init>", ftype,
-				Bytecode.SPECIAL));
+		addNewList(lv.type().element(), lv.values.size(), bytecodes);
 		
-		ftype = new JvmType.Function(T_BOOL, JAVA_LANG_OBJECT);		
+		JvmType.Function ftype = new JvmType.Function(T_BOOL, JAVA_LANG_OBJECT);		
 		for (Value e : lv.values) {	
 			bytecodes.add(new Bytecode.Dup(WHILEYLIST));
 			translate(e, freeSlot, bytecodes);
@@ -1905,6 +2659,47 @@ public class ClassFileBuilder {
 		}				
 	}
 
+	/**
+	 * Construct an empty list for holding elements of a given type, leaving it
+	 * on the stack. Lists of bytes, characters and integers are given a
+	 * compact representation, which stores their elements unboxed (unless
+	 * persistent collections are selected).
+	 * 
+	 * @param element
+	 *            --- type of elements to be held in the list.
+	 * @param capacity
+	 *            --- initial capacity of the list.
+	 * @param bytecodes
+	 */
+	protected void addNewList(Type element, int capacity,
+			ArrayList<Bytecode> bytecodes) {
+		String factory = null;
+		if(persistentCollections) {
+			construct(WHILEYLIST, 0, bytecodes);
+			return;
+		} else if(element instanceof Type.Byte) {
+			factory = "byteList";
+		} else if(element instanceof Type.Char) {
+			factory = "charList";
+		} else if(element instanceof Type.Int) {
+			factory = "intList";
+		}
+		
+		if(factory != null) {
+			JvmType.Function ftype = new JvmType.Function(WHILEYLIST,T_INT);
+			bytecodes.add(new Bytecode.LoadConst(capacity));
+			bytecodes.add(new Bytecode.Invoke(WHILEYLIST, factory, ftype,
+					Bytecode.STATIC));
+		} else {
+			bytecodes.add(new Bytecode.New(WHILEYLIST));		
+			bytecodes.add(new Bytecode.Dup(WHILEYLIST));
+			bytecodes.add(new Bytecode.LoadConst(capacity));
+			JvmType.Function ftype = new JvmType.Function(T_VOID,T_INT);
+			bytecodes.add(new Bytecode.Invoke(WHILEYLIST, "<init>", ftype,
+					Bytecode.SPECIAL));
+		}
+	}
+
 	protected void translate(Value.Tuple lv, int freeSlot,
 			ArrayList<Bytecode> bytecodes) {		
 		bytecodes.add(new Bytecode.New(WHILEYTUPLE));		
@@ -2039,7 +2834,7 @@ public class ClassFileBuilder {
 			} else {
 				bytecodes.add(new Bytecode.Conversion(T_INT, T_LONG));
 				JvmType.Function ftype = new JvmType.Function(BIG_INTEGER,T_LONG);			
-				bytecodes.add(new Bytecode.Invoke(BIG_INTEGER,"valueOf",ftype,Bytecode.STATIC));				
+				bytecodes.add(new Bytecode.Invoke(WHILEYUTIL,"valueOf",ftype,Bytecode.STATIC));				
 			}
 		} else {
 			JvmType.Function ftype = new JvmType.Function(JAVA_LANG_CHARACTER,T_CHAR);			
@@ -2231,7 +3026,7 @@ public class ClassFileBuilder {
 		bytecodes.add(new Bytecode.Load(iter,T_INT));
 		bytecodes.add(new Bytecode.Conversion(T_INT,T_LONG));	
 		ftype = new JvmType.Function(BIG_INTEGER,T_LONG);
-		bytecodes.add(new Bytecode.Invoke(BIG_INTEGER, "valueOf",
+		bytecodes.add(new Bytecode.Invoke(WHILEYUTIL, "valueOf",
 				ftype, Bytecode.STATIC));				
 		bytecodes.add(new Bytecode.Load(source,WHILEYMAP));
 		bytecodes.add(new Bytecode.Load(iter,T_INT));
@@ -2650,6 +3445,13 @@ public class ClassFileBuilder {
 	 */
 	public void construct(JvmType.Clazz owner, int freeSlot,
 			ArrayList<Bytecode> bytecodes) {
+		if (persistentCollections
+				&& (owner == WHILEYLIST || owner == WHILEYSET || owner == WHILEYMAP)) {
+			JvmType.Function ftype = new JvmType.Function(owner);
+			bytecodes.add(new Bytecode.Invoke(owner, "persistent", ftype,
+					Bytecode.STATIC));
+			return;
+		}
 		bytecodes.add(new Bytecode.New(owner));		
 		bytecodes.add(new Bytecode.Dup(owner));
 		ArrayList<JvmType> paramTypes = new ArrayList<JvmType>();		
@@ -2680,6 +3482,7 @@ public class ClassFileBuilder {
 	public final static JvmType.Clazz WHILEYPROCESS = new JvmType.Clazz(
 			"wyjc.runtime", "Actor");	
 	public final static JvmType.Clazz WHILEYEXCEPTION = new JvmType.Clazz("wyjc.runtime","Exception");	
+	public final static JvmType.Clazz WHILEYINVOKECACHE = new JvmType.Clazz("wyjc.runtime","InvokeCache");
 	public final static JvmType.Clazz BIG_INTEGER = new JvmType.Clazz("java.math","BigInteger");
 	public final static JvmType.Clazz BIG_RATIONAL = new JvmType.Clazz("wyjc.runtime","BigRational");
 	private static final JvmType.Clazz JAVA_LANG_CHARACTER = new JvmType.Clazz("java.lang","Character");
@@ -2778,7 +3581,7 @@ public class ClassFileBuilder {
 	}	
 	
 	/**
-	 * A constant is some kind of auxillary functionality used in generated code, which can be reused at multiple sites.  This includes value constants, and coercion functions. 
+	 * A constant is some kind of auxillary functionality used in generated code, which can be reused at multiple sites.  This includes value constants, coercion functions and type tests. 
 	 * @author David J. Pearce
 	 *
 	 */
@@ -2840,6 +3643,47 @@ public class ClassFileBuilder {
 		}
 	}
 	
+	public static final class TypeTest extends Constant {
+		public final Type type;
+		public TypeTest(Type type) {
+			this.type = type;
+		}
+		public boolean equals(Object o) {
+			if(o instanceof TypeTest) {
+				TypeTest t = (TypeTest) o;
+				return type.equals(t.type);
+			}
+			return false;
+		}
+		public int hashCode() {
+			return type.hashCode();
+		}
+		public static int get(Type type, HashMap<Constant,Integer> constants) {
+			TypeTest vc = new TypeTest(type);
+			Integer r = constants.get(vc);
+			if(r != null) {
+				return r;
+			} else {
+				int x = constants.size();
+				constants.put(vc, x);
+				return x;
+			}			
+		}
+	}
+	
+	/**
+	 * An invoke site identifies a single indirect invocation, which is given
+	 * its own inline cache. Unlike other constants, invoke sites are never
+	 * shared, and so they are compared by identity.
+	 */
+	public static final class InvokeSite extends Constant {
+		public static int get(HashMap<Constant,Integer> constants) {
+			int x = constants.size();
+			constants.put(new InvokeSite(), x);
+			return x;
+		}
+	}
+	
 	public static class UnresolvedHandler {
 		public String start;
 		public String end;
@@ -80,6 +80,25 @@ public class ClassFileLoader implements ModuleReader {
 		return createModule(module, r.readClass());
 	}
 	
+	/**
+	 * Determine whether or not a given class file was generated from a Whiley
+	 * source file, without actually reading it. This simply looks for the
+	 * <code>WhileyVersion</code> attribute, and is intended for cheaply
+	 * identifying the Whiley modules amongst a large number of class files.
+	 * 
+	 * @param input
+	 * @return
+	 * @throws IOException
+	 */
+	public static boolean isWyilFile(InputStream input) throws IOException {
+		try {
+			ClassFileReader r = new ClassFileReader(input);
+			return r.hasClassAttribute("WhileyVersion");
+		} finally {
+			input.close();
+		}
+	}
+	
 	protected WyilFile createModule(Path.ID mid, ClassFile cf) {
 		if(cf.attribute("WhileyVersion") == null) {
 			// This indicates the class is not a WhileyFile. This means it was
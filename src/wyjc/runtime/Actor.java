@@ -23,19 +23,84 @@
 // (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
 // SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 
+
 package wyjc.runtime;
 
-import java.util.*;
 import java.lang.reflect.*;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>
+ * An actor encapsulates some state which is accessed only by processing
+ * messages sent to it. Messages are placed into the actor's mailbox and
+ * processed in the order they were sent, one at a time.
+ * </p>
+ * 
+ * <p>
+ * Actors do not have threads of their own. Instead, an actor with messages
+ * waiting is run on one of the carrier threads managed by the
+ * <code>Scheduler</code>, which drains a batch of messages from its mailbox
+ * before moving on to the next actor. A synchronous send to an idle actor is
+ * processed directly on the sending thread, thus avoiding a hand-off between
+ * threads altogether. Likewise, a synchronous sender waiting for a reply
+ * withdraws the actor from the run queue and processes its messages itself,
+ * rather than waiting for a carrier to become free. Otherwise, a sender which
+ * must wait (e.g. because the actor is running elsewhere, or because a
+ * bounded mailbox is full) informs the scheduler, which ensures the
+ * remaining actors can still be run.
+ * </p>
+ */
+public final class Actor {
+	private volatile Object state;
+	private final Mailbox mailbox;
+
+	/**
+	 * Indicates whether or not this actor has been started.
+	 */
+	private volatile boolean started;
+
+	/**
+	 * Indicates whether or not this actor is currently claimed for running,
+	 * either because it is on the run queue or because some thread is
+	 * draining its mailbox.
+	 */
+	private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+	/**
+	 * The number of synchronous senders waiting for a reply from this actor.
+	 * Such senders wait on <code>waiters</code> until either their message
+	 * has been processed, or the actor can be claimed or withdrawn from the
+	 * run queue.
+	 */
+	private final AtomicInteger waiting = new AtomicInteger(0);
+	private final Object waiters = new Object();
+
+	// The following metrics are written by whichever thread is draining the
+	// mailbox, and may be read by any thread at any time.
+	private final LongAdder processed = new LongAdder();
+	private final LongAdder totalLatency = new LongAdder();
+	private final LongAccumulator maxLatency = new LongAccumulator(Math::max, 0);
 
-public final class Actor extends Thread {
-	private Object state;
-	private ArrayBlockingQueue<Message> queue = new ArrayBlockingQueue<Message>(10); 
-	
 	public Actor(Object c) {
-		state = c;			
-		setDaemon(true);
+		this(c, Scheduler.MAILBOX_CAPACITY);
+	}
+
+	/**
+	 * Construct an actor with a given initial state and mailbox capacity.
+	 * 
+	 * @param c
+	 *            --- the initial state.
+	 * @param capacity
+	 *            --- the maximum number of messages which can be waiting in
+	 *            the mailbox, or zero for an unbounded mailbox.
+	 */
+	public Actor(Object c, int capacity) {
+		state = c;
+		mailbox = new Mailbox(capacity);
 	}
 
 	public Object state() {
@@ -46,17 +111,29 @@ public final class Actor extends Thread {
 		this.state = nstate;
 		return this;
 	}
+
+	/**
+	 * Start this actor. Messages sent to the actor before it is started are
+	 * held in its mailbox until then.
+	 */
+	public void start() {
+		started = true;
+		if (mailbox.size() != 0) {
+			schedule();
+		}
+	}
 	
 	/**
-	 * Send a message asynchronously to this actor. If the mailbox is full, then
-	 * this will in fact block.
+	 * Send a message asynchronously to this actor. If the mailbox is bounded
+	 * and full, then this will block until space is available.
 	 * 
 	 * @param method --- the "message"
 	 * @param arguments --- the message "arguments"
 	 */
 	public void asyncSend(Method method, Object[] arguments) {		
 		arguments[0] = this;		
-		queue.add(new Message(method,arguments,false));
+		post(new Message(method, arguments, false));
+		schedule();
 	}
 
 	/**
@@ -69,15 +146,14 @@ public final class Actor extends Thread {
 	 *            --- the message "arguments"
 	 */
 	public void vSyncSend(Method method, Object[] arguments) {
-		arguments[0] = this;
-		Message m = new Message(method, arguments, true);
-		queue.add(m);
-		m.get(); // discard return value
+		syncSend(method, arguments); // discard return value
 	}
 	
 	/**
 	 * Send a message synchronously to this actor. This will block the sender
-	 * until the message is received, and a return value generated.
+	 * until the message is received, and a return value generated. Any
+	 * exception raised whilst processing the message is rethrown in the
+	 * sender.
 	 * 
 	 * @param method
 	 *            --- the "message"
@@ -86,46 +162,263 @@ public final class Actor extends Thread {
 	 */
 	public Object syncSend(Method method, Object[] arguments) {
 		arguments[0] = this;
-		Message m = new Message(method,arguments,true);
-		queue.add(m);
+		Message m = new Message(method, arguments, true);
+		post(m);
+		waiting.incrementAndGet();
+		try {
+			while (!m.ready) {
+				if (claim() || await(m)) {
+					// the actor is idle or waiting to be run, so process the
+					// message ourselves.
+					drain(m);
+				}
+			}
+		} finally {
+			waiting.decrementAndGet();
+		}
 		return m.get();
 	}
-		
-	public void run() {		
-		// this is where the action happens
-		while(1==1) {
-			try {
-				Message m = queue.take();
-				Object r = m.method.invoke(null, m.arguments);
-				if(m.synchronous){
-					m.set(r);
-				} 
-			} catch(InterruptedException e) {
-				// do nothing I guess
-			} catch(IllegalAccessException e) {
-				// do nothing I guess
-			} catch(InvocationTargetException ex) {
-				// not sure what to do!
-				Throwable e = ex.getCause();
-				if(e instanceof RuntimeException) {
-					RuntimeException re = (RuntimeException) e;
-					throw re;
+
+	/**
+	 * Wait until either the given message has been processed, this actor is
+	 * released, or it can be withdrawn from the run queue.
+	 * 
+	 * @param m
+	 * @return true if the actor was withdrawn from the run queue, in which
+	 *         case the caller holds the claim.
+	 */
+	private boolean await(Message m) {
+		Scheduler.blocking();
+		try {
+			synchronized (waiters) {
+				while (!m.ready && (scheduled.get() || !started)) {
+					if (Scheduler.withdraw(this)) {
+						return true;
+					}
+					try {
+						waiters.wait();
+					} catch (InterruptedException e) {
+					}
 				}
-				// do nothing I guess
 			}
+		} finally {
+			Scheduler.unblocked();
 		}
+		return false;
 	}
-	
+
+	/**
+	 * Determine the number of messages currently waiting in this actor's
+	 * mailbox.
+	 * 
+	 * @return
+	 */
+	public int mailboxDepth() {
+		return mailbox.size();
+	}
+
+	/**
+	 * Determine the number of messages this actor has processed.
+	 * 
+	 * @return
+	 */
+	public long messagesProcessed() {
+		return processed.sum();
+	}
+
+	/**
+	 * Determine the average time (in nanoseconds) a message spent in this
+	 * actor's mailbox before being processed.
+	 * 
+	 * @return
+	 */
+	public long averageLatency() {
+		long n = processed.sum();
+		return n == 0 ? 0 : totalLatency.sum() / n;
+	}
+
+	/**
+	 * Determine the longest time (in nanoseconds) a message spent in this
+	 * actor's mailbox before being processed.
+	 * 
+	 * @return
+	 */
+	public long maxLatency() {
+		return maxLatency.get();
+	}
+
 	public String toString() {
 		return state + "@" + System.identityHashCode(this);
 	}
+
+	/**
+	 * Place a message into the mailbox, blocking if it is full.
+	 * 
+	 * @param m
+	 */
+	private void post(Message m) {
+		if (!mailbox.offer(m)) {
+			mailbox.put(m);
+		}
+	}
+
+	/**
+	 * Attempt to claim this actor for running. At most one thread may hold the
+	 * claim at any time, which ensures messages are processed one at a time.
+	 * 
+	 * @return true if the claim succeeded.
+	 */
+	private boolean claim() {
+		return started && scheduled.compareAndSet(false, true);
+	}
+
+	private void schedule() {
+		if (claim()) {
+			Scheduler.submit(this);
+			notifyWaiters();
+		}
+	}
+
+	/**
+	 * Wake any synchronous senders waiting on this actor, so they can check
+	 * for a reply or withdraw the actor from the run queue.
+	 */
+	private void notifyWaiters() {
+		if (waiting.get() != 0) {
+			synchronized (waiters) {
+				waiters.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Process messages from the mailbox, and then release the claim on this
+	 * actor. If further messages remain, the actor is rescheduled. This must
+	 * only be called by the thread holding the claim.
+	 * 
+	 * @param until
+	 *            --- if not null, process messages up to and including this
+	 *            one; otherwise, process at most one batch of messages.
+	 */
+	void drain(Message until) {
+		int count = 0;
+		while (until == null ? count != Scheduler.BATCH_SIZE : !until.ready) {
+			Message m = mailbox.poll();
+			if (m == null) {
+				break;
+			}
+			dispatch(m);
+			count = count + 1;
+		}
+		scheduled.set(false);
+		if (mailbox.size() != 0) {
+			schedule();
+		}
+	}
+
+	private void dispatch(Message m) {
+		long latency = System.nanoTime() - m.posted;
+		processed.increment();
+		totalLatency.add(latency);
+		maxLatency.accumulate(latency);
+		try {
+			Object r = Util.invoke(m.method, m.arguments);
+			if (m.synchronous) {
+				m.set(r);
+				notifyWaiters();
+			}
+		} catch (RuntimeException e) {
+			failed(m, e);
+		} catch (Error e) {
+			failed(m, e);
+		}
+	}
+
+	private void failed(Message m, Throwable e) {
+		if (m.synchronous) {
+			m.fail(e);
+			notifyWaiters();
+		} else {
+			// nobody is waiting for this message, so report the failure in
+			// the same way as an uncaught exception on this thread.
+			Thread t = Thread.currentThread();
+			t.getUncaughtExceptionHandler().uncaughtException(t, e);
+		}
+	}
+
+	/**
+	 * A mailbox is a queue of messages which may be shared between threads,
+	 * and which is optionally bounded.
+	 */
+	private static final class Mailbox {
+		private final ConcurrentLinkedQueue<Message> queue = new ConcurrentLinkedQueue<Message>();
+		private final AtomicInteger size = new AtomicInteger(0);
+		private final int capacity;
+
+		public Mailbox(int capacity) {
+			this.capacity = capacity;
+		}
+
+		public boolean offer(Message m) {
+			while (true) {
+				int n = size.get();
+				if (capacity != 0 && n >= capacity) {
+					return false;
+				} else if (size.compareAndSet(n, n + 1)) {
+					break;
+				}
+			}
+			queue.offer(m);
+			return true;
+		}
+
+		/**
+		 * Place a message into the mailbox, waiting until space is available.
+		 * 
+		 * @param m
+		 */
+		public void put(Message m) {
+			Scheduler.blocking();
+			try {
+				synchronized (this) {
+					while (!offer(m)) {
+						try {
+							wait();
+						} catch (InterruptedException e) {
+						}
+					}
+				}
+			} finally {
+				Scheduler.unblocked();
+			}
+		}
+
+		public Message poll() {
+			Message m = queue.poll();
+			if (m != null) {
+				size.decrementAndGet();
+				if (capacity != 0) {
+					synchronized (this) {
+						notifyAll();
+					}
+				}
+			}
+			return m;
+		}
+
+		public int size() {
+			return size.get();
+		}
+	}
 	
-	private final static class Message {
+	final static class Message {
 		public final Method method;
 		public final Object[] arguments;
 		public final boolean synchronous;
+		public final long posted = System.nanoTime();
 		public volatile boolean ready = false;
 		public volatile Object result;
+		public volatile Throwable failure;
 		
 		public Message(Method method, Object[] arguments, boolean synchronous) {
 			this.method = method;
@@ -133,13 +426,35 @@ public final class Actor extends Thread {
 			this.synchronous = synchronous;			
 		}				
 		
-		public synchronized Object get() {
-			while(!ready) {
-				try {
-					wait();
-				} catch(InterruptedException e) {				
+		/**
+		 * Wait for this message to be processed, and return the result.
+		 * 
+		 * @return
+		 */
+		public Object get() {
+			synchronized (this) {
+				if (!ready) {
+					Scheduler.blocking();
+					try {
+						while (!ready) {
+							try {
+								wait();
+							} catch (InterruptedException e) {
+							}
+						}
+					} finally {
+						Scheduler.unblocked();
+					}
 				}
 			}
+			Throwable e = failure;
+			if (e instanceof RuntimeException) {
+				throw (RuntimeException) e;
+			} else if (e instanceof Error) {
+				throw (Error) e;
+			} else if (e != null) {
+				throw new RuntimeException(e);
+			}
 			return result;
 		}
 		
@@ -148,5 +463,11 @@ public final class Actor extends Thread {
 			this.ready = true;
 			notifyAll();
 		}
+
+		public synchronized void fail(Throwable failure) {
+			this.failure = failure;
+			this.ready = true;
+			notifyAll();
+		}
 	}
 }
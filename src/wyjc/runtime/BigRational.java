@@ -27,8 +27,27 @@ package wyjc.runtime;
 
 import java.math.BigInteger;
 import java.math.BigDecimal;
-import java.util.Random;
 
+/**
+ * <p>
+ * An arbitrary precision rational number. Most rationals arising in practice
+ * have small numerators and denominators and, hence, these are held directly
+ * as <code>long</code>s. Only when a numerator or denominator exceeds
+ * <code>SMALL</code> in magnitude are they held as <code>BigInteger</code>s.
+ * Since the components of a small rational fit in 31 bits, the intermediate
+ * products and sums computed by arithmetic on small rationals always fit in
+ * a <code>long</code>. Thus, overflow is detected simply by checking whether
+ * the (normalised) result is still small.
+ * </p>
+ * 
+ * <p>
+ * Small rationals are always normalised (i.e. their numerator and denominator
+ * are coprime, and the denominator is positive). Large rationals produced by
+ * arithmetic are normalised lazily, when they are first inspected or used as
+ * an operand. This avoids computing the gcd for those which are only compared
+ * or discarded.
+ * </p>
+ */
 public final class BigRational extends Number implements Comparable<BigRational> {	
 	private static final BigRational[] cache = new BigRational[20];
 
@@ -36,95 +55,94 @@ public final class BigRational extends Number implements Comparable<BigRational>
 	public static final BigRational ZERO = BigRational.valueOf(0);
 	public static final BigRational ONE = BigRational.valueOf(1);
 	
-	private final BigInteger numerator;
-	private final BigInteger denominator;
+	/**
+	 * The largest magnitude of a numerator or denominator in the small
+	 * representation.
+	 */
+	private static final long SMALL = Integer.MAX_VALUE;
+	
+	/**
+	 * The numerator and denominator of a small rational. These are meaningless
+	 * for a large rational.
+	 */
+	private final long num;
+	private final long den;
+	
+	/**
+	 * The numerator and denominator of a large rational, or <code>null</code>
+	 * for a small rational. This is replaced by its normalised form when
+	 * first required.
+	 */
+	private Big big;
+	
+	/**
+	 * The cached hash code, or zero if not yet computed.
+	 */
+	private int hash;
 
 	public BigRational(String val) {		
-		int idx = val.indexOf('.');
-		if(idx > 0) {
-			String lhs = val.substring(0,idx);
-			String rhs = val.substring(idx+1);
-			BigInteger num = new BigInteger(lhs + rhs);			
-			BigInteger den = BigInteger.valueOf(10).pow(rhs.length());			
-			BigInteger gcd = num.gcd(den);			
-			if(!gcd.equals(BigInteger.ONE)) {
-				num = num.divide(gcd);
-				den = den.divide(gcd);
-			}
-			
-			// normalise sign.
-			BigInteger zero = BigInteger.ZERO;
-			if(zero.compareTo(num) > 0 && zero.compareTo(den) >= 0) {
-				num = num.negate();
-				den = den.negate();
-			} else if(zero.compareTo(den) == 0) {
-				num = BigInteger.ZERO;
-				den = BigInteger.ZERO;
-			}
-			
-			// done, assign final fields.
-			numerator = num;
-			denominator = den;			
-		} else {
-			numerator = new BigInteger(val);
-			denominator = BigInteger.valueOf(1);
-		}		
+		this(parse(val));
 	}
 	
 	public BigRational(BigDecimal dec) {
-		this(dec.unscaledValue(),BigInteger.TEN.pow(dec.scale()));
+		this(valueOf(dec.unscaledValue(),BigInteger.TEN.pow(dec.scale())));
 	}
 	
 	public BigRational(BigInteger numerator) {
-		this.numerator = numerator;
-		this.denominator = BigInteger.ONE;
+		this(valueOf(numerator));
 	}
 	
 	public BigRational(BigInteger numerator, BigInteger denominator) {			
-		BigInteger gcd = numerator.gcd(denominator);		
-		if(!gcd.equals(BigInteger.ONE)) {
-			numerator = numerator.divide(gcd);
-			denominator = denominator.divide(gcd);
-		}
-		
-		// normalise sign.
-		BigInteger zero = BigInteger.ZERO;
-		if(zero.compareTo(denominator) > 0) {
-			numerator = numerator.negate();
-			denominator = denominator.negate();
-		} else if(zero.compareTo(denominator) == 0) {
-			numerator = BigInteger.ZERO;
-			denominator = BigInteger.ZERO;
-		}
-		
-		// done, assign final fields.
-		this.numerator = numerator;
-		this.denominator = denominator;
+		this(valueOf(numerator,denominator));
 	}
 
 	public BigRational(int numerator, int denominator) {
-		this(BigInteger.valueOf(numerator),BigInteger.valueOf(denominator));
+		this(valueOf(numerator,denominator));
 	}
 	
 	public BigRational(byte[] numbytes) {
-		this.numerator = new BigInteger(numbytes);
-		this.denominator = BigInteger.ONE;
+		this(valueOf(new BigInteger(numbytes)));
 	}
 	
 	public BigRational(byte[] numbytes, byte[] denbytes) {
 		this(new BigInteger(numbytes), new BigInteger(denbytes));
 	}
 	
+	private BigRational(BigRational r) {
+		this.num = r.num;
+		this.den = r.den;
+		this.big = r.big;
+	}
+	
+	private BigRational(long num, long den, Big big) {
+		this.num = num;
+		this.den = den;
+		this.big = big;
+	}
+	
+	private static BigRational parse(String val) {
+		int idx = val.indexOf('.');
+		if(idx > 0) {
+			String lhs = val.substring(0,idx);
+			String rhs = val.substring(idx+1);
+			BigInteger num = new BigInteger(lhs + rhs);			
+			BigInteger den = BigInteger.TEN.pow(rhs.length());			
+			return valueOf(num,den);
+		} else {
+			return valueOf(new BigInteger(val));
+		}
+	}
+	
 	public BigInteger numerator() {
-		return numerator;
+		return big == null ? BigInteger.valueOf(num) : big().num;
 	}
 	
 	public BigInteger denominator() {
-		return denominator;
+		return big == null ? BigInteger.valueOf(den) : big().den;
 	}
 	
 	public boolean isInteger() {		
-		return denominator.equals(BigInteger.ONE);
+		return big == null ? den == 1 : big().den.equals(BigInteger.ONE);
 	}
 	
 	/**
@@ -133,8 +151,7 @@ public final class BigRational extends Number implements Comparable<BigRational>
 	 * very imprecise.</b>
 	 */
 	public int intValue() {
-		long l = numerator.longValue();
-		return (int) (l / denominator.longValue());
+		return (int) longValue();
 	}
 	
 	/**
@@ -143,43 +160,80 @@ public final class BigRational extends Number implements Comparable<BigRational>
 	 * very imprecise.</b>
 	 */
 	public long longValue() {
-		long l = numerator.longValue();
-		return l / denominator.longValue();
+		if(big == null) {
+			return num / den;
+		}
+		return big().num.longValue() / big().den.longValue();
 	}
 	
 	public float floatValue() {
-		float l = numerator.floatValue();
-		return l / denominator.floatValue();
+		return (float) doubleValue();
 	}
 	
 	public double doubleValue() {
-		double l = numerator.doubleValue();
-		return l / denominator.doubleValue();
+		if(big == null) {
+			return ((double) num) / den;
+		}
+		return big().num.doubleValue() / big().den.doubleValue();
 	}
 	
 	public boolean equals(Object o) {
 		if (o instanceof BigRational) {
 			BigRational r = (BigRational) o;
-			return numerator.equals(r.numerator)
-					&& denominator.equals(r.denominator);
+			if(big == null && r.big == null) {
+				return num == r.num && den == r.den;
+			}
+			return hashCode() == r.hashCode()
+					&& numerator().equals(r.numerator())
+					&& denominator().equals(r.denominator());
 		}
 		return false;
 	}
 	
 	public int hashCode() {
-		return numerator.hashCode() + denominator.hashCode();
+		int h = hash;
+		if(h == 0) {
+			if(big == null) {
+				h = hash(num,den);
+			} else {
+				// The hash code must not depend upon the representation,
+				// since a normalised large rational may fit in a long.
+				Big b = big();
+				if(b.num.bitLength() < 64 && b.den.bitLength() < 64) {
+					h = hash(b.num.longValue(),b.den.longValue());
+				} else {
+					h = 31 * b.num.hashCode() + b.den.hashCode();
+				}
+			}
+			hash = h;
+		}
+		return h;
+	}
+	
+	private static int hash(long num, long den) {
+		long h = (num * 0x9E3779B97F4A7C15L) + den;
+		h ^= (h >>> 29);
+		return (int) (h ^ (h >>> 32));
 	}
 	
 	public int compareTo(BigRational r) {
-		BigInteger lhs = numerator.multiply(r.denominator);
-		BigInteger rhs = r.numerator.multiply(denominator);
+		if(big == null && r.big == null) {
+			// cannot overflow, since each product fits in 62 bits.
+			long lhs = num * r.den;
+			long rhs = r.num * den;
+			return lhs < rhs ? -1 : (lhs == rhs ? 0 : 1);
+		}
+		// normalisation is not required here
+		BigInteger lhs = rawNum().multiply(r.rawDen());
+		BigInteger rhs = r.rawNum().multiply(rawDen());
 		return lhs.compareTo(rhs);
 	}
 	
 	public BigDecimal round(int maxplaces) {
 		BigDecimal number = BigDecimal.ZERO;
 		int scale = 0;
-		BigInteger num = numerator;
+		BigInteger num = numerator();
+		BigInteger denominator = denominator();
 						
 		while(maxplaces != scale && !num.equals(BigInteger.ZERO)) {			
 			if(num.compareTo(denominator) < 0) {				
@@ -202,7 +256,7 @@ public final class BigRational extends Number implements Comparable<BigRational>
      */ 
 	public String toString() {		
 		if(isInteger()) {
-			return numerator.toString() + ".0";
+			return numerator().toString() + ".0";
 		} else {
 			BigDecimal bd = round(10);
 			BigRational br = new BigRational(bd);
@@ -214,7 +268,7 @@ public final class BigRational extends Number implements Comparable<BigRational>
 				return s;
 			} else {
 
-				return "(" + numerator + "/" + denominator + ")";
+				return "(" + numerator() + "/" + denominator() + ")";
 			}
 		}
 	}
@@ -224,24 +278,24 @@ public final class BigRational extends Number implements Comparable<BigRational>
 	// =========================================================
 	
 	public BigRational add(int r) {
-		BigInteger num = numerator.add(denominator.multiply(BigInteger.valueOf(r)));
-		return new BigRational(num,denominator);
+		return add(valueOf(r));
 	}
 	
 	public BigRational add(long r) {
-		BigInteger num = numerator.add(denominator.multiply(BigInteger.valueOf(r)));
-		return new BigRational(num,denominator);
+		return add(valueOf(r));
 	}
 	
 	public BigRational add(final BigInteger r) {
-		BigInteger num = numerator.add(denominator.multiply(r));
-		return new BigRational(num,denominator);
+		return add(valueOf(r));
 	}
 	
 	public BigRational add(final BigRational r) {
-		BigInteger num = numerator.multiply(r.denominator).add(r.numerator.multiply(denominator));
-		BigInteger den = denominator.multiply(r.denominator);
-		return new BigRational(num,den);
+		if(big == null && r.big == null) {
+			return valueOf(num * r.den + r.num * den, den * r.den);
+		}
+		BigInteger num = bigNum().multiply(r.bigDen()).add(r.bigNum().multiply(bigDen()));
+		BigInteger den = bigDen().multiply(r.bigDen());
+		return lazy(num,den);
 	}
 	
 	// =========================================================
@@ -249,25 +303,25 @@ public final class BigRational extends Number implements Comparable<BigRational>
 	// =========================================================
 	
 	public BigRational subtract(int r) {
-		BigInteger num = numerator.subtract(denominator.multiply(BigInteger.valueOf(r)));
-		return new BigRational(num,denominator);
+		return subtract(valueOf(r));
 	}
 	
 	public BigRational subtract(long r) {
-		BigInteger num = numerator.subtract(denominator.multiply(BigInteger.valueOf(r)));
-		return new BigRational(num,denominator);
+		return subtract(valueOf(r));
 	}
 	
 	public BigRational subtract(final BigInteger r) {
-		BigInteger num = numerator.subtract(denominator.multiply(r));
-		return new BigRational(num,denominator);
+		return subtract(valueOf(r));
 	}
 	
 	public BigRational subtract(final BigRational r) {
-		BigInteger num = numerator.multiply(r.denominator).subtract(
-				r.numerator.multiply(denominator));
-		BigInteger den = denominator.multiply(r.denominator);
-		return new BigRational(num, den);
+		if(big == null && r.big == null) {
+			return valueOf(num * r.den - r.num * den, den * r.den);
+		}
+		BigInteger num = bigNum().multiply(r.bigDen()).subtract(
+				r.bigNum().multiply(bigDen()));
+		BigInteger den = bigDen().multiply(r.bigDen());
+		return lazy(num, den);
 	}
 	
 	// =========================================================
@@ -275,24 +329,24 @@ public final class BigRational extends Number implements Comparable<BigRational>
 	// =========================================================
 	
 	public BigRational multiply(int r) {
-		BigInteger num = numerator.multiply(BigInteger.valueOf(r));
-		return new BigRational(num,denominator);
+		return multiply(valueOf(r));
 	}
 	
 	public BigRational multiply(long r) {
-		BigInteger num = numerator.multiply(BigInteger.valueOf(r));
-		return new BigRational(num,denominator);
+		return multiply(valueOf(r));
 	}
 	
 	public BigRational multiply(final BigInteger r) {
-		BigInteger num = numerator.multiply(r);
-		return new BigRational(num,denominator);
+		return multiply(valueOf(r));
 	}
 			
 	public BigRational multiply(final BigRational r) {
-		BigInteger num = numerator.multiply(r.numerator);
-		BigInteger den = denominator.multiply(r.denominator);
-		return new BigRational(num, den);
+		if(big == null && r.big == null) {
+			return valueOf(num * r.num, den * r.den);
+		}
+		BigInteger num = bigNum().multiply(r.bigNum());
+		BigInteger den = bigDen().multiply(r.bigDen());
+		return lazy(num, den);
 	}
 	
 	// =========================================================
@@ -300,85 +354,122 @@ public final class BigRational extends Number implements Comparable<BigRational>
 	// =========================================================
 	
 	public BigRational divide(int r) {
-		BigInteger den = denominator.multiply(BigInteger.valueOf(r));
-		return new BigRational(numerator,den);
+		return divide(valueOf(r));
 	}
 	
 	public BigRational divide(long r) {
-		BigInteger den = denominator.multiply(BigInteger.valueOf(r));
-		return new BigRational(numerator,den);
+		return divide(valueOf(r));
 	}
 	
 	public BigRational divide(BigInteger r) {
-		BigInteger den = denominator.multiply(r);
-		return new BigRational(numerator,den);
+		return divide(valueOf(r));
 	}
 	
 	public BigRational divide(final BigRational r) {		
-		BigInteger num = numerator.multiply(r.denominator);
-		BigInteger den = denominator.multiply(r.numerator);
-		return new BigRational(num, den);
+		if(big == null && r.big == null) {
+			return valueOf(num * r.den, den * r.num);
+		}
+		BigInteger num = bigNum().multiply(r.bigDen());
+		BigInteger den = bigDen().multiply(r.bigNum());
+		return lazy(num, den);
 	}
 	
 	public BigRational intDivide(final BigRational r) {
-		BigInteger num = numerator.divide(r.numerator);		
-		return new BigRational(num);
+		if(big == null && r.big == null) {
+			return valueOf(num / r.num);
+		}
+		return valueOf(numerator().divide(r.numerator()));
 	}
 	
 	public BigRational intRemainder(final BigRational r) {
-		BigInteger num = numerator.remainder(r.numerator);		
-		return new BigRational(num);
+		if(big == null && r.big == null) {
+			return valueOf(num % r.num);
+		}
+		return valueOf(numerator().remainder(r.numerator()));
 	}
 	
 	// =========================================================
 	// ========================= OTHER =========================
 	// =========================================================
 	public BigRational negate() {
-		return new BigRational(numerator.negate(),denominator);
+		if(big == null) {
+			return new BigRational(-num,den,null);
+		}
+		Big b = big;
+		return new BigRational(0,0,new Big(b.num.negate(),b.den,b.normalised));
 	}
 	
+	/**
+	 * Round this rational away from zero to the nearest integer.
+	 */
 	public BigRational ceil() {		
-		BigInteger i = numerator;
-		BigInteger d = numerator.compareTo(BigInteger.ZERO) >= 0 ? BigInteger.ONE : BigInteger.valueOf(-1);
-		while (!i.divideAndRemainder(denominator)[1].equals(BigInteger.ZERO)) {
-			i = i.add(d);
-		}		
-		return new BigRational(i, denominator);
+		if(big == null) {
+			long q = num / den;
+			if(num % den != 0) {
+				q += num < 0 ? -1 : 1;
+			}
+			return valueOf(q);
+		}
+		BigInteger[] qr = numerator().divideAndRemainder(denominator());
+		BigInteger q = qr[0];
+		if(qr[1].signum() != 0) {
+			q = q.add(BigInteger.valueOf(qr[1].signum()));
+		}
+		return valueOf(q);
 	}
 	
+	/**
+	 * Round this rational towards zero to the nearest integer.
+	 */
 	public BigRational floor() {
-		BigInteger i = numerator;
-		BigInteger d = numerator.compareTo(BigInteger.ZERO) < 0 ? BigInteger.ONE : BigInteger.valueOf(-1);
-		while (!i.divideAndRemainder(denominator)[1].equals(BigInteger.ZERO)) {
-			i = i.add(d);
-		}		
-		return new BigRational(i, denominator);
+		if(big == null) {
+			return valueOf(num / den);
+		}
+		return valueOf(numerator().divide(denominator()));
 	}
 	
 	public static BigRational valueOf(int num, int den) {		
-		return new BigRational(BigInteger.valueOf(num),BigInteger.valueOf(den));		
+		return valueOf((long) num, (long) den);		
+	}
+	
+	public static BigRational valueOf(long num, long den) {
+		if(num == Long.MIN_VALUE || den == Long.MIN_VALUE) {
+			// cannot be negated
+			return valueOf(BigInteger.valueOf(num),BigInteger.valueOf(den));
+		} else if(den == 0) {
+			return new BigRational(0,0,null);
+		} else if(den < 0) {
+			num = -num;
+			den = -den;
+		}
+		long gcd = gcd(num < 0 ? -num : num, den);
+		if(gcd != 1) {
+			num = num / gcd;
+			den = den / gcd;
+		}
+		if(num <= SMALL && num >= -SMALL && den <= SMALL) {
+			return new BigRational(num,den,null);
+		}
+		return new BigRational(0, 0, new Big(BigInteger.valueOf(num),
+				BigInteger.valueOf(den), true));
 	}
 	
-	public static BigRational valueOf(long num, long den) {		
-		return new BigRational(BigInteger.valueOf(num),BigInteger.valueOf(den));		
+	/**
+	 * Construct a rational from a numerator and denominator, normalising it.
+	 */
+	public static BigRational valueOf(BigInteger num, BigInteger den) {
+		return valueOf(num, den, true);
 	}
-
+	
 	public static BigRational valueOf(BigInteger num) {		
-		return new BigRational(num);		
+		if(num.bitLength() < 32) {
+			return valueOf(num.longValue());
+		}
+		return new BigRational(0, 0, new Big(num, BigInteger.ONE, true));
 	}
 	
 	public static BigRational valueOf(int x) {
-		if(x > -10 && x <= 10) {
-			int idx = x + 9;
-			BigRational r = cache[idx];
-			if(r == null) {
-				r = new BigRational(BigInteger.valueOf(x));
-				cache[idx] = r;
-			}
-			return r;
-		} else {
-			return new BigRational(BigInteger.valueOf(x));
-		}
+		return valueOf((long) x);
 	}
 	
 	public static BigRational valueOf(long x) {
@@ -386,12 +477,14 @@ public final class BigRational extends Number implements Comparable<BigRational>
 			int idx = (int) x + 9;
 			BigRational r = cache[idx];
 			if(r == null) {
-				r = new BigRational(BigInteger.valueOf(x));
+				r = new BigRational(x,1,null);
 				cache[idx] = r;
 			}
 			return r;
+		} else if(x <= SMALL && x >= -SMALL) {
+			return new BigRational(x,1,null);
 		} else {
-			return new BigRational(BigInteger.valueOf(x));
+			return new BigRational(0,0,new Big(BigInteger.valueOf(x),BigInteger.ONE,true));
 		}
 	}
 	
@@ -429,4 +522,97 @@ public final class BigRational extends Number implements Comparable<BigRational>
 			return base.divide(exp);
 		}
 	}
+	
+	// =========================================================
+	// ======================= INTERNALS =======================
+	// =========================================================
+	
+	/**
+	 * Construct a rational from a numerator and denominator. The result is
+	 * normalised immediately if it may be small, and otherwise only when
+	 * required.
+	 */
+	private static BigRational lazy(BigInteger num, BigInteger den) {
+		return valueOf(num, den, false);
+	}
+	
+	private static BigRational valueOf(BigInteger num, BigInteger den,
+			boolean normalise) {
+		if(num.bitLength() < 63 && den.bitLength() < 63) {
+			return valueOf(num.longValue(), den.longValue());
+		} else if(den.signum() == 0) {
+			return new BigRational(0,0,null);
+		} else if(den.signum() < 0) {
+			num = num.negate();
+			den = den.negate();
+		}
+		Big b = new Big(num, den, false);
+		return new BigRational(0, 0, normalise ? b.normalise() : b);
+	}
+	
+	/**
+	 * Get the normalised form of a large rational.
+	 */
+	private Big big() {
+		Big b = big;
+		if(!b.normalised) {
+			b = b.normalise();
+			big = b;
+		}
+		return b;
+	}
+	
+	// The following give the (normalised) components of any rational as
+	// BigIntegers, for use as operands in arithmetic. 
+	
+	private BigInteger bigNum() {
+		return big == null ? BigInteger.valueOf(num) : big().num;
+	}
+	
+	private BigInteger bigDen() {
+		return big == null ? BigInteger.valueOf(den) : big().den;
+	}
+	
+	// The following give the components of any rational as BigIntegers,
+	// without normalising them.
+	
+	private BigInteger rawNum() {
+		return big == null ? BigInteger.valueOf(num) : big.num;
+	}
+	
+	private BigInteger rawDen() {
+		return big == null ? BigInteger.valueOf(den) : big.den;
+	}
+	
+	private static long gcd(long a, long b) {
+		while(b != 0) {
+			long t = a % b;
+			a = b;
+			b = t;
+		}
+		return a;
+	}
+	
+	/**
+	 * The components of a large rational. The denominator is always positive.
+	 */
+	private static final class Big {
+		public final BigInteger num;
+		public final BigInteger den;
+		public final boolean normalised;
+		
+		public Big(BigInteger num, BigInteger den, boolean normalised) {
+			this.num = num;
+			this.den = den;
+			this.normalised = normalised;
+		}
+		
+		public Big normalise() {
+			BigInteger gcd = num.gcd(den);
+			if(gcd.equals(BigInteger.ONE)) {
+				return new Big(num, den, true);
+			}
+			return new Big(num.divide(gcd), den.divide(gcd), true);
+		}
+	}
 }
@@ -23,16 +23,34 @@ public class Collection {
 		Util.decRefs(col);
 		if(col instanceof java.util.Collection) {
 			java.util.Collection c = (java.util.Collection) col;
-			return BigInteger.valueOf(c.size());
+			return Util.valueOf(c.size());
 		} else if (col instanceof java.util.Map) {
 			java.util.Map m = (java.util.Map) col;
-			return BigInteger.valueOf(m.size());
+			return Util.valueOf(m.size());
 		} else {
 			String s = (String) col;
-			return BigInteger.valueOf(s.length());
+			return Util.valueOf(s.length());
 		}
 	}		
 	
+	/**
+	 * Determine the length of a collection which is borrowed from a variable
+	 * and, hence, whose reference count was not incremented when it was
+	 * loaded.
+	 */
+	public static BigInteger borrowed_length(Object col) {
+		if(col instanceof java.util.Collection) {
+			java.util.Collection<?> c = (java.util.Collection<?>) col;
+			return Util.valueOf(c.size());
+		} else if (col instanceof java.util.Map) {
+			java.util.Map<?,?> m = (java.util.Map<?,?>) col;
+			return Util.valueOf(m.size());
+		} else {
+			String s = (String) col;
+			return Util.valueOf(s.length());
+		}
+	}
+	
 	public static final class StringIterator implements java.util.Iterator {
 		public final String string;
 		public int index;
@@ -69,4 +87,17 @@ public class Collection {
 			return s.charAt(index.intValue());
 		}
 	}
+	
+	/**
+	 * Index a list using an unboxed index, as happens when the index is the
+	 * variable of a loop over a list of integers which is used for nothing
+	 * else.
+	 * 
+	 * @param col
+	 * @param index
+	 * @return
+	 */
+	public static Object indexOf(Object col, int index) {
+		return ((List) col).get(index);
+	}
 }
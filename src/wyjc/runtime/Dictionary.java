@@ -36,7 +36,32 @@ public final class Dictionary extends java.util.HashMap<Object,Object> {
 	 * <code>1</code> we can safely perform an in-place update of the structure.
 	 */
 	int refCount = 1; 
+	
+	/**
+	 * Identifies the most recent (compiled) type test which this dictionary is known
+	 * to pass, or <code>null</code> if none. This allows repeated tests of the
+	 * same value to be answered immediately, and is cleared whenever the dictionary is
+	 * updated in place.
+	 */
+	Object typeTest;
 
+	/**
+	 * A dictionary may be <i>persistent</i>, in which case its entries are
+	 * held in a persistent map rather than the underlying <code>HashMap</code>.
+	 * Copying a persistent dictionary (e.g. to update a dictionary which is
+	 * shared) does not copy its entries, and subsequent updates to either
+	 * copy take logarithmic time.
+	 */
+	private PersistentMap persistent;
+	
+	/**
+	 * A cached copy of this dictionary's keys in sorted order, or
+	 * <code>null</code> if not yet computed. This is used for printing and
+	 * comparing dictionaries, and is discarded whenever a key is added or
+	 * removed.
+	 */
+	private Object[] sortedKeys;
+	
 	// ================================================================================
 	// Generic Operations
 	// ================================================================================	 	
@@ -46,28 +71,77 @@ public final class Dictionary extends java.util.HashMap<Object,Object> {
 	}
 	
 	Dictionary(Dictionary dict) {
-		super(dict);
-		for(Map.Entry e : dict.entrySet()) {
-			Util.incRefs(e.getKey());
-			Util.incRefs(e.getValue());
+		super(dict.persistent != null ? Collections.emptyMap() : dict);
+		if(dict.persistent != null) {
+			// NOTE: copying a persistent dictionary need not increment the
+			// reference counts of its entries (see PersistentMap).
+			persistent = dict.persistent.share();
+		} else {
+			for(Map.Entry<Object,Object> e : dict.entrySet()) {
+				Util.incRefs(e.getKey());
+				Util.incRefs(e.getValue());
+			}
+		}
+	}
+	
+	/**
+	 * Construct an empty persistent dictionary.
+	 * 
+	 * @return
+	 */
+	public static Dictionary persistent() {
+		Dictionary r = new Dictionary();
+		r.persistent = new PersistentMap();
+		return r;
+	}
+	
+	/**
+	 * Determine the number of entries copied when this dictionary is cloned.
+	 * None are copied for a persistent dictionary, since its map is shared
+	 * instead.
+	 * 
+	 * @return
+	 */
+	int cloneSize() {
+		return persistent != null ? 0 : size();
+	}
+	
+	/**
+	 * Decrement the reference counts of this dictionary's keys and values, as
+	 * happens when it is no longer referenced. For a persistent dictionary,
+	 * only those entries which it holds exclusively are decremented (see
+	 * PersistentMap).
+	 */
+	void releaseItems() {
+		if(persistent != null) {
+			persistent.release();
+		} else {
+			for(Map.Entry<Object,Object> e : entrySet()) {
+				Util.decRefs(e.getKey());
+				Util.decRefs(e.getValue());
+			}
 		}
 	}
 	
 	public String toString() {
-		String r = "{";
+		StringBuilder r = new StringBuilder();
+		toString(r);
+		return r.toString();
+	}
+	
+	public void toString(StringBuilder r) {
+		r.append('{');
 		boolean firstTime=true;
-		ArrayList ss = new ArrayList(this.keySet());
-		Collections.sort(ss,Util.COMPARATOR);
-
-		for(Object key : ss) {
+		for(Object key : sortedKeys()) {
 			if(!firstTime) {
-				r = r + ", ";
+				r.append(", ");
 			}
 			firstTime=false;
-			Object val = get(key);			
-			r = r + whiley.lang.Any$native.toString(key) + "=>" + val;
+			whiley.lang.Any$native.toString(key,r);
+			r.append("=>");
+			r.append(get(key));
 		}
-		return r + "}";
+		r.append('}');
 	} 
 	
 	public java.util.Iterator iterator() {
@@ -93,7 +167,7 @@ public final class Dictionary extends java.util.HashMap<Object,Object> {
 			Util.decRefs(dict);
 			dict = new Dictionary(dict);			
 		} else {
-			Util.ndict_inplace_updates++;
+			Util.inplaceUpdate(dict);
 		}
 		Object val = dict.put(key, value);
 		if(val != null) {
@@ -107,7 +181,7 @@ public final class Dictionary extends java.util.HashMap<Object,Object> {
 	
 	public static BigInteger length(Dictionary dict) {
 		Util.decRefs(dict);
-		return BigInteger.valueOf(dict.size());
+		return Util.valueOf(dict.size());
 	}
 	
 	public static final class Iterator implements java.util.Iterator {
@@ -142,9 +216,194 @@ public final class Dictionary extends java.util.HashMap<Object,Object> {
 	public static Object internal_get(Dictionary dict, Object key) {	
 		Util.decRefs(key);
 		Object item = dict.get(key);
-		if(dict.refCount > 1) {
+		if(dict.refCount > 1
+				|| (dict.persistent != null && dict.persistent.isShared(key))) {
 			Util.incRefs(item);			
 		} 
 		return item;
 	}
+	
+	/**
+	 * Get the keys of this dictionary in sorted order (according to
+	 * <code>Util.COMPARATOR</code>). The array returned is cached and must not
+	 * be modified.
+	 * 
+	 * @return
+	 */
+	Object[] sortedKeys() {
+		if(sortedKeys == null) {
+			Object[] r = keySet().toArray();
+			Arrays.sort(r,Util.COMPARATOR);
+			sortedKeys = r;
+		}
+		return sortedKeys;
+	}
+	
+	// ================================================================================
+	// HashMap Overrides
+	// ================================================================================	 
+	
+	// The following operations are answered by the persistent map, for a
+	// persistent dictionary.
+	
+	public int size() {
+		return persistent != null ? persistent.size() : super.size();
+	}
+	
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+	
+	public Object get(Object key) {
+		return persistent != null ? persistent.get(key) : super.get(key);
+	}
+	
+	public boolean containsKey(Object key) {
+		return persistent != null ? persistent.containsKey(key) : super
+				.containsKey(key);
+	}
+	
+	public boolean containsValue(Object value) {
+		if(persistent != null) {
+			for(Object v : values()) {
+				if(v == value || (v != null && v.equals(value))) {
+					return true;
+				}
+			}
+			return false;
+		}
+		return super.containsValue(value);
+	}
+	
+	public Object put(Object key, Object value) {
+		if(sortedKeys != null && !containsKey(key)) {
+			sortedKeys = null;
+		}
+		return persistent != null ? persistent.put(key, value) : super.put(
+				key, value);
+	}
+	
+	public void putAll(Map<? extends Object, ? extends Object> m) {
+		sortedKeys = null;
+		if(persistent != null) {
+			for(Map.Entry<? extends Object, ? extends Object> e : m.entrySet()) {
+				persistent.put(e.getKey(), e.getValue());
+			}
+		} else {
+			super.putAll(m);
+		}
+	}
+	
+	public Object remove(Object key) {
+		sortedKeys = null;
+		if(persistent != null) {
+			persistent.remove(key);
+			return persistent.removed();
+		}
+		return super.remove(key);
+	}
+	
+	public void clear() {
+		sortedKeys = null;
+		if(persistent != null) {
+			persistent = new PersistentMap();
+		} else {
+			super.clear();
+		}
+	}
+	
+	public java.util.Set<Object> keySet() {
+		if(persistent != null) {
+			return new AbstractSet<Object>() {
+				public java.util.Iterator<Object> iterator() {
+					return new EntryIterator<Object>(persistent.iterator()) {
+						protected Object get(Object[] entry) {
+							return entry[0];
+						}
+					};
+				}
+				public int size() {
+					return persistent.size();
+				}
+				public boolean contains(Object o) {
+					return persistent.containsKey(o);
+				}
+			};
+		}
+		return super.keySet();
+	}
+	
+	public java.util.Collection<Object> values() {
+		if(persistent != null) {
+			return new AbstractCollection<Object>() {
+				public java.util.Iterator<Object> iterator() {
+					return new EntryIterator<Object>(persistent.iterator()) {
+						protected Object get(Object[] entry) {
+							return entry[1];
+						}
+					};
+				}
+				public int size() {
+					return persistent.size();
+				}
+			};
+		}
+		return super.values();
+	}
+	
+	public java.util.Set<Map.Entry<Object,Object>> entrySet() {
+		if(persistent != null) {
+			return new AbstractSet<Map.Entry<Object,Object>>() {
+				public java.util.Iterator<Map.Entry<Object,Object>> iterator() {
+					return new EntryIterator<Map.Entry<Object,Object>>(persistent.iterator()) {
+						protected Map.Entry<Object,Object> get(Object[] entry) {
+							return new AbstractMap.SimpleImmutableEntry<Object,Object>(
+									entry[0], entry[1]);
+						}
+					};
+				}
+				public int size() {
+					return persistent.size();
+				}
+			};
+		}
+		return super.entrySet();
+	}
+	
+	public Object clone() {
+		Dictionary r = (Dictionary) super.clone();
+		if(persistent != null) {
+			r.persistent = persistent.share();
+		}
+		return r;
+	}
+	
+	/**
+	 * Iterates the keys, values or entries of a persistent dictionary.
+	 */
+	private static abstract class EntryIterator<T> implements java.util.Iterator<T> {
+		private final java.util.Iterator<Object[]> iter;
+		
+		public EntryIterator(java.util.Iterator<Object[]> iter) {
+			this.iter = iter;
+		}
+		
+		public boolean hasNext() {
+			return iter.hasNext();
+		}
+		
+		public T next() {
+			return get(iter.next());
+		}
+		
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+		
+		/**
+		 * Determine the element to return for a given entry (i.e. a key and
+		 * value pair) of the persistent map.
+		 */
+		protected abstract T get(Object[] entry);
+	}
 }
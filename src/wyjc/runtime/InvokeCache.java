@@ -0,0 +1,78 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//    * Redistributions of source code must retain the above copyright
+//      notice, this list of conditions and the following disclaimer.
+//    * Redistributions in binary form must reproduce the above copyright
+//      notice, this list of conditions and the following disclaimer in the
+//      documentation and/or other materials provided with the distribution.
+//    * Neither the name of the <organization> nor the
+//      names of its contributors may be used to endorse or promote products
+//      derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL DAVID J. PEARCE BE LIABLE FOR ANY
+// DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+// ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package wyjc.runtime;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.reflect.Method;
+
+/**
+ * <p>
+ * An inline cache for a single indirect invocation site in generated code.
+ * Each such site is given its own cache, held in a static field of the
+ * generated class. The cache remembers the method last invoked at the site,
+ * along with its method handle (see <code>Util.invoke()</code>), and so a
+ * site which always invokes the same method never consults the shared
+ * table of method handles.
+ * </p>
+ * 
+ * <p>
+ * The method and its handle are held together in a single immutable entry,
+ * so that threads racing on the same site always see a consistent pair.
+ * </p>
+ */
+public final class InvokeCache {
+	private volatile Entry last;
+	
+	/**
+	 * Invoke a function, method or message (as returned by
+	 * <code>functionRef</code>) with a given array of arguments.
+	 * 
+	 * @param method
+	 *            --- the method to invoke, which must be static.
+	 * @param arguments
+	 *            --- the arguments to pass.
+	 * @return
+	 */
+	public Object invoke(Method method, Object[] arguments) {
+		Entry entry = last;
+		if (entry == null
+				|| (entry.method != method && !entry.method.equals(method))) {
+			entry = new Entry(method, Util.handle(method));
+			last = entry;
+		}
+		return Util.invoke(entry.handle, arguments);
+	}
+	
+	private static final class Entry {
+		private final Method method;
+		private final MethodHandle handle;
+		
+		public Entry(Method method, MethodHandle handle) {
+			this.method = method;
+			this.handle = handle;
+		}
+	}
+}
@@ -29,7 +29,7 @@ import java.math.BigInteger;
 import java.util.Collections;
 import java.util.Map;
 
-public final class List extends java.util.ArrayList {		
+public final class List extends java.util.ArrayList<Object> {		
 	/**
 	 * The reference count is use to indicate how many variables are currently
 	 * referencing this compound structure. This is useful for making imperative
@@ -38,6 +38,26 @@ public final class List extends java.util.ArrayList {
 	 */
 	int refCount = 1; 
 	
+	/**
+	 * Identifies the most recent (compiled) type test which this list is known
+	 * to pass, or <code>null</code> if none. This allows repeated tests of the
+	 * same value to be answered immediately, and is cleared whenever the list is
+	 * updated in place.
+	 */
+	Object typeTest;
+	
+	/**
+	 * A list may have a <i>compact</i> representation, in which case its
+	 * elements are not stored in the underlying <code>ArrayList</code>.
+	 * Instead, they are stored unboxed in a primitive array, in a persistent
+	 * vector or, in the case of a range (i.e. as produced by
+	 * <code>Util.range</code>), not stored at all. A compact list can be
+	 * sized, indexed, iterated and (provided the values being stored fit)
+	 * updated in place without being materialised. Any other operation
+	 * materialises it first, after which it behaves as a normal list.
+	 */
+	private Compact compact;
+	
 	// ================================================================================
 	// Generic Operations
 	// ================================================================================	 	
@@ -50,24 +70,258 @@ public final class List extends java.util.ArrayList {
 		super(size);			
 	}
 	
-	List(java.util.Collection items) {
-		super(items);			
-		for(Object o : items) {
-			Util.incRefs(o);
+	List(java.util.Collection<?> items) {
+		this(compactOf(items), items);
+	}
+	
+	private List(Compact compact, java.util.Collection<?> items) {
+		super(compact != null ? Collections.emptyList() : items);
+		if(compact != null) {
+			// NOTE: copying a compact list need not increment the reference
+			// counts of its elements (see PersistentVector).
+			this.compact = compact.copy();
+		} else {
+			for(Object o : items) {
+				Util.incRefs(o);
+			}
+		}
+	}
+	
+	private List(Compact compact) {
+		super(0);
+		this.compact = compact;
+	}
+	
+	/**
+	 * Construct a lazy range of integers from <code>start</code> up to, but not
+	 * including, <code>end</code>. If <code>end</code> is less than
+	 * <code>start</code>, then the range is descending.
+	 * 
+	 * @param start
+	 * @param end
+	 */
+	static List range(long start, long end) {
+		return new List(new Range(start, start <= end ? 1 : -1,
+				(int) Math.abs(end - start)));
+	}
+	
+	/**
+	 * Construct an empty list of bytes, stored unboxed.
+	 * 
+	 * @param capacity
+	 * @return
+	 */
+	public static List byteList(int capacity) {
+		return new List(new Bytes(new byte[capacity], 0));
+	}
+	
+	/**
+	 * Construct an empty list of characters, stored unboxed.
+	 * 
+	 * @param capacity
+	 * @return
+	 */
+	public static List charList(int capacity) {
+		return new List(new Chars(new char[capacity], 0));
+	}
+	
+	/**
+	 * Construct an empty list of integers, stored unboxed for as long as its
+	 * elements fit into a <code>long</code>.
+	 * 
+	 * @param capacity
+	 * @return
+	 */
+	public static List intList(int capacity) {
+		return new List(new Longs(new long[capacity], 0));
+	}
+	
+	/**
+	 * Construct an empty persistent list. Copying a persistent list (e.g. to
+	 * update a list which is shared) does not copy its elements, and
+	 * subsequent updates to either copy take logarithmic time.
+	 * 
+	 * @return
+	 */
+	public static List persistent() {
+		return new List(new Persistent(new PersistentVector()));
+	}
+	
+	/**
+	 * Construct a list of bytes from the first <code>length</code> bytes of a
+	 * given array. The array is not copied, and must not subsequently be
+	 * modified.
+	 * 
+	 * @param bytes
+	 * @param length
+	 * @return
+	 */
+	public static List valueOf(byte[] bytes, int length) {
+		return new List(new Bytes(bytes, length));
+	}
+	
+	/**
+	 * Construct a list of characters from the first <code>length</code>
+	 * characters of a given array. The array is not copied, and must not
+	 * subsequently be modified.
+	 * 
+	 * @param chars
+	 * @param length
+	 * @return
+	 */
+	public static List valueOf(char[] chars, int length) {
+		return new List(new Chars(chars, length));
+	}
+	
+	/**
+	 * Construct a list of integers from the first <code>length</code> values
+	 * of a given array. The array is not copied, and must not subsequently be
+	 * modified.
+	 * 
+	 * @param values
+	 * @param length
+	 * @return
+	 */
+	public static List valueOf(long[] values, int length) {
+		return new List(new Longs(values, length));
+	}
+	
+	/**
+	 * Determine whether or not this list currently has a compact
+	 * representation.
+	 * 
+	 * @return
+	 */
+	public boolean isCompact() {
+		return compact != null;
+	}
+	
+	/**
+	 * Convert this list of bytes into a byte array. For a compact list of
+	 * bytes, this does not need to unbox each element.
+	 * 
+	 * @return
+	 */
+	public byte[] toByteArray() {
+		if(compact instanceof Bytes) {
+			Bytes bs = (Bytes) compact;
+			return java.util.Arrays.copyOf(bs.data, bs.size);
+		}
+		byte[] r = new byte[size()];
+		for(int i=0;i!=r.length;++i) {
+			r[i] = (Byte) get(i);
+		}
+		return r;
+	}
+	
+	/**
+	 * Obtain a read-only buffer over this list of bytes. For a compact list of
+	 * bytes, this does not copy them.
+	 * 
+	 * @return
+	 */
+	public java.nio.ByteBuffer toByteBuffer() {
+		if(compact instanceof Bytes) {
+			Bytes bs = (Bytes) compact;
+			return java.nio.ByteBuffer.wrap(bs.data, 0, bs.size)
+					.asReadOnlyBuffer();
+		}
+		return java.nio.ByteBuffer.wrap(toByteArray());
+	}
+	
+	private static Compact compactOf(java.util.Collection<?> items) {
+		return items instanceof List ? ((List) items).compact : null;
+	}
+	
+	/**
+	 * Convert a compact list into a normal list by actually storing its
+	 * elements. This must happen before any operation which cannot be
+	 * performed on the compact representation.
+	 */
+	private void materialise() {
+		if(compact != null) {
+			Compact c = compact;
+			compact = null;
+			int size = c.size();
+			super.ensureCapacity(size);
+			for(int i=0;i!=size;++i) {
+				Object item = c.get(i);
+				if(c.isShared(i)) {
+					Util.incRefs(item);
+				}
+				super.add(item);
+			}
+		}
+	}
+	
+	/**
+	 * Determine whether the element at a given index may be reachable from
+	 * another list without being accounted for in its reference count, as
+	 * happens for a persistent list which has been copied.
+	 * 
+	 * @param index
+	 * @return
+	 */
+	boolean isShared(int index) {
+		return compact != null && compact.isShared(index);
+	}
+	
+	/**
+	 * Determine the number of elements copied when this list is cloned. None
+	 * are copied for a persistent list, since its vector is shared instead.
+	 * 
+	 * @return
+	 */
+	int cloneSize() {
+		return compact instanceof Persistent ? 0 : size();
+	}
+	
+	/**
+	 * Decrement the reference counts of this list's elements, as happens when
+	 * it is no longer referenced.
+	 */
+	void releaseItems() {
+		if(compact != null) {
+			compact.release();
+		} else {
+			for(Object o : this) {
+				Util.decRefs(o);
+			}
+		}
+	}
+	
+	/**
+	 * Decrement the reference counts of the elements between two indices,
+	 * which are about to be removed.
+	 * 
+	 * @param from
+	 * @param to
+	 */
+	private void releaseItems(int from, int to) {
+		for(int i=from;i!=to;++i) {
+			if(!isShared(i)) {
+				Util.decRefs(get(i));
+			}
 		}
 	}
 	
 	public String toString() {
-		String r = "[";
+		StringBuilder r = new StringBuilder();
+		toString(r);
+		return r.toString();
+	}
+	
+	public void toString(StringBuilder r) {
+		r.append('[');
 		boolean firstTime=true;
 		for(Object o : this) {
 			if(!firstTime) {
-				r += ", ";
+				r.append(", ");
 			}
 			firstTime=false;
-			r += whiley.lang.Any$native.toString(o);
+			whiley.lang.Any$native.toString(o,r);
 		}
-		return r + "]";
+		r.append(']');
 	}
 	
 	// ================================================================================
@@ -88,7 +342,7 @@ public final class List extends java.util.ArrayList {
 			Util.decRefs(list);			
 			list = new List(list);						
 		} else {
-			Util.nlist_inplace_updates++;
+			Util.inplaceUpdate(list);
 		}
 		Object v = list.set(index.intValue(),value);
 		Util.decRefs(v);
@@ -102,24 +356,16 @@ public final class List extends java.util.ArrayList {
 		int en = end.intValue();	
 		
 		if(list.refCount == 1) {
-			Util.nlist_inplace_updates++;
+			Util.inplaceUpdate(list);
 			if(st <= en) {
-				for(int i=0;i!=st;++i) {
-					Util.decRefs(list.get(i));
-				}
-				for(int i=en;i!=list.size();++i) {
-					Util.decRefs(list.get(i));
-				}
+				list.releaseItems(0,st);
+				list.releaseItems(en,list.size());
 				list.removeRange(0,st);
 				list.removeRange(en-st,list.size());
 				return list;
 			} else {
-				for(int i=0;i!=en;++i) {
-					Util.decRefs(list.get(i));
-				}
-				for(int i=st;i!=list.size();++i) {
-					Util.decRefs(list.get(i));
-				}
+				list.releaseItems(0,en);
+				list.releaseItems(st,list.size());
 				list.removeRange(0,en);
 				list.removeRange(st-en,list.size());
 				Collections.reverse(list);
@@ -150,14 +396,14 @@ public final class List extends java.util.ArrayList {
 	
 	public static BigInteger length(List list) {				
 		Util.decRefs(list);
-		return BigInteger.valueOf(list.size());
+		return Util.valueOf(list.size());
 	}
 	
 	public static List append(List lhs, List rhs) {
 		Util.countRefs(lhs);
 		Util.countRefs(rhs);
 		if(lhs.refCount == 1) {
-			Util.nlist_inplace_updates++;			
+			Util.inplaceUpdate(lhs);			
 			Util.decRefs(rhs);
 		} else {
 			Util.countClone(lhs);
@@ -178,7 +424,7 @@ public final class List extends java.util.ArrayList {
 	public static List append(List list, final Object item) {
 		Util.countRefs(list);
 		if(list.refCount == 1) {
-			Util.nlist_inplace_updates++;						
+			Util.inplaceUpdate(list);						
 		} else { 
 			Util.countClone(list);
 			Util.decRefs(list); 		
@@ -192,7 +438,7 @@ public final class List extends java.util.ArrayList {
 	public static List append(final Object item, List list) {
 		Util.countRefs(list);
 		if(list.refCount == 1) {
-			Util.nlist_inplace_updates++;						
+			Util.inplaceUpdate(list);						
 		} else { 
 			Util.countClone(list);
 			Util.decRefs(list);			 	
@@ -229,14 +475,655 @@ public final class List extends java.util.ArrayList {
 	 * @return
 	 */
 	public static Object internal_get(List list, BigInteger index) {		
-		Object item = list.get(index.intValue());
-		if(list.refCount > 1) {
+		int i = index.intValue();
+		Object item = list.get(i);
+		if(list.refCount > 1 || list.isShared(i)) {
 			Util.incRefs(item);			
 		} 
 		return item;
 	}
 	
-	public static java.util.Iterator iterator(List list) {
+	/**
+	 * This method is not intended for public consumption. It is used internally
+	 * by the compiler when iterating over a list, where the index is held in an
+	 * unboxed counter. As for an iterator, no reference counts are changed.
+	 * 
+	 * @param list
+	 * @param index
+	 * @return
+	 */
+	public static Object internal_get(List list, int index) {
+		return list.get(index);
+	}
+	
+	/**
+	 * This method is not intended for public consumption. It is used internally
+	 * by the compiler when iterating over a list of integers which are only
+	 * used as indices, and which are therefore held unboxed. The element of a
+	 * range is computed without being created. An element which does not fit
+	 * in an <code>int</code> is clamped, and so still lies outside the bounds
+	 * of any list.
+	 * 
+	 * @param list
+	 * @param index
+	 * @return
+	 */
+	public static int internal_index(List list, int index) {
+		if(list.compact instanceof Range) {
+			return clamp(((Range) list.compact).value(index));
+		}
+		BigInteger value = (BigInteger) list.get(index);
+		if(value.bitLength() < 32) {
+			return value.intValue();
+		} else {
+			return value.signum() < 0 ? Integer.MIN_VALUE : Integer.MAX_VALUE;
+		}
+	}
+	
+	private static int clamp(long value) {
+		return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, value));
+	}
+	
+	public static java.util.Iterator<Object> iterator(List list) {
 		return list.iterator();
-	}		
+	}
+	
+	// ================================================================================
+	// ArrayList Overrides
+	// ================================================================================	 
+	
+	// The following operations are answered directly for a compact list.
+	
+	public int size() {
+		return compact != null ? compact.size() : super.size();
+	}
+	
+	public boolean isEmpty() {
+		return compact != null ? compact.size() == 0 : super.isEmpty();
+	}
+	
+	public Object get(int index) {
+		if(compact != null) {
+			checkIndex(index);
+			return compact.get(index);
+		}
+		return super.get(index);
+	}
+	
+	public Object set(int index, Object element) {
+		if(compact != null) {
+			checkIndex(index);
+			Object old = compact.get(index);
+			if(compact.set(index, element)) {
+				return old;
+			}
+			materialise();
+		}
+		return super.set(index, element);
+	}
+	
+	public boolean add(Object e) {
+		if(compact != null) {
+			if(compact.add(e)) {
+				return true;
+			}
+			materialise();
+		}
+		return super.add(e);
+	}
+	
+	public boolean addAll(java.util.Collection<?> c) {
+		if(compact != null) {
+			// NOTE: add() materialises this list if necessary.
+			for(Object o : c) {
+				add(o);
+			}
+			return !c.isEmpty();
+		}
+		return super.addAll(c);
+	}
+	
+	protected void removeRange(int fromIndex, int toIndex) {
+		if(compact != null) {
+			if(fromIndex < 0 || fromIndex > toIndex || toIndex > compact.size()) {
+				throw new IndexOutOfBoundsException("From: " + fromIndex
+						+ ", To: " + toIndex + ", Size: " + compact.size());
+			}
+			if(compact.removeRange(fromIndex, toIndex)) {
+				return;
+			}
+			materialise();
+		}
+		super.removeRange(fromIndex, toIndex);
+	}
+	
+	public void clear() {
+		if(compact instanceof Persistent) {
+			compact = new Persistent(new PersistentVector());
+		} else {
+			compact = null;
+		}
+		super.clear();
+	}
+	
+	public java.util.Iterator<Object> iterator() {
+		if(compact != null) {
+			return new CompactIterator(compact);
+		}
+		return super.iterator();
+	}
+	
+	public void forEach(java.util.function.Consumer<? super Object> action) {
+		if(compact != null) {
+			Compact c = compact;
+			int size = c.size();
+			for(int i=0;i!=size;++i) {
+				action.accept(c.get(i));
+			}
+			return;
+		}
+		super.forEach(action);
+	}
+	
+	// NOTE: stream() and parallelStream() are built on spliterator().
+	
+	public java.util.Spliterator<Object> spliterator() {
+		if(compact != null) {
+			return java.util.Spliterators.spliterator(iterator(),
+					compact.size(), java.util.Spliterator.ORDERED);
+		}
+		return super.spliterator();
+	}
+	
+	public boolean contains(Object o) {
+		return indexOf(o) >= 0;
+	}
+	
+	public int indexOf(Object o) {
+		if(compact != null) {
+			int size = compact.size();
+			for(int i=0;i!=size;++i) {
+				if(compact.get(i).equals(o)) {
+					return i;
+				}
+			}
+			return -1;
+		}
+		return super.indexOf(o);
+	}
+	
+	public int lastIndexOf(Object o) {
+		if(compact != null) {
+			for(int i=compact.size()-1;i>=0;--i) {
+				if(compact.get(i).equals(o)) {
+					return i;
+				}
+			}
+			return -1;
+		}
+		return super.lastIndexOf(o);
+	}
+	
+	public Object[] toArray() {
+		if(compact != null) {
+			Object[] r = new Object[compact.size()];
+			for(int i=0;i!=r.length;++i) {
+				r[i] = compact.get(i);
+			}
+			return r;
+		}
+		return super.toArray();
+	}
+	
+	public <T> T[] toArray(T[] a) {
+		materialise();
+		return super.toArray(a);
+	}
+	
+	public Object clone() {
+		List r = (List) super.clone();
+		if(compact != null) {
+			r.compact = compact.copy();
+		}
+		return r;
+	}
+	
+	public boolean equals(Object o) {
+		if(compact != null) {
+			if(o == this) {
+				return true;
+			} else if(!(o instanceof java.util.List)) {
+				return false;
+			}
+			java.util.List<?> l = (java.util.List<?>) o;
+			int size = compact.size();
+			if(l.size() != size) {
+				return false;
+			}
+			for(int i=0;i!=size;++i) {
+				if(!compact.get(i).equals(l.get(i))) {
+					return false;
+				}
+			}
+			return true;
+		}
+		return super.equals(o);
+	}
+	
+	public int hashCode() {
+		if(compact != null) {
+			// NOTE: must agree with java.util.List.hashCode()
+			int r = 1;
+			int size = compact.size();
+			for(int i=0;i!=size;++i) {
+				r = 31 * r + compact.get(i).hashCode();
+			}
+			return r;
+		}
+		return super.hashCode();
+	}
+	
+	public void ensureCapacity(int minCapacity) {
+		if(compact == null) {
+			super.ensureCapacity(minCapacity);
+		}
+	}
+	
+	public void trimToSize() {
+		if(compact == null) {
+			super.trimToSize();
+		}
+	}
+	
+	// The remaining operations must materialise a compact list first, since
+	// ArrayList implements them by accessing its storage directly.
+	
+	public void add(int index, Object element) {
+		materialise();
+		super.add(index, element);
+	}
+	
+	public Object remove(int index) {
+		materialise();
+		return super.remove(index);
+	}
+	
+	public boolean remove(Object o) {
+		materialise();
+		return super.remove(o);
+	}
+	
+	public boolean addAll(int index, java.util.Collection<?> c) {
+		materialise();
+		return super.addAll(index, c);
+	}
+	
+	public boolean removeAll(java.util.Collection<?> c) {
+		materialise();
+		return super.removeAll(c);
+	}
+	
+	public boolean retainAll(java.util.Collection<?> c) {
+		materialise();
+		return super.retainAll(c);
+	}
+	
+	public boolean removeIf(java.util.function.Predicate<? super Object> filter) {
+		materialise();
+		return super.removeIf(filter);
+	}
+	
+	public void replaceAll(java.util.function.UnaryOperator<Object> operator) {
+		materialise();
+		super.replaceAll(operator);
+	}
+	
+	public void sort(java.util.Comparator<? super Object> c) {
+		materialise();
+		super.sort(c);
+	}
+	
+	public java.util.ListIterator<Object> listIterator() {
+		materialise();
+		return super.listIterator();
+	}
+	
+	public java.util.ListIterator<Object> listIterator(int index) {
+		materialise();
+		return super.listIterator(index);
+	}
+	
+	public java.util.List<Object> subList(int fromIndex, int toIndex) {
+		materialise();
+		return super.subList(fromIndex, toIndex);
+	}
+	
+	private void checkIndex(int index) {
+		if(index < 0 || index >= compact.size()) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: "
+					+ compact.size());
+		}
+	}
+	
+	// ================================================================================
+	// Compact Representations
+	// ================================================================================	 
+	
+	/**
+	 * A compact representation of a list's elements. The operations which
+	 * modify a compact representation return <code>false</code> if they
+	 * cannot be performed on it (e.g. because the value being stored cannot be
+	 * represented), in which case the list must be materialised. Only a
+	 * persistent representation can hold compound (i.e. reference counted)
+	 * values.
+	 */
+	private static abstract class Compact {
+		public abstract int size();
+		
+		public abstract Object get(int index);
+		
+		public abstract Compact copy();
+		
+		/**
+		 * Determine whether the element at a given index may be reachable
+		 * from another list (see <code>PersistentVector.isShared()</code>).
+		 * 
+		 * @param index
+		 * @return
+		 */
+		public boolean isShared(int index) {
+			return false;
+		}
+		
+		/**
+		 * Decrement the reference counts of the elements held, as happens
+		 * when the list is no longer referenced.
+		 */
+		public void release() {
+			
+		}
+		
+		public boolean set(int index, Object value) {
+			return false;
+		}
+		
+		public boolean add(Object value) {
+			return false;
+		}
+		
+		public boolean removeRange(int from, int to) {
+			return false;
+		}
+		
+		protected static int grow(int length) {
+			return Math.max(length * 2, 8);
+		}
+	}
+	
+	/**
+	 * A range of integers, whose elements are not stored at all. A range
+	 * cannot be updated, but can be shortened at either end (as happens when
+	 * a sublist is taken in place).
+	 */
+	private static final class Range extends Compact {
+		private long start;
+		private final long step;
+		private int size;
+		
+		public Range(long start, long step, int size) {
+			this.start = start;
+			this.step = step;
+			this.size = size;
+		}
+		
+		public int size() {
+			return size;
+		}
+		
+		public Object get(int index) {
+			return Util.valueOf(value(index));
+		}
+		
+		public long value(int index) {
+			return start + (index * step);
+		}
+		
+		public Compact copy() {
+			return new Range(start, step, size);
+		}
+		
+		public boolean removeRange(int from, int to) {
+			if(from == 0) {
+				start = start + (to * step);
+				size = size - to;
+				return true;
+			} else if(to == size) {
+				size = from;
+				return true;
+			} else {
+				return false;
+			}
+		}
+	}
+	
+	private static final class Bytes extends Compact {
+		private byte[] data;
+		private int size;
+		
+		public Bytes(byte[] data, int size) {
+			this.data = data;
+			this.size = size;
+		}
+		
+		public int size() {
+			return size;
+		}
+		
+		public Object get(int index) {
+			return data[index];
+		}
+		
+		public Compact copy() {
+			return new Bytes(java.util.Arrays.copyOf(data, size), size);
+		}
+		
+		public boolean set(int index, Object value) {
+			if(value instanceof Byte) {
+				data[index] = (Byte) value;
+				return true;
+			}
+			return false;
+		}
+		
+		public boolean add(Object value) {
+			if(value instanceof Byte) {
+				if(size == data.length) {
+					data = java.util.Arrays.copyOf(data, grow(size));
+				}
+				data[size++] = (Byte) value;
+				return true;
+			}
+			return false;
+		}
+		
+		public boolean removeRange(int from, int to) {
+			System.arraycopy(data, to, data, from, size - to);
+			size = size - (to - from);
+			return true;
+		}
+	}
+	
+	private static final class Chars extends Compact {
+		private char[] data;
+		private int size;
+		
+		public Chars(char[] data, int size) {
+			this.data = data;
+			this.size = size;
+		}
+		
+		public int size() {
+			return size;
+		}
+		
+		public Object get(int index) {
+			return data[index];
+		}
+		
+		public Compact copy() {
+			return new Chars(java.util.Arrays.copyOf(data, size), size);
+		}
+		
+		public boolean set(int index, Object value) {
+			if(value instanceof Character) {
+				data[index] = (Character) value;
+				return true;
+			}
+			return false;
+		}
+		
+		public boolean add(Object value) {
+			if(value instanceof Character) {
+				if(size == data.length) {
+					data = java.util.Arrays.copyOf(data, grow(size));
+				}
+				data[size++] = (Character) value;
+				return true;
+			}
+			return false;
+		}
+		
+		public boolean removeRange(int from, int to) {
+			System.arraycopy(data, to, data, from, size - to);
+			size = size - (to - from);
+			return true;
+		}
+	}
+	
+	/**
+	 * A list of integers, each of which fits into a <code>long</code>. 
+	 */
+	private static final class Longs extends Compact {
+		private long[] data;
+		private int size;
+		
+		public Longs(long[] data, int size) {
+			this.data = data;
+			this.size = size;
+		}
+		
+		public int size() {
+			return size;
+		}
+		
+		public Object get(int index) {
+			return Util.valueOf(data[index]);
+		}
+		
+		public Compact copy() {
+			return new Longs(java.util.Arrays.copyOf(data, size), size);
+		}
+		
+		public boolean set(int index, Object value) {
+			if (value instanceof BigInteger
+					&& ((BigInteger) value).bitLength() < 64) {
+				data[index] = ((BigInteger) value).longValue();
+				return true;
+			}
+			return false;
+		}
+		
+		public boolean add(Object value) {
+			if (value instanceof BigInteger
+					&& ((BigInteger) value).bitLength() < 64) {
+				if(size == data.length) {
+					data = java.util.Arrays.copyOf(data, grow(size));
+				}
+				data[size++] = ((BigInteger) value).longValue();
+				return true;
+			}
+			return false;
+		}
+		
+		public boolean removeRange(int from, int to) {
+			System.arraycopy(data, to, data, from, size - to);
+			size = size - (to - from);
+			return true;
+		}
+	}
+	
+	/**
+	 * A list of arbitrary values held in a persistent vector. Copying this
+	 * representation shares the vector, rather than copying it. 
+	 */
+	private static final class Persistent extends Compact {
+		private PersistentVector vector;
+		
+		public Persistent(PersistentVector vector) {
+			this.vector = vector;
+		}
+		
+		public int size() {
+			return vector.size();
+		}
+		
+		public Object get(int index) {
+			return vector.get(index);
+		}
+		
+		public Compact copy() {
+			return new Persistent(vector.share());
+		}
+		
+		public boolean isShared(int index) {
+			return vector.isShared(index);
+		}
+		
+		public void release() {
+			vector.release();
+		}
+		
+		public boolean set(int index, Object value) {
+			vector.set(index, value);
+			return true;
+		}
+		
+		public boolean add(Object value) {
+			vector.add(value);
+			return true;
+		}
+		
+		public boolean removeRange(int from, int to) {
+			vector.removeRange(from, to);
+			return true;
+		}
+	}
+	
+	/**
+	 * Iterates the elements of a compact list by index (for a range, this
+	 * amounts to a primitive counter), rather than materialising them.
+	 */
+	private static final class CompactIterator implements java.util.Iterator<Object> {
+		private final Compact compact;
+		private int index;
+		
+		public CompactIterator(Compact compact) {
+			this.compact = compact;
+		}
+		
+		public boolean hasNext() {
+			return index < compact.size();
+		}
+		
+		public void remove(){
+			throw new UnsupportedOperationException();
+		}
+		
+		public Object next() {
+			if(index >= compact.size()) {
+				throw new java.util.NoSuchElementException();
+			}
+			return compact.get(index++);			
+		}
+	}
 }
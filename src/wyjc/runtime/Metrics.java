@@ -0,0 +1,355 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//    * Redistributions of source code must retain the above copyright
+//      notice, this list of conditions and the following disclaimer.
+//    * Redistributions in binary form must reproduce the above copyright
+//      notice, this list of conditions and the following disclaimer in the
+//      documentation and/or other materials provided with the distribution.
+//    * Neither the name of the <organization> nor the
+//      names of its contributors may be used to endorse or promote products
+//      derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL DAVID J. PEARCE BE LIABLE FOR ANY
+// DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+// ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package wyjc.runtime;
+
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.ObjectName;
+
+/**
+ * <p>
+ * Collects metrics about the behaviour of the runtime's reference counting
+ * scheme. In particular, for each kind of collection, we count the number of
+ * updates performed in place versus those which required a clone, along with
+ * the distribution of clone sizes and the call sites responsible for them.
+ * </p>
+ * 
+ * <p>
+ * Metrics are disabled by default, in which case every recording method
+ * reduces to a test of a static final flag and so costs (almost) nothing.
+ * They are enabled by the following system properties:
+ * </p>
+ * <ul>
+ * <li><code>wyjc.metrics=true</code> --- enables collection. The metrics are
+ * published over JMX as <code>wyjc.runtime:type=Metrics</code> and a summary
+ * is printed on exit.</li>
+ * <li><code>wyjc.metrics.interval=n</code> --- additionally print a summary
+ * every <code>n</code> seconds.</li>
+ * <li><code>wyjc.metrics.sample=n</code> --- attribute roughly one in every
+ * <code>n</code> clones to its call site (default 64). Identifying the call
+ * site requires walking the stack, which is expensive, so only a sample of
+ * clones is attributed. At most 1024 distinct call sites are recorded; clones
+ * at any further sites are attributed to "other".</li>
+ * </ul>
+ */
+public final class Metrics {
+	public static final boolean ENABLED = Boolean.getBoolean("wyjc.metrics");
+	
+	public static final int LIST = 0;
+	public static final int SET = 1;
+	public static final int DICTIONARY = 2;
+	public static final int RECORD = 3;
+	
+	private static final String[] KINDS = { "list", "set", "dictionary", "record" };
+	private static final int BUCKETS = 33;
+	
+	private static final int SAMPLE = Math.max(1, Integer.getInteger("wyjc.metrics.sample", 64));
+	private static final int MAX_SITES = 1024;
+	private static final long INTERVAL = Long.getLong("wyjc.metrics.interval", 0);
+	
+	private static final LongAdder[] clones = adders(KINDS.length);
+	private static final LongAdder[] elements = adders(KINDS.length);
+	private static final LongAdder[] inplace = adders(KINDS.length);
+	private static final LongAdder[][] sizes = new LongAdder[KINDS.length][];
+	private static final LongAdder refCounts = new LongAdder();
+	private static final LongAdder population = new LongAdder();
+	private static final ConcurrentHashMap<String, LongAdder> sites = new ConcurrentHashMap<String, LongAdder>();
+	
+	static {
+		for (int i = 0; i != KINDS.length; ++i) {
+			sizes[i] = adders(BUCKETS);
+		}
+		if (ENABLED) {
+			start();
+		}
+	}
+	
+	private Metrics() {}
+	
+	/**
+	 * Record the reference count of a collection about to be updated.
+	 */
+	public static void countRefs(int refCount) {
+		refCounts.add(refCount);
+		population.increment();
+	}
+	
+	/**
+	 * Record an update to a collection which was performed in place.
+	 */
+	public static void countInplace(int kind) {
+		inplace[kind].increment();
+	}
+	
+	/**
+	 * Record an update to a collection which required it to be cloned.
+	 */
+	public static void countClone(int kind, int size) {
+		clones[kind].increment();
+		elements[kind].add(size);
+		sizes[kind][bucket(size)].increment();
+		if (SAMPLE == 1 || ThreadLocalRandom.current().nextInt(SAMPLE) == 0) {
+			String site = KINDS[kind] + " @ " + callSite();
+			LongAdder count = sites.get(site);
+			if (count == null && sites.size() >= MAX_SITES) {
+				site = KINDS[kind] + " @ other";
+				count = sites.get(site);
+			}
+			if (count == null) {
+				LongAdder tmp = new LongAdder();
+				count = sites.putIfAbsent(site, tmp);
+				if (count == null) {
+					count = tmp;
+				}
+			}
+			count.add(SAMPLE);
+		}
+	}
+	
+	/**
+	 * Return the number of updates to a given kind of collection which
+	 * required it to be cloned.
+	 */
+	public static long clones(int kind) {
+		return clones[kind].sum();
+	}
+	
+	/**
+	 * Return the total number of elements copied by cloning a given kind of
+	 * collection.
+	 */
+	public static long clonedElements(int kind) {
+		return elements[kind].sum();
+	}
+	
+	/**
+	 * Reset all metrics to zero.
+	 */
+	public static void reset() {
+		for (int i = 0; i != KINDS.length; ++i) {
+			clones[i].reset();
+			elements[i].reset();
+			inplace[i].reset();
+			for (LongAdder a : sizes[i]) {
+				a.reset();
+			}
+		}
+		refCounts.reset();
+		population.reset();
+		sites.clear();
+	}
+	
+	/**
+	 * Produce a human-readable summary of the metrics collected so far.
+	 */
+	public static String dump() {
+		StringBuilder r = new StringBuilder();
+		long totalClones = 0;
+		long totalInplace = 0;
+		long totalElems = 0;
+		r.append("--------------------------------------------------\n");
+		for (int i = 0; i != KINDS.length; ++i) {
+			long c = clones[i].sum();
+			long u = inplace[i].sum();
+			long e = elements[i].sum();
+			r.append(String.format("%-12s clones: %d / %d (avg size %.2f)\n",
+					KINDS[i], c, c + u, average(e, c)));
+			long[] hist = histogram(i);
+			for (int j = 0; j != hist.length; ++j) {
+				if (hist[j] != 0) {
+					r.append(String.format("    < %-12d %d\n", 1L << j, hist[j]));
+				}
+			}
+			totalClones += c;
+			totalInplace += u;
+			totalElems += e;
+		}
+		r.append("--------------------------------------------------\n");
+		r.append(String.format("Total clones: %d / %d (%.2f%%)\n", totalClones,
+				totalClones + totalInplace,
+				100 * average(totalClones, totalClones + totalInplace)));
+		r.append(String.format("Average clone size: %.2f\n",
+				average(totalElems, totalClones)));
+		r.append(String.format("Average reference count: %.2f\n",
+				average(refCounts.sum(), population.sum())));
+		Map<String, Long> sites = sites();
+		if (!sites.isEmpty()) {
+			r.append("--------------------------------------------------\n");
+			for (Map.Entry<String, Long> e : sites.entrySet()) {
+				r.append(String.format("%10d  %s\n", e.getValue(), e.getKey()));
+			}
+		}
+		r.append("--------------------------------------------------\n");
+		return r.toString();
+	}
+	
+	// =========================================================================
+	// Internals
+	// =========================================================================
+	
+	/**
+	 * Register the management bean, and schedule the periodic and final
+	 * summaries.
+	 */
+	private static void start() {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(
+					new Bean(), new ObjectName("wyjc.runtime:type=Metrics"));
+		} catch (java.lang.Exception e) {
+			// JMX is a convenience only; metrics are still dumped on exit.
+		}
+		if (INTERVAL > 0) {
+			Thread t = new Thread("wyjc-metrics") {
+				public void run() {
+					try {
+						while (true) {
+							Thread.sleep(INTERVAL * 1000);
+							System.err.print(dump());
+						}
+					} catch (InterruptedException e) {
+					}
+				}
+			};
+			t.setDaemon(true);
+			t.start();
+		}
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				System.err.print(dump());
+			}
+		});
+	}
+	
+	/**
+	 * Determine the first method on the stack which is not part of the
+	 * runtime itself.
+	 */
+	private static String callSite() {
+		for (StackTraceElement e : new Throwable().getStackTrace()) {
+			if (!e.getClassName().startsWith("wyjc.runtime.")) {
+				return e.getClassName() + "." + e.getMethodName() + "("
+						+ e.getFileName() + ":" + e.getLineNumber() + ")";
+			}
+		}
+		return "unknown";
+	}
+	
+	private static int bucket(int size) {
+		return 32 - Integer.numberOfLeadingZeros(size);
+	}
+	
+	private static long[] histogram(int kind) {
+		long[] r = new long[BUCKETS];
+		for (int i = 0; i != BUCKETS; ++i) {
+			r[i] = sizes[kind][i].sum();
+		}
+		return r;
+	}
+	
+	/**
+	 * Return the call sites ordered by decreasing number of clones.
+	 */
+	private static Map<String, Long> sites() {
+		ArrayList<Map.Entry<String, LongAdder>> entries = new ArrayList<Map.Entry<String, LongAdder>>(
+				sites.entrySet());
+		final HashMap<String, Long> counts = new HashMap<String, Long>();
+		for (Map.Entry<String, LongAdder> e : entries) {
+			counts.put(e.getKey(), e.getValue().sum());
+		}
+		Collections.sort(entries, new Comparator<Map.Entry<String, LongAdder>>() {
+			public int compare(Map.Entry<String, LongAdder> a, Map.Entry<String, LongAdder> b) {
+				return Long.compare(counts.get(b.getKey()), counts.get(a.getKey()));
+			}
+		});
+		LinkedHashMap<String, Long> r = new LinkedHashMap<String, Long>();
+		for (Map.Entry<String, LongAdder> e : entries) {
+			r.put(e.getKey(), counts.get(e.getKey()));
+		}
+		return r;
+	}
+	
+	private static Map<String, Long> sums(LongAdder[] adders) {
+		LinkedHashMap<String, Long> r = new LinkedHashMap<String, Long>();
+		for (int i = 0; i != KINDS.length; ++i) {
+			r.put(KINDS[i], adders[i].sum());
+		}
+		return r;
+	}
+	
+	private static double average(long total, long count) {
+		return count == 0 ? 0 : ((double) total) / count;
+	}
+	
+	private static LongAdder[] adders(int n) {
+		LongAdder[] r = new LongAdder[n];
+		for (int i = 0; i != n; ++i) {
+			r[i] = new LongAdder();
+		}
+		return r;
+	}
+	
+	private static final class Bean implements MetricsMXBean {
+		public Map<String, Long> getClones() {
+			return sums(clones);
+		}
+		
+		public Map<String, Long> getInplaceUpdates() {
+			return sums(inplace);
+		}
+		
+		public Map<String, Long> getClonedElements() {
+			return sums(elements);
+		}
+		
+		public Map<String, long[]> getCloneSizes() {
+			LinkedHashMap<String, long[]> r = new LinkedHashMap<String, long[]>();
+			for (int i = 0; i != KINDS.length; ++i) {
+				r.put(KINDS[i], histogram(i));
+			}
+			return r;
+		}
+		
+		public Map<String, Long> getCloneSites() {
+			return sites();
+		}
+		
+		public double getAverageReferenceCount() {
+			return average(refCounts.sum(), population.sum());
+		}
+		
+		public String dump() {
+			return Metrics.dump();
+		}
+		
+		public void reset() {
+			Metrics.reset();
+		}
+	}
+}
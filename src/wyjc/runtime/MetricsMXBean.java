@@ -0,0 +1,78 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//    * Redistributions of source code must retain the above copyright
+//      notice, this list of conditions and the following disclaimer.
+//    * Redistributions in binary form must reproduce the above copyright
+//      notice, this list of conditions and the following disclaimer in the
+//      documentation and/or other materials provided with the distribution.
+//    * Neither the name of the <organization> nor the
+//      names of its contributors may be used to endorse or promote products
+//      derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL DAVID J. PEARCE BE LIABLE FOR ANY
+// DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+// ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package wyjc.runtime;
+
+import java.util.Map;
+
+/**
+ * The management interface for the runtime metrics, as exposed through JMX.
+ * Each map is keyed by the kind of collection (i.e. "list", "set",
+ * "dictionary" or "record").
+ */
+public interface MetricsMXBean {
+	/**
+	 * The number of updates which required a collection to be cloned.
+	 */
+	public Map<String, Long> getClones();
+	
+	/**
+	 * The number of updates which were performed in place.
+	 */
+	public Map<String, Long> getInplaceUpdates();
+	
+	/**
+	 * The total number of elements in the collections cloned.
+	 */
+	public Map<String, Long> getClonedElements();
+	
+	/**
+	 * The sizes of the collections cloned. Bucket <code>i</code> counts those
+	 * whose size <code>n</code> satisfies <code>2^(i-1) <= n < 2^i</code>
+	 * (bucket <code>0</code> counts empty collections).
+	 */
+	public Map<String, long[]> getCloneSizes();
+	
+	/**
+	 * The (estimated) number of clones attributed to each call site, where a
+	 * call site is the first method outside the runtime on the stack.
+	 */
+	public Map<String, Long> getCloneSites();
+	
+	/**
+	 * The average reference count of collections being updated.
+	 */
+	public double getAverageReferenceCount();
+	
+	/**
+	 * Produce a human-readable summary of the metrics.
+	 */
+	public String dump();
+	
+	/**
+	 * Reset all metrics to zero.
+	 */
+	public void reset();
+}
@@ -0,0 +1,555 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//    * Redistributions of source code must retain the above copyright
+//      notice, this list of conditions and the following disclaimer.
+//    * Redistributions in binary form must reproduce the above copyright
+//      notice, this list of conditions and the following disclaimer in the
+//      documentation and/or other materials provided with the distribution.
+//    * Neither the name of the <organization> nor the
+//      names of its contributors may be used to endorse or promote products
+//      derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL DAVID J. PEARCE BE LIABLE FOR ANY
+// DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+// ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package wyjc.runtime;
+
+import java.util.*;
+
+/**
+ * <p>
+ * A persistent map, implemented as a Hash Array Mapped Trie (HAMT). Each node
+ * of the trie covers five bits of a key's hash code, and stores only those
+ * entries (or subtries) actually present, as indicated by a bitmap. Keys whose
+ * hash codes collide completely are stored together in a collision node.
+ * </p>
+ * 
+ * <p>
+ * As for <code>PersistentVector</code>, copying a map (via
+ * <code>share()</code>) takes constant time and, thereafter, updating either
+ * copy only copies the path to the entry being updated. Nodes record the owner
+ * which created them, so that a map which has not been shared is updated in
+ * place.
+ * </p>
+ * 
+ * <p>
+ * Reference counts are maintained lazily, as for <code>PersistentVector</code>.
+ * The count held for a compound key or value belongs to the node holding its
+ * entry, and copying a node which is not owned increments the counts of the
+ * keys and values of the entries it holds directly.
+ * </p>
+ * 
+ * <p>
+ * <b>NOTE:</b> a <code>null</code> key is permitted, as Whiley's
+ * <code>null</code> may be a key.
+ * </p>
+ */
+final class PersistentMap {
+	private Object owner;
+	private Node root;
+	private int size;
+	
+	/**
+	 * The number of keys and values which are reference counted (i.e.
+	 * compound values). When this is zero, copying a node which is not owned
+	 * need not increment any reference counts.
+	 */
+	private int compounds;
+	
+	/**
+	 * Set by <code>put</code> and <code>remove</code> to indicate whether the
+	 * key was present and, if so, its previous value.
+	 */
+	private boolean found;
+	private Object previous;
+	
+	public PersistentMap() {
+		this.owner = new Object();
+		this.root = new BitmapNode(owner, 0, new Object[0]);
+	}
+	
+	private PersistentMap(Node root, int size, int compounds) {
+		this.owner = new Object();
+		this.root = root;
+		this.size = size;
+		this.compounds = compounds;
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	public boolean containsKey(Object key) {
+		return root.find(key, hash(key), 0) != null;
+	}
+	
+	public Object get(Object key) {
+		Object[] entry = root.find(key, hash(key), 0);
+		return entry == null ? null : entry[1];
+	}
+	
+	/**
+	 * Associate a given key with a given value, returning the previous value
+	 * (or <code>null</code> if there was none).
+	 * 
+	 * @param key
+	 * @param value
+	 * @return
+	 */
+	public Object put(Object key, Object value) {
+		found = false;
+		previous = null;
+		root = root.put(this, key, hash(key), value, 0);
+		if(found) {
+			if(Util.isRefCounted(previous)) {
+				compounds--;
+			}
+		} else {
+			size++;
+			if(Util.isRefCounted(key)) {
+				compounds++;
+			}
+		}
+		if(Util.isRefCounted(value)) {
+			compounds++;
+		}
+		return previous;
+	}
+	
+	/**
+	 * Remove a given key, returning <code>true</code> if it was present.
+	 * 
+	 * @param key
+	 * @return
+	 */
+	public boolean remove(Object key) {
+		found = false;
+		previous = null;
+		Node r = root.remove(this, key, hash(key), 0);
+		root = r != null ? r : new BitmapNode(owner, 0, new Object[0]);
+		if(found) {
+			size--;
+			if(Util.isRefCounted(key)) {
+				compounds--;
+			}
+			if(Util.isRefCounted(previous)) {
+				compounds--;
+			}
+		}
+		return found;
+	}
+	
+	/**
+	 * Determine whether the entry for a given key may be reachable from
+	 * another map, because the node holding it is not owned by this map.
+	 * 
+	 * @param key
+	 * @return
+	 */
+	public boolean isShared(Object key) {
+		int hash = hash(key);
+		Node node = root;
+		for(int shift = 0; node.owner == owner; shift += 5) {
+			if(!(node instanceof BitmapNode)) {
+				return false;
+			}
+			BitmapNode bnode = (BitmapNode) node;
+			int bit = 1 << ((hash >>> shift) & 31);
+			if((bnode.bitmap & bit) == 0) {
+				return false;
+			}
+			Object slot = bnode.slots[Integer.bitCount(bnode.bitmap & (bit - 1))];
+			if(!(slot instanceof Node)) {
+				return false;
+			}
+			node = (Node) slot;
+		}
+		return true;
+	}
+	
+	/**
+	 * Decrement the reference counts of the compound keys and values held in
+	 * those nodes which this map owns, as happens when it is no longer
+	 * referenced. Subtries which are not owned are skipped entirely.
+	 */
+	public void release() {
+		if(compounds != 0) {
+			release(root);
+		}
+	}
+	
+	private void release(Node node) {
+		if(node.owner != owner) {
+			return;
+		}
+		Object[] slots = node instanceof BitmapNode ? ((BitmapNode) node).slots
+				: ((CollisionNode) node).entries;
+		for(Object slot : slots) {
+			if(slot instanceof Node) {
+				release((Node) slot);
+			} else {
+				Object[] entry = (Object[]) slot;
+				Util.decRefs(entry[0]);
+				Util.decRefs(entry[1]);
+			}
+		}
+	}
+	
+	/**
+	 * Increment the reference counts of the compound keys and values of the
+	 * entries held directly in a node which is being copied, since the copy is
+	 * another holder of them.
+	 * 
+	 * @param slots
+	 */
+	private void acquire(Object[] slots) {
+		if(compounds != 0) {
+			for(Object slot : slots) {
+				if(!(slot instanceof Node)) {
+					Object[] entry = (Object[]) slot;
+					Util.incRefs(entry[0]);
+					Util.incRefs(entry[1]);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * The value associated with the key most recently removed.
+	 * 
+	 * @return
+	 */
+	public Object removed() {
+		return previous;
+	}
+	
+	/**
+	 * Create a copy of this map which shares its contents. Neither this map nor
+	 * the copy may subsequently update any existing node in place.
+	 * 
+	 * @return
+	 */
+	public PersistentMap share() {
+		owner = new Object();
+		return new PersistentMap(root, size, compounds);
+	}
+	
+	/**
+	 * Iterate the entries of this map. Each entry is returned as a two-element
+	 * array holding the key and value, which must not be modified.
+	 * 
+	 * @return
+	 */
+	public Iterator<Object[]> iterator() {
+		return new EntryIterator(root);
+	}
+	
+	private static int hash(Object key) {
+		if(key == null) {
+			return 0;
+		}
+		int h = key.hashCode();
+		// spread the bits, as for java.util.HashMap
+		return h ^ (h >>> 16);
+	}
+	
+	private static boolean equals(Object k1, Object k2) {
+		return k1 == k2 || (k1 != null && k1.equals(k2));
+	}
+	
+	private static abstract class Node {
+		public final Object owner;
+		
+		public Node(Object owner) {
+			this.owner = owner;
+		}
+		
+		public abstract Object[] find(Object key, int hash, int shift);
+		
+		public abstract Node put(PersistentMap map, Object key, int hash,
+				Object value, int shift);
+		
+		public abstract Node remove(PersistentMap map, Object key, int hash,
+				int shift);
+	}
+	
+	/**
+	 * A node whose bitmap indicates which of its 32 possible slots are
+	 * present. Each slot present holds either an entry (i.e. a two-element
+	 * array of key and value), or a subtrie.
+	 */
+	private static final class BitmapNode extends Node {
+		public int bitmap;
+		public Object[] slots;
+		
+		public BitmapNode(Object owner, int bitmap, Object[] slots) {
+			super(owner);
+			this.bitmap = bitmap;
+			this.slots = slots;
+		}
+		
+		public Object[] find(Object key, int hash, int shift) {
+			int bit = 1 << ((hash >>> shift) & 31);
+			if((bitmap & bit) == 0) {
+				return null;
+			}
+			Object slot = slots[Integer.bitCount(bitmap & (bit - 1))];
+			if(slot instanceof Node) {
+				return ((Node) slot).find(key, hash, shift + 5);
+			} 
+			Object[] entry = (Object[]) slot;
+			return PersistentMap.equals(key, entry[0]) ? entry : null;
+		}
+		
+		public Node put(PersistentMap map, Object key, int hash, Object value,
+				int shift) {
+			int bit = 1 << ((hash >>> shift) & 31);
+			int index = Integer.bitCount(bitmap & (bit - 1));
+			if((bitmap & bit) == 0) {
+				// slot not present, so insert a new entry
+				Object[] nslots = new Object[slots.length + 1];
+				System.arraycopy(slots, 0, nslots, 0, index);
+				nslots[index] = new Object[] { key, value };
+				System.arraycopy(slots, index, nslots, index + 1, slots.length
+						- index);
+				return update(map, bitmap | bit, nslots);
+			}
+			Object slot = slots[index];
+			Object nslot;
+			if(slot instanceof Node) {
+				nslot = ((Node) slot).put(map, key, hash, value, shift + 5);
+				if(nslot == slot) {
+					return this;
+				}
+			} else {
+				Object[] entry = (Object[]) slot;
+				if(PersistentMap.equals(key, entry[0])) {
+					map.found = true;
+					map.previous = entry[1];
+					nslot = new Object[] { entry[0], value };
+				} else {
+					// hashes collide at this level, so push both down
+					nslot = create(map, shift + 5, entry, key, hash, value);
+				}
+			}
+			BitmapNode r = editable(map);
+			r.slots[index] = nslot;
+			return r;
+		}
+		
+		public Node remove(PersistentMap map, Object key, int hash, int shift) {
+			int bit = 1 << ((hash >>> shift) & 31);
+			if((bitmap & bit) == 0) {
+				return this;
+			}
+			int index = Integer.bitCount(bitmap & (bit - 1));
+			Object slot = slots[index];
+			if(slot instanceof Node) {
+				Node n = ((Node) slot).remove(map, key, hash, shift + 5);
+				if(n == slot) {
+					return this;
+				} else if(n != null) {
+					BitmapNode r = editable(map);
+					r.slots[index] = n;
+					return r;
+				}
+			} else {
+				Object[] entry = (Object[]) slot;
+				if(!PersistentMap.equals(key, entry[0])) {
+					return this;
+				}
+				map.found = true;
+				map.previous = entry[1];
+			}
+			// slot is now empty, so remove it
+			if(bitmap == bit) {
+				return null;
+			}
+			Object[] nslots = new Object[slots.length - 1];
+			System.arraycopy(slots, 0, nslots, 0, index);
+			System.arraycopy(slots, index + 1, nslots, index, nslots.length
+					- index);
+			return update(map, bitmap & ~bit, nslots);
+		}
+		
+		private BitmapNode update(PersistentMap map, int bitmap, Object[] slots) {
+			if(owner == map.owner) {
+				this.bitmap = bitmap;
+				this.slots = slots;
+				return this;
+			}
+			map.acquire(this.slots);
+			return new BitmapNode(map.owner, bitmap, slots);
+		}
+		
+		private BitmapNode editable(PersistentMap map) {
+			if(owner == map.owner) {
+				return this;
+			}
+			map.acquire(slots);
+			return new BitmapNode(map.owner, bitmap, slots.clone());
+		}
+		
+		private static Node create(PersistentMap map, int shift,
+				Object[] entry, Object key, int hash, Object value) {
+			int ehash = PersistentMap.hash(entry[0]);
+			if(ehash == hash) {
+				return new CollisionNode(map.owner, hash, new Object[] {
+						entry, new Object[] { key, value } });
+			}
+			Node r = new BitmapNode(map.owner, 0, new Object[0]);
+			r = r.put(map, entry[0], ehash, entry[1], shift);
+			return r.put(map, key, hash, value, shift);
+		}
+	}
+	
+	/**
+	 * A node holding entries whose keys all have the same hash code.
+	 */
+	private static final class CollisionNode extends Node {
+		public final int hash;
+		public final Object[] entries;
+		
+		public CollisionNode(Object owner, int hash, Object[] entries) {
+			super(owner);
+			this.hash = hash;
+			this.entries = entries;
+		}
+		
+		public Object[] find(Object key, int hash, int shift) {
+			for(Object e : entries) {
+				Object[] entry = (Object[]) e;
+				if(PersistentMap.equals(key, entry[0])) {
+					return entry;
+				}
+			}
+			return null;
+		}
+		
+		public Node put(PersistentMap map, Object key, int hash, Object value,
+				int shift) {
+			if(hash != this.hash) {
+				// nest this node within a bitmap node, then insert into that.
+				Node r = new BitmapNode(map.owner, 1 << ((this.hash >>> shift) & 31),
+						new Object[] { this });
+				return r.put(map, key, hash, value, shift);
+			}
+			if(owner != map.owner) {
+				map.acquire(entries);
+			}
+			Object[] nentries;
+			for(int i=0;i!=entries.length;++i) {
+				Object[] entry = (Object[]) entries[i];
+				if(PersistentMap.equals(key, entry[0])) {
+					map.found = true;
+					map.previous = entry[1];
+					nentries = entries.clone();
+					nentries[i] = new Object[] { entry[0], value };
+					return new CollisionNode(map.owner, hash, nentries);
+				}
+			}
+			nentries = Arrays.copyOf(entries, entries.length + 1);
+			nentries[entries.length] = new Object[] { key, value };
+			return new CollisionNode(map.owner, hash, nentries);
+		}
+		
+		public Node remove(PersistentMap map, Object key, int hash, int shift) {
+			for(int i=0;i!=entries.length;++i) {
+				Object[] entry = (Object[]) entries[i];
+				if(PersistentMap.equals(key, entry[0])) {
+					if(owner != map.owner) {
+						map.acquire(entries);
+					}
+					map.found = true;
+					map.previous = entry[1];
+					if(entries.length == 1) {
+						return null;
+					}
+					Object[] nentries = new Object[entries.length - 1];
+					System.arraycopy(entries, 0, nentries, 0, i);
+					System.arraycopy(entries, i + 1, nentries, i,
+							nentries.length - i);
+					return new CollisionNode(map.owner, hash, nentries);
+				}
+			}
+			return this;
+		}
+	}
+	
+	/**
+	 * Iterates the entries of a trie, using an explicit stack of the nodes
+	 * being traversed.
+	 */
+	private static final class EntryIterator implements Iterator<Object[]> {
+		// NOTE: a trie has at most seven levels of bitmap nodes (i.e. 32 bits
+		// of hash, at five bits per level), followed by a collision node.
+		private final Object[][] nodes = new Object[8][];
+		private final int[] indices = new int[8];
+		private int depth;
+		private Object[] next;
+		
+		public EntryIterator(Node root) {
+			push(root);
+			advance();
+		}
+		
+		public boolean hasNext() {
+			return next != null;
+		}
+		
+		public Object[] next() {
+			if(next == null) {
+				throw new NoSuchElementException();
+			}
+			Object[] r = next;
+			advance();
+			return r;
+		}
+		
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+		
+		private void push(Node node) {
+			if(node instanceof BitmapNode) {
+				nodes[depth] = ((BitmapNode) node).slots;
+			} else {
+				nodes[depth] = ((CollisionNode) node).entries;
+			}
+			indices[depth++] = 0;
+		}
+		
+		private void advance() {
+			next = null;
+			while(depth > 0) {
+				int top = depth - 1;
+				Object[] slots = nodes[top];
+				int index = indices[top];
+				if(index == slots.length) {
+					nodes[top] = null;
+					depth--;
+				} else {
+					indices[top] = index + 1;
+					Object slot = slots[index];
+					if(slot instanceof Node) {
+						push((Node) slot);
+					} else {
+						next = (Object[]) slot;
+						return;
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,319 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//    * Redistributions of source code must retain the above copyright
+//      notice, this list of conditions and the following disclaimer.
+//    * Redistributions in binary form must reproduce the above copyright
+//      notice, this list of conditions and the following disclaimer in the
+//      documentation and/or other materials provided with the distribution.
+//    * Neither the name of the <organization> nor the
+//      names of its contributors may be used to endorse or promote products
+//      derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL DAVID J. PEARCE BE LIABLE FOR ANY
+// DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+// ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package wyjc.runtime;
+
+/**
+ * <p>
+ * A persistent vector, implemented as a 32-way trie indexed by the bits of an
+ * element's position. Copying a persistent vector (via <code>share()</code>)
+ * takes constant time, since the two copies simply share the same trie.
+ * Thereafter, updating either copy only copies the path from the root to the
+ * element being updated, rather than every element.
+ * </p>
+ * 
+ * <p>
+ * Each node records the <i>owner</i> which created it. A vector may update in
+ * place any node which it owns; thus, a vector which has never been shared
+ * behaves much like an array. Sharing a vector gives both copies a new owner,
+ * so that all existing nodes become immutable.
+ * </p>
+ * 
+ * <p>
+ * Unlike a relaxed radix balanced (RRB) vector, the trie is never rebalanced,
+ * since every leaf except the last is kept full. Instead, the elements of a
+ * vector occupy a contiguous range of the trie, starting from an
+ * <i>offset</i>. Thus, removing elements from either end (as happens when a
+ * sublist is taken) simply slices the trie, taking time proportional to the
+ * number of elements removed; likewise, appending elements takes time
+ * proportional to the number appended. Only removing elements from the middle
+ * (or concatenating onto the front) copies those remaining.
+ * </p>
+ * 
+ * <p>
+ * The reference counts of compound elements are maintained lazily. Sharing a
+ * vector does not touch its elements; instead, the count held for an element
+ * belongs to the leaf node holding it. Copying a leaf which is not owned
+ * (i.e. in order to update it) increments the counts of the compound
+ * elements it holds, since the copy is another holder of them. Thus, an
+ * element in a leaf which is not owned may be reachable from another vector,
+ * and is reported by <code>isShared()</code>. Conversely, a vector which is
+ * no longer referenced only releases the elements of those nodes which it
+ * owns. The counts held by other nodes are never released, which is safe
+ * since an over-estimated count can only prevent an in-place update.
+ * </p>
+ */
+final class PersistentVector {
+	private static final int BITS = 5;
+	private static final int WIDTH = 1 << BITS;
+	private static final int MASK = WIDTH - 1;
+	
+	private Object owner;
+	private Node root;
+	private int shift;
+	
+	/**
+	 * The position in the trie of the first element, which is non-zero once
+	 * elements have been removed from the front.
+	 */
+	private int offset;
+	private int size;
+	
+	/**
+	 * An upper bound on the number of elements which are reference counted
+	 * (i.e. compound values). When this is zero, copying a leaf which is not
+	 * owned need not increment any reference counts.
+	 */
+	private int compounds;
+	
+	public PersistentVector() {
+		this.owner = new Object();
+		this.root = new Node(owner, new Object[WIDTH]);
+	}
+	
+	private PersistentVector(Node root, int shift, int offset, int size,
+			int compounds) {
+		this.owner = new Object();
+		this.root = root;
+		this.shift = shift;
+		this.offset = offset;
+		this.size = size;
+		this.compounds = compounds;
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	public Object get(int index) {
+		index += offset;
+		return leaf(index).array[index & MASK];
+	}
+	
+	/**
+	 * Determine whether the element at a given index may be reachable from
+	 * another vector, because the leaf holding it is not owned by this vector.
+	 * 
+	 * @param index
+	 * @return
+	 */
+	public boolean isShared(int index) {
+		return leaf(index + offset).owner != owner;
+	}
+	
+	/**
+	 * Replace the element at a given index, returning the old element.
+	 * 
+	 * @param index
+	 * @param value
+	 * @return
+	 */
+	public Object set(int index, Object value) {
+		index += offset;
+		root = editable(root, shift);
+		Node node = root;
+		for (int level = shift; level > 0; level -= BITS) {
+			int i = (index >>> level) & MASK;
+			Node child = editable((Node) node.array[i], level - BITS);
+			node.array[i] = child;
+			node = child;
+		}
+		Object old = node.array[index & MASK];
+		node.array[index & MASK] = value;
+		if(Util.isRefCounted(old)) {
+			compounds--;
+		}
+		if(Util.isRefCounted(value)) {
+			compounds++;
+		}
+		return old;
+	}
+	
+	public void add(Object value) {
+		int index = offset + size;
+		if (index == (1 << (shift + BITS))) {
+			// root is full, so add another level
+			Node nroot = new Node(owner, new Object[WIDTH]);
+			nroot.array[0] = root;
+			root = nroot;
+			shift += BITS;
+		}
+		root = editable(root, shift);
+		Node node = root;
+		for (int level = shift; level > 0; level -= BITS) {
+			int i = (index >>> level) & MASK;
+			Node child = (Node) node.array[i];
+			child = child == null ? new Node(owner, new Object[WIDTH])
+					: editable(child, level - BITS);
+			node.array[i] = child;
+			node = child;
+		}
+		node.array[index & MASK] = value;
+		size++;
+		if(Util.isRefCounted(value)) {
+			compounds++;
+		}
+	}
+	
+	/**
+	 * Remove the elements from one index up to, but not including, another.
+	 * The reference counts of those elements which are not shared should
+	 * already have been decremented.
+	 * 
+	 * @param from
+	 * @param to
+	 */
+	public void removeRange(int from, int to) {
+		if (from != 0 && to != size) {
+			// removing from the middle, so copy the remaining elements.
+			PersistentVector r = new PersistentVector();
+			for (int i = 0; i != from; ++i) {
+				r.add(acquire(i));
+			}
+			for (int i = to; i != size; ++i) {
+				r.add(acquire(i));
+			}
+			owner = r.owner;
+			root = r.root;
+			shift = r.shift;
+			offset = 0;
+			size = r.size;
+			compounds = r.compounds;
+		} else if (to - from == size) {
+			owner = new Object();
+			root = new Node(owner, new Object[WIDTH]);
+			shift = 0;
+			offset = 0;
+			size = 0;
+			compounds = 0;
+		} else {
+			// removing from either end, so slice the trie. Elements in leaves
+			// which this vector owns are cleared, so they are not released
+			// again.
+			for (int i = from + offset; i != to + offset; ++i) {
+				Node node = leaf(i);
+				if (node.owner == owner) {
+					if (Util.isRefCounted(node.array[i & MASK])) {
+						compounds--;
+					}
+					node.array[i & MASK] = null;
+				}
+			}
+			if (from == 0) {
+				offset += to;
+			}
+			size -= to - from;
+		}
+	}
+	
+	/**
+	 * Create a copy of this vector which shares its contents. Neither this
+	 * vector nor the copy may subsequently update any existing node in place.
+	 * 
+	 * @return
+	 */
+	public PersistentVector share() {
+		owner = new Object();
+		return new PersistentVector(root, shift, offset, size, compounds);
+	}
+	
+	private Node leaf(int index) {
+		Node node = root;
+		for (int level = shift; level > 0; level -= BITS) {
+			node = (Node) node.array[(index >>> level) & MASK];
+		}
+		return node;
+	}
+	
+	/**
+	 * Get the element at a given index for another holder, incrementing its
+	 * reference count if it is shared.
+	 * 
+	 * @param index
+	 * @return
+	 */
+	private Object acquire(int index) {
+		Object item = get(index);
+		if (isShared(index)) {
+			Util.incRefs(item);
+		}
+		return item;
+	}
+	
+	/**
+	 * Decrement the reference counts of the compound elements held in those
+	 * leaves which this vector owns, as happens when it is no longer
+	 * referenced. Subtries which are not owned are skipped entirely.
+	 */
+	public void release() {
+		if(compounds != 0) {
+			release(root, shift);
+		}
+	}
+	
+	private void release(Node node, int level) {
+		if (node == null || node.owner != owner) {
+			return;
+		}
+		for (Object o : node.array) {
+			if (level == 0) {
+				Util.decRefs(o);
+			} else {
+				release((Node) o, level - BITS);
+			}
+		}
+	}
+	
+	/**
+	 * Get a node at a given level which this vector may update in place,
+	 * copying it if it is not owned. A copied leaf holds another reference to
+	 * each of its elements.
+	 * 
+	 * @param node
+	 * @param level
+	 * @return
+	 */
+	private Node editable(Node node, int level) {
+		if (node.owner == owner) {
+			return node;
+		}
+		if (level == 0 && compounds != 0) {
+			for (Object o : node.array) {
+				Util.incRefs(o);
+			}
+		}
+		return new Node(owner, node.array.clone());
+	}
+	
+	private static final class Node {
+		public final Object owner;
+		public final Object[] array;
+		
+		public Node(Object owner, Object[] array) {
+			this.owner = owner;
+			this.array = array;
+		}
+	}
+}
@@ -36,6 +36,22 @@ public final class Record extends HashMap<String,Object> {
 	 */
 	int refCount = 1; 
 	
+	/**
+	 * Identifies the most recent (compiled) type test which this record is known
+	 * to pass, or <code>null</code> if none. This allows repeated tests of the
+	 * same value to be answered immediately, and is cleared whenever the record is
+	 * updated in place.
+	 */
+	Object typeTest;
+	
+	/**
+	 * A cached copy of this record's field names in sorted order, or
+	 * <code>null</code> if not yet computed. This is used for printing and
+	 * comparing records, and is discarded whenever a field is added or
+	 * removed.
+	 */
+	private String[] sortedFields;
+	
 	public Record() {}
 	
 	Record(HashMap<String,Object> r) {
@@ -50,19 +66,24 @@ public final class Record extends HashMap<String,Object> {
 	// ================================================================================	 	
 		
 	public String toString() {
-		String r = "{";
+		StringBuilder r = new StringBuilder();
+		toString(r);
+		return r.toString();
+	}
+	
+	public void toString(StringBuilder r) {
+		r.append('{');
 		boolean firstTime = true;
 
-		ArrayList<String> ss = new ArrayList<String>(keySet());
-		Collections.sort(ss);
-		for (String s : ss) {
+		for (String s : sortedFields()) {
 			if (!firstTime) {
-				r = r + ",";
+				r.append(',');
 			}
 			firstTime = false;
-			r = r + s + ":" + whiley.lang.Any$native.toString(get(s));
+			r.append(s).append(':');
+			whiley.lang.Any$native.toString(get(s),r);
 		}
-		return r + "}";
+		r.append('}');
 	}
 		
 	// ================================================================================
@@ -76,6 +97,16 @@ public final class Record extends HashMap<String,Object> {
 		return item;
 	}
 	
+	/**
+	 * Read a field of a record which is borrowed from a variable and, hence,
+	 * whose reference count was not incremented when it was loaded.
+	 */
+	public static Object borrowed_get(final Record record, final String field) {
+		Object item = record.get(field);
+		Util.incRefs(item);
+		return item;
+	}
+	
 	public static Record put(Record record, final String field, final Object value) {
 		Util.countRefs(record);
 		if(record.refCount > 1) {
@@ -83,7 +114,7 @@ public final class Record extends HashMap<String,Object> {
 			Util.decRefs(record);
 			record = new Record(record);			
 		} else {
-			Util.nrecord_strong_updates++;
+			Util.inplaceUpdate(record);
 		}
 		Object val = record.put(field, value);
 		Util.decRefs(val);
@@ -98,4 +129,48 @@ public final class Record extends HashMap<String,Object> {
 		}
 		return item;		
 	}
+
+	/**
+	 * Get the field names of this record in sorted order. The array returned
+	 * is cached and must not be modified.
+	 * 
+	 * @return
+	 */
+	String[] sortedFields() {
+		if(sortedFields == null) {
+			String[] r = keySet().toArray(new String[size()]);
+			Arrays.sort(r);
+			sortedFields = r;
+		}
+		return sortedFields;
+	}
+	
+	// ================================================================================
+	// HashMap Overrides
+	// ================================================================================	 
+	
+	// The following operations discard the sorted field names, when they may
+	// change.
+	
+	public Object put(String field, Object value) {
+		if(sortedFields != null && !containsKey(field)) {
+			sortedFields = null;
+		}
+		return super.put(field, value);
+	}
+	
+	public void putAll(Map<? extends String, ? extends Object> m) {
+		sortedFields = null;
+		super.putAll(m);
+	}
+	
+	public Object remove(Object field) {
+		sortedFields = null;
+		return super.remove(field);
+	}
+	
+	public void clear() {
+		sortedFields = null;
+		super.clear();
+	}
 }
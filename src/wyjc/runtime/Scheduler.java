@@ -0,0 +1,266 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//    * Redistributions of source code must retain the above copyright
+//      notice, this list of conditions and the following disclaimer.
+//    * Redistributions in binary form must reproduce the above copyright
+//      notice, this list of conditions and the following disclaimer in the
+//      documentation and/or other materials provided with the distribution.
+//    * Neither the name of the <organization> nor the
+//      names of its contributors may be used to endorse or promote products
+//      derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL DAVID J. PEARCE BE LIABLE FOR ANY
+// DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+// ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package wyjc.runtime;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>
+ * The scheduler is responsible for running actors. Rather than giving each
+ * actor its own thread, actors which have messages waiting are placed onto a
+ * shared run queue, from which a pool of <i>carrier</i> threads takes them and
+ * drains their mailboxes. Thus, the number of threads used by a program is
+ * independent of the number of actors it creates.
+ * </p>
+ * 
+ * <p>
+ * A carrier which must block (e.g. on a synchronous send) informs the
+ * scheduler beforehand. If this leaves fewer than the configured number of
+ * carriers available to run actors, a spare carrier is started to take its
+ * place. Spare carriers retire once the pool is back above strength. The
+ * number of spares is bounded, as in <code>ForkJoinPool</code>'s common
+ * pool, so that many blocked senders cannot grow the number of threads
+ * without limit. Once this bound is reached, actors on the run queue wait
+ * for a carrier to become free. However, a sender blocked waiting for a reply
+ * withdraws the receiving actor from the run queue and runs it itself, so
+ * senders blocked on a busy actor do not depend on a free carrier.
+ * </p>
+ * 
+ * <p>
+ * A blocked sender holds on to its carrier because generated code has no
+ * way to suspend it. Virtual threads would avoid this, but they need Java 21,
+ * whereas the runtime otherwise needs only Java 8.
+ * </p>
+ * 
+ * <p>
+ * The scheduler can be configured using the following system properties:
+ * </p>
+ * <ul>
+ * <li><code>wyjc.actors.carriers</code> --- the number of carrier threads
+ * (defaults to the number of available processors).</li>
+ * <li><code>wyjc.actors.mailbox</code> --- the maximum number of messages an
+ * actor's mailbox may hold (defaults to unbounded).</li>
+ * <li><code>wyjc.actors.batch</code> --- the maximum number of messages
+ * processed from one mailbox before its actor is returned to the back of the
+ * run queue (defaults to 32).</li>
+ * <li><code>wyjc.actors.spares</code> --- the maximum number of spare
+ * carriers started to cover for blocked ones (defaults to 256).</li>
+ * </ul>
+ */
+public final class Scheduler {
+
+	/**
+	 * The number of carrier threads used to run actors.
+	 */
+	public static final int CARRIERS = Math.max(1, property(
+			"wyjc.actors.carriers", Runtime.getRuntime().availableProcessors()));
+
+	/**
+	 * The default mailbox capacity for a newly created actor. A capacity of
+	 * zero indicates an unbounded mailbox.
+	 */
+	public static final int MAILBOX_CAPACITY = property("wyjc.actors.mailbox", 0);
+
+	/**
+	 * The maximum number of messages processed from a mailbox in one go.
+	 */
+	public static final int BATCH_SIZE = Math.max(1,
+			property("wyjc.actors.batch", 32));
+
+	/**
+	 * The maximum number of spare carriers which may be alive at once, in
+	 * addition to the configured number of carriers.
+	 */
+	public static final int MAX_SPARES = property("wyjc.actors.spares", 256);
+
+	/**
+	 * The number of seconds a spare carrier will wait for work before retiring.
+	 */
+	private static final int KEEP_ALIVE = 1;
+
+	/**
+	 * The queue of actors which have messages waiting and are not currently
+	 * being run.
+	 */
+	private static final LinkedBlockingQueue<Actor> runQueue = new LinkedBlockingQueue<Actor>();
+
+	/**
+	 * The number of live carrier threads.
+	 */
+	private static final AtomicInteger live = new AtomicInteger(0);
+
+	/**
+	 * The number of live carrier threads which are currently blocked.
+	 */
+	private static final AtomicInteger blocked = new AtomicInteger(0);
+
+	private static final AtomicInteger count = new AtomicInteger(0);
+
+	static {
+		for (int i = 0; i != CARRIERS; ++i) {
+			live.incrementAndGet();
+			start();
+		}
+	}
+
+	private Scheduler() {
+	}
+
+	/**
+	 * Place an actor onto the run queue. The actor must have been claimed for
+	 * running by the caller, and must not already be on the queue.
+	 * 
+	 * @param actor
+	 */
+	static void submit(Actor actor) {
+		runQueue.add(actor);
+	}
+
+	/**
+	 * Remove an actor from the run queue, so that the caller can run it
+	 * directly. On success, the caller holds the claim on the actor.
+	 * 
+	 * @param actor
+	 * @return true if the actor was on the run queue.
+	 */
+	static boolean withdraw(Actor actor) {
+		return runQueue.remove(actor);
+	}
+
+	/**
+	 * Signal that the calling thread is about to block. If it is a carrier,
+	 * then a spare carrier is started if necessary (and permitted) to keep the
+	 * pool at strength. Every call must be paired with a subsequent call to
+	 * <code>unblocked()</code>.
+	 */
+	static void blocking() {
+		if (Thread.currentThread() instanceof Carrier) {
+			int b = blocked.incrementAndGet();
+			while (true) {
+				int n = live.get();
+				if (n - b >= CARRIERS || n >= CARRIERS + MAX_SPARES) {
+					return;
+				} else if (live.compareAndSet(n, n + 1)) {
+					start();
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Signal that the calling thread is no longer blocked.
+	 */
+	static void unblocked() {
+		if (Thread.currentThread() instanceof Carrier) {
+			blocked.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Determine the number of actors currently waiting to be run.
+	 * 
+	 * @return
+	 */
+	public static int waiting() {
+		return runQueue.size();
+	}
+
+	/**
+	 * Determine the number of carrier threads currently alive, including any
+	 * spares started to cover for blocked carriers.
+	 * 
+	 * @return
+	 */
+	public static int carriers() {
+		return live.get();
+	}
+
+	/**
+	 * Start a new carrier thread, which must already have been counted as
+	 * live.
+	 */
+	private static void start() {
+		Carrier carrier = new Carrier("wyjc-actor-" + count.getAndIncrement());
+		carrier.start();
+	}
+
+	/**
+	 * Attempt to retire the calling carrier. This succeeds only if the pool
+	 * would still be at strength without it.
+	 * 
+	 * @return
+	 */
+	private static boolean retire() {
+		while (true) {
+			int n = live.get();
+			if (n - blocked.get() <= CARRIERS) {
+				return false;
+			} else if (live.compareAndSet(n, n - 1)) {
+				return true;
+			}
+		}
+	}
+
+	private static final class Carrier extends Thread {
+		public Carrier(String name) {
+			super(name);
+			setDaemon(true);
+		}
+
+		public void run() {
+			while (true) {
+				try {
+					Actor actor = runQueue.poll(KEEP_ALIVE, TimeUnit.SECONDS);
+					if (actor != null) {
+						actor.drain(null);
+					}
+					if (retire()) {
+						return;
+					}
+				} catch (InterruptedException e) {
+					// do nothing I guess
+				}
+			}
+		}
+	}
+
+	private static int property(String name, int def) {
+		try {
+			String value = System.getProperty(name);
+			if (value != null) {
+				return Math.max(0, Integer.parseInt(value.trim()));
+			}
+		} catch (NumberFormatException e) {
+			// fall through to the default
+		} catch (SecurityException e) {
+			// fall through to the default
+		}
+		return def;
+	}
+}
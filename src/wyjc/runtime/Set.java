@@ -29,7 +29,7 @@ import java.math.BigInteger;
 import java.util.*;
 
 
-public final class Set extends java.util.HashSet {	
+public final class Set extends java.util.HashSet<Object> {	
 	/**
 	 * The reference count is use to indicate how many variables are currently
 	 * referencing this compound structure. This is useful for making imperative
@@ -37,7 +37,31 @@ public final class Set extends java.util.HashSet {
 	 * <code>1</code> we can safely perform an in-place update of the structure.
 	 */
 	int refCount = 1; 
+	
+	/**
+	 * Identifies the most recent (compiled) type test which this set is known
+	 * to pass, or <code>null</code> if none. This allows repeated tests of the
+	 * same value to be answered immediately, and is cleared whenever the set is
+	 * updated in place.
+	 */
+	Object typeTest;
 
+	/**
+	 * A set may be <i>persistent</i>, in which case its elements are held in
+	 * a persistent map rather than the underlying <code>HashSet</code>.
+	 * Copying a persistent set (e.g. to update a set which is shared) does not
+	 * copy its elements, and subsequent updates to either copy take
+	 * logarithmic time.
+	 */
+	private PersistentMap persistent;
+	
+	/**
+	 * A cached copy of this set's elements in sorted order, or
+	 * <code>null</code> if not yet computed. This is used for printing and
+	 * comparing sets, and is discarded whenever the set is modified.
+	 */
+	private Object[] sorted;
+	
 	// ================================================================================
 	// Generic Operations
 	// ================================================================================	 	
@@ -46,27 +70,80 @@ public final class Set extends java.util.HashSet {
 			
 	}
 	
-	private Set(java.util.Collection items) {
-		super(items);
-		for(Object o : items) {
-			Util.incRefs(o);
+	private Set(java.util.Collection<?> items) {
+		this(persistentOf(items), items);
+	}
+	
+	private Set(PersistentMap pm, java.util.Collection<?> items) {
+		super(pm != null ? Collections.emptySet() : items);
+		if(pm != null) {
+			// NOTE: copying a persistent set need not increment the reference
+			// counts of its elements (see PersistentMap).
+			persistent = pm.share();
+		} else {
+			for(Object o : items) {
+				Util.incRefs(o);
+			}
 		}
 	}	
 	
+	/**
+	 * Construct an empty persistent set.
+	 * 
+	 * @return
+	 */
+	public static Set persistent() {
+		Set r = new Set();
+		r.persistent = new PersistentMap();
+		return r;
+	}
+	
+	private static PersistentMap persistentOf(java.util.Collection<?> items) {
+		return items instanceof Set ? ((Set) items).persistent : null;
+	}
+	
+	/**
+	 * Determine the number of elements copied when this set is cloned. None
+	 * are copied for a persistent set, since its map is shared instead.
+	 * 
+	 * @return
+	 */
+	int cloneSize() {
+		return persistent != null ? 0 : size();
+	}
+	
+	/**
+	 * Decrement the reference counts of this set's elements, as happens when
+	 * it is no longer referenced. For a persistent set, only those elements
+	 * which it holds exclusively are decremented (see PersistentMap).
+	 */
+	void releaseItems() {
+		if(persistent != null) {
+			persistent.release();
+		} else {
+			for(Object o : this) {
+				Util.decRefs(o);
+			}
+		}
+	}
+	
 	public String toString() {
-		String r = "{";
+		StringBuilder r = new StringBuilder();
+		toString(r);
+		return r.toString();
+	}
+	
+	public void toString(StringBuilder r) {
+		r.append('{');
 		boolean firstTime=true;
-		ArrayList ss = new ArrayList(this);
-		Collections.sort(ss,Util.COMPARATOR);
-
-		for(Object o : ss) {
+		for(Object o : sorted()) {
 			if(!firstTime) {
-				r = r + ", ";
+				r.append(", ");
 			}
 			firstTime=false;
-			r = r + whiley.lang.Any$native.toString(o);
+			whiley.lang.Any$native.toString(o,r);
 		}
-		return r + "}";
+		r.append('}');
 	} 
 
 	// ================================================================================
@@ -90,10 +167,10 @@ public final class Set extends java.util.HashSet {
 		Util.countRefs(rhs);
 		
 		if(lhs.refCount == 1) {
-			Util.nset_inplace_updates++;			
+			Util.inplaceUpdate(lhs);			
 			Util.decRefs(rhs);
 		} else if(rhs.refCount == 1) {
-			Util.nset_inplace_updates++;			
+			Util.inplaceUpdate(rhs);			
 			Util.decRefs(lhs);
 			Set tmp = rhs;
 			rhs = lhs;
@@ -115,7 +192,7 @@ public final class Set extends java.util.HashSet {
 		Util.countRefs(lhs);
 		
 		if(lhs.refCount == 1) {
-			Util.nset_inplace_updates++;						
+			Util.inplaceUpdate(lhs);						
 		} else {
 			Util.countClone(lhs);
 			Util.decRefs(lhs);
@@ -130,7 +207,7 @@ public final class Set extends java.util.HashSet {
 		Util.countRefs(rhs);
 		
 		if(rhs.refCount == 1) {
-			Util.nset_inplace_updates++;						
+			Util.inplaceUpdate(rhs);						
 		} else {
 			Util.countClone(rhs);
 			Util.decRefs(rhs);
@@ -146,7 +223,7 @@ public final class Set extends java.util.HashSet {
 		Util.countRefs(rhs);
 		
 		if(lhs.refCount == 1) {
-			Util.nset_inplace_updates++;			
+			Util.inplaceUpdate(lhs);			
 			Util.decRefs(rhs);
 		} else {
 			Util.countClone(lhs);
@@ -164,7 +241,7 @@ public final class Set extends java.util.HashSet {
 	public static Set difference(Set lhs, Object rhs) {
 		Util.countRefs(lhs);
 		if(lhs.refCount == 1) {
-			Util.nset_inplace_updates++;			
+			Util.inplaceUpdate(lhs);			
 			Util.decRefs(rhs);
 		} else {
 			Util.countClone(lhs);
@@ -181,10 +258,10 @@ public final class Set extends java.util.HashSet {
 		Util.countRefs(lhs);
 		Util.countRefs(rhs);
 		if(lhs.refCount == 1) {
-			Util.nset_inplace_updates++;			
+			Util.inplaceUpdate(lhs);			
 			Util.decRefs(rhs);
 		} else if(rhs.refCount == 1) {
-			Util.nset_inplace_updates++;			
+			Util.inplaceUpdate(rhs);			
 			Util.decRefs(lhs);
 			Set tmp = rhs;
 			rhs = lhs;
@@ -208,7 +285,7 @@ public final class Set extends java.util.HashSet {
 		Util.countRefs(lhs);
 		
 		if(lhs.refCount == 1) {
-			Util.nset_inplace_updates++;			
+			Util.inplaceUpdate(lhs);			
 			Util.decRefs(rhs);
 		} else {
 			Util.countClone(lhs);
@@ -217,10 +294,7 @@ public final class Set extends java.util.HashSet {
 			lhs = new Set(lhs);
 		}
 		
-		for(Object o : lhs) {
-			Util.decRefs(o);
-		}
-		
+		lhs.releaseItems();
 		lhs.clear();
 		
 		if(lhs.contains(rhs)) {			
@@ -235,7 +309,7 @@ public final class Set extends java.util.HashSet {
 		Util.countRefs(rhs);
 		
 		if(rhs.refCount == 1) {
-			Util.nset_inplace_updates++;			
+			Util.inplaceUpdate(rhs);			
 			Util.decRefs(lhs);
 		} else {
 			Util.countClone(rhs);
@@ -244,10 +318,7 @@ public final class Set extends java.util.HashSet {
 			rhs = new Set(rhs);
 		}
 		
-		for(Object o : rhs) {
-			Util.decRefs(o);
-		}
-		
+		rhs.releaseItems();
 		rhs.clear();
 		
 		if(rhs.contains(lhs)) {			
@@ -260,7 +331,7 @@ public final class Set extends java.util.HashSet {
 	
 	public static BigInteger length(Set set) {
 		Util.decRefs(set);
-		return BigInteger.valueOf(set.size());
+		return Util.valueOf(set.size());
 	}
 	
 	/**
@@ -275,4 +346,138 @@ public final class Set extends java.util.HashSet {
 		lhs.add(rhs);
 		return lhs;
 	}
+	
+	/**
+	 * Get the elements of this set in sorted order (according to
+	 * <code>Util.COMPARATOR</code>). The array returned is cached and must not
+	 * be modified.
+	 * 
+	 * @return
+	 */
+	Object[] sorted() {
+		if(sorted == null) {
+			Object[] r = toArray();
+			Arrays.sort(r,Util.COMPARATOR);
+			sorted = r;
+		}
+		return sorted;
+	}
+	
+	// ================================================================================
+	// HashSet Overrides
+	// ================================================================================	 
+	
+	// The following operations are answered by the persistent map, for a
+	// persistent set.
+	
+	public int size() {
+		return persistent != null ? persistent.size() : super.size();
+	}
+	
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+	
+	public boolean contains(Object o) {
+		return persistent != null ? persistent.containsKey(o) : super
+				.contains(o);
+	}
+	
+	public boolean add(Object o) {
+		sorted = null;
+		if(persistent != null) {
+			int size = persistent.size();
+			persistent.put(o, Boolean.TRUE);
+			return persistent.size() != size;
+		}
+		return super.add(o);
+	}
+	
+	public boolean remove(Object o) {
+		sorted = null;
+		return persistent != null ? persistent.remove(o) : super.remove(o);
+	}
+	
+	public void clear() {
+		sorted = null;
+		if(persistent != null) {
+			persistent = new PersistentMap();
+		} else {
+			super.clear();
+		}
+	}
+	
+	public java.util.Iterator<Object> iterator() {
+		if(persistent != null) {
+			final java.util.Iterator<Object[]> iter = persistent.iterator();
+			return new java.util.Iterator<Object>() {
+				public boolean hasNext() {
+					return iter.hasNext();
+				}
+				public Object next() {
+					return iter.next()[0];
+				}
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+		return super.iterator();
+	}
+	
+	public Object[] toArray() {
+		if(persistent != null) {
+			Object[] r = new Object[persistent.size()];
+			int i = 0;
+			for(Object o : this) {
+				r[i++] = o;
+			}
+			return r;
+		}
+		return super.toArray();
+	}
+	
+	public <T> T[] toArray(T[] a) {
+		if(persistent != null) {
+			return new ArrayList<Object>(this).toArray(a);
+		}
+		return super.toArray(a);
+	}
+	
+	public boolean removeAll(java.util.Collection<?> c) {
+		sorted = null;
+		if(persistent != null) {
+			boolean r = false;
+			for(Object o : c) {
+				r |= persistent.remove(o);
+			}
+			return r;
+		}
+		return super.removeAll(c);
+	}
+	
+	public boolean retainAll(java.util.Collection<?> c) {
+		sorted = null;
+		if(persistent != null) {
+			ArrayList<Object> removed = new ArrayList<Object>();
+			for(Object o : this) {
+				if(!c.contains(o)) {
+					removed.add(o);
+				}
+			}
+			for(Object o : removed) {
+				persistent.remove(o);
+			}
+			return !removed.isEmpty();
+		}
+		return super.retainAll(c);
+	}
+	
+	public Object clone() {
+		Set r = (Set) super.clone();
+		if(persistent != null) {
+			r.persistent = persistent.share();
+		}
+		return r;
+	}
 }
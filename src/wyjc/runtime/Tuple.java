@@ -65,16 +65,22 @@ public final class Tuple extends java.util.ArrayList {
 	}	
 		
 	public String toString() {
-		String r = "(";
+		StringBuilder r = new StringBuilder();
+		toString(r);
+		return r.toString();
+	}
+	
+	public void toString(StringBuilder r) {
+		r.append('(');
 		boolean firstTime=true;
 		for(Object o : this) {
 			if(!firstTime) {
-				r += ",";
+				r.append(',');
 			}
 			firstTime=false;
-			r += whiley.lang.Any$native.toString(o);
+			whiley.lang.Any$native.toString(o,r);
 		}
-		return r + ")";
+		r.append(')');
 	}
 	
 	// ================================================================================
@@ -87,10 +93,20 @@ public final class Tuple extends java.util.ArrayList {
 		Util.incRefs(item);
 		return item;
 	}
+	
+	/**
+	 * Read an element of a tuple which is borrowed from a variable and, hence,
+	 * whose reference count was not incremented when it was loaded.
+	 */
+	public static Object borrowed_get(Tuple tuple, int index) {
+		Object item = tuple.get(index);
+		Util.incRefs(item);
+		return item;
+	}
 		
 	public static BigInteger length(Tuple tuple) {
 		Util.decRefs(tuple);
-		return BigInteger.valueOf(tuple.size());
+		return Util.valueOf(tuple.size());
 	}
 	
 	public static int size(final Tuple list) {
@@ -25,11 +25,19 @@
 
 package wyjc.runtime;
 
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
 import java.math.*;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static wyil.lang.Type.K_VOID;
 import static wyil.lang.Type.K_ANY;
@@ -50,133 +58,127 @@ import static wyil.lang.Type.K_NEGATION;
 
 public class Util {
 
-	private static final boolean debug = false;
-	private static final boolean logRefCounts = false;
-	private static final ArrayList<Object[]> refCounts = new ArrayList();
-	private static long startTime;
-	
-	static { 
-		if(debug) {
-			startTime = System.currentTimeMillis();
-			Runtime.getRuntime().addShutdownHook(new Thread(){
-				public void run() {
-					long totalTime = System.currentTimeMillis() - startTime;
-					System.err.println("==================================================");
-					System.err.println("STATS");
-					System.err.println("==================================================");
-					System.err.println("Time: " + totalTime + "ms");
-					double avg = nset_elems;
-					avg = avg / nset_clones;
-					System.err.println("set clones:        " + nset_clones + " / "
-							+ (nset_clones + nset_inplace_updates) + " (" + avg + ")");
-					avg = nlist_elems;
-					avg = avg / nlist_clones;
-					System.err.println("list clones:       " + nlist_clones + " / "
-							+ (nlist_clones + nlist_inplace_updates)+ " (" + avg + ")");
-					avg = ndict_elems;
-					avg = avg / ndict_clones;
-					System.err.println("dictionary clones: " + ndict_clones
-							+ " / " + (ndict_clones + ndict_inplace_updates)+ " (" + avg + ")");
-					avg = nrecord_elems;
-					avg = avg / nrecord_clones;
-					System.err.println("record clones:     " + nrecord_clones
-							+ " / " + (nrecord_clones + nrecord_strong_updates)+ " (" + avg + ")");		
-					long totalClones = nlist_clones + nset_clones + ndict_clones + nrecord_clones;
-					long totalStrongUpdates = nlist_inplace_updates + nset_inplace_updates + ndict_inplace_updates + nrecord_strong_updates;
-					double ratio = totalClones;
-					ratio = 100 * (ratio / (totalClones+totalStrongUpdates));
-					long totalElems = nset_elems + nlist_elems + ndict_elems + nrecord_elems; 
-					avg = totalElems;
-					avg = (avg / (totalClones));
-					System.err.println("--------------------------------------------------");
-					System.err.println("Total clones: " + totalClones + " / " + (totalClones+totalStrongUpdates) + " (" + ratio + "%)");
-					System.err.println("Average Clone Size: " + totalElems + " / " + totalClones + " (" + avg + ")");
-					avg = total_ref_count;
-					avg = avg / total_population;
-					System.err.println("Avg Reference Count: " + avg);	
-					System.err.println("--------------------------------------------------");
-					if(logRefCounts) {
-						for(Object[] p : refCounts) {
-							System.out.println(System.identityHashCode(p[0]) + " : " + p[1]);
-						}
-					}
-				}
-			});
-		}
-	}	
+	/*
+	 * The following methods record runtime metrics about the reference
+	 * counting scheme (see Metrics). When metrics are disabled, they compile
+	 * away to nothing.
+	 */
 	
-	private static long total_ref_count = 0;	
-	private static long total_population = 0; // number of update operations
-	private static int nlist_clones = 0;
-	private static long nlist_elems = 0;
-	static int nlist_inplace_updates = 0;
-	private static int nset_clones = 0;
-	private static long nset_elems = 0;
-	static int nset_inplace_updates = 0;
-	private static int ndict_clones = 0;
-	private static long ndict_elems = 0;
-	static int ndict_inplace_updates = 0;
-	private static int nrecord_clones = 0;
-	private static long nrecord_elems = 0;
-	static int nrecord_strong_updates = 0;
-
 	public static void countRefs(List l) {
-		total_ref_count += l.refCount;		
-		total_population++;
-		if(logRefCounts) {
-			refCounts.add(new Object[]{l,l.refCount});
+		if(Metrics.ENABLED) {
+			Metrics.countRefs(l.refCount);
 		}
 	}
 	
 	public static void countRefs(Set l) {
-		total_ref_count += l.refCount;		
-		total_population++;
-		if(logRefCounts) {
-			refCounts.add(new Object[]{l,l.refCount});
+		if(Metrics.ENABLED) {
+			Metrics.countRefs(l.refCount);
 		}
 	}
 	
 	public static void countRefs(Dictionary l) {
-		total_ref_count += l.refCount;		
-		total_population++;
-		if(logRefCounts) {
-			refCounts.add(new Object[]{l,l.refCount});
+		if(Metrics.ENABLED) {
+			Metrics.countRefs(l.refCount);
 		}
 	}
 	
 	public static void countRefs(Record l) {
-		total_ref_count += l.refCount;
-		total_population++;
-		if(logRefCounts) {
-			refCounts.add(new Object[]{l,l.refCount});
+		if(Metrics.ENABLED) {
+			Metrics.countRefs(l.refCount);
 		}
 	}
 	
 	public static void countClone(List l) {
-		nlist_clones ++;		
-		nlist_elems += l.size();
+		if(Metrics.ENABLED) {
+			Metrics.countClone(Metrics.LIST, l.cloneSize());
+		}
 	}
 	
 	public static void countClone(Set l) {
-		nset_clones ++;		
-		nset_elems += l.size();
+		if(Metrics.ENABLED) {
+			Metrics.countClone(Metrics.SET, l.cloneSize());
+		}
 	}
 	
 	public static void countClone(Dictionary l) {
-		ndict_clones ++;		
-		ndict_elems += l.size();
+		if(Metrics.ENABLED) {
+			Metrics.countClone(Metrics.DICTIONARY, l.cloneSize());
+		}
 	}
 	
 	public static void countClone(Record l) {
-		nrecord_clones ++;		
-		nrecord_elems += l.size();
+		if(Metrics.ENABLED) {
+			Metrics.countClone(Metrics.RECORD, l.size());
+		}
 	}
 	
+	/*
+	 * The following methods are called immediately before a collection is
+	 * updated in place. They invalidate any cached type test, since the
+	 * collection may no longer pass it.
+	 */
+	
+	public static void inplaceUpdate(List l) {
+		l.typeTest = null;
+		if(Metrics.ENABLED) {
+			Metrics.countInplace(Metrics.LIST);
+		}
+	}
+	
+	public static void inplaceUpdate(Set l) {
+		l.typeTest = null;
+		if(Metrics.ENABLED) {
+			Metrics.countInplace(Metrics.SET);
+		}
+	}
+	
+	public static void inplaceUpdate(Dictionary l) {
+		l.typeTest = null;
+		if(Metrics.ENABLED) {
+			Metrics.countInplace(Metrics.DICTIONARY);
+		}
+	}
+	
+	public static void inplaceUpdate(Record l) {
+		l.typeTest = null;
+		if(Metrics.ENABLED) {
+			Metrics.countInplace(Metrics.RECORD);
+		}
+	}
+	
+	/**
+	 * Cache of methods previously resolved by <code>functionRef</code>, keyed
+	 * on their class and (mangled) name.
+	 */
+	private static final ConcurrentHashMap<String,Method> functionRefs = new ConcurrentHashMap<String,Method>();
+	
+	/**
+	 * Resolve a reference to a function, method or message. Resolved methods
+	 * are cached, and have their access checks suppressed, so that invoking
+	 * them reflectively is as cheap as possible.
+	 * 
+	 * @param clazz
+	 *            --- the fully qualified name of the owning class.
+	 * @param name
+	 *            --- the mangled name of the method.
+	 * @return
+	 */
 	public static Method functionRef(String clazz, String name) {
+		String key = clazz + ":" + name;
+		Method r = functionRefs.get(key);
+		if(r != null) {
+			return r;
+		}
 		try {
 			Class cl = Class.forName(clazz);
 			for(Method m : cl.getDeclaredMethods()) {
 				if(m.getName().equals(name)) {
+					try {
+						m.setAccessible(true);
+					} catch(SecurityException e) {
+						// then we'll just have to live with the access checks
+					}
+					functionRefs.put(key, m);
 					return m;
 				}
 			}
@@ -186,6 +188,74 @@ public class Util {
 		}
 	}
 	
+	/**
+	 * Cache of method handles previously created by <code>handle</code>, keyed
+	 * on the method they invoke.
+	 */
+	private static final ConcurrentHashMap<Method,MethodHandle> handles = new ConcurrentHashMap<Method,MethodHandle>();
+	
+	/**
+	 * Invoke a function, method or message (as returned by
+	 * <code>functionRef</code>) with a given array of arguments. This looks
+	 * up the method's handle in a table shared by all callers, and so is used
+	 * where there is no call site to cache it at (e.g. actor dispatch);
+	 * indirect invocations in generated code go through an
+	 * <code>InvokeCache</code> instead.
+	 * 
+	 * @param method
+	 *            --- the method to invoke, which must be static.
+	 * @param arguments
+	 *            --- the arguments to pass.
+	 * @return
+	 */
+	public static Object invoke(Method method, Object[] arguments) {
+		return invoke(handle(method), arguments);
+	}
+	
+	/**
+	 * Return a method handle for a given method which accepts the arguments
+	 * as an array and returns an <code>Object</code> (i.e. boxing a primitive
+	 * return, or giving <code>null</code> for void). The handle is created the
+	 * first time a method is seen, and cached thereafter. Unlike
+	 * <code>Method.invoke()</code>, access checks are not repeated on every
+	 * call.
+	 */
+	static MethodHandle handle(Method method) {
+		MethodHandle handle = handles.get(method);
+		if(handle == null) {
+			try {
+				handle = MethodHandles.lookup().unreflect(method)
+						.asFixedArity()
+						.asSpreader(Object[].class,
+								method.getParameterTypes().length)
+						.asType(MethodType.methodType(Object.class,
+								Object[].class));
+			} catch(IllegalAccessException e) {
+				throw new RuntimeException(e);
+			}
+			handles.put(method, handle);
+		}
+		return handle;
+	}
+	
+	/**
+	 * Invoke a method handle (as returned by <code>handle</code>) with a given
+	 * array of arguments. Any exception raised by the method is propagated
+	 * unchanged, or wrapped in a <code>RuntimeException</code> if it is
+	 * checked.
+	 */
+	static Object invoke(MethodHandle handle, Object[] arguments) {
+		try {
+			return (Object) handle.invokeExact(arguments);
+		} catch(RuntimeException e) {
+			throw e;
+		} catch(Error e) {
+			throw e;
+		} catch(Throwable e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
 	public static String append(final String lhs, final String rhs) {		
 		return lhs + rhs;
 	}
@@ -199,7 +269,7 @@ public class Util {
 	}
 	
 	public static BigInteger stringlength(final String lhs) {
-		return BigInteger.valueOf(lhs.length());
+		return valueOf(lhs.length());
 	}
 	
 	public static String substring(final String lhs, final BigInteger _start, final BigInteger _end) {
@@ -224,31 +294,153 @@ public class Util {
 		return (byte) ((b1&0xFF) >>> b2.intValue());		
 	}
 	
-	public static List range(BigInteger start, BigInteger end) {
-		List l = new List();
-		
-		long st = start.longValue();
-		long en = start.longValue();
-		if (BigInteger.valueOf(st).equals(start)
-				&& BigInteger.valueOf(en).equals(end)) {
-			int dir = st < en ? 1 : -1;
-			while(st != en) {
-				l.add(BigInteger.valueOf(st));
-				st = st + dir;
-			}					
+	// ========================================================================
+	// Integer Arithmetic
+	// ========================================================================
+	
+	/**
+	 * Whiley integers are unbounded and, hence, are represented using
+	 * <code>BigInteger</code>. However, the vast majority of integers in a
+	 * typical program (e.g. loop counters and list indices) are small. The
+	 * following methods therefore compute results using <code>long</code>
+	 * arithmetic whenever the operands fit into a <code>long</code>, and
+	 * promote to <code>BigInteger</code> arithmetic when they do not, or when
+	 * the result overflows.
+	 * Furthermore, small results are taken from a cache of preallocated
+	 * integers, rather than being allocated afresh.
+	 */
+	private static final int SMALL_INT_MIN = -128;
+	private static final int SMALL_INT_MAX = 1024;
+	private static final BigInteger[] SMALL_INTS = new BigInteger[SMALL_INT_MAX - SMALL_INT_MIN + 1];
+	
+	static {
+		for(int i=0;i!=SMALL_INTS.length;++i) {
+			SMALL_INTS[i] = BigInteger.valueOf(i + SMALL_INT_MIN);
+		}
+	}
+	
+	public static BigInteger valueOf(long value) {
+		if(value >= SMALL_INT_MIN && value <= SMALL_INT_MAX) {
+			return SMALL_INTS[(int) value - SMALL_INT_MIN];
 		} else {
-			BigInteger dir;
-			if(start.compareTo(end) < 0) {
-				dir = BigInteger.ONE;
-			} else {
-				dir = BigInteger.valueOf(-1);
+			return BigInteger.valueOf(value);
+		}
+	}
+	
+	public static BigInteger add(BigInteger lhs, BigInteger rhs) {
+		// NOTE: bitLength() excludes the sign bit, so both operands fit in a
+		// long. If the result does not, it is recomputed as a BigInteger.
+		if(lhs.bitLength() < 64 && rhs.bitLength() < 64) {
+			try {
+				return valueOf(Math.addExact(lhs.longValue(), rhs.longValue()));
+			} catch(ArithmeticException e) {
+				// overflow, so promote
+			}
+		}
+		return lhs.add(rhs);
+	}
+	
+	public static BigInteger subtract(BigInteger lhs, BigInteger rhs) {
+		if(lhs.bitLength() < 64 && rhs.bitLength() < 64) {
+			try {
+				return valueOf(Math.subtractExact(lhs.longValue(), rhs.longValue()));
+			} catch(ArithmeticException e) {
+				// overflow, so promote
+			}
+		}
+		return lhs.subtract(rhs);
+	}
+	
+	public static BigInteger multiply(BigInteger lhs, BigInteger rhs) {
+		if(lhs.bitLength() < 64 && rhs.bitLength() < 64) {
+			try {
+				return valueOf(Math.multiplyExact(lhs.longValue(), rhs.longValue()));
+			} catch(ArithmeticException e) {
+				// overflow, so promote
+			}
+		}
+		return lhs.multiply(rhs);
+	}
+	
+	public static BigInteger divide(BigInteger lhs, BigInteger rhs) {
+		// NOTE: division by zero is left to BigInteger, so as to raise the
+		// same exception as before. Long.MIN_VALUE / -1 is the only quotient
+		// which overflows.
+		if(lhs.bitLength() < 63 && rhs.bitLength() < 64 && rhs.signum() != 0) {
+			return valueOf(lhs.longValue() / rhs.longValue());
+		} else {
+			return lhs.divide(rhs);
+		}
+	}
+	
+	public static BigInteger remainder(BigInteger lhs, BigInteger rhs) {
+		if(lhs.bitLength() < 64 && rhs.bitLength() < 64 && rhs.signum() != 0) {
+			return valueOf(lhs.longValue() % rhs.longValue());
+		} else {
+			return lhs.remainder(rhs);
+		}
+	}
+	
+	public static BigInteger negate(BigInteger value) {
+		if(value.bitLength() < 64) {
+			try {
+				return valueOf(Math.negateExact(value.longValue()));
+			} catch(ArithmeticException e) {
+				// overflow, so promote
+			}
+		}
+		return value.negate();
+	}
+	
+	/**
+	 * Compare an unboxed index against an integer, as happens when a loop
+	 * variable held unboxed is checked against the bounds of a list.
+	 * 
+	 * @param lhs
+	 * @param rhs
+	 * @return
+	 */
+	public static int compareIndex(int lhs, BigInteger rhs) {
+		if(rhs.bitLength() < 32) {
+			int r = rhs.intValue();
+			return lhs < r ? -1 : (lhs == r ? 0 : 1);
+		} else {
+			return -rhs.signum();
+		}
+	}
+	
+	/**
+	 * Construct the list of integers from <code>start</code> up to, but not
+	 * including, <code>end</code>. Where possible, the list returned is a lazy
+	 * range, whose elements are only materialised if it is subsequently used
+	 * as something other than a sequence to iterate or index.
+	 * 
+	 * @param start
+	 * @param end
+	 * @return
+	 */
+	public static List range(BigInteger start, BigInteger end) {
+		if (start.bitLength() < 63 && end.bitLength() < 63) {
+			long st = start.longValue();
+			long en = end.longValue();
+			long size = Math.abs(en - st);
+			if(size <= Integer.MAX_VALUE) {
+				return List.range(st,en);
 			}
-			while(!start.equals(end)) {
-				l.add(start);
-				start = start.add(dir);
-			}	
 		}
 		
+		// otherwise, the range is too large to be lazy.
+		List l = new List();
+		BigInteger dir;
+		if(start.compareTo(end) < 0) {
+			dir = BigInteger.ONE;
+		} else {
+			dir = BigInteger.valueOf(-1);
+		}
+		while(!start.equals(end)) {
+			l.add(start);
+			start = start.add(dir);
+		}	
 		return l;
 	}
 	
@@ -273,11 +465,7 @@ public class Util {
 	 * @return
 	 */
 	public static List str2cl(String str) {
-		List r = new List(str.length());
-		for(int i=0;i!=str.length();++i) {
-			r.add(str.charAt(i));
-		}
-		return r;
+		return List.valueOf(str.toCharArray(), str.length());
 	}
 	
 	/**
@@ -286,11 +474,11 @@ public class Util {
 	 * @return
 	 */
 	public static List str2il(String str) {
-		List r = new List(str.length());
-		for(int i=0;i!=str.length();++i) {
-			r.add(BigInteger.valueOf(str.charAt(i)));
+		long[] values = new long[str.length()];
+		for(int i=0;i!=values.length;++i) {
+			values[i] = str.charAt(i);
 		}
-		return r;
+		return List.valueOf(values, values.length);
 	}
 	
 	/**
@@ -305,6 +493,24 @@ public class Util {
 		return (o1 != null && o1.equals(o2)) || (o1 == o2);
 	}		
 	
+	/**
+	 * The console to which debug output is written. Unlike
+	 * <code>System.out</code>, this does not flush on every newline and, hence,
+	 * must be flushed explicitly. This happens when the main method returns
+	 * (see <code>flush()</code>) and, failing that, on exit.
+	 */
+	private static final PrintStream console = new PrintStream(
+			new BufferedOutputStream(new FileOutputStream(FileDescriptor.out),
+					65536), false);
+	
+	static {
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				flush();
+			}
+		});
+	}
+	
 	/**
 	 * The following method is used for printing debug output arising from debug
 	 * statements.
@@ -312,9 +518,31 @@ public class Util {
 	 * @param list
 	 */
 	public static void debug(String str) {
-		System.out.print(str);			
+		console.print(str);			
+	}
+	
+	/**
+	 * Flush any debug output which is buffered, along with
+	 * <code>System.out</code>.
+	 */
+	public static void flush() {
+		console.flush();
+		System.out.flush();
 	}
 		
+	/**
+	 * Determine whether or not a given value has a reference count (i.e. is a
+	 * compound value).
+	 * 
+	 * @param obj
+	 * @return
+	 */
+	static boolean isRefCounted(Object obj) {
+		return obj instanceof List || obj instanceof Record
+				|| obj instanceof Set || obj instanceof Dictionary
+				|| obj instanceof Tuple;
+	}
+	
 	/**
 	 * Increment the reference count for an object. In some cases, this may
 	 * have no effect. In other cases, the current reference count will be
@@ -377,9 +605,7 @@ public class Util {
 			List list = (List) obj;
 			list.refCount--;
 			if(list.refCount == 0) {
-				for(Object o : list) {
-					decRefs(o);
-				}
+				list.releaseItems();
 			}
 		} else if(obj instanceof Record) {
 			Record rec = (Record) obj;			
@@ -393,18 +619,13 @@ public class Util {
 			Set set = (Set) obj;
 			set.refCount--;			
 			if(set.refCount == 0) {
-				for(Object o : set) {
-					decRefs(o);
-				}
+				set.releaseItems();
 			}
 		} else if(obj instanceof Dictionary) {
 			Dictionary dict = (Dictionary) obj;
 			dict.refCount--;	
 			if(dict.refCount == 0) {				
-				for(Map.Entry e : dict.entrySet()) {
-					decRefs(e.getKey());
-					decRefs(e.getValue());
-				}
+				dict.releaseItems();
 			}
 		} else if(obj instanceof Tuple) {
 			Tuple tuple = (Tuple) obj;
@@ -420,18 +641,14 @@ public class Util {
 	public static void decRefs(List list) {		
 		list.refCount--;
 		if(list.refCount == 0) {
-			for(Object o : list) {
-				decRefs(o);
-			}
+			list.releaseItems();
 		}
 	}
 	
 	public static void decRefs(Set set) {
 		set.refCount--;
 		if(set.refCount == 0) {
-			for(Object o : set) {
-				decRefs(o);
-			}
+			set.releaseItems();
 		}
 	}
 	
@@ -447,10 +664,7 @@ public class Util {
 	public static void decRefs(Dictionary dict) {
 		dict.refCount--;
 		if(dict.refCount == 0) {				
-			for(Map.Entry e : dict.entrySet()) {
-				decRefs(e.getKey());
-				decRefs(e.getValue());
-			}
+			dict.releaseItems();
 		}
 	}
 	
@@ -463,6 +677,50 @@ public class Util {
 		}
 	}
 	
+	/**
+	 * The <code>knownInstanceOf</code> methods are used by the type tests
+	 * which the compiler generates for compound types. They determine whether
+	 * a collection is already known to pass a given test, in which case its
+	 * elements need not be examined again. The test is identified by a key
+	 * object which is unique to it.
+	 */
+	public static boolean knownInstanceOf(List object, Object test) {
+		return object.typeTest == test;
+	}
+	
+	public static boolean knownInstanceOf(Set object, Object test) {
+		return object.typeTest == test;
+	}
+	
+	public static boolean knownInstanceOf(Dictionary object, Object test) {
+		return object.typeTest == test;
+	}
+	
+	public static boolean knownInstanceOf(Record object, Object test) {
+		return object.typeTest == test;
+	}
+	
+	/**
+	 * The <code>markInstanceOf</code> methods record that a collection has
+	 * passed a given (compiled) type test. This remains valid until the
+	 * collection is next updated in place.
+	 */
+	public static void markInstanceOf(List object, Object test) {
+		object.typeTest = test;
+	}
+	
+	public static void markInstanceOf(Set object, Object test) {
+		object.typeTest = test;
+	}
+	
+	public static void markInstanceOf(Dictionary object, Object test) {
+		object.typeTest = test;
+	}
+	
+	public static void markInstanceOf(Record object, Object test) {
+		object.typeTest = test;
+	}
+	
 	/**
 	 * The <code>instanceOf</code> method implements a runtime type test. 
 	 */
@@ -808,7 +1066,7 @@ public class Util {
 	
 	public static final Comparator COMPARATOR = new Comparator();
 	
-	public static final class Comparator implements java.util.Comparator {
+	public static final class Comparator implements java.util.Comparator<Object> {
 		private Comparator() {}
 		
 		public final int compare(Object o1, Object o2) {
@@ -816,84 +1074,97 @@ public class Util {
 		}
 	}
 
+	/**
+	 * Compare two arbitrary values. Values of different kinds are ordered by
+	 * kind (see <code>rank()</code>), whilst values of the same kind are
+	 * compared structurally. Sets, records and dictionaries are compared using
+	 * their (cached) sorted views and, hence, without sorting or allocating on
+	 * each comparison.
+	 */
 	public static int compare(Object o1, Object o2) {
-		if(o1 == null) {
-			return o2 == null ? 0 : -1;				
-		} else if(o1 instanceof Boolean) {
-			return compare((Boolean)o1,o2);
-		} else if(o1 instanceof Character) {			
-			return compare((Character)o1,o2);
-		} else if(o1 instanceof BigInteger) {			
-			return compare((BigInteger)o1,o2);
-		} else if(o1 instanceof BigRational) {
-			return compare((BigRational)o1,o2);
-		} else if(o1 instanceof Set) {
-			return compare((Set)o1,o2);
-		} else if(o1 instanceof List) {
-			return compare((List)o1,o2);
-		} else if(o1 instanceof Dictionary) {
-			return compare((Dictionary)o1,o2);
-		} else if(o1 instanceof Tuple) {
-			return compare((Tuple)o1,o2);
-		} else if(o1 instanceof Record) {
-			return compare((Record)o1,o2);
-		} else {
-			throw new IllegalArgumentException("Invalid object passed to comparator: " + o1);
+		int r1 = rank(o1);
+		int r2 = rank(o2);
+		if(r1 != r2) {
+			return r1 < r2 ? -1 : 1;
 		}
-	}
-
-	public static int compare(Boolean o1, Object o2) {
-		if(o2 == null) {
-			return 1;
-		} else if(o2 instanceof Boolean) {
-			Boolean b2 = (Boolean) o2;
-			return o1.compareTo(b2);
-		} else {
-			return -1;
+		switch(r1) {
+			case RANK_NULL:
+				return 0;
+			case RANK_BOOL:
+				return ((Boolean) o1).compareTo((Boolean) o2);
+			case RANK_BYTE:
+				return ((java.lang.Byte) o1).compareTo((java.lang.Byte) o2);
+			case RANK_CHAR:
+				return ((Character) o1).compareTo((Character) o2);
+			case RANK_INT:
+				return ((BigInteger) o1).compareTo((BigInteger) o2);
+			case RANK_REAL:
+				return ((BigRational) o1).compareTo((BigRational) o2);
+			case RANK_STRING:
+				return ((String) o1).compareTo((String) o2);
+			case RANK_SET:
+				return compare((Set) o1, (Set) o2);
+			case RANK_LIST:
+				return compare((List) o1, (List) o2);
+			case RANK_TUPLE:
+				return compare((Tuple) o1, (Tuple) o2);
+			case RANK_RECORD:
+				return compare((Record) o1, (Record) o2);
+			case RANK_DICTIONARY:
+				return compare((Dictionary) o1, (Dictionary) o2);
+			default:
+				if(o1 == o2) {
+					return 0;
+				}
+				return o1.toString().compareTo(o2.toString());
 		}
 	}
 
-	public static int compare(Character o1, Object o2) {
-		if(o2 == null) {
-			return 1;
-		} else if(o2 instanceof Character) {
-			Character c2 = (Character) o2;
-			return o1.compareTo(c2);
-		} else {
-			return -1;
-		}
-	}
+	private static final int RANK_NULL = 0;
+	private static final int RANK_BOOL = 1;
+	private static final int RANK_BYTE = 2;
+	private static final int RANK_CHAR = 3;
+	private static final int RANK_INT = 4;
+	private static final int RANK_REAL = 5;
+	private static final int RANK_STRING = 6;
+	private static final int RANK_SET = 7;
+	private static final int RANK_LIST = 8;
+	private static final int RANK_TUPLE = 9;
+	private static final int RANK_RECORD = 10;
+	private static final int RANK_DICTIONARY = 11;
+	private static final int RANK_OTHER = 12;
 	
-	public static int compare(BigInteger o1, Object o2) {
-		if(o2 == null || o2 instanceof Boolean) {
-			return 1;
-		} else if(o2 instanceof BigInteger) {
-			BigInteger b2 = (BigInteger) o2;
-			return o1.compareTo(b2);
-		} else {
-			return -1;
-		}
-	}
-
-	public static int compare(BigRational o1, Object o2) {
-		if(o2 == null || o2 instanceof Boolean || o2 instanceof BigInteger) {
-			return 1;
-		} else if(o2 instanceof BigRational) {
-			BigRational b2 = (BigRational) o2;
-			return o1.compareTo(b2);
-		} else {
-			return -1;
-		}
-	}
-
-	public static int compare(Set o1, Object o2) {
-		if (o2 == null || o2 instanceof Boolean || o2 instanceof BigInteger
-				|| o2 instanceof BigRational) {
-			return 1;
-		} else if (o2 instanceof Set) {
-			return compare(o1, (Set) o2);
+	/**
+	 * Determine the position of a value's kind in the overall ordering of
+	 * values.
+	 */
+	private static int rank(Object o) {
+		if(o == null) {
+			return RANK_NULL;
+		} else if(o instanceof BigInteger) {
+			return RANK_INT;
+		} else if(o instanceof List) {
+			return RANK_LIST;
+		} else if(o instanceof Record) {
+			return RANK_RECORD;
+		} else if(o instanceof Boolean) {
+			return RANK_BOOL;
+		} else if(o instanceof java.lang.Byte) {
+			return RANK_BYTE;
+		} else if(o instanceof Character) {
+			return RANK_CHAR;
+		} else if(o instanceof BigRational) {
+			return RANK_REAL;
+		} else if(o instanceof String) {
+			return RANK_STRING;
+		} else if(o instanceof Set) {
+			return RANK_SET;
+		} else if(o instanceof Tuple) {
+			return RANK_TUPLE;
+		} else if(o instanceof Dictionary) {
+			return RANK_DICTIONARY;
 		} else {
-			return -1;
+			return RANK_OTHER;
 		}
 	}
 
@@ -904,16 +1175,13 @@ public class Util {
 			return -1;
 		} else if(s1_size > s2_size) {
 			return 1;
+		} else if(o1 == o2) {
+			return 0;
 		} else {
-			// this is ugly
-			ArrayList a1 = new ArrayList(o1);
-			ArrayList a2 = new ArrayList(o2);
-			Collections.sort(a1,COMPARATOR);
-			Collections.sort(a2,COMPARATOR);
+			Object[] a1 = o1.sorted();
+			Object[] a2 = o2.sorted();
 			for(int i=0;i!=s1_size;++i) {
-				Object e1 = a1.get(i);
-				Object e2 = a2.get(i);
-				int c = compare(e1,e2);
+				int c = compare(a1[i],a2[i]);
 				if(c != 0) {
 					return c;
 				}
@@ -922,17 +1190,6 @@ public class Util {
 		}
 	}
 
-	public static int compare(List o1, Object o2) {
-		if (o2 == null || o2 instanceof Boolean || o2 instanceof BigInteger
-				|| o2 instanceof BigRational || o2 instanceof Set) {
-			return 1;
-		} else if (o2 instanceof List) {
-			return compare(o1, (List) o2);
-		} else {
-			return -1;
-		}
-	}
-
 	public static int compare(List o1, List o2) {
 		int s1_size = o1.size();
 		int s2_size = o2.size();
@@ -953,18 +1210,6 @@ public class Util {
 		}
 	}
 
-	public static int compare(Tuple o1, Object o2) {
-		if (o2 == null || o2 instanceof Boolean || o2 instanceof BigInteger
-				|| o2 instanceof BigRational || o2 instanceof Set
-				|| o2 instanceof List) {
-			return 1;
-		} else if (o2 instanceof Tuple) {
-			return compare(o1, (Tuple) o2);
-		} else {
-			return -1;
-		}
-	}
-
 	public static int compare(Tuple o1, Tuple o2) {
 		int s1_size = o1.size();
 		int s2_size = o2.size();
@@ -985,44 +1230,55 @@ public class Util {
 		}
 	}
 
-	public static int compare(Record o1, Object o2) {
-		if (o2 == null || o2 instanceof Boolean || o2 instanceof BigInteger
-				|| o2 instanceof BigRational || o2 instanceof Set
-				|| o2 instanceof Tuple) {
-			return 1;
-		} else if (o2 instanceof Record) {
-			return compare(o1, (Record) o2);
-		} else {
-			return -1;
-		}
-	}
-
 	public static int compare(Record o1, Record o2) {
-		ArrayList<String> mKeys = new ArrayList<String>(o1.keySet());
-		ArrayList<String> tKeys = new ArrayList<String>(o2.keySet());
-		Collections.sort(mKeys);
-		Collections.sort(tKeys);
+		String[] mKeys = o1.sortedFields();
+		String[] tKeys = o2.sortedFields();
+		int size = Math.min(mKeys.length, tKeys.length);
 
-		for(int i=0;i!=Math.min(mKeys.size(),tKeys.size());++i) {
-			String mk = mKeys.get(i);
-			String tk = tKeys.get(i);
+		for(int i=0;i!=size;++i) {
+			String mk = mKeys[i];
+			String tk = tKeys[i];
 			int c = mk.compareTo(tk);
 			if(c != 0) {
 				return c;
 			}
-			String mv = o1.get(mk).toString();
-			String tv = o2.get(tk).toString();
-			c = mv.compareTo(tv);
+			c = compare(o1.get(mk),o2.get(tk));
 			if(c != 0) {
 				return c;
 			}
 		}
 
-		if(mKeys.size() < tKeys.size()) {
+		if(mKeys.length < tKeys.length) {
+			return -1;
+		} else if(mKeys.length > tKeys.length) {
+			return 1;
+		} else {
+			return 0;
+		}
+	}
+	
+	public static int compare(Dictionary o1, Dictionary o2) {
+		int s1_size = o1.size();
+		int s2_size = o2.size();
+		if(s1_size < s2_size) {
 			return -1;
-		} else if(mKeys.size() > tKeys.size()) {
+		} else if(s1_size > s2_size) {
 			return 1;
+		} else if(o1 == o2) {
+			return 0;
 		} else {
+			Object[] k1 = o1.sortedKeys();
+			Object[] k2 = o2.sortedKeys();
+			for(int i=0;i!=s1_size;++i) {
+				int c = compare(k1[i],k2[i]);
+				if(c != 0) {
+					return c;
+				}
+				c = compare(o1.get(k1[i]),o2.get(k2[i]));
+				if(c != 0) {
+					return c;
+				}
+			}
 			return 0;
 		}
 	}
@@ -0,0 +1,117 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//    * Redistributions of source code must retain the above copyright
+//      notice, this list of conditions and the following disclaimer.
+//    * Redistributions in binary form must reproduce the above copyright
+//      notice, this list of conditions and the following disclaimer in the
+//      documentation and/or other materials provided with the distribution.
+//    * Neither the name of the <organization> nor the
+//      names of its contributors may be used to endorse or promote products
+//      derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL DAVID J. PEARCE BE LIABLE FOR ANY
+// DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+// ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package wyjc.testing;
+
+import java.io.*;
+import java.util.*;
+import java.util.jar.*;
+
+import wyjc.attributes.WhileyDefine;
+import wyjc.attributes.WhileyType;
+import wyjvm.io.ClassFileReader;
+import wyjvm.io.ClassFileWriter;
+import wyjvm.lang.BytecodeAttribute;
+import wyjvm.lang.ClassFile;
+
+/**
+ * <p>
+ * A simple benchmark which measures the cost of class file I/O. This
+ * repeatedly reads every class file in a given jar (by default, the compiled
+ * standard library <code>lib/wyrt.jar</code>) and writes it back out again,
+ * timing the reads and writes separately.
+ * </p>
+ * 
+ * <p>
+ * <b>NOTE:</b> the first few rounds should be discarded, since they include
+ * the time taken for the JVM to warm up.
+ * </p>
+ */
+public class ClassFileBenchmark {
+	
+	public static void main(String[] args) throws IOException {
+		String jarfile = args.length > 0 ? args[0] : "lib/wyrt.jar";
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		JarFile jar = new JarFile(jarfile);
+		ArrayList<JarEntry> entries = new ArrayList<JarEntry>();
+		for (Enumeration<JarEntry> e = jar.entries(); e.hasMoreElements();) {
+			JarEntry entry = e.nextElement();
+			if (entry.getName().endsWith(".class")) {
+				entries.add(entry);
+			}
+		}
+		
+		long totalRead = 0;
+		long totalWrite = 0;
+		long bytes = 0;
+		for (int i = 0; i != rounds; ++i) {
+			// first, read every class
+			long start = System.currentTimeMillis();
+			ArrayList<ClassFile> classes = new ArrayList<ClassFile>();
+			for (JarEntry entry : entries) {
+				InputStream input = jar.getInputStream(entry);
+				try {
+					classes.add(new ClassFileReader(input, readers())
+							.readClass());
+				} catch (RuntimeException e) {
+					// skip classes using features we don't support
+				} finally {
+					input.close();
+				}
+			}
+			long read = System.currentTimeMillis() - start;
+			
+			// second, write them all back out again
+			start = System.currentTimeMillis();
+			bytes = 0;
+			for (ClassFile cf : classes) {
+				ByteArrayOutputStream output = new ByteArrayOutputStream();
+				new ClassFileWriter(output, null).write(cf);
+				bytes += output.size();
+			}
+			long write = System.currentTimeMillis() - start;
+			
+			System.out.println("Round " + i + ": read " + classes.size()
+					+ " classes in " + read + "ms, wrote " + bytes
+					+ " bytes in " + write + "ms");
+			if (i >= rounds / 2) {
+				totalRead += read;
+				totalWrite += write;
+			}
+		}
+		int measured = rounds - (rounds / 2);
+		System.out.println("Average (last " + measured + " rounds): read "
+				+ (totalRead / measured) + "ms, write "
+				+ (totalWrite / measured) + "ms");
+		jar.close();
+	}
+	
+	private static ArrayList<BytecodeAttribute.Reader> readers() {
+		ArrayList<BytecodeAttribute.Reader> readers = new ArrayList<BytecodeAttribute.Reader>();
+		readers.add(new WhileyType.Reader());
+		readers.add(new WhileyDefine.Reader(readers));
+		return readers;
+	}
+}
@@ -0,0 +1,138 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//    * Redistributions of source code must retain the above copyright
+//      notice, this list of conditions and the following disclaimer.
+//    * Redistributions in binary form must reproduce the above copyright
+//      notice, this list of conditions and the following disclaimer in the
+//      documentation and/or other materials provided with the distribution.
+//    * Neither the name of the <organization> nor the
+//      names of its contributors may be used to endorse or promote products
+//      derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL DAVID J. PEARCE BE LIABLE FOR ANY
+// DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+// ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package wyjc.testing;
+
+import java.math.BigInteger;
+
+import wyjc.runtime.Dictionary;
+import wyjc.runtime.List;
+import wyjc.runtime.Metrics;
+import wyjc.runtime.Set;
+import wyjc.runtime.Util;
+
+/**
+ * <p>
+ * A simple benchmark which compares the standard and persistent
+ * representations of runtime lists, sets and dictionaries, when updating
+ * collections which are shared. Each update is performed on a collection
+ * whose reference count is greater than one and, hence, requires the
+ * collection to be cloned. For the standard representation, this copies
+ * every element; for the persistent representation, this shares them.
+ * </p>
+ * 
+ * <p>
+ * When run with <code>-Dwyjc.metrics=true</code>, the number of clones and
+ * of elements copied by them are also reported, using the counters of
+ * <code>Metrics</code>.
+ * </p>
+ * 
+ * <p>
+ * <b>NOTE:</b> the first few rounds should be discarded, since they include
+ * the time taken for the JVM to warm up.
+ * </p>
+ */
+public class CollectionsBenchmark {
+	
+	public static void main(String[] args) {
+		int size = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		int updates = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+		int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+		
+		for (int i = 0; i != rounds; ++i) {
+			System.out.println("Round " + i + " (" + size + " elements, "
+					+ updates + " shared updates):");
+			for (int p = 0; p != 2; ++p) {
+				boolean persistent = p == 1;
+				String name = persistent ? "persistent" : "standard  ";
+				Metrics.reset();
+				long list = lists(persistent, size, updates);
+				long set = sets(persistent, size, updates);
+				long dict = dictionaries(persistent, size, updates);
+				System.out.println("  " + name + ": list " + rate(updates, list)
+						+ ", set " + rate(updates, set) + ", dictionary "
+						+ rate(updates, dict));
+				if (Metrics.ENABLED) {
+					System.out.println("  " + name + ": list "
+							+ clones(Metrics.LIST) + ", set "
+							+ clones(Metrics.SET) + ", dictionary "
+							+ clones(Metrics.DICTIONARY));
+				}
+			}
+		}
+	}
+	
+	private static long lists(boolean persistent, int size, int updates) {
+		List list = persistent ? List.persistent() : new List();
+		for (int i = 0; i != size; ++i) {
+			list.add(Util.valueOf(i));
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i != updates; ++i) {
+			// another variable now refers to the list, so it must be cloned
+			Util.incRefs(list);
+			list = List.set(list, Util.valueOf(i % size), Util.valueOf(-i));
+		}
+		return System.nanoTime() - start;
+	}
+	
+	private static long sets(boolean persistent, int size, int updates) {
+		Set set = persistent ? Set.persistent() : new Set();
+		for (int i = 0; i != size; ++i) {
+			set.add(Util.valueOf(i));
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i != updates; ++i) {
+			Util.incRefs(set);
+			set = Set.union(set, (Object) Util.valueOf(size + i));
+		}
+		return System.nanoTime() - start;
+	}
+	
+	private static long dictionaries(boolean persistent, int size, int updates) {
+		Dictionary dict = persistent ? Dictionary.persistent()
+				: new Dictionary();
+		for (int i = 0; i != size; ++i) {
+			dict.put(Util.valueOf(i), Util.valueOf(i));
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i != updates; ++i) {
+			Util.incRefs(dict);
+			BigInteger key = Util.valueOf(i % size);
+			dict = Dictionary.put(dict, key, Util.valueOf(-i));
+		}
+		return System.nanoTime() - start;
+	}
+	
+	private static String rate(int updates, long nanos) {
+		long perSecond = (updates * 1000000000L) / Math.max(nanos, 1);
+		return perSecond + " updates/s";
+	}
+	
+	private static String clones(int kind) {
+		return Metrics.clones(kind) + " clones ("
+				+ Metrics.clonedElements(kind) + " elements copied)";
+	}
+}
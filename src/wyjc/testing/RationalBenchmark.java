@@ -0,0 +1,183 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//    * Redistributions of source code must retain the above copyright
+//      notice, this list of conditions and the following disclaimer.
+//    * Redistributions in binary form must reproduce the above copyright
+//      notice, this list of conditions and the following disclaimer in the
+//      documentation and/or other materials provided with the distribution.
+//    * Neither the name of the <organization> nor the
+//      names of its contributors may be used to endorse or promote products
+//      derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL DAVID J. PEARCE BE LIABLE FOR ANY
+// DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+// ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package wyjc.testing;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+import wyjc.runtime.BigRational;
+
+/**
+ * <p>
+ * A simple benchmark for the arithmetic operations on runtime rationals. This
+ * runs three mixes of operations (addition-heavy, multiplication-heavy and
+ * comparison-heavy) over two sets of operands: those with small numerators
+ * and denominators, which fit the <code>long</code> representation; and,
+ * those with large numerators and denominators, which do not. Each mix is
+ * also run on a reference implementation which holds every rational as a pair
+ * of normalised <code>BigInteger</code>s, as a point of comparison.
+ * </p>
+ * 
+ * <p>
+ * <b>NOTE:</b> the first few rounds should be discarded, since they include
+ * the time taken for the JVM to warm up.
+ * </p>
+ */
+public class RationalBenchmark {
+	private static final int ADD = 0;
+	private static final int MULTIPLY = 1;
+	private static final int COMPARE = 2;
+	private static final String[] MIXES = { "add     ", "multiply", "compare " };
+	
+	public static void main(String[] args) {
+		int size = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		int operations = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+		int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+		
+		Random random = new Random(0);
+		BigInteger[][] small = operands(random, size, 16);
+		BigInteger[][] large = operands(random, size, 96);
+		
+		for (int i = 0; i != rounds; ++i) {
+			System.out.println("Round " + i + " (" + size + " operands, "
+					+ operations + " operations):");
+			for (int mix = 0; mix != MIXES.length; ++mix) {
+				long s = rationals(mix, small, operations);
+				long sr = references(mix, small, operations);
+				long l = rationals(mix, large, operations);
+				long lr = references(mix, large, operations);
+				System.out.println("  " + MIXES[mix] + ": small "
+						+ rate(operations, s) + " (reference "
+						+ rate(operations, sr) + "), large "
+						+ rate(operations, l) + " (reference "
+						+ rate(operations, lr) + ")");
+			}
+		}
+	}
+	
+	private static long rationals(int mix, BigInteger[][] operands,
+			int operations) {
+		BigRational[] rs = new BigRational[operands.length];
+		for (int i = 0; i != rs.length; ++i) {
+			rs[i] = BigRational.valueOf(operands[i][0], operands[i][1]);
+		}
+		long start = System.nanoTime();
+		int count = 0;
+		for (int i = 0; i != operations; ++i) {
+			BigRational x = rs[i % rs.length];
+			BigRational y = rs[(i * 7 + 3) % rs.length];
+			// every fourth operation in a mix is chosen from the others
+			switch (i % 4 == 0 ? (mix + 1) % 3 : mix) {
+			case ADD:
+				rs[i % rs.length] = x.add(y).subtract(y);
+				break;
+			case MULTIPLY:
+				rs[i % rs.length] = x.multiply(y).divide(y);
+				break;
+			case COMPARE:
+				count += x.compareTo(y);
+				break;
+			}
+		}
+		long time = System.nanoTime() - start;
+		if (count == Integer.MIN_VALUE) {
+			// prevent the comparisons from being optimised away
+			System.out.println(count);
+		}
+		return time;
+	}
+	
+	private static long references(int mix, BigInteger[][] operands,
+			int operations) {
+		BigInteger[][] rs = new BigInteger[operands.length][];
+		for (int i = 0; i != rs.length; ++i) {
+			rs[i] = normalise(operands[i][0], operands[i][1]);
+		}
+		long start = System.nanoTime();
+		int count = 0;
+		for (int i = 0; i != operations; ++i) {
+			BigInteger[] x = rs[i % rs.length];
+			BigInteger[] y = rs[(i * 7 + 3) % rs.length];
+			switch (i % 4 == 0 ? (mix + 1) % 3 : mix) {
+			case ADD: {
+				BigInteger[] t = normalise(
+						x[0].multiply(y[1]).add(y[0].multiply(x[1])),
+						x[1].multiply(y[1]));
+				rs[i % rs.length] = normalise(
+						t[0].multiply(y[1]).subtract(y[0].multiply(t[1])),
+						t[1].multiply(y[1]));
+				break;
+			}
+			case MULTIPLY: {
+				BigInteger[] t = normalise(x[0].multiply(y[0]),
+						x[1].multiply(y[1]));
+				rs[i % rs.length] = normalise(t[0].multiply(y[1]),
+						t[1].multiply(y[0]));
+				break;
+			}
+			case COMPARE:
+				count += x[0].multiply(y[1]).compareTo(y[0].multiply(x[1]));
+				break;
+			}
+		}
+		long time = System.nanoTime() - start;
+		if (count == Integer.MIN_VALUE) {
+			System.out.println(count);
+		}
+		return time;
+	}
+	
+	private static BigInteger[] normalise(BigInteger num, BigInteger den) {
+		if (den.signum() < 0) {
+			num = num.negate();
+			den = den.negate();
+		}
+		BigInteger gcd = num.gcd(den);
+		return new BigInteger[] { num.divide(gcd), den.divide(gcd) };
+	}
+	
+	/**
+	 * Generate a number of non-zero operands, whose numerators and
+	 * denominators have a given number of bits.
+	 */
+	private static BigInteger[][] operands(Random random, int size, int bits) {
+		BigInteger[][] operands = new BigInteger[size][];
+		for (int i = 0; i != size; ++i) {
+			BigInteger num = new BigInteger(bits, random).add(BigInteger.ONE);
+			BigInteger den = new BigInteger(bits, random).add(BigInteger.ONE);
+			if (random.nextBoolean()) {
+				num = num.negate();
+			}
+			operands[i] = new BigInteger[] { num, den };
+		}
+		return operands;
+	}
+	
+	private static String rate(int operations, long nanos) {
+		long perSecond = (operations * 1000000000L) / Math.max(nanos, 1);
+		return perSecond + " ops/s";
+	}
+}
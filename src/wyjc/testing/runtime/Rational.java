@@ -2,6 +2,7 @@ package wyjc.testing.runtime;
 
 import static org.junit.Assert.*;
 
+import java.math.BigInteger;
 import java.util.Random;
 import org.junit.*;
 import wyjc.runtime.BigRational;
@@ -24,6 +25,125 @@ public class Rational {
 			}
 		}
 	}
+	
+	/**
+	 * Test arithmetic on rationals whose numerators and denominators lie
+	 * either side of the boundary between the small and large
+	 * representations, by comparing against the obvious implementation using
+	 * BigIntegers.
+	 */
+	@Test public void arithmetic() {
+		Random random = new Random(1234);
+		for(int i=0;i!=10000;++i) {
+			BigInteger[] x = randomFraction(random);
+			BigInteger[] y = randomFraction(random);
+			BigRational a = BigRational.valueOf(x[0],x[1]);
+			BigRational b = BigRational.valueOf(y[0],y[1]);
+			check(a.add(b), x[0].multiply(y[1]).add(y[0].multiply(x[1])),
+					x[1].multiply(y[1]));
+			check(a.subtract(b),
+					x[0].multiply(y[1]).subtract(y[0].multiply(x[1])),
+					x[1].multiply(y[1]));
+			check(a.multiply(b), x[0].multiply(y[0]), x[1].multiply(y[1]));
+			if (y[0].signum() != 0) {
+				check(a.divide(b), x[0].multiply(y[1]), x[1].multiply(y[0]));
+			}
+			int c = x[0].multiply(y[1]).compareTo(y[0].multiply(x[1]));
+			assertEquals(c, a.compareTo(b));
+			assertEquals(c == 0, a.equals(b));
+		}
+	}
+	
+	/**
+	 * Test that equal rationals have equal hash codes, regardless of whether
+	 * they were reached through the small or the large representation.
+	 */
+	@Test public void equalsHashCode() {
+		Random random = new Random(5678);
+		for(int i=0;i!=10000;++i) {
+			BigInteger[] x = randomFraction(random);
+			BigInteger k = BigInteger.valueOf(random.nextLong());
+			if(k.signum() == 0) {
+				continue;
+			}
+			BigRational a = BigRational.valueOf(x[0],x[1]);
+			BigRational b = BigRational.valueOf(x[0].multiply(k),x[1].multiply(k));
+			BigRational c = a.multiply(BigRational.valueOf(k)).divide(k);
+			assertEquals(a, b);
+			assertEquals(a, c);
+			assertEquals(a.hashCode(), b.hashCode());
+			assertEquals(a.hashCode(), c.hashCode());
+			assertEquals(a.toString(), c.toString());
+		}
+	}
+	
+	@Test public void rounding() {
+		assertEquals(BigRational.valueOf(2), BigRational.valueOf(7,3).floor());
+		assertEquals(BigRational.valueOf(3), BigRational.valueOf(7,3).ceil());
+		assertEquals(BigRational.valueOf(-2), BigRational.valueOf(-7,3).floor());
+		assertEquals(BigRational.valueOf(-3), BigRational.valueOf(-7,3).ceil());
+		assertEquals(BigRational.valueOf(4), BigRational.valueOf(8,2).ceil());
+		BigInteger big = BigInteger.ONE.shiftLeft(100);
+		BigRational r = BigRational.valueOf(big.add(BigInteger.ONE),big);
+		assertEquals(BigRational.ONE, r.floor());
+		assertEquals(BigRational.valueOf(2), r.ceil());
+		assertEquals(BigRational.valueOf(-2), r.negate().ceil());
+	}
+	
+	@Test public void overflow() {
+		BigRational max = BigRational.valueOf(Long.MAX_VALUE);
+		BigRational min = BigRational.valueOf(Long.MIN_VALUE);
+		assertEquals(new BigInteger("18446744073709551614"), max.add(max)
+				.numerator());
+		assertEquals(BigInteger.valueOf(Long.MIN_VALUE).negate(), min.negate()
+				.numerator());
+		BigRational x = BigRational.valueOf(Integer.MAX_VALUE,
+				Integer.MAX_VALUE - 1);
+		BigRational y = x.multiply(x).multiply(x);
+		assertEquals(
+				BigInteger.valueOf(Integer.MAX_VALUE).pow(3),
+				y.numerator());
+		assertEquals(
+				BigInteger.valueOf(Integer.MAX_VALUE - 1).pow(3),
+				y.denominator());
+	}
+	
+	private static void check(BigRational r, BigInteger num, BigInteger den) {
+		if(den.signum() < 0) {
+			num = num.negate();
+			den = den.negate();
+		}
+		BigInteger gcd = num.gcd(den);
+		assertEquals(num.divide(gcd), r.numerator());
+		assertEquals(den.divide(gcd), r.denominator());
+	}
+	
+	private static BigInteger[] randomFraction(Random random) {
+		BigInteger num = randomInteger(random);
+		BigInteger den = randomInteger(random).abs();
+		if(den.signum() == 0) {
+			den = BigInteger.ONE;
+		}
+		return new BigInteger[]{num,den};
+	}
+	
+	private static BigInteger randomInteger(Random random) {
+		BigInteger r;
+		switch(random.nextInt(4)) {
+		case 0:
+			r = BigInteger.valueOf(random.nextInt(100));
+			break;
+		case 1:
+			r = BigInteger.valueOf(random.nextInt());
+			break;
+		case 2:
+			r = BigInteger.valueOf(random.nextLong());
+			break;
+		default:
+			r = new BigInteger(100, random);
+		}
+		return random.nextBoolean() ? r : r.negate();
+	}
 
 	private static final double[] inputs = {
 		-49344248.0d,
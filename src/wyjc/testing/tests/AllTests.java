@@ -29,6 +29,6 @@ import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
 
 @RunWith(Suite.class)
-@Suite.SuiteClasses( { RuntimeValidTests.class, StaticInvalidTests.class, ExtendedValidTests.class, ExtendedRuntimeInvalidTests.class })
+@Suite.SuiteClasses( { RuntimeValidTests.class, StaticInvalidTests.class, ExtendedValidTests.class, ExtendedRuntimeInvalidTests.class, IncrementalBuildTests.class })
 public class AllTests {
 }
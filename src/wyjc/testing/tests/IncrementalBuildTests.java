@@ -0,0 +1,149 @@
+// Copyright (c) 2011, David J. Pearce (djp@ecs.vuw.ac.nz)
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//    * Redistributions of source code must retain the above copyright
+//      notice, this list of conditions and the following disclaimer.
+//    * Redistributions in binary form must reproduce the above copyright
+//      notice, this list of conditions and the following disclaimer in the
+//      documentation and/or other materials provided with the distribution.
+//    * Neither the name of the <organization> nor the
+//      names of its contributors may be used to endorse or promote products
+//      derived from this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+// ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+// DISCLAIMED. IN NO EVENT SHALL DAVID J. PEARCE BE LIABLE FOR ANY
+// DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+// (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+// LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+// ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+// SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package wyjc.testing.tests;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+
+import org.junit.*;
+
+import wyjc.Main;
+
+/**
+ * The purpose of these tests is to check that an incremental build rebuilds
+ * the dependents of a module when, and only when, the public interface of
+ * that module changes, and when a module is removed or the options used to
+ * build change. Module <code>B</code> calls a function of module
+ * <code>A</code>, whose precondition is part of its interface.
+ */
+public class IncrementalBuildTests {
+	private static final String A = "int f(int x) requires x > 0:\n"
+			+ "    if x > 10:\n"
+			+ "        return x\n"
+			+ "    return x + 1\n";
+	private static final String B = "import f from A\n"
+			+ "\n"
+			+ "int g(int x) requires x > 0:\n"
+			+ "    return f(x)\n";
+
+	private File dir;
+
+	@Before public void setUp() throws IOException {
+		dir = File.createTempFile("wyjc", "");
+		dir.delete();
+		dir.mkdir();
+		write("A.whiley", A);
+		write("B.whiley", B);
+		compile();
+	}
+
+	@After public void tearDown() {
+		for (File f : dir.listFiles()) {
+			f.delete();
+		}
+		dir.delete();
+	}
+
+	@Test public void Unchanged_1() throws IOException {
+		// a whitespace-only edit moves the precondition to other lines
+		long time = touch("B.class");
+		write("A.whiley", "\n\n" + A.replace(" requires", "  requires"));
+		compile();
+		assertEquals(time, new File(dir, "B.class").lastModified());
+	}
+
+	@Test public void Unchanged_2() throws IOException {
+		// an edit of the body only does not change the interface
+		long time = touch("B.class");
+		write("A.whiley", A.replace("return x + 1", "return x + 2"));
+		compile();
+		assertEquals(time, new File(dir, "B.class").lastModified());
+	}
+
+	@Test public void Changed_1() throws IOException {
+		long time = touch("B.class");
+		write("A.whiley", A.replace("x > 0", "x > 1"));
+		compile();
+		assertFalse(time == new File(dir, "B.class").lastModified());
+	}
+
+	@Test public void Changed_2() throws IOException {
+		// the options used to build B change
+		long time = touch("B.class");
+		assertEquals(0, compile("-persistent"));
+		assertFalse(time == new File(dir, "B.class").lastModified());
+	}
+
+	@Test public void Removed_1() throws IOException {
+		// B must be rebuilt (and so fail) when A is removed
+		new File(dir, "A.whiley").delete();
+		new File(dir, "A.class").delete();
+		String[] args = { "-incremental", "-wp", "lib/wyrt.jar", "-sp",
+				dir.getPath(), new File(dir, "B.whiley").getPath() };
+		assertFalse(0 == new Main().run(args));
+	}
+
+	private void compile() {
+		assertEquals(0, compile(new String[0]));
+	}
+
+	private int compile(String... options) {
+		String[] args = { "-incremental", "-wp", "lib/wyrt.jar", "-sp",
+				dir.getPath(), new File(dir, "A.whiley").getPath(),
+				new File(dir, "B.whiley").getPath() };
+		String[] all = new String[options.length + args.length];
+		System.arraycopy(options, 0, all, 0, options.length);
+		System.arraycopy(args, 0, all, options.length, args.length);
+		return new Main().run(all);
+	}
+
+	private void write(String name, String contents) throws IOException {
+		File f = new File(dir, name);
+		long before = f.lastModified();
+		FileWriter w = new FileWriter(f);
+		w.write(contents);
+		w.close();
+		// ensure the modification is seen, even on a coarse-grained clock
+		if (f.lastModified() == before) {
+			f.setLastModified(before + 1000);
+		}
+	}
+
+	/**
+	 * Set the modification time of a file into the past, so a subsequent
+	 * rewrite of it can be detected.
+	 *
+	 * @param name
+	 * @return
+	 */
+	private long touch(String name) {
+		File f = new File(dir, name);
+		long time = (System.currentTimeMillis() / 1000 - 60) * 1000;
+		f.setLastModified(time);
+		return time;
+	}
+}
@@ -125,6 +125,8 @@ public class AntTask extends MatchingTask {
 	private Content.Filter<WhileyFile> includes = Content.filter("**", WhileyFile.ContentType);
 	private Content.Filter<WhileyFile> excludes = null;
 	private boolean verbose = false;
+	private boolean incremental = false;
+	private boolean persistent = false;
 		
     public void setSrcdir (File srcdir) {
         this.srcdir = srcdir;
@@ -203,6 +205,27 @@ public class AntTask extends MatchingTask {
     	verbose=b;
     }
     
+    /**
+	 * Enable incremental compilation. In this case, a build graph is kept in
+	 * the destination directory, and used to determine which files actually
+	 * need to be recompiled.
+	 * 
+	 * @param b
+	 */
+    public void setIncremental(boolean b) {
+    	incremental=b;
+    }
+    
+    /**
+	 * Generate code using persistent lists, sets and dictionaries, which are
+	 * cheaper to update when shared.
+	 * 
+	 * @param b
+	 */
+    public void setPersistent(boolean b) {
+    	persistent=b;
+    }
+    
     public void execute() throws BuildException {
         if (srcdir == null) {
             throw new BuildException("srcdir must be specified");
@@ -245,12 +268,21 @@ public class AntTask extends MatchingTask {
     		
     		// fourth initialise the builder
     		WhileyBuilder builder = new WhileyBuilder(project,pipeline);
+    		builder.setPersistentCollections(persistent);
     		
     		if(verbose) {			
     			builder.setLogger(new Logger.Default(System.err));
     		}
     		
-			StandardBuildRule rule = new StandardBuildRule(builder);
+    		BuildGraph graph = null;
+    		if(incremental) {
+    			graph = new BuildGraph(new File(target.location(), BuildGraph.FILENAME),
+    					project, WhileyFile.ContentType, WyilFile.ContentType);
+    			graph.setOptions("persistent=" + persistent);
+    			builder.setBuildGraph(graph);
+    		}
+    		
+			StandardBuildRule rule = new StandardBuildRule(builder,graph);
 			if (target != null) {
 				rule.add(source, includes, excludes, target,
 						WhileyFile.ContentType, WyilFile.ContentType);
@@ -272,7 +304,10 @@ public class AntTask extends MatchingTask {
 					binary = source.get(e.id(), WyilFile.ContentType);
 				}
 				
-				if (binary == null || binary.lastModified() < e.lastModified()) {
+				// NOTE: when building incrementally, the build graph determines
+				// what actually needs to be recompiled.
+				if (incremental || binary == null
+						|| binary.lastModified() < e.lastModified()) {
 					sources.add(e);
 				}
 			}
@@ -41,6 +41,24 @@ public class BinaryInputStream extends InputStream {
 		return input.read();		
 	}
 	
+	/**
+	 * Read a sequence of bytes. When the stream is byte-aligned, this is passed
+	 * straight through to the underlying stream as a single transfer.
+	 */
+	public int read(byte[] bytes, int offset, int length) throws IOException {
+		if(count == 0) {
+			return input.read(bytes,offset,length);
+		} 
+		for(int i=0;i!=length;++i) {
+			bytes[offset+i] = (byte) read_un(8);
+		}
+		return length;
+	}
+	
+	public void close() throws IOException {
+		input.close();
+	}
+	
 	public int read_u1() throws IOException {
 		if(count == 0) {
 			return read() & 0xFF;
@@ -54,8 +72,9 @@ public class BinaryInputStream extends InputStream {
 	}
 		
 	public long read_u4() throws IOException {
-		// FIXME: this is most definitely broken
-		return (read_u1() << 24) | (read_u1() << 16) | (read_u1() << 8)
+		// the first byte must be widened before shifting, otherwise values
+		// with the top bit set come out negative.
+		return ((long) read_u1() << 24) | (read_u1() << 16) | (read_u1() << 8)
 				| read_u1();
 	}
 	
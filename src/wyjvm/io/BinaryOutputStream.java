@@ -31,6 +31,7 @@ public class BinaryOutputStream extends OutputStream {
 	protected OutputStream output;
 	protected int value;
 	protected int count;
+	private final byte[] buffer = new byte[4];
 	
 	/**
 	 * Write out data in big-endian format.
@@ -55,8 +56,25 @@ public class BinaryOutputStream extends OutputStream {
 	}		
 	
 	public void write(byte[] bytes) throws IOException {
-		for(byte b : bytes) {
-			write(b);
+		write(bytes,0,bytes.length);
+	}
+	
+	/**
+	 * Write a sequence of bytes. When the stream is byte-aligned, this is
+	 * passed straight through to the underlying stream as a single transfer.
+	 * 
+	 * @param bytes
+	 * @param offset
+	 * @param length
+	 * @throws IOException
+	 */
+	public void write(byte[] bytes, int offset, int length) throws IOException {
+		if(count == 0) {
+			output.write(bytes,offset,length);
+		} else {
+			for(int i=offset;i!=offset+length;++i) {
+				write_un(bytes[i] & 0xFF,8);
+			}
 		}
 	}
 	
@@ -81,8 +99,14 @@ public class BinaryOutputStream extends OutputStream {
 	 * @throws IOException
 	 */
 	public void write_u2(int w) throws IOException {		
-		write_u1((w >> 8) & 0xFF);
-		write_u1(w & 0xFF);		
+		if(count == 0) {
+			buffer[0] = (byte) (w >> 8);
+			buffer[1] = (byte) w;
+			output.write(buffer,0,2);
+		} else {
+			write_u1((w >> 8) & 0xFF);
+			write_u1(w & 0xFF);
+		}
 	}
 
 	/**
@@ -92,10 +116,18 @@ public class BinaryOutputStream extends OutputStream {
 	 * @throws IOException
 	 */
 	public void write_u4(int w) throws IOException {		
-		write_u1((w >> 24) & 0xFF);
-		write_u1((w >> 16) & 0xFF);
-		write_u1((w >> 8) & 0xFF);
-		write_u1(w & 0xFF);		
+		if(count == 0) {
+			buffer[0] = (byte) (w >> 24);
+			buffer[1] = (byte) (w >> 16);
+			buffer[2] = (byte) (w >> 8);
+			buffer[3] = (byte) w;
+			output.write(buffer,0,4);
+		} else {
+			write_u1((w >> 24) & 0xFF);
+			write_u1((w >> 16) & 0xFF);
+			write_u1((w >> 8) & 0xFF);
+			write_u1(w & 0xFF);
+		}
 	}
 
 	/**
@@ -148,6 +180,15 @@ public class BinaryOutputStream extends OutputStream {
 		}
 	}
 		
+	/**
+	 * Flush the underlying stream. Note that any bits written since the last
+	 * byte boundary are not flushed, since the byte they belong to is not yet
+	 * complete.
+	 */
+	public void flush() throws IOException {
+		output.flush();
+	}
+	
 	public void close() throws IOException {
 		if(count != 0) {				
 			// In this case, we're closing but we have a number of bits left to
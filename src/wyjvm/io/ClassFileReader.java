@@ -144,39 +144,9 @@ public final class ClassFileReader {
 				
 		int version = read_i4(4); 	
 		// parse constant pool
-		int index = 4+2+2+2;
+		int index = scanConstantPool();
 		int nitems = read_u2(8);
 		
-		// process each item		
-		for(int i=1;i!=nitems;++i) {			
-			int type = read_u1(index);
-			items[i] = index + 1;
-			switch(type) {
-			case CONSTANT_Class:				
-			case CONSTANT_String:
-				index += 3;
-				break;
-			case CONSTANT_FieldRef:
-			case CONSTANT_MethodRef:
-			case CONSTANT_InterfaceMethodRef:
-			case CONSTANT_Integer:
-			case CONSTANT_Float:
-			case CONSTANT_NameAndType:
-				index += 5;
-				break;
-			case CONSTANT_Long:
-			case CONSTANT_Double:
-				index += 9;
-				++i; // longs and doubles are two entries
-				break;
-			case CONSTANT_Utf8:				
-				// could simply turn into string here?
-				int length = read_u2(index+1);				
-				index += length + 2 + 1;
-				break;
-			}			
-		}		
-		
 		// Now, fully prime the cache
 		for (int i = 1; i < nitems; ++i) {			
 			Constant.Info c = getConstant(i);
@@ -258,6 +228,94 @@ public final class ClassFileReader {
 		return 	cfile;			 		
 	}
 	
+	/**
+	 * Determine whether or not this classfile has a class attribute with the
+	 * given name. This is much cheaper than reading the class, since it only
+	 * skips over the constant pool, fields and methods to find the attribute
+	 * table, and decodes nothing other than the attribute names.
+	 * 
+	 * @param name
+	 *            The name of the attribute to look for.
+	 * @throws ClassFormatError
+	 *             if the classfile is invalid.
+	 */
+	public boolean hasClassAttribute(String name) {
+		if(read_u2(0) != 0xCAFE || read_u2(2) != 0xBABE) {
+			throw new ClassFormatError("bad magic number");
+		}
+		
+		int index = scanConstantPool() + 6;
+		int count = read_u2(index);
+		index += 2 + (count * 2);
+		
+		// skip over the fields, and then the methods
+		for(int k=0;k!=2;++k) {
+			count = read_u2(index);
+			index += 2;
+			for(int i=0;i!=count;++i) {
+				int acount = read_u2(index+6);
+				index += 8;
+				for(int j=0;j!=acount;++j) {
+					int len = read_i4(index+2);
+					index += len + 6;
+				}
+			}
+		}
+		
+		count = read_u2(index);
+		index += 2;
+		for(int i=0;i!=count;++i) {
+			if(getString(read_u2(index)).equals(name)) {
+				return true;
+			}
+			index += read_i4(index+2) + 6;
+		}
+		return false;
+	}
+	
+	/**
+	 * Determine the start of each item in the constant pool, without decoding
+	 * them.
+	 * 
+	 * @return the index of the first byte following the constant pool.
+	 */
+	private int scanConstantPool() {
+		int index = 4+2+2+2;
+		int nitems = read_u2(8);
+		
+		// process each item		
+		for(int i=1;i!=nitems;++i) {
+			int type = read_u1(index);
+			items[i] = index + 1;
+			switch(type) {
+			case CONSTANT_Class:				
+			case CONSTANT_String:
+				index += 3;
+				break;
+			case CONSTANT_FieldRef:
+			case CONSTANT_MethodRef:
+			case CONSTANT_InterfaceMethodRef:
+			case CONSTANT_Integer:
+			case CONSTANT_Float:
+			case CONSTANT_NameAndType:
+				index += 5;
+				break;
+			case CONSTANT_Long:
+			case CONSTANT_Double:
+				index += 9;
+				++i; // longs and doubles are two entries
+				break;
+			case CONSTANT_Utf8:				
+				// could simply turn into string here?
+				int length = read_u2(index+1);				
+				index += length + 2 + 1;
+				break;
+			}			
+		}		
+		
+		return index;
+	}
+	
     // ============================================================
 	// PARSING HELPERS
 	// ============================================================	
@@ -1777,8 +1835,9 @@ public final class ClassFileReader {
 	}
 
 	protected static byte[] readStream(final InputStream is) throws IOException {
-		// read in class
-        byte[] b = new byte[is.available()];
+		// read in class. Note that available() is only a hint, and may well
+		// be zero (e.g. for a compressed jar entry).
+        byte[] b = new byte[Math.max(is.available(), 4096)];
         int length = 0;
         while(true) {
         	// read as much as possible in one chunk!
@@ -1796,7 +1855,7 @@ public final class ClassFileReader {
             length += n;
             if(length == b.length) {
             	// deal with overflow!
-                byte[] c = new byte[b.length + 1000];
+                byte[] c = new byte[b.length * 2];
                 System.arraycopy(b, 0, c, 0, length);
                 b = c;
             }
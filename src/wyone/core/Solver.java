@@ -19,6 +19,7 @@ package wyone.core;
 
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 import wyone.theory.congruence.*;
 import wyone.theory.logic.*;
@@ -42,6 +43,17 @@ public final class Solver implements Callable<Proof> {
 	 * The formula being tested for satisfiability
 	 */
 	private final WFormula formula;
+	
+	/**
+	 * The time (in milli-seconds) after which this solver gives up. This is
+	 * zero until the solver has been started.
+	 */
+	private volatile long deadline;
+	
+	/**
+	 * Indicates this solver has been asked to stop searching.
+	 */
+	private volatile boolean cancelled;
 		
 	Solver(WFormula formula, 
 			SplitHeuristic heuristic,InferenceRule... theories) {
@@ -65,44 +77,282 @@ public final class Solver implements Callable<Proof> {
 	/**
 	 * This method attempts to check whether the formula associated with this
 	 * solver is unsatisfiable or not, using the given theories and heuristic.
-	 * This method will run until completion and, hence, caution should be taken
-	 * since it may take a long time!
+	 * The proof is discharged on the shared prover pool, and the calling
+	 * thread blocks until it completes or the timeout expires.
 	 * 
 	 * @param - timeout. The timeout in milli-seconds, after which the solver
 	 *        stops searching and returns Proof.Unknown.
 	 * @return
 	 */
-	public static synchronized Proof checkUnsatisfiable(int timeout,WFormula formula,
+	public static Proof checkUnsatisfiable(int timeout,WFormula formula,
 			SplitHeuristic heuristic,
 			InferenceRule... theories) {		
-		
-		// System.out.println("UNSAT: " + formula + " : " + types);
-		// The following uses the java.util.concurrent library to enforce a
-		// timeout on how long the solver will run for.
-		ExecutorService es = Executors.newSingleThreadExecutor();
-		FutureTask<Proof> task = new FutureTask<Proof>(new Solver(formula,
-				heuristic, theories));
-		es.submit(task);
+		Batch batch = new Batch(timeout, heuristic, theories);
+		batch.submit(formula);
+		return batch.get(0);
+	}
+	
+	// =================================================================
+	// PROVER POOL
+	// =================================================================
+	
+	/**
+	 * The maximum number of proofs which may be running at any one time. By
+	 * default, this is the number of available processors.
+	 */
+	public static final int POOL_SIZE = Runtime.getRuntime()
+			.availableProcessors();
+	
+	/**
+	 * The factory for all threads used by the prover. These are daemons, so
+	 * that an outstanding proof never prevents the JVM from exiting.
+	 */
+	private static final ThreadFactory threads = new ThreadFactory() {
+		private final AtomicInteger count = new AtomicInteger(0);
 
-		Proof r = Proof.UNKNOWN;
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "wyone-prover-" + count.getAndIncrement());
+			t.setDaemon(true);
+			return t;
+		}
+	};
+	
+	/**
+	 * The executor on which proofs are run. Threads are reused between
+	 * proofs, but the number of proofs running at once is limited to
+	 * <code>POOL_SIZE</code> (see <code>schedule()</code>).
+	 */
+	private static final ExecutorService executor = Executors
+			.newCachedThreadPool(threads);
+	
+	/**
+	 * The watchdog is responsible for cancelling proofs whose timeout has
+	 * expired.
+	 */
+	private static final ScheduledExecutorService watchdog = Executors
+			.newSingleThreadScheduledExecutor(threads);
+	
+	/**
+	 * The list of proofs which have been submitted, but not yet started.
+	 */
+	private static final LinkedList<Task> pending = new LinkedList<Task>();
+	
+	/**
+	 * The number of proofs currently running. This is guarded by the lock on
+	 * <code>pending</code>.
+	 */
+	private static int running = 0;
+	
+	/**
+	 * Schedule a proof to be run. If fewer than <code>POOL_SIZE</code> proofs
+	 * are running then it is started immediately; otherwise, it waits for a
+	 * running proof to finish (or timeout).
+	 * 
+	 * @param task
+	 */
+	private static void schedule(Task task) {
+		synchronized (pending) {
+			if (running < POOL_SIZE) {
+				running++;
+				executor.execute(task);
+			} else {
+				pending.add(task);
+			}
+		}
+	}
+	
+	/**
+	 * Signal that a running proof has finished, or timed out. In the latter
+	 * case, the thread running the proof may not yet have stopped. However,
+	 * since it has been cancelled, it no longer counts towards the limit and
+	 * the next pending proof can be started.
+	 */
+	private static void release() {
+		synchronized (pending) {
+			Task next = pending.poll();
+			while (next != null && next.isCancelled()) {
+				next = pending.poll();
+			}
+			if (next != null) {
+				executor.execute(next);
+			} else {
+				running--;
+			}
+		}
+	}
+	
+	/**
+	 * A batch is a collection of independent proof obligations which are
+	 * discharged in parallel. Obligations are submitted one by one, and their
+	 * results are then collected in submission order. Each obligation has its
+	 * own timeout, which starts when it begins running (rather than when it
+	 * was submitted).
+	 */
+	public static final class Batch {
+		private final int timeout;
+		private final SplitHeuristic heuristic;
+		private final InferenceRule[] theories;
+		private final ArrayList<Task> tasks = new ArrayList<Task>();
 
-		try {
-			r = task.get(timeout, TimeUnit.MILLISECONDS);
-		} catch (ExecutionException ee) {
-			throw (RuntimeException) ee.getCause();
-		} catch (InterruptedException ie) {
+		public Batch(int timeout, SplitHeuristic heuristic,
+				InferenceRule... theories) {
+			this.timeout = timeout;
+			this.heuristic = heuristic;
+			this.theories = theories;
+		}
 
-		} catch (TimeoutException ie) {
-			// timeout
+		/**
+		 * Submit a formula to be checked for unsatisfiability. This returns
+		 * immediately.
+		 * 
+		 * @param formula
+		 * @return the index of the obligation within this batch.
+		 */
+		public int submit(WFormula formula) {
+			Task task = new Task(new Solver(formula, heuristic, theories),
+					timeout);
+			tasks.add(task);
+			schedule(task);
+			return tasks.size() - 1;
+		}
+
+		/**
+		 * Get the number of obligations submitted to this batch.
+		 * 
+		 * @return
+		 */
+		public int size() {
+			return tasks.size();
+		}
+
+		/**
+		 * Wait for the given obligation to be discharged, and return its
+		 * result. If it does not complete within its timeout, then
+		 * Proof.UNKNOWN is returned.
+		 * 
+		 * @param index
+		 * @return
+		 */
+		public Proof get(int index) {
+			Task task = tasks.get(index);
+			try {
+				return task.get();
+			} catch (ExecutionException ee) {
+				Throwable cause = ee.getCause();
+				if (cause instanceof Error) {
+					throw (Error) cause;
+				}
+				throw (RuntimeException) cause;
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				cancel();
+			} catch (CancellationException ce) {
+				// timeout
+			}
+			return Proof.UNKNOWN;
 		}
 
-		es.shutdown();
+		/**
+		 * Wait for all obligations in this batch to be discharged, and return
+		 * their results in submission order.
+		 * 
+		 * @return
+		 */
+		public List<Proof> results() {
+			ArrayList<Proof> results = new ArrayList<Proof>();
+			for (int i = 0; i != tasks.size(); ++i) {
+				results.add(get(i));
+			}
+			return results;
+		}
 
-		return r;				
+		/**
+		 * Cancel all obligations in this batch which have not yet completed.
+		 * Those which have not yet started are never run, whilst those which
+		 * are running will stop at the next opportunity.
+		 */
+		public void cancel() {
+			for (Task task : tasks) {
+				task.cancel(true);
+			}
+		}
 	}
 	
-	public Proof call() {					
-		return checkUnsatisfiable();				
+	/**
+	 * A task represents a single proof obligation. The deadline for the
+	 * obligation is set when the task is started, at which point the watchdog
+	 * is asked to cancel it should the deadline pass.
+	 */
+	private static final class Task extends FutureTask<Proof> {
+		private final Solver solver;
+		private final int timeout;
+		private final AtomicBoolean released = new AtomicBoolean(false);
+		private volatile boolean started;
+
+		public Task(Solver solver, int timeout) {
+			super(solver);
+			this.solver = solver;
+			this.timeout = timeout;
+		}
+
+		public void run() {
+			started = true;
+			solver.deadline = System.currentTimeMillis() + timeout;
+			ScheduledFuture<?> alarm = watchdog.schedule(new Runnable() {
+				public void run() {
+					cancel(true);
+				}
+			}, timeout, TimeUnit.MILLISECONDS);
+			try {
+				super.run();
+			} finally {
+				alarm.cancel(false);
+				releaseOnce();
+			}
+		}
+
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			solver.cancelled = true;
+			boolean r = super.cancel(mayInterruptIfRunning);
+			if (started) {
+				releaseOnce();
+			}
+			return r;
+		}
+
+		private void releaseOnce() {
+			if (released.compareAndSet(false, true)) {
+				release();
+			}
+		}
+	}
+	
+	/**
+	 * Determine whether or not this solver should stop searching. This happens
+	 * either when its deadline has passed, or it has been explicitly
+	 * cancelled. Inference rules which may run for a long time should
+	 * periodically check this.
+	 * 
+	 * @return
+	 */
+	public boolean isCancelled() {
+		if (cancelled || Thread.currentThread().isInterrupted()) {
+			return true;
+		} else if (deadline != 0 && System.currentTimeMillis() >= deadline) {
+			cancelled = true;
+			return true;
+		}
+		return false;
+	}
+	
+	public Proof call() {
+		try {
+			return checkUnsatisfiable();
+		} catch (StackOverflowError e) {
+			// The search has gone too deep. As for a timeout, this means we
+			// don't know whether the formula is satisfiable or not.
+			return Proof.UNKNOWN;
+		}
 	}
 	
 	/**
@@ -125,6 +375,9 @@ public final class Solver implements Callable<Proof> {
 		if(state.contains(WBool.FALSE)) {	
 			// Here, we've reached a contradiction on this branch			
 			return Proof.UNSAT;
+		} else if(isCancelled()) {
+			// Here, we've run out of time so give up on this branch
+			return Proof.UNKNOWN;
 		} else {			
 			// This is the recursive case; we need to find a way to further
 			// split the facts.
@@ -19,6 +19,7 @@ package wyone.core;
 
 import java.util.*;
 
+import wyone.theory.congruence.EGraph;
 import wyone.theory.logic.*;
 
 public final class SolverState implements Iterable<WFormula> {
@@ -46,11 +47,19 @@ public final class SolverState implements Iterable<WFormula> {
 	 */
 	private final BitSet eliminations;
 	
+	/**
+	 * The equalities e-graph determines the equivalence classes of terms
+	 * induced by the positive equalities in this state. This is updated by the
+	 * congruence closure rule, and is cloned in constant time.
+	 */
+	private EGraph equalities;
+	
 	public SolverState() {
 		assignments = new HashMap<WFormula,Integer>();
 		rassignments = new ArrayList<WFormula>();
 		assertions = new BitSet();
 		eliminations = new BitSet();
+		equalities = new EGraph();
 	}
 	
 	public SolverState(HashMap<WFormula,Integer> assignments,
@@ -60,6 +69,11 @@ public final class SolverState implements Iterable<WFormula> {
 		this.rassignments = rassignments;
 		this.assertions = (BitSet) assertions.clone();
 		this.eliminations = (BitSet) eliminations.clone();
+		this.equalities = new EGraph();
+	}
+	
+	public EGraph equalities() {
+		return equalities;
 	}
 	
 	public boolean contains(WFormula f) {
@@ -126,6 +140,9 @@ public final class SolverState implements Iterable<WFormula> {
 	 */
 	private void infer(Solver solver) {				
 		for(int i=0;i!=worklist.size();++i) {			
+			if(solver.isCancelled()) {
+				return; // solver has given up
+			}
 			Integer x = worklist.get(i);			
 			WFormula f = rassignments.get(x);
 			//System.out.println("STATE BEFORE: " + this + " (" + System.identityHashCode(this) + "), i=" + i + "/" + worklist.size() + " : " + f);
@@ -224,6 +241,7 @@ public final class SolverState implements Iterable<WFormula> {
 	public SolverState clone() {
 		SolverState nls = new SolverState(assignments, rassignments,
 				assertions, eliminations);
+		nls.equalities = equalities.clone();
 		return nls;
 	}
 		
@@ -18,6 +18,7 @@
 package wyone.core;
 
 import java.util.*;
+import java.util.concurrent.atomic.*;
 
 import wyone.theory.congruence.*;
 import wyone.theory.logic.*;
@@ -132,8 +133,8 @@ public class WVariable extends WConstructor<WExpr> implements WExpr {
 	// =================================================================
 	
 	
-	private static int fvidx = 0;
+	private static final AtomicInteger fvidx = new AtomicInteger(0);
 	public static WVariable freshVar() {
-		return new WVariable("$" + fvidx++);
+		return new WVariable("$" + fvidx.getAndIncrement());
 	}
 }
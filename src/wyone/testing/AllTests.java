@@ -23,6 +23,6 @@ import org.junit.runners.Suite;
 @RunWith(Suite.class)
 @Suite.SuiteClasses( { IntegerArithmetic.class, Lists.class,
 		BoundedSetQuantifiers.class, Sets.class, Tuples.class,
-		BigArithmetic.class, Types.class })
+		BigArithmetic.class, Types.class, EGraphTests.class })
 public class AllTests {
 }
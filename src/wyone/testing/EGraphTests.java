@@ -0,0 +1,139 @@
+// This file is part of the Wyone automated theorem prover.
+//
+// Wyone is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published
+// by the Free Software Foundation; either version 3 of the License,
+// or (at your option) any later version.
+//
+// Wyone is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See
+// the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with Wyone. If not, see <http://www.gnu.org/licenses/>
+//
+// Copyright 2010, David James Pearce.
+
+package wyone.testing;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.*;
+
+import wyone.core.*;
+import wyone.theory.congruence.*;
+import wyone.theory.numeric.*;
+
+/**
+ * The purpose of this set of tests is to check the equivalence classes
+ * maintained by the EGraph directly, including their behaviour when a state is
+ * cloned and then backtracked over.
+ */
+public class EGraphTests {
+	private static final WVariable x = new WVariable("x");
+	private static final WVariable y = new WVariable("y");
+	private static final WVariable z = new WVariable("z");
+	private static final WVariable w = new WVariable("w");
+	private static final WNumber five = WNumber.valueOf(5);
+	private static final WNumber six = WNumber.valueOf(6);
+
+	@Test public void Merge_1() {
+		EGraph g = new EGraph();
+		assertTrue(g.merge(x, y, eq(x, y)).size() == 1);
+		assertTrue(g.merge(y, x, eq(y, x)).isEmpty());
+		assertTrue(g.equivalent(x, y));
+		assertFalse(g.equivalent(x, z));
+		assertEquals(y, g.representative(x));
+	}
+
+	@Test public void Merge_2() {
+		// values are always preferred as representatives
+		EGraph g = new EGraph();
+		g.merge(x, y, eq(x, y));
+		g.merge(five, z, eq(five, z));
+		g.merge(z, x, eq(z, x));
+		assertEquals(five, g.representative(x));
+		assertEquals(five, g.representative(y));
+		assertEquals(five, g.representative(z));
+	}
+
+	@Test public void Merge_3() {
+		// representatives are kept in terms of other representatives
+		EGraph g = new EGraph();
+		WExpr twoz = WNumerics.multiply(WNumber.TWO, z);
+		g.merge(x, twoz, eq(x, twoz));
+		g.merge(z, five, eq(z, five));
+		assertEquals(WNumber.valueOf(10), g.representative(x));
+	}
+
+	@Test public void Clone_1() {
+		EGraph g = new EGraph();
+		g.merge(x, y, eq(x, y));
+		EGraph h = g.clone();
+		h.merge(y, five, eq(y, five));
+		g.merge(y, six, eq(y, six));
+		assertEquals(six, g.representative(x));
+		assertEquals(five, h.representative(x));
+		assertFalse(g.equivalent(x, five));
+		assertFalse(h.equivalent(x, six));
+	}
+
+	@Test public void Clone_2() {
+		// alternate between versions many times
+		EGraph g = new EGraph();
+		ArrayList<EGraph> versions = new ArrayList<EGraph>();
+		WVariable[] vars = new WVariable[50];
+		for (int i = 0; i != vars.length; ++i) {
+			vars[i] = new WVariable("v" + i);
+		}
+		for (int i = 1; i != vars.length; ++i) {
+			versions.add(g.clone());
+			g.merge(vars[i - 1], vars[i], eq(vars[i - 1], vars[i]));
+		}
+		for (int j = 0; j != 3; ++j) {
+			for (int i = versions.size() - 1; i >= 0; i -= 7) {
+				EGraph v = versions.get(i);
+				assertTrue(v.equivalent(vars[0], vars[i]));
+				assertFalse(v.equivalent(vars[0], vars[i + 1]));
+			}
+			assertTrue(g.equivalent(vars[0], vars[vars.length - 1]));
+		}
+	}
+
+	@Test public void Explain_1() {
+		EGraph g = new EGraph();
+		WEquality e1 = eq(x, y);
+		WEquality e2 = eq(z, y);
+		WEquality e3 = eq(w, five);
+		g.merge(x, y, e1);
+		g.merge(w, five, e3);
+		g.merge(z, y, e2);
+		assertEquals(set(e1, e2), g.explain(x, z));
+		assertEquals(set(), g.explain(x, x));
+		assertNull(g.explain(x, w));
+	}
+
+	@Test public void Explain_2() {
+		// explanations include merges which caused a congruence
+		EGraph g = new EGraph();
+		WExpr twoz = WNumerics.multiply(WNumber.TWO, z);
+		WEquality e1 = eq(x, twoz);
+		WEquality e2 = eq(z, y);
+		WEquality e3 = eq(y, five);
+		g.merge(x, twoz, e1);
+		g.merge(z, y, e2);
+		g.merge(y, five, e3);
+		assertEquals(set(e1, e2, e3), g.explain(x, WNumber.valueOf(10)));
+	}
+
+	private static WEquality eq(WExpr lhs, WExpr rhs) {
+		return new WEquality(true, lhs, rhs);
+	}
+
+	private static Set<WEquality> set(WEquality... equalities) {
+		return new HashSet<WEquality>(Arrays.asList(equalities));
+	}
+}
@@ -22,9 +22,34 @@ import wyone.core.*;
 import wyone.theory.type.*;
 import wyone.theory.logic.*;
 
+/**
+ * <p>
+ * The congruence closure rule ensures that all facts are expressed in terms of
+ * the representatives of the equivalence classes induced by the positive
+ * equalities. For example, consider this:
+ * </p>
+ *
+ * <pre>
+ * t1.x &lt; 0 &amp;&amp; t2.x == t2.y &amp;&amp; t2.y &gt; 0 &amp;&amp; t1 == t2
+ * </pre>
+ *
+ * <p>
+ * Here, the last equality is the one being added. This places t1 and t2 in the
+ * same class, with t2 as the representative. Rewriting the first fact gives
+ * <code>t2.x &lt; 0</code>; rewriting this again using the class of t2.x and
+ * t2.y gives <code>t2.y &lt; 0</code>, which then gives the contradiction.
+ * </p>
+ *
+ * <p>
+ * The classes themselves are maintained by the state's {@link EGraph}. When two
+ * classes are merged, only those facts which mention the representative being
+ * displaced need to be rewritten, rather than every fact in the state.
+ * </p>
+ */
 public class CongruenceClosure implements InferenceRule {
 
-	public void infer(WFormula nlit, SolverState state, Solver solver) {				
+	public void infer(WFormula nlit, SolverState state, Solver solver) {
+		state.equalities().use(nlit);
 		if(nlit instanceof WEquality) {		
 			WEquality eq = (WEquality) nlit;			
 			if(eq.sign()) {				
@@ -36,23 +61,8 @@ public class CongruenceClosure implements InferenceRule {
 	}
 	
 	private void inferFormula(WFormula formula, SolverState state, Solver solver) {
-		HashMap<WExpr,WExpr> binding = new HashMap<WExpr,WExpr>();
-	
-		for(WFormula f : state) {
-			if(f instanceof WEquality) {
-				WEquality weq = (WEquality) f;
-				if(weq.sign()) {
-					// FIXME: there is a subtle problem here, when we have multiple
-					// possible assignments for a variable. This can arise when we
-					// don't eliminate assignments in inferEquality.
-					binding.put(weq.lhs(),weq.rhs());					
-				}
-			}
-		}
-		
-		WFormula nf = formula.substitute(binding);
+		WFormula nf = rewrite(formula, state.equalities());
 		if(nf != formula) {			
-			//state.eliminate(formula);				
 			state.infer(nf,solver);
 		}
 	}
@@ -64,78 +74,77 @@ public class CongruenceClosure implements InferenceRule {
 			return; // no point going on.
 		}
 		
-		// So, at this point we have an equality of the form lhs == rhs.
-		// This equality should have been normalised into a form where lhs
-		// represents a single "effective-variable", and rhs represents other
-		// stuff. Observe that lhs is no guaranteed to be an instanceof
-		// wVariable (unforatunately); this is because of tupple and list
-		// accessors --- which are not WVariables as they are "interpreted".
-		// That is, given a value for the target variable their value can be
-		// immediately deduced.
-		//
-		// Now, our objective at this point is to substitute all occurrences of
-		// the lhs with the rhs, such that this equality is the only place where
-		// the lhs now exists. When the lhs is actually an instance of
-		// WVariable, then this will be an "assignment".
-		//
-		// Some issues can arise from other equalities which now on a new form.
-		// For example, consider this:
-		//
-		// t1.x < 0 && t2.x == t2.y && t2.y > 0 && t1 == t2*
-		// 
-		// Here, last equality is the one being added. So, after substituting t1
-		// for t2, we get this state:
-		//
-		// t2.x < 0 && t2.x == t2.y && t2.y > 0 && t1 == t2
-		//
-		// But, we now need to substitute for t2.x as well, in order to get
-		// here:
-		//
-		// t2.y < 0 && t2.x == t2.y && t2.y > 0 && t1 == t2
-		//
-		// This then gives the contradiction.
-		//
-		// What we're really trying to do is choose a representative from the
-		// class of equivalences, and ensure that all constraints are in terms
-		// of the current representatives.
-			
-		HashMap<WExpr, WExpr> lhsBinding = new HashMap<WExpr,WExpr>();
-		lhsBinding.put(eq.lhs(),eq.rhs());
-		HashMap<WExpr, WExpr> rhsBinding = new HashMap<WExpr,WExpr>();
-		rhsBinding.put(eq.rhs(),eq.lhs());
+		// So, at this point we have an equality of the form lhs == rhs. First,
+		// we express it in terms of the current representatives. If this
+		// changes it, then the rewritten equality will be merged when it is
+		// itself inferred, and this places lhs and rhs into the same class as
+		// well.
+
+		EGraph equalities = state.equalities();
+		WFormula neq = rewrite(eq, equalities);
+		if(!neq.equals(eq)) {
+			state.infer(neq,solver);
+			return;
+		}
 		
-		// Second, we iterate all existing literals and attempt to simplify
-		// them. Those which are simplified are subsumed, and their simplified
-		// forms are added into the literal set.
-		for(WFormula f : state) {
-			if(f == eq) { continue; }			
-			WFormula lnf = typeCheck(f.substitute(lhsBinding),state);									
-			if(lnf != f) {
-				// f has been replaced!
-				if(!isAssignment(f)) {					
-					//state.eliminate(f);
-				}	
-				state.infer(lnf,solver);							
+		// Second, we merge the classes of lhs and rhs. Observe that this can
+		// merge two distinct values, which is a contradiction. 
+		
+		List<WExpr> displaced = equalities.merge(eq.lhs(), eq.rhs(), eq);
+		for(WExpr d : displaced) {
+			if (d instanceof WValue
+					&& equalities.representative(d) instanceof WValue) {
+				state.infer(WBool.FALSE,solver);
+				return;
 			}
-			WFormula rnf = typeCheck(f.substitute(rhsBinding),state);									
-			if(rnf != f) {
-				// f has been replaced!
-				if(!isAssignment(f)) {					
-					//state.eliminate(f);
-				}															
-				state.infer(rnf,solver);							
+		}
+		
+		// A term which is no longer a representative is equated with the new
+		// one, so that other theories can interpret it. For example, merging
+		// y/2 with 5 gives y==10, whilst merging {x,y} with {z} allows the
+		// set theory to deduce x==z and y==z.
+		
+		for(WExpr d : displaced) {
+			if(!(d instanceof WValue) && !(d instanceof WFormula)) {
+				state.infer(WExprs.equals(d, equalities.representative(d)),
+						solver);
+			}
+		}
+		
+		// Finally, we rewrite the facts which mention a displaced
+		// representative. 
+		
+		HashSet<WFormula> rewritten = new HashSet<WFormula>();
+		for(WExpr d : displaced) {
+			List<WFormula> uses = equalities.uses(d);
+			for(int i=0;i!=uses.size();++i) {
+				WFormula f = uses.get(i);
+				if (f == eq || !state.contains(f) || !rewritten.add(f)) {
+					continue;
+				}
+				WFormula nf = typeCheck(rewrite(f, equalities), state);
+				if(nf != f) {
+					state.infer(nf,solver);
+				}
 			}
 		}
 	}	
 	
-	private static boolean isAssignment(WFormula f) {
-		if (f instanceof WEquality) {
-			WEquality weq = (WEquality) f;
-			return weq.lhs() instanceof WVariable
-					&& weq.rhs() instanceof WValue;
+	/**
+	 * Rewrite a formula in terms of the current representatives. The
+	 * left-hand side of a positive equality is the term it defines, and is
+	 * kept as is. For example, x==2y becomes x==10 when y is equivalent to 5,
+	 * rather than 10==10; this preserves the assignments from which a model is
+	 * constructed.
+	 */
+	private static WFormula rewrite(WFormula formula, EGraph equalities) {
+		WExpr defined = null;
+		if(formula instanceof WEquality && ((WEquality) formula).sign()) {
+			defined = ((WEquality) formula).lhs();
 		}
-		return false;
-	}	
+		return formula.substitute(new Representatives(formula, defined,
+				equalities));
+	}
 	
 	public WFormula typeCheck(WFormula f, SolverState state) {
 		// sanity check assignments. Not strictly necessary, but useful to
@@ -159,4 +168,46 @@ public class CongruenceClosure implements InferenceRule {
 		
 		return f;
 	}
+
+	/**
+	 * Binds each term, except for a given term being defined, to the
+	 * representative of its class. The subterms of the formula being rewritten
+	 * are bound explicitly, since quantifiers inspect the binding to avoid
+	 * variable capture; any other term, such as one formed during the
+	 * substitution itself, is looked up on demand.
+	 */
+	private static final class Representatives extends HashMap<WExpr,WExpr> {
+		public static final long serialVersionUID = 1l;
+		
+		private final WExpr defined;
+		private final EGraph equalities;
+		
+		public Representatives(WFormula formula, WExpr defined,
+				EGraph equalities) {
+			this.defined = defined;
+			this.equalities = equalities;
+			bind(formula);
+		}
+		
+		public WExpr get(Object key) {
+			WExpr r = super.get(key);
+			if (r == null && key instanceof WExpr && !key.equals(defined)) {
+				r = equalities.representative((WExpr) key);
+				if(r.equals(key)) {
+					return null;
+				}
+			}
+			return r;
+		}
+		
+		private void bind(WExpr term) {
+			WExpr r = equalities.representative(term);
+			if(!r.equals(term) && !term.equals(defined)) {
+				put(term,r);
+			}
+			for(WExpr e : term.subterms()) {
+				bind(e);
+			}
+		}
+	}
 }
@@ -0,0 +1,531 @@
+// This file is part of the Wyone automated theorem prover.
+//
+// Wyone is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published
+// by the Free Software Foundation; either version 3 of the License,
+// or (at your option) any later version.
+//
+// Wyone is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See
+// the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with Wyone. If not, see <http://www.gnu.org/licenses/>
+//
+// Copyright 2010, David James Pearce.
+
+package wyone.theory.congruence;
+
+import java.util.*;
+
+import wyone.core.*;
+import wyone.theory.logic.*;
+
+/**
+ * <p>
+ * An EGraph maintains the equivalence classes of terms induced by the positive
+ * equalities asserted in a solver state. Each class has a <i>representative</i>
+ * term, and the congruence closure rule ensures that facts are expressed in
+ * terms of the current representatives. Classes are merged using a union-find
+ * structure (union by rank with path compression), so that a sequence of
+ * merges and lookups runs in near-linear time.
+ * </p>
+ *
+ * <p>
+ * The union-find structure is held in <i>persistent arrays</i>. Updating a
+ * persistent array produces a new version, whilst the old version remains
+ * valid. Thus, cloning an EGraph (as happens when the solver state is split) is
+ * a constant-time operation: the clone simply shares the current versions.
+ * Returning to an older version replays the chain of differences between them
+ * in reverse, and this chain acts as the undo trail for backtracking.
+ * </p>
+ *
+ * <p>
+ * Each merge is also recorded in a <i>proof forest</i>, which connects the
+ * merged terms by an edge labelled with the equality (or congruence) that
+ * caused it. This allows the equalities responsible for two terms being
+ * equivalent (e.g. for a conflict between two distinct values) to be
+ * recovered.
+ * </p>
+ */
+public final class EGraph {
+
+	/**
+	 * The universe is shared between an EGraph and all of its clones. It only
+	 * ever grows and is independent of which merges have been performed.
+	 */
+	private final Universe universe;
+
+	/**
+	 * Maps each term (by identifier) to its parent in the union-find
+	 * structure, plus one. Zero indicates the term is the root of its class.
+	 */
+	private PersistentArray parents;
+
+	/**
+	 * Maps the root of each class to its rank.
+	 */
+	private PersistentArray ranks;
+
+	/**
+	 * Maps the root of each class to the identifier of its representative,
+	 * plus one. Zero indicates the root is its own representative.
+	 */
+	private PersistentArray leaders;
+
+	/**
+	 * Maps each term to its parent in the proof forest, plus one. Zero
+	 * indicates the term is the root of its proof tree.
+	 */
+	private PersistentArray proofParents;
+
+	/**
+	 * Maps each term with a parent in the proof forest to the label of that
+	 * edge. This is either the index of an equality, or (when negative) of a
+	 * congruence.
+	 */
+	private PersistentArray proofReasons;
+
+	public EGraph() {
+		this.universe = new Universe();
+		this.parents = new PersistentArray();
+		this.ranks = new PersistentArray();
+		this.leaders = new PersistentArray();
+		this.proofParents = new PersistentArray();
+		this.proofReasons = new PersistentArray();
+	}
+
+	private EGraph(EGraph graph) {
+		this.universe = graph.universe;
+		this.parents = graph.parents;
+		this.ranks = graph.ranks;
+		this.leaders = graph.leaders;
+		this.proofParents = graph.proofParents;
+		this.proofReasons = graph.proofReasons;
+	}
+
+	/**
+	 * Determine the representative of the class containing a given term. A
+	 * term which has never been merged is its own representative.
+	 *
+	 * @param term
+	 * @return
+	 */
+	public WExpr representative(WExpr term) {
+		Integer id = universe.ids.get(term);
+		if(id == null) {
+			return term;
+		}
+		int root = find(id);
+		int leader = leaders.get(root);
+		return leader == 0 ? universe.terms.get(root) : universe.terms
+				.get(leader - 1);
+	}
+
+	/**
+	 * Determine whether two terms are known to be equivalent.
+	 *
+	 * @param lhs
+	 * @param rhs
+	 * @return
+	 */
+	public boolean equivalent(WExpr lhs, WExpr rhs) {
+		if(lhs.equals(rhs)) {
+			return true;
+		}
+		Integer l = universe.ids.get(lhs);
+		Integer r = universe.ids.get(rhs);
+		return l != null && r != null && find(l) == find(r);
+	}
+
+	/**
+	 * Merge the classes of two terms, as a result of a given equality. The
+	 * representative of the merged class is a value, if either class has one;
+	 * otherwise, it is the representative of the class containing the
+	 * right-hand side. This matches the orientation of normalised equalities,
+	 * whose left-hand side is the term to be eliminated.
+	 *
+	 * <p>
+	 * Representatives are kept in terms of other representatives. Thus, if a
+	 * representative mentions the one being displaced, then it is rewritten
+	 * and its class merged with that of the rewritten term. For example,
+	 * merging z with 5 when 2z represents x's class then merges 2z with 10.
+	 * </p>
+	 *
+	 * @param lhs
+	 * @param rhs
+	 * @param reason
+	 *            --- the equality which justifies this merge.
+	 * @return the representatives which are no longer representatives. This
+	 *         is empty if the terms were already equivalent.
+	 */
+	public List<WExpr> merge(WExpr lhs, WExpr rhs, WEquality reason) {
+		ArrayList<WExpr> displaced = new ArrayList<WExpr>();
+		union(universe.id(lhs), universe.id(rhs), universe.reason(reason),
+				displaced);
+
+		for(int i=0;i!=displaced.size();++i) {
+			WExpr term = displaced.get(i);
+			WExpr representative = representative(term);
+			if(occurs(term,representative)) {
+				continue; // rewriting would not terminate
+			}
+			List<Integer> superterms = universe.superterms.get(term);
+			if(superterms == null) {
+				continue;
+			}
+			HashMap<WExpr,WExpr> binding = new HashMap<WExpr,WExpr>();
+			binding.put(term,representative);
+			int congruence = universe.congruence(universe.ids.get(term),
+					universe.ids.get(representative));
+			// NOTE: superterms may grow during this loop
+			for(int j=0;j!=superterms.size();++j) {
+				int s = superterms.get(j);
+				WExpr superterm = universe.terms.get(s);
+				if(!representative(superterm).equals(superterm)) {
+					continue; // only representatives are rewritten
+				}
+				WExpr nsuperterm = superterm.substitute(binding);
+				if(!nsuperterm.equals(superterm)) {
+					union(s, universe.id(nsuperterm), congruence, displaced);
+				}
+			}
+		}
+
+		return displaced;
+	}
+
+	private void union(int l, int r, int reason, List<WExpr> displaced) {
+		int lroot = find(l);
+		int rroot = find(r);
+		if(lroot == rroot) {
+			return;
+		}
+
+		// first, record the merge in the proof forest.
+		makeProofRoot(l);
+		proofParents = proofParents.set(l, r + 1);
+		proofReasons = proofReasons.set(l, reason);
+
+		// second, determine the new representative.
+		int lleader = leader(lroot);
+		int rleader = leader(rroot);
+		int leader;
+		if (universe.terms.get(lleader) instanceof WValue
+				&& !(universe.terms.get(rleader) instanceof WValue)) {
+			leader = lleader;
+			displaced.add(universe.terms.get(rleader));
+		} else {
+			leader = rleader;
+			displaced.add(universe.terms.get(lleader));
+		}
+
+		// third, perform the union by rank.
+		int lrank = ranks.get(lroot);
+		int rrank = ranks.get(rroot);
+		int root;
+		if(lrank < rrank) {
+			parents = parents.set(lroot, rroot + 1);
+			root = rroot;
+		} else {
+			parents = parents.set(rroot, lroot + 1);
+			if(lrank == rrank) {
+				ranks = ranks.set(lroot, lrank + 1);
+			}
+			root = lroot;
+		}
+		leaders = leaders.set(root, leader == root ? 0 : leader + 1);
+	}
+
+	/**
+	 * Determine the equalities which explain why two terms are equivalent.
+	 * These are the labels on the path between the two terms in the proof
+	 * forest.
+	 *
+	 * @param lhs
+	 * @param rhs
+	 * @return the set of equalities, or null if the terms are not known to be
+	 *         equivalent.
+	 */
+	public Set<WEquality> explain(WExpr lhs, WExpr rhs) {
+		HashSet<WEquality> reasons = new HashSet<WEquality>();
+		if(lhs.equals(rhs)) {
+			return reasons;
+		} else if(!equivalent(lhs,rhs)) {
+			return null;
+		}
+		explain(universe.ids.get(lhs), universe.ids.get(rhs), reasons);
+		return reasons;
+	}
+
+	private void explain(int l, int r, Set<WEquality> reasons) {
+		// first, find the common ancestor of both terms.
+		HashSet<Integer> ancestors = new HashSet<Integer>();
+		for(int i = l; i != -1; i = proofParents.get(i) - 1) {
+			ancestors.add(i);
+		}
+		int common = r;
+		while(!ancestors.contains(common)) {
+			common = proofParents.get(common) - 1;
+		}
+
+		// second, collect the labels along both paths to it.
+		for(int i = l; i != common; i = proofParents.get(i) - 1) {
+			explain(proofReasons.get(i), reasons);
+		}
+		for(int i = r; i != common; i = proofParents.get(i) - 1) {
+			explain(proofReasons.get(i), reasons);
+		}
+	}
+
+	/**
+	 * Explain a single edge in the proof forest. This is either labelled with
+	 * an equality or, for an edge added by congruence, with the pair of terms
+	 * whose merge caused it.
+	 */
+	private void explain(int reason, Set<WEquality> reasons) {
+		if(reason >= 0) {
+			reasons.add(universe.reasons.get(reason));
+		} else {
+			int[] congruence = universe.congruences.get(-reason - 1);
+			explain(congruence[0], congruence[1], reasons);
+		}
+	}
+
+	/**
+	 * Record the subterms of a given fact, so that it can be found when the
+	 * representative of one of them changes.
+	 *
+	 * @param fact
+	 */
+	public void use(WFormula fact) {
+		if(universe.facts.add(fact)) {
+			use(fact,fact);
+		}
+	}
+
+	private void use(WExpr term, WFormula fact) {
+		ArrayList<WFormula> facts = universe.uses.get(term);
+		if(facts == null) {
+			facts = new ArrayList<WFormula>();
+			universe.uses.put(term,facts);
+		}
+		if(facts.isEmpty() || facts.get(facts.size()-1) != fact) {
+			facts.add(fact);
+		}
+		for(WExpr e : term.subterms()) {
+			use(e,fact);
+		}
+	}
+
+	/**
+	 * Determine the facts recorded as mentioning a given term. Observe that
+	 * facts are recorded for all clones, so they may not all be asserted in
+	 * any particular state.
+	 *
+	 * @param term
+	 * @return
+	 */
+	public List<WFormula> uses(WExpr term) {
+		ArrayList<WFormula> facts = universe.uses.get(term);
+		if(facts == null) {
+			return Collections.emptyList();
+		}
+		return facts;
+	}
+
+	/**
+	 * Create a copy of this EGraph, which can be updated independently. This
+	 * takes constant time.
+	 */
+	public EGraph clone() {
+		return new EGraph(this);
+	}
+
+	private int find(int id) {
+		int root = id;
+		int parent;
+		while((parent = parents.get(root)) != 0) {
+			root = parent - 1;
+		}
+		// path compression
+		while((parent = parents.get(id)) != 0 && parent != root + 1) {
+			parents = parents.set(id, root + 1);
+			id = parent - 1;
+		}
+		return root;
+	}
+
+	private static boolean occurs(WExpr term, WExpr expr) {
+		if(expr.equals(term)) {
+			return true;
+		}
+		for(WExpr e : expr.subterms()) {
+			if(occurs(term,e)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private int leader(int root) {
+		int leader = leaders.get(root);
+		return leader == 0 ? root : leader - 1;
+	}
+
+	/**
+	 * Reverse the path from a given term to the root of its proof tree, so
+	 * that the term becomes the root.
+	 *
+	 * @param id
+	 */
+	private void makeProofRoot(int id) {
+		int previous = 0;
+		int previousReason = 0;
+		int current = id + 1;
+		while(current != 0) {
+			int next = proofParents.get(current - 1);
+			int reason = proofReasons.get(current - 1);
+			proofParents = proofParents.set(current - 1, previous);
+			proofReasons = proofReasons.set(current - 1, previousReason);
+			previous = current;
+			previousReason = reason;
+			current = next;
+		}
+	}
+
+	private static final class Universe {
+		final HashMap<WExpr,Integer> ids = new HashMap<WExpr,Integer>();
+		final ArrayList<WExpr> terms = new ArrayList<WExpr>();
+		final HashMap<WEquality,Integer> reasonIds = new HashMap<WEquality,Integer>();
+		final ArrayList<WEquality> reasons = new ArrayList<WEquality>();
+		final ArrayList<int[]> congruences = new ArrayList<int[]>();
+		final HashMap<WExpr,ArrayList<Integer>> superterms = new HashMap<WExpr,ArrayList<Integer>>();
+		final HashMap<WExpr,ArrayList<WFormula>> uses = new HashMap<WExpr,ArrayList<WFormula>>();
+		final HashSet<WFormula> facts = new HashSet<WFormula>();
+
+		int id(WExpr term) {
+			Integer id = ids.get(term);
+			if(id == null) {
+				id = terms.size();
+				ids.put(term,id);
+				terms.add(term);
+				for(WExpr e : term.subterms()) {
+					superterm(e,id);
+				}
+			}
+			return id;
+		}
+
+		private void superterm(WExpr term, int id) {
+			ArrayList<Integer> ids = superterms.get(term);
+			if(ids == null) {
+				ids = new ArrayList<Integer>();
+				superterms.put(term,ids);
+			}
+			if(ids.isEmpty() || ids.get(ids.size()-1) != id) {
+				ids.add(id);
+				for(WExpr e : term.subterms()) {
+					superterm(e,id);
+				}
+			}
+		}
+
+		int congruence(int lhs, int rhs) {
+			congruences.add(new int[]{lhs,rhs});
+			return -congruences.size();
+		}
+
+		int reason(WEquality reason) {
+			Integer id = reasonIds.get(reason);
+			if(id == null) {
+				id = reasons.size();
+				reasonIds.put(reason,id);
+				reasons.add(reason);
+			}
+			return id;
+		}
+	}
+
+	/**
+	 * <p>
+	 * A persistent array of integers, where every element is initially zero.
+	 * Only the most recent version of the array holds its contents directly;
+	 * every other version is represented by its difference from a newer
+	 * version. Accessing an older version first "reroots" the array, by
+	 * replaying these differences so that it becomes the version holding the
+	 * contents.
+	 * </p>
+	 *
+	 * <p>
+	 * See "A Persistent Union-Find Data Structure", S. Conchon and
+	 * J-C. Filli&acirc;tre, ML Workshop, 2007.
+	 * </p>
+	 */
+	private static final class PersistentArray {
+		private int[] data;           // non-null iff this version holds contents
+		private PersistentArray next; // otherwise, the version this differs from
+		private int index;            // ... at this index
+		private int value;            // ... where this version holds this value
+
+		public PersistentArray() {
+			this.data = new int[16];
+		}
+
+		private PersistentArray(int[] data) {
+			this.data = data;
+		}
+
+		public int get(int index) {
+			reroot();
+			return index < data.length ? data[index] : 0;
+		}
+
+		public PersistentArray set(int index, int value) {
+			reroot();
+			int[] contents = data;
+			int old = index < contents.length ? contents[index] : 0;
+			if(old == value) {
+				return this;
+			} else if(index >= contents.length) {
+				contents = Arrays.copyOf(contents,
+						Math.max(index + 1, contents.length * 2));
+			}
+			contents[index] = value;
+			PersistentArray version = new PersistentArray(contents);
+			this.data = null;
+			this.next = version;
+			this.index = index;
+			this.value = old;
+			return version;
+		}
+
+		private void reroot() {
+			if(data != null) {
+				return;
+			}
+			// first, find the path to the version holding the contents.
+			ArrayList<PersistentArray> path = new ArrayList<PersistentArray>();
+			PersistentArray version = this;
+			while(version.data == null) {
+				path.add(version);
+				version = version.next;
+			}
+			// second, undo the differences along this path in reverse.
+			for(int i=path.size()-1;i>=0;--i) {
+				PersistentArray older = path.get(i);
+				int[] contents = version.data;
+				int old = contents[older.index];
+				contents[older.index] = older.value;
+				older.data = contents;
+				older.next = null;
+				version.data = null;
+				version.next = older;
+				version.index = older.index;
+				version.value = old;
+				version = older;
+			}
+		}
+	}
+}
@@ -22,6 +22,7 @@ import static wyone.theory.numeric.FourierMotzkinSolver.rearrange;
 import java.util.*;
 
 import wyone.core.*;
+import wyone.theory.logic.WBool;
 import wyone.theory.logic.WFormula;
 import wyone.theory.numeric.FourierMotzkinSolver.BoundUpdate;
 import wyone.util.Pair;
@@ -57,7 +58,9 @@ public class BoundedNumberHeuristic implements SplitHeuristic {
 		for(Map.Entry<WExpr, Pair<Bound,Bound>> e : bounds.entrySet()) {
 			Bound low = e.getValue().first();
 			Bound high = e.getValue().second();
-			if(low != null || high != null) {							
+			if(isAssigned(e.getKey(),low,lhs) || isAssigned(e.getKey(),high,lhs)) {
+				continue;
+			} else if(low != null || high != null) {							
 				WExpr var = e.getKey();
 				SolverState rhs = lhs.clone();								
 				
@@ -90,7 +93,9 @@ public class BoundedNumberHeuristic implements SplitHeuristic {
 		for(Map.Entry<WExpr, Pair<Bound,Bound>> e : bounds.entrySet()) {
 			Bound low = e.getValue().first();
 			Bound high = e.getValue().second();
-			if(low != null && high != null) {
+			if(isAssigned(e.getKey(),low,lhs) || isAssigned(e.getKey(),high,lhs)) {
+				continue;
+			} else if(low != null && high != null) {
 				WNumber diff = high.num.subtract(low.num);
 				if(minDiff == null || diff.compareTo(minDiff) < 0) {
 					var = e.getKey();
@@ -103,7 +108,15 @@ public class BoundedNumberHeuristic implements SplitHeuristic {
 		
 		if(var == null) {
 			return null;
-		}								
+		} else if(varlow.compareTo(varhigh) > 0) {
+			// The bounds have crossed (e.g. after rounding to integers), so
+			// there is no value for this variable. Splitting on it would leave
+			// one branch unchanged.
+			lhs.add(WBool.FALSE, solver);
+			ArrayList<SolverState> splits = new ArrayList<SolverState>();
+			splits.add(lhs);
+			return splits;
+		}
 		
 		WNumber mid = varlow.add(varhigh).divide(WNumber.TWO);		
 		SolverState rhs = lhs.clone();
@@ -117,6 +130,15 @@ public class BoundedNumberHeuristic implements SplitHeuristic {
 		return splits;
 	}
 	
+	/**
+	 * Check whether a variable is already assigned the value of a given bound.
+	 * Splitting on such a variable would leave one branch unchanged and, hence,
+	 * would make no progress.
+	 */
+	private static boolean isAssigned(WExpr var, Bound bound, SolverState state) {
+		return bound != null && state.contains(WExprs.equals(var, bound.num));
+	}
+	
 	private HashMap<WExpr, Pair<Bound,Bound>> determineVariableBounds(
 			SolverState state, Solver solver) {
 		HashMap<WExpr,Pair<Bound,Bound>> bounds = new HashMap();
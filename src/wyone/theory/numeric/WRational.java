@@ -157,7 +157,9 @@ public final class WRational implements WExpr {
 			WRational rat = (WRational) r;
 			
 			if(rat.isConstant()) {
-				return WBool.FALSE; // ? 
+				// e.g. x+1 == x+1 gives 0 == 0, whilst x+1 == x gives 1 == 0
+				return rat.constant().equals(WNumber.ZERO) ? WBool.TRUE
+						: WBool.FALSE;
 			}
 			
 			WExpr v = rat.atoms().iterator().next();
@@ -174,6 +176,8 @@ public final class WRational implements WExpr {
 		} else if(r instanceof WVariable) {
 			WVariable v = (WVariable) r;
 			return new WEquality(true,v,WNumber.ZERO);
+		} else if(r instanceof WNumber) {
+			return r.equals(WNumber.ZERO) ? WBool.TRUE : WBool.FALSE;
 		} else {
 			return WBool.FALSE;
 		}
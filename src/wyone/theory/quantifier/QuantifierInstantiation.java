@@ -18,6 +18,7 @@
 package wyone.theory.quantifier;
 
 import java.util.*;
+import java.util.concurrent.atomic.*;
 
 import wyone.core.*;
 import wyone.theory.congruence.*;
@@ -73,7 +74,7 @@ public final class QuantifierInstantiation implements InferenceRule {
 		}
 	}
 
-	private static int skolem_idx = 0;
+	private static final AtomicInteger skolem_idx = new AtomicInteger(0);
 	private static void instantiateExistential(WForall f, SolverState state,
 			Solver solver) {
 
@@ -83,7 +84,7 @@ public final class QuantifierInstantiation implements InferenceRule {
 		// exists elimination via skolem constant
 		HashMap<WExpr, WExpr> binding = new HashMap<WExpr, WExpr>();
 		for (WVariable v : f.variables()) {
-			String skolem = "#" + skolem_idx++;
+			String skolem = "#" + skolem_idx.getAndIncrement();
 			binding.put(v, new WVariable(skolem));
 		}
 		WFormula instantiation = state.reduce(f.formula().not().substitute(
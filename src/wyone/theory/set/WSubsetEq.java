@@ -75,11 +75,11 @@ public class WSubsetEq extends WConstructor<WExpr> implements WLiteral {
 		List<? extends WExpr> nrhsElems = null;
 		
 		if(nlhs instanceof WSetConstructor || nlhs instanceof WSetVal) {			
-			nlhsElems = lhs.subterms();	
+			nlhsElems = nlhs.subterms();	
 		} 
 		
 		if(nrhs instanceof WSetConstructor || nrhs instanceof WSetVal) {			
-			nrhsElems = rhs.subterms();	
+			nrhsElems = nrhs.subterms();	
 		} 	
 		
 		
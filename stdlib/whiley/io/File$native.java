@@ -30,17 +30,49 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.HashMap;
 
 import wyjc.runtime.Actor;
 import wyjc.runtime.List;
 import wyjc.runtime.Record;
+import wyjc.runtime.Util;
 
+/**
+ * Native implementations for whiley.io.File. Files are accessed through NIO
+ * channels. Bytes read are placed directly into compact (i.e. byte array
+ * backed) lists and, likewise, bytes written are taken directly from them.
+ * Large reads are performed by mapping the file into memory, rather than
+ * copying through an intermediate buffer.
+ */
 public class File$native {
+	/**
+	 * Reads of at least this many bytes from a regular file are performed by
+	 * mapping the relevant region of the file into memory.
+	 */
+	private static final int MAP_THRESHOLD = 1024 * 1024;
+	
+	/**
+	 * The maximum number of bytes mapped at any one time.
+	 */
+	private static final int MAP_WINDOW = 64 * 1024 * 1024;
+	
+	/**
+	 * The initial buffer size used when reading from something whose size is
+	 * unknown (e.g. a pipe).
+	 */
+	private static final int CHUNK_SIZE = 64 * 1024;
+	
+	/**
+	 * The largest number of bytes which can be read into a single list.
+	 */
+	private static final int MAX_LIST = Integer.MAX_VALUE - 8;
+	
 	public static Actor Reader(String filename) {
 		Record r = new Record();
 		try {			
-			FileInputStream fin = new FileInputStream(filename);
+			FileChannel fin = new FileInputStream(filename).getChannel();
 			r.put("fileName", filename);
 			r.put("$fin", fin);
 			Actor p = new Actor(r);
@@ -55,7 +87,7 @@ public class File$native {
 	public static Actor Writer(String filename) {
 		Record r = new Record();
 		try {			
-			FileOutputStream fout = new FileOutputStream(filename);
+			FileChannel fout = new FileOutputStream(filename).getChannel();
 			r.put("fileName", filename);
 			r.put("$fout", fout);			
 			Actor p = new Actor(r);
@@ -68,14 +100,13 @@ public class File$native {
 	}
 	
 	public static void close(Actor p) {
-		FileInputStream fin = (FileInputStream) ((HashMap) p.state())
-				.get("$fin");		
+		FileChannel fin = (FileChannel) ((HashMap) p.state()).get("$fin");
 		try {
 			if(fin != null) {
 				fin.close();
 			} else {
-				FileOutputStream fout = (FileOutputStream) ((HashMap) p.state())
-				.get("$fout");		
+				FileChannel fout = (FileChannel) ((HashMap) p.state())
+						.get("$fout");
 				fout.close();
 			}
 		} catch (IOException ioe) {
@@ -84,62 +115,173 @@ public class File$native {
 	}
 	
 	public static List read(Actor p, BigInteger max) {		
-		FileInputStream fin = (FileInputStream) ((HashMap) p.state())
-				.get("$fin");
-		
-		List r = new List();
-		byte[] bytes = new byte[max.intValue()];		
+		FileChannel fin = (FileChannel) ((HashMap) p.state()).get("$fin");
+		byte[] bytes = new byte[0];
+		int nbytes = 0;
 		try {
-			int nbytes = fin.read(bytes);
-			for(int i=0;i!=nbytes;++i) {				
-				r.add(bytes[i]);
+			long remaining = remaining(fin);
+			int size = (int) (remaining >= 0 ? Math.min(max.longValue(),
+					remaining) : max.longValue());
+			bytes = new byte[size];
+			nbytes = read(fin, bytes, 0, size);
+			// fewer bytes are only read than requested at the end of the
+			// file, whilst a known size tells us if the end was reached
+			// exactly.
+			if(nbytes < max.longValue() || remaining(fin) == 0) {
+				endOfFile(p);
 			}
 		} catch (IOException ioe) {
 			// what to do here??
 		}
-		
-		return r;		
+		return List.valueOf(bytes,nbytes);
 	}
 	
-	private static final int CHUNK_SIZE = 1024;
 	public static List read(Actor p) {		
-		FileInputStream fin = (FileInputStream) ((HashMap) p.state())
-				.get("$fin");
-		
-		List r = new List();				
+		FileChannel fin = (FileChannel) ((HashMap) p.state()).get("$fin");
+		byte[] bytes = new byte[0];
+		int size = 0;
 		try {
-			int nbytes = 0;
-			do {
-				byte[] bytes = new byte[CHUNK_SIZE];
-				nbytes = fin.read(bytes);
-				for(int i=0;i!=nbytes;++i) {
-					r.add(bytes[i]);
+			long remaining = remaining(fin);
+			if(remaining > MAX_LIST) {
+				throw tooLarge(p);
+			}
+			// NOTE: if the size is unknown, we must continue reading until the
+			// end is reached.
+			bytes = new byte[(int) Math.max(remaining, CHUNK_SIZE)];
+			while(true) {
+				size += read(fin, bytes, size, bytes.length - size);
+				if (size < bytes.length || remaining(fin) == 0
+						|| size == MAX_LIST) {
+					break;
 				}
-			} while(nbytes == CHUNK_SIZE);			
+				bytes = java.util.Arrays.copyOf(bytes,
+						(int) Math.min((long) size * 2, MAX_LIST));
+			}
+			if(size == MAX_LIST && remaining(fin) != 0) {
+				throw tooLarge(p);
+			}
+			endOfFile(p);
 		} catch (IOException ioe) {
 			// what to do here??
 		}
 		
-		return r;		
+		return List.valueOf(bytes,size);		
+	}
+	
+	/**
+	 * Check whether there are more bytes to read. This is determined from the
+	 * size of the file when it is known. Otherwise (e.g. for a pipe), it is
+	 * determined by whether a previous read reached the end of the stream.
+	 * Hence, in that case, the final read may return no bytes.
+	 * 
+	 * @param p
+	 * @return
+	 */
+	public static boolean hasMore(Actor p) {
+		Record state = (Record) p.state();
+		if(state.get("$eof") != null) {
+			return false;
+		}
+		long remaining = remaining((FileChannel) state.get("$fin"));
+		return remaining != 0;
 	}
 	
 	public static void write(Actor p, List bytes) {
-		FileOutputStream fout = (FileOutputStream) ((HashMap) p.state())
-				.get("$fout");
-				
+		FileChannel fout = (FileChannel) ((HashMap) p.state()).get("$fout");
+		ByteBuffer buffer = bytes.toByteBuffer();
 		try {			
-			byte[] bs = new byte[bytes.size()];
-			for(int i=0;i!=bs.length;++i) {
-				Byte r = (Byte) bytes.get(i); 
-				bs[i] = r.byteValue();
-			}			
-			fout.write(bs);			
+			while(buffer.hasRemaining()) {
+				fout.write(buffer);
+			}
 		} catch (IOException ioe) {
 			// what to do here??
 		}		
 	}
 	
 	public static void flush() {		
-		System.out.flush();
+		Util.flush();
+	}
+	
+	/**
+	 * Read up to <code>length</code> bytes from a channel into a given array,
+	 * returning the number actually read. This only reads fewer bytes than
+	 * requested if the end of the channel is reached. Large reads are
+	 * performed by mapping the file in windows of at most
+	 * <code>MAP_WINDOW</code> bytes, thereby bounding the amount of memory
+	 * mapped at any one time.
+	 * 
+	 * @param channel
+	 * @param bytes
+	 * @param offset
+	 * @param length
+	 * @return
+	 * @throws IOException
+	 */
+	private static int read(FileChannel channel, byte[] bytes, int offset,
+			int length) throws IOException {
+		int count = 0;
+		while(count < length) {
+			int remaining = length - count;
+			long available = remaining(channel);
+			if (remaining >= MAP_THRESHOLD && available >= MAP_THRESHOLD) {
+				long position = channel.position();
+				int window = (int) Math.min(Math.min(remaining, available),
+						MAP_WINDOW);
+				ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY,
+						position, window);
+				mapped.get(bytes, offset + count, window);
+				channel.position(position + window);
+				count += window;
+			} else {
+				int n = channel.read(ByteBuffer.wrap(bytes, offset + count,
+						remaining));
+				if(n <= 0) {
+					break;
+				}
+				count += n;
+			}
+		}
+		return count;
+	}
+	
+	/**
+	 * Record that the end of the file has been reached by a read.
+	 * 
+	 * @param p
+	 */
+	private static void endOfFile(Actor p) {
+		((Record) p.state()).put("$eof", Boolean.TRUE);
+	}
+	
+	/**
+	 * Construct the error raised when the whole of a file is read, but it is
+	 * too large to fit into a single list.
+	 * 
+	 * @param p
+	 * @return
+	 */
+	private static RuntimeException tooLarge(Actor p) {
+		String filename = (String) ((Record) p.state()).get("fileName");
+		return new RuntimeException("file " + filename
+				+ " is too large to read in full; use read(max) and hasMore() instead");
+	}
+	
+	/**
+	 * Determine how many bytes remain to be read from a channel, or
+	 * <code>-1</code> if this is unknown (e.g. because the channel is a pipe).
+	 * A reported size of zero is also treated as unknown, since special files
+	 * (e.g. <code>/proc/cpuinfo</code>) report this despite having contents.
+	 * 
+	 * @param channel
+	 * @return
+	 */
+	private static long remaining(FileChannel channel) {
+		try {
+			long size = channel.size();
+			long position = channel.position();
+			return size > 0 && size >= position ? size - position : -1;
+		} catch (IOException e) {
+			return -1;
+		}
 	}
 }
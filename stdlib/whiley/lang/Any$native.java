@@ -27,31 +27,44 @@ package whiley.lang;
 
 public class Any$native {    
 	public static java.lang.String toString(Object o) {
+		StringBuilder r = new StringBuilder();
+		toString(o,r);
+		return r.toString();
+	}
+	
+	/**
+	 * Append the string representation of a given value to a builder. The
+	 * runtime collections append their elements to the same builder, so the
+	 * cost is linear in the size of the output.
+	 */
+	public static void toString(Object o, StringBuilder r) {
 		if(o == null) {
-			return "null";
+			r.append("null");
 		} else if(o instanceof java.lang.String) {
-			return "\"" + o + "\"";
+			r.append('"').append((java.lang.String) o).append('"');
 		} else if(o instanceof java.lang.Character) {
-			return "\'" + o + "\'";
+			r.append('\'').append(((java.lang.Character) o).charValue()).append('\'');
 		} else if(o instanceof java.lang.Byte) {
-			java.lang.Byte b = (java.lang.Byte) o;
-			return toString((byte)b);
+			toString(((java.lang.Byte) o).byteValue(),r);
+		} else if(o instanceof wyjc.runtime.List) {
+			((wyjc.runtime.List) o).toString(r);
+		} else if(o instanceof wyjc.runtime.Set) {
+			((wyjc.runtime.Set) o).toString(r);
+		} else if(o instanceof wyjc.runtime.Record) {
+			((wyjc.runtime.Record) o).toString(r);
+		} else if(o instanceof wyjc.runtime.Dictionary) {
+			((wyjc.runtime.Dictionary) o).toString(r);
+		} else if(o instanceof wyjc.runtime.Tuple) {
+			((wyjc.runtime.Tuple) o).toString(r);
 		} else {
-			return o.toString();
+			r.append(o.toString());
 		}
 	}
 	
-	private static java.lang.String toString(byte b) {
-		java.lang.String r = "b";
-		byte v = b;
-		for(int i=0;i!=8;++i) {
-			if((v&0x1) == 1) {
-				r = "1" + r;
-			} else {
-				r = "0" + r;
-			}
-			v = (byte) (v >>> 1);
+	private static void toString(byte b, StringBuilder r) {
+		for(int i=7;i>=0;--i) {
+			r.append((b >>> i) & 0x1);
 		}
-		return r;
+		r.append('b');
 	} 	  
 }